@@ -1,11 +1,20 @@
 @echo off
 Title Discovery Data Service - TPP Data File Uploader
 
-rem Check for uploader patch updates. If error, then end without calling uploader
-java -jar bin\tpp-dds-patcher.jar [bucketname] [localdir]
-if %ERRORLEVEL%==-1 goto :end
+rem Check for uploader patch updates, then check for and upload data files, in one JVM. If the patch check fails,
+rem the launcher ends without calling the uploader
+rem
+rem Start up uses a class data sharing archive (Java 13+, ignored by older JVMs). The first run writes it on exit,
+rem and it is written again after the uploader has been patched
+set CDS_ARCHIVE=bin\tpp-dds.jsa
+if exist %CDS_ARCHIVE%.stale del %CDS_ARCHIVE% %CDS_ARCHIVE%.stale
+if exist %CDS_ARCHIVE% (set CDS_OPTION=-XX:SharedArchiveFile=%CDS_ARCHIVE%) else (set CDS_OPTION=-XX:ArchiveClassesAtExit=%CDS_ARCHIVE%)
 
-rem Check for and upload data files
-java -jar bin\tpp-dds-uploader.jar [mode] [rootdir] [hookkey] [username] [password] [orgId]
+java -XX:+IgnoreUnrecognizedVMOptions -Xshare:auto %CDS_OPTION% -jar bin\tpp-dds-launcher.jar [bucketname] [localdir] [mode] [rootdir] [hookkey] [username] [password] [orgId]
 
-:end
\ No newline at end of file
+rem Without the launcher, the patcher and uploader can still be run one after the other:
+rem java -jar bin\tpp-dds-patcher.jar [bucketname] [localdir]
+rem if %ERRORLEVEL%==-1 goto :end
+rem java -jar bin\tpp-dds-uploader.jar [mode] [rootdir] [hookkey] [username] [password] [orgId]
+
+:end
@@ -0,0 +1,75 @@
+package org.endeavourhealth.tppddsuploader;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// scanning a root folder with a backlog of archived extract folders, as done at the start of every run. The zips
+// are kept under the split size so the scan leaves the folders unchanged between invocations
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DirectoryScanBenchmark {
+
+    @Param({"10", "100", "500"})
+    public int archivedFolders;
+
+    // true = scan with an index warmed by an earlier scan, as on every run after the first
+    @Param({"false", "true"})
+    public boolean indexed;
+
+    private File rootDir;
+    private List<File> inputFiles;
+    private List<File> inputFolders;
+    private ScanIndex scanIndex;
+
+    @Setup(Level.Trial)
+    public void generateRoot() throws IOException
+    {
+        rootDir = Files.createTempDirectory("tppdds-scan").toFile();
+        new SyntheticExtractGenerator(1).generateRoot(rootDir, archivedFolders, 100, 0);
+
+        scanIndex = ScanIndex.inMemory();
+        inputFiles = new LinkedList<File>();
+        inputFolders = HelperUtils.getUploadFileList(rootDir, inputFiles, "", SyntheticExtractGenerator.ORG_ID,
+                new UploadMetrics(SyntheticExtractGenerator.ORG_ID), scanIndex, HelperUtils.fixedZipSplitSize(HelperUtils.ZIP_SPLIT_SIZE));
+    }
+
+    @Benchmark
+    public List<File> getUploadFileList()
+    {
+        List<File> results = new LinkedList<File>();
+        HelperUtils.getUploadFileList(rootDir, results, "", SyntheticExtractGenerator.ORG_ID,
+                new UploadMetrics(SyntheticExtractGenerator.ORG_ID), indexed ? scanIndex : ScanIndex.inMemory(),
+                HelperUtils.fixedZipSplitSize(HelperUtils.ZIP_SPLIT_SIZE));
+        return results;
+    }
+
+    // locating every folder's files in the combined file list, as the upload loop does once per folder
+    @Benchmark
+    public void extractFileBatchLocations(Blackhole blackhole)
+    {
+        for (File inputFolder : inputFolders) {
+            ArrayList<Integer> intArray = new ArrayList<Integer>();
+            HelperUtils.extractFileBatchLocations(inputFiles, inputFolder.getPath(), intArray);
+            blackhole.consume(intArray);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteRoot()
+    {
+        SyntheticExtractGenerator.deleteTree(rootDir);
+        SyntheticExtractGenerator.deleteTree(SyntheticExtractGenerator.archivedFolder(rootDir));
+    }
+}
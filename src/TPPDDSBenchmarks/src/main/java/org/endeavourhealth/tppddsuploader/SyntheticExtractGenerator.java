@@ -0,0 +1,186 @@
+package org.endeavourhealth.tppddsuploader;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+// generates synthetic TPP SR extract folders laid out the way the uploader finds them on a client PC: one current
+// extract folder in the root directory plus a number of folders in [root]\Archived, each holding SRExtract.zip and
+// the three SR csv files. Rows are random but seeded so the same settings always give the same files
+public class SyntheticExtractGenerator {
+
+    // the DDS test organisation. It is a TPP org, so the full folder checks run, and Slack alerts are never sent for it
+    static final String ORG_ID = "TPP-01";
+    static final String[] EXTRACT_TABLES = {"SRPatient", "SREvent", "SRCode", "SRAppointment", "SRReferralOut", "SRPrimaryCareMedication"};
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String[] CODES = {"XaIvd", "XaJ0c", "X77Wg", "XE0Uc", "Y1f1c", "XaBVJ", "22K..", "246..", "44P..", "XM0lt"};
+    private static final long FOLDER_INTERVAL_MILLIS = 3600000;
+
+    private final Random random;
+    private long rowIdentifier = 1;
+
+    public SyntheticExtractGenerator(long seed)
+    {
+        this.random = new Random(seed);
+    }
+
+    // usage: <rootDir> <archivedFolders> <rowsPerCsv> [zipSizeMb]
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length < 3) {
+            System.out.println("Usage: SyntheticExtractGenerator <rootDir> <archivedFolders> <rowsPerCsv> [zipSizeMb]");
+            System.exit(-1);
+        }
+
+        File rootDir = new File(args[0]);
+        int archivedFolders = Integer.parseInt(args[1]);
+        int rowsPerCsv = Integer.parseInt(args[2]);
+        long zipBytes = (args.length > 3) ? Long.parseLong(args[3]) * 1048576 : 0;
+
+        new SyntheticExtractGenerator(1).generateRoot(rootDir, archivedFolders, rowsPerCsv, zipBytes);
+        System.out.println(String.format("Generated %d archived folders and 1 current folder in %s", archivedFolders, rootDir.getPath()));
+    }
+
+    // the Archived folder as the uploader addresses it, i.e. [root]\Archived
+    static File archivedFolder(File rootDir)
+    {
+        return new File(rootDir.getPath().concat("\\Archived"));
+    }
+
+    // creates the archived folders, oldest first, and the current extract folder. Returns every folder created
+    List<File> generateRoot(File rootDir, int archivedFolders, int rowsPerCsv, long zipBytes) throws IOException
+    {
+        List<File> folders = new ArrayList<File>();
+        SimpleDateFormat folderFormat = new SimpleDateFormat("yyyyMMdd_HHmm");
+        long folderTime = System.currentTimeMillis() - (archivedFolders + 1) * FOLDER_INTERVAL_MILLIS;
+
+        for (int i = 0; i < archivedFolders; i++) {
+            File folder = new File(archivedFolder(rootDir), folderFormat.format(new Date(folderTime)));
+            writeExtractFolder(folder, rowsPerCsv, zipBytes);
+            folders.add(folder);
+            folderTime += FOLDER_INTERVAL_MILLIS;
+        }
+
+        File currentFolder = new File(rootDir, folderFormat.format(new Date(folderTime)));
+        writeExtractFolder(currentFolder, rowsPerCsv, zipBytes);
+        folders.add(currentFolder);
+        return folders;
+    }
+
+    // writes the four files of one SR extract into the folder
+    void writeExtractFolder(File folder, int rowsPerCsv, long zipBytes) throws IOException
+    {
+        if (!folder.isDirectory() && !folder.mkdirs())
+            throw new IOException("Unable to create folder " + folder.getPath());
+
+        writeExtractZip(new File(folder, "SRExtract.zip"), rowsPerCsv, zipBytes);
+        writeManifest(new File(folder, "SRManifest.csv"));
+        writeCsv(new File(folder, "SRMapping.csv"), "\"RowIdentifier\",\"IdMappingGroup\",\"Mapping\"", rowsPerCsv / 100 + 1, 2);
+        writeCsv(new File(folder, "SRMappingGroup.csv"), "\"RowIdentifier\",\"MappingGroup\"", 20, 1);
+    }
+
+    // writes one csv per SR table into the zip, then keeps adding event rows until the zip is at least zipBytes long
+    void writeExtractZip(File zipFile, int rowsPerCsv, long zipBytes) throws IOException
+    {
+        FileOutputStream fileOut = new FileOutputStream(zipFile);
+        ZipOutputStream zipOut = new ZipOutputStream(new BufferedOutputStream(fileOut, 65536));
+        try {
+            for (String table : EXTRACT_TABLES) {
+                zipOut.putNextEntry(new ZipEntry(table + ".csv"));
+                Writer writer = new OutputStreamWriter(zipOut, UTF8);
+                writer.write(eventHeader());
+                for (int row = 0; row < rowsPerCsv; row++)
+                    writer.write(eventRow());
+
+                // the last table is topped up to reach the requested zip size. Deflater output is buffered,
+                // so the size on disk lags slightly behind and the zip ends up a little over the target
+                if (table.equals(EXTRACT_TABLES[EXTRACT_TABLES.length - 1])) {
+                    while (fileOut.getChannel().position() < zipBytes) {
+                        for (int row = 0; row < 1000; row++)
+                            writer.write(eventRow());
+                        writer.flush();
+                    }
+                }
+                writer.flush();
+                zipOut.closeEntry();
+            }
+        } finally {
+            zipOut.close();
+        }
+    }
+
+    private void writeManifest(File manifestFile) throws IOException
+    {
+        StringBuilder manifest = new StringBuilder("\"FileName\",\"IsDelta\",\"IsReference\",\"DateExtractFrom\",\"DateExtractTo\"\r\n");
+        for (String table : EXTRACT_TABLES)
+            manifest.append('"').append(table).append("\",\"Y\",\"N\",\"01 Jan 2019 00:00:00\",\"02 Jan 2019 00:00:00\"\r\n");
+        writeFile(manifestFile, manifest.toString());
+    }
+
+    private void writeCsv(File csvFile, String header, int rows, int columns) throws IOException
+    {
+        StringBuilder csv = new StringBuilder(header).append("\r\n");
+        for (int row = 0; row < rows; row++) {
+            csv.append(rowIdentifier++);
+            for (int column = 0; column < columns; column++)
+                csv.append(",\"").append(CODES[random.nextInt(CODES.length)]).append('"');
+            csv.append("\r\n");
+        }
+        writeFile(csvFile, csv.toString());
+    }
+
+    private String eventHeader()
+    {
+        return "\"RowIdentifier\",\"IDOrganisationVisibleTo\",\"DateEventRecorded\",\"DateEvent\",\"IDProfileEnteredBy\","
+                + "\"IDPatient\",\"CTV3Code\",\"NumericValue\",\"EpisodeType\",\"IDOrganisation\",\"RemovedData\"\r\n";
+    }
+
+    private String eventRow()
+    {
+        StringBuilder row = new StringBuilder(160);
+        row.append(rowIdentifier++).append(',')
+                .append(random.nextInt(5000) + 1000).append(",\"")
+                .append(randomDate()).append("\",\"")
+                .append(randomDate()).append("\",")
+                .append(random.nextInt(1000000)).append(',')
+                .append(random.nextInt(500000) + 1).append(",\"")
+                .append(CODES[random.nextInt(CODES.length)]).append("\",")
+                .append(random.nextInt(10) == 0 ? String.format(Locale.ROOT, "%.1f", random.nextDouble() * 200) : "").append(",\"")
+                .append(random.nextBoolean() ? "New" : "Review").append("\",")
+                .append(random.nextInt(5000) + 1000).append(",\"")
+                .append(random.nextInt(50) == 0 ? "Y" : "N").append("\"\r\n");
+        return row.toString();
+    }
+
+    private String randomDate()
+    {
+        return String.format(Locale.ROOT, "%02d %s %d %02d:%02d:%02d", random.nextInt(28) + 1,
+                new String[]{"Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec"}[random.nextInt(12)],
+                2000 + random.nextInt(20), random.nextInt(24), random.nextInt(60), random.nextInt(60));
+    }
+
+    private static void writeFile(File file, String content) throws IOException
+    {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes(UTF8));
+        } finally {
+            out.close();
+        }
+    }
+
+    // recursively deletes a generated folder tree
+    static void deleteTree(File file)
+    {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children)
+                deleteTree(child);
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,64 @@
+package org.endeavourhealth.tppddsuploader;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+// the per-folder checks made before a batch is uploaded, over one generated SR extract folder
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ValidationBenchmark {
+
+    @Param({"1000", "100000"})
+    public int rowsPerCsv;
+
+    // true = validate with an index warmed by an earlier validation, as for an unchanged folder
+    @Param({"false", "true"})
+    public boolean indexed;
+
+    private File workDir;
+    private File extractFolder;
+    private ScanIndex scanIndex;
+
+    @Setup(Level.Trial)
+    public void generateFolder() throws IOException
+    {
+        workDir = Files.createTempDirectory("tppdds-validate").toFile();
+        extractFolder = new File(workDir, "20190101_0100");
+        new SyntheticExtractGenerator(1).writeExtractFolder(extractFolder, rowsPerCsv, 0);
+        scanIndex = ScanIndex.inMemory();
+        HelperUtils.checkValidUploadFiles(SyntheticExtractGenerator.ORG_ID, extractFolder, "", scanIndex);
+    }
+
+    @Benchmark
+    public boolean validZipFile()
+    {
+        return HelperUtils.validZipFile(new File(extractFolder, "SRExtract.zip"));
+    }
+
+    @Benchmark
+    public int countFiles()
+    {
+        return HelperUtils.countFiles(extractFolder, false);
+    }
+
+    @Benchmark
+    public boolean checkValidUploadFiles()
+    {
+        return HelperUtils.checkValidUploadFiles(SyntheticExtractGenerator.ORG_ID, extractFolder, "",
+                indexed ? scanIndex : ScanIndex.inMemory());
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteWorkDir()
+    {
+        SyntheticExtractGenerator.deleteTree(workDir);
+    }
+}
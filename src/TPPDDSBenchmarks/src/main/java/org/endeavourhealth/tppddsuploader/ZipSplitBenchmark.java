@@ -0,0 +1,64 @@
+package org.endeavourhealth.tppddsuploader;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Arrays.asList;
+
+// time to split one large SRExtract.zip into 10mb parts, per split mode. Every invocation splits a fresh copy of the
+// same generated zip, as splitting replaces the source zip with its parts
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ZipSplitBenchmark {
+
+    @Param({"stream", "zip4j", "independent", "parallel"})
+    public String zipSplitMode;
+
+    @Param({"50"})
+    public int zipSizeMb;
+
+    private File workDir;
+    private File sourceZip;
+    private File extractFolder;
+
+    @Setup(Level.Trial)
+    public void generateZip() throws IOException
+    {
+        System.setProperty("tppdds.zipSplitMode", zipSplitMode);
+        workDir = Files.createTempDirectory("tppdds-split").toFile();
+        sourceZip = new File(workDir, "source.zip");
+        new SyntheticExtractGenerator(1).writeExtractZip(sourceZip, 1000, zipSizeMb * 1048576L);
+    }
+
+    @Setup(Level.Invocation)
+    public void copyZip() throws IOException
+    {
+        extractFolder = new File(workDir, "extract");
+        SyntheticExtractGenerator.deleteTree(extractFolder);
+        extractFolder.mkdirs();
+        Files.copy(sourceZip.toPath(), new File(extractFolder, "SRExtract.zip").toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @Benchmark
+    public void splitLargeZipFiles(Blackhole blackhole)
+    {
+        blackhole.consume(HelperUtils.splitLargeZipFiles(asList(extractFolder.listFiles()), "", SyntheticExtractGenerator.ORG_ID,
+                new UploadMetrics(SyntheticExtractGenerator.ORG_ID), ScanIndex.inMemory(), HelperUtils.fixedZipSplitSize(HelperUtils.ZIP_SPLIT_SIZE)));
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteWorkDir()
+    {
+        SyntheticExtractGenerator.deleteTree(workDir);
+    }
+}
@@ -0,0 +1,218 @@
+package org.endeavourhealth.tppddslauncher;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+// runs the patch check and then the uploader in one JVM, instead of starting a JVM for each.  The patcher and the
+// uploader are each loaded from their own jar in an isolated class loader, so the uploader always runs from the jar
+// the patch check has just installed, and neither sees the other's dependencies.  In daemon mode the uploader runs
+// from a copy of its jar, leaving the jar free to be patched, and is reloaded in place when a patch check finds the
+// jar has changed
+public class Main {
+
+    private static final String APPLICATION_NAME = "Discovery Data File Uploader Launcher";
+    private static final String PATCHER_FILE_NAME = "tpp-dds-patcher.jar";
+    private static final String UPLOADER_FILE_NAME = "tpp-dds-uploader.jar";
+    private static final String RUNNING_UPLOADER_FILE_NAME = "tpp-dds-uploader.running.jar";
+    private static final String CDS_STALE_FILE_NAME = "tpp-dds.jsa.stale";
+    private static final String PATCHER_MAIN_CLASS = "org.endeavourhealth.tppddpatcher.Main";
+    private static final String UPLOADER_MAIN_CLASS = "org.endeavourhealth.tppddsuploader.Main";
+    private static final String DAEMON_MODE = "5";
+    private static final String PATCH_CHECK_MINUTES = "tppdds.patchCheckMinutes";
+    private static final long DEFAULT_PATCH_CHECK_MINUTES = 60;
+
+    public static void main(String[] args)
+    {
+        if (args.length < 3) {
+            System.out.println("Usage: java -jar tpp-dds-launcher.jar [patchsource] [localdir] [mode] [rootdir] [hookkey] [username] [password] [orgId]");
+            System.exit(-1);
+        }
+
+        String patchSource = args[0];
+        String localWorkingDirectory = args[1];
+        String[] uploaderArgs = Arrays.copyOfRange(args, 2, args.length);
+
+        System.out.println("==========================================");
+        System.out.println("   "+APPLICATION_NAME+"                    ");
+        System.out.println("==========================================\n");
+
+        try {
+            if (uploaderArgs[0].equals(DAEMON_MODE)) {
+                runDaemon(patchSource, localWorkingDirectory, uploaderArgs);
+            } else {
+                // as the batch file did: if the patch check fails, end without calling the uploader
+                if (runPatchCheck(patchSource, localWorkingDirectory) != 0)
+                    System.exit(-1);
+                runUploader(new File(localWorkingDirectory + UPLOADER_FILE_NAME), uploaderArgs);
+            }
+        } catch (Exception ex) {
+            System.out.println("Launcher failed => " + ex);
+            ex.printStackTrace();
+            System.exit(-1);
+        }
+        System.exit(0);
+    }
+
+    // the patch check, in a class loader which is closed as soon as it is done
+    private static int runPatchCheck(String patchSource, String localWorkingDirectory) throws IOException
+    {
+        File uploaderJar = new File(localWorkingDirectory + UPLOADER_FILE_NAME);
+        String installedVersion = jarVersion(uploaderJar);
+
+        URLClassLoader patcherLoader = isolatedLoader(new File(localWorkingDirectory + PATCHER_FILE_NAME));
+        try {
+            int result = runPatchCheck(patcherLoader, patchSource, localWorkingDirectory);
+            if (!installedVersion.equals(jarVersion(uploaderJar)))
+                markClassDataArchiveStale(localWorkingDirectory);
+            return result;
+        } finally {
+            patcherLoader.close();
+        }
+    }
+
+    private static int runPatchCheck(ClassLoader patcherLoader, String patchSource, String localWorkingDirectory)
+    {
+        try {
+            return (Integer) invoke(patcherLoader, PATCHER_MAIN_CLASS, "RunPatchCheck",
+                    new Class<?>[] {String.class, String.class}, patchSource, localWorkingDirectory);
+        } catch (Exception ex) {
+            System.out.println("Unable to run the patch check from " + PATCHER_FILE_NAME + " => " + ex);
+            return -1;
+        }
+    }
+
+    // the uploader in this thread, from the jar as it is now
+    private static void runUploader(File uploaderJar, String[] uploaderArgs) throws Exception
+    {
+        URLClassLoader uploaderLoader = isolatedLoader(uploaderJar);
+        try {
+            invoke(uploaderLoader, UPLOADER_MAIN_CLASS, "main", new Class<?>[] {String[].class}, (Object) uploaderArgs);
+        } finally {
+            uploaderLoader.close();
+        }
+    }
+
+    // runs the daemon mode uploader from a copy of its jar, checking for patches every few minutes.  When a patch
+    // check replaces the jar, the running uploader is asked to stop once any upload pass in progress has finished,
+    // and is started again from the patched jar.  The patcher stays loaded between checks
+    private static void runDaemon(String patchSource, String localWorkingDirectory, String[] uploaderArgs) throws Exception
+    {
+        long patchCheckMillis = Math.max(1, Long.getLong(PATCH_CHECK_MINUTES, DEFAULT_PATCH_CHECK_MINUTES)) * 60000L;
+        File uploaderJar = new File(localWorkingDirectory + UPLOADER_FILE_NAME);
+        File runningJar = new File(localWorkingDirectory + RUNNING_UPLOADER_FILE_NAME);
+
+        URLClassLoader patcherLoader = isolatedLoader(new File(localWorkingDirectory + PATCHER_FILE_NAME));
+        try {
+            if (runPatchCheck(patcherLoader, patchSource, localWorkingDirectory) != 0)
+                System.exit(-1);
+
+            while (true) {
+                String runningVersion = jarVersion(uploaderJar);
+                Files.copy(uploaderJar.toPath(), runningJar.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+                URLClassLoader uploaderLoader = isolatedLoader(runningJar);
+                try {
+                    Thread uploader = startUploader(uploaderLoader, uploaderArgs);
+                    while (true) {
+                        uploader.join(patchCheckMillis);
+                        if (!uploader.isAlive())
+                            return;
+
+                        // a failed check leaves the uploader running as it is, to try again next time
+                        if (runPatchCheck(patcherLoader, patchSource, localWorkingDirectory) == 0
+                                && !runningVersion.equals(jarVersion(uploaderJar)))
+                            break;
+                    }
+
+                    System.out.println("\nUploader patched, restarting it once any upload in progress has finished\n");
+                    markClassDataArchiveStale(localWorkingDirectory);
+                    invoke(uploaderLoader, UPLOADER_MAIN_CLASS, "stopDaemon", new Class<?>[0]);
+                    uploader.join();
+                    shutdownUploader(uploaderLoader);
+                } finally {
+                    uploaderLoader.close();
+                }
+            }
+        } finally {
+            patcherLoader.close();
+            runningJar.delete();
+        }
+    }
+
+    private static Thread startUploader(final ClassLoader uploaderLoader, final String[] uploaderArgs)
+    {
+        Thread uploader = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    invoke(uploaderLoader, UPLOADER_MAIN_CLASS, "main", new Class<?>[] {String[].class}, (Object) uploaderArgs);
+                } catch (Exception ex) {
+                    System.out.println("Uploader failed => " + ex);
+                    ex.printStackTrace();
+                }
+            }
+        }, "uploader");
+        uploader.setContextClassLoader(uploaderLoader);
+        uploader.start();
+        return uploader;
+    }
+
+    // stops the threads and shutdown hook the stopped uploader left running, which would otherwise keep its class
+    // loader and classes reachable.  An uploader from before the shutdown entry point is left as it is
+    private static void shutdownUploader(ClassLoader uploaderLoader) throws Exception
+    {
+        try {
+            invoke(uploaderLoader, UPLOADER_MAIN_CLASS, "shutdown", new Class<?>[0]);
+        } catch (NoSuchMethodException ex) {
+            System.out.println("Uploader has no shutdown entry point, its threads are left running");
+        }
+    }
+
+    // a class loader for the jar whose parent is the platform class loader, so only JDK classes are shared with it
+    private static URLClassLoader isolatedLoader(File jarFile) throws IOException
+    {
+        if (!jarFile.isFile())
+            throw new IOException("Unable to find " + jarFile.getPath());
+        return new URLClassLoader(new URL[] {jarFile.toURI().toURL()}, ClassLoader.getSystemClassLoader().getParent());
+    }
+
+    // calls a static method of a class in the loader, with the loader as the context class loader while it runs, as
+    // logging and the http client find their configuration through it.  Exceptions thrown by the method are rethrown
+    private static Object invoke(ClassLoader loader, String className, String methodName, Class<?>[] parameterTypes, Object... args) throws Exception
+    {
+        Thread thread = Thread.currentThread();
+        ClassLoader contextLoader = thread.getContextClassLoader();
+        thread.setContextClassLoader(loader);
+        try {
+            Method method = Class.forName(className, true, loader).getMethod(methodName, parameterTypes);
+            return method.invoke(null, args);
+        } catch (InvocationTargetException ex) {
+            if (ex.getCause() instanceof Exception)
+                throw (Exception) ex.getCause();
+            throw ex;
+        } finally {
+            thread.setContextClassLoader(contextLoader);
+        }
+    }
+
+    private static String jarVersion(File jarFile)
+    {
+        return jarFile.length() + ":" + jarFile.lastModified();
+    }
+
+    // the class data sharing archive holds classes of the old jar, so the batch file makes a new one on the next run
+    private static void markClassDataArchiveStale(String localWorkingDirectory)
+    {
+        try {
+            new File(localWorkingDirectory + CDS_STALE_FILE_NAME).createNewFile();
+        } catch (IOException ex) {
+            System.out.println("Unable to mark the class data sharing archive for renewal => " + ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package org.endeavourhealth.tppddpatcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Base64;
+
+// patches served over http(s) with the layout of the S3 bucket, e.g. by a hub mirror or the stand-in PatchServer.
+// A check is a HEAD request made conditional on the ETag of the version last installed, so an unchanged patch costs
+// a 304 with no body.  The sha256 and md5 of the patch are taken from the Digest (RFC 3230) and Content-MD5 response
+// headers if the server sends them
+class HttpPatchSource implements PatchSource {
+
+    private static final int TIMEOUT_MILLIS = 60000;
+
+    private final String baseUri;
+
+    HttpPatchSource(String baseUri)
+    {
+        this.baseUri = baseUri.endsWith("/") ? baseUri : baseUri + "/";
+    }
+
+    public PatchInfo describe(String key, PatchInfo cached) throws IOException
+    {
+        HttpURLConnection connection = open(key, "HEAD");
+        try {
+            if (cached != null && cached.getEtag() != null)
+                connection.setRequestProperty("If-None-Match", cached.getEtag());
+
+            int statusCode = connection.getResponseCode();
+            if (statusCode == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null)
+                return cached;
+            if (statusCode == HttpURLConnection.HTTP_NOT_FOUND)
+                return null;
+            if (statusCode != HttpURLConnection.HTTP_OK)
+                throw new IOException(String.format("Patch check for %s failed with HTTP %d", key, statusCode));
+
+            String etag = connection.getHeaderField("ETag");
+            if (etag == null)
+                throw new IOException("Patch server sent no ETag for " + key);
+
+            return new PatchInfo(etag, connection.getContentLengthLong(), connection.getLastModified(),
+                    digestHeader(connection.getHeaderField("Digest"), "sha-256"), base64ToHex(connection.getHeaderField("Content-MD5")));
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    public void download(final String key, final PatchInfo patch, File targetFile) throws IOException, InterruptedException
+    {
+        RangedDownload.download(new RangedDownload.RangeReader() {
+            public InputStream openRange(long start, long end) throws IOException {
+                HttpURLConnection connection = open(key, "GET");
+                connection.setRequestProperty("Range", "bytes=" + start + "-" + end);
+                connection.setRequestProperty("If-Match", patch.getEtag());
+
+                int statusCode = connection.getResponseCode();
+                if (statusCode == HttpURLConnection.HTTP_PRECON_FAILED) {
+                    connection.disconnect();
+                    throw new RangedDownload.PatchChangedException("Patch file " + key + " changed during the download");
+                }
+                // a server which ignores the range sends the whole file, which is only of use for a single part patch
+                boolean wholeFile = statusCode == HttpURLConnection.HTTP_OK && start == 0 && end == patch.getSize() - 1;
+                if (statusCode != HttpURLConnection.HTTP_PARTIAL && !wholeFile) {
+                    connection.disconnect();
+                    throw new IOException(String.format("Patch download of bytes %d-%d failed with HTTP %d", start, end, statusCode));
+                }
+                return connection.getInputStream();
+            }
+        }, patch.getSize(), targetFile);
+    }
+
+    private HttpURLConnection open(String key, String method) throws IOException
+    {
+        HttpURLConnection connection = (HttpURLConnection) new URL(baseUri + key).openConnection();
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(TIMEOUT_MILLIS);
+        connection.setReadTimeout(TIMEOUT_MILLIS);
+        connection.setUseCaches(false);
+        return connection;
+    }
+
+    // the hex value of the algorithm from a Digest header, e.g. sha-256=<base64>,md5=<base64>
+    static String digestHeader(String digest, String algorithm)
+    {
+        if (digest == null)
+            return null;
+        for (String value : digest.split(",")) {
+            int separator = value.indexOf('=');
+            if (separator > 0 && value.substring(0, separator).trim().equalsIgnoreCase(algorithm))
+                return base64ToHex(value.substring(separator + 1).trim());
+        }
+        return null;
+    }
+
+    private static String base64ToHex(String base64)
+    {
+        if (base64 == null)
+            return null;
+        try {
+            StringBuilder hex = new StringBuilder();
+            for (byte b : Base64.getDecoder().decode(base64.trim()))
+                hex.append(String.format("%02x", b));
+            return hex.toString();
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+    }
+}
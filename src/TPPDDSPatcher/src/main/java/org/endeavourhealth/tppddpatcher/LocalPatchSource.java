@@ -0,0 +1,52 @@
+package org.endeavourhealth.tppddpatcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+// patches in a local or network directory laid out as the S3 bucket, e.g. a hub mirror share or a test fixture.
+// The ETag is made from the size and modified time of the patch, and its sha256 read from a <patch>.sha256 file
+// alongside it if there is one
+class LocalPatchSource implements PatchSource {
+
+    static final String SHA256_SUFFIX = ".sha256";
+
+    private final File patchDir;
+
+    LocalPatchSource(File patchDir)
+    {
+        this.patchDir = patchDir;
+    }
+
+    public PatchInfo describe(String key, PatchInfo cached) throws IOException
+    {
+        File patchFile = new File(patchDir, key);
+        if (!patchFile.isFile())
+            return null;
+
+        String sha256 = null;
+        File sha256File = new File(patchDir, key + SHA256_SUFFIX);
+        if (sha256File.isFile())
+            sha256 = new String(Files.readAllBytes(sha256File.toPath()), "US-ASCII").trim().split("\\s+")[0];
+
+        return new PatchInfo(etag(patchFile), patchFile.length(), patchFile.lastModified(), sha256, null);
+    }
+
+    // a plain copy, as ranged reads gain nothing from a local disk
+    public void download(String key, PatchInfo patch, File targetFile) throws IOException
+    {
+        File patchFile = new File(patchDir, key);
+        if (!etag(patchFile).equals(patch.getEtag()))
+            throw new RangedDownload.PatchChangedException("Patch file " + patchFile.getPath() + " changed before the download");
+
+        Files.copy(patchFile.toPath(), targetFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        if (!etag(patchFile).equals(patch.getEtag()))
+            throw new RangedDownload.PatchChangedException("Patch file " + patchFile.getPath() + " changed during the download");
+    }
+
+    static String etag(File patchFile)
+    {
+        return "\"" + Long.toHexString(patchFile.length()) + "-" + Long.toHexString(patchFile.lastModified()) + "\"";
+    }
+}
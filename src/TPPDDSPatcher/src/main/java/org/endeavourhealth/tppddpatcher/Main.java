@@ -4,43 +4,59 @@ import com.amazonaws.AmazonClientException;
 import com.amazonaws.AmazonServiceException;
 import com.amazonaws.SdkBaseException;
 import com.amazonaws.regions.Regions;
-import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
-import com.amazonaws.services.s3.model.ListObjectsRequest;
-import com.amazonaws.services.s3.model.ObjectListing;
-import com.amazonaws.services.s3.model.S3ObjectSummary;
-import com.amazonaws.services.s3.transfer.Download;
-import com.amazonaws.services.s3.transfer.TransferManagerBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.Date;
-import java.util.List;
+import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.jar.JarFile;
 
 public class Main {
 
     private static final Logger LOG = LoggerFactory.getLogger(Main.class);
     private static final String APPLICATION_NAME = "Discovery Data File Uploader Patcher";
+    private static final String UPLOADER_FILE_NAME = "tpp-dds-uploader.jar";
+    private static final String MANIFEST_FILE_NAME = "patch-manifest.properties";
+    private static final String PREVIOUS_SUFFIX = ".previous";
+    static final String PATCH_DIRECTORY = "tppddspatcher";
+    static final String PATCH_FILE_NAME = "tpp-dds-uploader-patch.jar";
+    private static final String SERVE_COMMAND = "serve";
+    private static final String LOAD_TEST_COMMAND = "loadtest";
+    private static final int DEFAULT_SERVER_PORT = 8091;
 
     public static void main(String[] args) throws IOException {
-        AmazonS3ClientBuilder s3 = AmazonS3ClientBuilder
-                .standard()
-                .withRegion(Regions.EU_WEST_2);
+        // the stand-in patch server and load test have their own commands
+        if (args.length > 0 && args[0].equalsIgnoreCase(SERVE_COMMAND)) {
+            ServePatches(new File(args[1]), (args.length > 2) ? Integer.parseInt(args[2]) : DEFAULT_SERVER_PORT);
+            return;
+        }
+        if (args.length > 0 && args[0].equalsIgnoreCase(LOAD_TEST_COMMAND)) {
+            PatchLoadTest.run(CreatePatchSource(args[1]), Integer.parseInt(args[2]), (args.length > 3) ? Integer.parseInt(args[3]) : 2);
+            System.exit(0);
+        }
 
-        String awsBucketName = args[0];
-        String localWorkingDirectory = args[1];
-        String awsPatchDirectory = "tppddspatcher";
-        String patchFileName = "tpp-dds-uploader-patch.jar";
+        System.exit(RunPatchCheck(args[0], args[1]));
+    }
 
+    // the patch check and update, returning the process exit code: 0, or -1 if the check failed and the uploader
+    // should not be run.  Also called in-process by the launcher, so it never exits itself
+    public static int RunPatchCheck(String patchSource, String localWorkingDirectory)
+    {
         System.out.println("==========================================");
         System.out.println("   "+APPLICATION_NAME+"                    ");
         System.out.println("==========================================\n");
 
         try {
-            CheckForPatchUpdates(s3.build(),awsPatchDirectory, awsBucketName, localWorkingDirectory, patchFileName);
-            System.exit(0);
+            CheckForPatchUpdates(CreatePatchSource(patchSource), PATCH_DIRECTORY, localWorkingDirectory, PATCH_FILE_NAME);
+            return 0;
 
         } catch (AmazonServiceException ase) {
             System.out.println("Caught an AmazonServiceException, which means your request made it "
@@ -50,87 +66,202 @@ public class Main {
             System.out.println("AWS Error Code:   " + ase.getErrorCode());
             System.out.println("Error Type:       " + ase.getErrorType());
             System.out.println("Request ID:       " + ase.getRequestId());
-            System.exit(-1);
+            return -1;
         } catch (AmazonClientException ace) {
             System.out.println("Caught an AmazonClientException, which means the client encountered "
                     + "a serious internal problem while trying to communicate with S3, "
                     + "such as not being able to access the network.");
             System.out.println("Error Message: " + ace.getMessage());
-            System.exit(-1);
+            return -1;
         } catch (InterruptedException ie) {
             System.out.println("Caught an InterruptedException: "+ie.getMessage());
-            System.exit(-1);
+            return -1;
         } catch (IOException io) {
             System.out.println("Caught an IOException: "+io.getMessage());
-            System.exit(-1);
+            return -1;
         }
     }
 
-    private static void CheckForPatchUpdates(AmazonS3 s3, String awsPatchDirectory, String awsBucketName, String localWorkingDirectory, String patchFileName) throws SdkBaseException, InterruptedException, IOException
+    // an http(s) URI is a hub mirror or stand-in patch server, a file: URI or existing directory is a local copy of
+    // the bucket, and anything else the name of the S3 bucket
+    static PatchSource CreatePatchSource(String patchSource)
+    {
+        String lowerSource = patchSource.toLowerCase();
+        if (lowerSource.startsWith("http://") || lowerSource.startsWith("https://"))
+            return new HttpPatchSource(patchSource);
+        if (lowerSource.startsWith("file:"))
+            return new LocalPatchSource(new File(patchSource.substring(5)));
+        if (new File(patchSource).isDirectory())
+            return new LocalPatchSource(new File(patchSource));
+
+        AmazonS3ClientBuilder s3 = AmazonS3ClientBuilder
+                .standard()
+                .withRegion(Regions.EU_WEST_2);
+        return new S3PatchSource(s3.build(), patchSource);
+    }
+
+    private static void ServePatches(File patchDir, int port) throws IOException
+    {
+        PatchServer server = PatchServer.start(patchDir, port);
+        System.out.println("Serving patches from " + patchDir.getPath() + " at " + server.getBaseUri());
+        try {
+            Thread.currentThread().join();
+        } catch (InterruptedException ie) {
+            server.stop();
+        }
+    }
+
+    // a HEAD request for the patch jar, conditional on the manifest of what was last installed where the source
+    // supports it.  Only if the patch has changed is it downloaded, in ranged parts, checked and swapped in for the
+    // uploader jar
+    static void CheckForPatchUpdates(PatchSource patchSource, String awsPatchDirectory, String localWorkingDirectory, String patchFileName) throws SdkBaseException, InterruptedException, IOException
     {
         System.out.println("Checking for patch updates......\n");
 
-        ListObjectsRequest lor = new ListObjectsRequest();
-        lor.setBucketName(awsBucketName);
         String patchFileKey = awsPatchDirectory+"/"+patchFileName;
-        lor.setPrefix(patchFileKey);
-        ObjectListing ol = s3.listObjects(lor);
+        File existingFile = new File(localWorkingDirectory + UPLOADER_FILE_NAME);
+        File manifestFile = new File(localWorkingDirectory + awsPatchDirectory + "\\" + MANIFEST_FILE_NAME);
+        PatchManifest manifest = PatchManifest.load(manifestFile);
 
-        // returns the S3 directory and patch files matching the key
-        List<S3ObjectSummary> patchFiles = ol.getObjectSummaries();
-        if (patchFiles.size()>0 && !CheckLocalVersionCurrent(patchFiles.get(0), localWorkingDirectory))
+        PatchInfo patch = patchSource.describe(patchFileKey, (manifest == null) ? null : manifest.getPatchInfo());
+        if (patch == null || CheckLocalVersionCurrent(patch, manifest, existingFile, manifestFile))
         {
-            System.out.println("Patch update available, downloading......\n");
-            TransferManagerBuilder tx = TransferManagerBuilder.standard().withS3Client(s3);
-            try {
-                String patchFile = localWorkingDirectory+awsPatchDirectory+"\\"+patchFileName;
-                Download dl = tx.build().download(awsBucketName, patchFileKey, new File(patchFile));
-                dl.waitForCompletion();
-
-                // copy the patch file over the existing executable
-                PatchLocalFile(localWorkingDirectory, patchFile);
-                System.out.println("Patch update applied successfully.\n");
-            }
-            finally {
-                tx.build().shutdownNow();
-            }
-        }
-        else {
             System.out.println("No patch update available.\n");
+            return;
         }
-    }
 
-    private static boolean CheckLocalVersionCurrent(S3ObjectSummary patchFile, String localWorkingDirectory) {
+        System.out.println("Patch update available, downloading......\n");
+        File patchFile = new File(localWorkingDirectory+awsPatchDirectory+"\\"+patchFileName);
+        if (patchFile.getParentFile() != null)
+            patchFile.getParentFile().mkdirs();
+        try {
+            patchSource.download(patchFileKey, patch, patchFile);
+            String sha256 = VerifyPatchFile(patchFile, patch);
 
-        String existingFilename = localWorkingDirectory + "tpp-dds-uploader.jar";
-        File existingFile = new File(existingFilename);
+            // swap the patch file in for the existing executable
+            PatchLocalFile(existingFile, patchFile, sha256);
+            PatchManifest.installed(patch, existingFile, sha256).save(manifestFile);
+            System.out.println("Patch update applied successfully.\n");
+        }
+        finally {
+            patchFile.delete();
+        }
+    }
+
+    // the jar is current if it is the one installed from the patch's ETag.  Without a manifest, e.g. the first check
+    // since the manifest was introduced, the jar's modified date is compared with the patch's as before, and if it is
+    // current the manifest is written so the next check goes by ETag
+    private static boolean CheckLocalVersionCurrent(PatchInfo patch, PatchManifest manifest, File existingFile, File manifestFile) throws IOException
+    {
+        if (manifest != null)
+            return manifest.isCurrent(patch, existingFile);
 
-        Date patchModifiedDate = patchFile.getLastModified();
         Long existingDate = existingFile.lastModified();
+        if (patch.getLastModified() == 0 || existingDate < patch.getLastModified())
+            return false;
 
-        return existingDate >= patchModifiedDate.getTime();
+        if (manifestFile.getParentFile() != null)
+            manifestFile.getParentFile().mkdirs();
+        PatchManifest.installed(patch, existingFile, Digests(existingFile)[0]).save(manifestFile);
+        return true;
     }
 
+    // the downloaded patch must be the size the source gave, match its sha-256 if the source has one, otherwise its
+    // md5 if it has that, and open as a jar.  Returns the patch file's sha-256
+    private static String VerifyPatchFile(File patchFile, PatchInfo patch) throws IOException
+    {
+        if (patchFile.length() != patch.getSize())
+            throw new IOException(String.format("Patch file is %d bytes, expected %d", patchFile.length(), patch.getSize()));
 
-    private static void PatchLocalFile(String localWorkingDirectory, String patchFileName) throws IOException {
-        File patchFile = new File(patchFileName);
-        if (patchFile.exists())
-        {
-            String existingFilename = localWorkingDirectory + "tpp-dds-uploader.jar";
-            File existingFile = new File(existingFilename);
+        String[] digests = Digests(patchFile);
+        if (patch.getSha256() != null) {
+            if (!patch.getSha256().equals(digests[0]))
+                throw new IOException(String.format("Patch file sha-256 is %s, expected %s", digests[0], patch.getSha256()));
+        } else if (patch.getMd5() != null) {
+            if (!patch.getMd5().equals(digests[1]))
+                throw new IOException(String.format("Patch file md5 is %s, expected %s", digests[1], patch.getMd5()));
+        } else {
+            System.out.println("Patch file has no checksum to verify against, checking its size and jar format only");
+        }
 
-            //delete existing file
-            existingFile.delete();
+        JarFile jar = new JarFile(patchFile);
+        try {
+            if (jar.getManifest() == null)
+                throw new IOException("Patch file has no jar manifest");
+        } finally {
+            jar.close();
+        }
+        return digests[0];
+    }
 
-            //copy/rename patch file to new file
-            patchFile.renameTo(existingFile);
+    // the sha-256 and md5 of the file, in hex, from one read of it
+    private static String[] Digests(File file) throws IOException
+    {
+        MessageDigest sha256;
+        MessageDigest md5;
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException("Digest algorithm unavailable", ex);
+        }
 
-            //delete patch file
-            patchFile.delete();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[65536];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                sha256.update(buffer, 0, read);
+                md5.update(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return new String[] {ToHex(sha256.digest()), ToHex(md5.digest())};
+    }
+
+    private static String ToHex(byte[] bytes)
+    {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes)
+            hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+
+    // the patch replaces the existing jar in one atomic move, so there is never a moment without an uploader jar.  A
+    // copy of the existing jar is kept beforehand, and moved back if the installed jar does not check out.  The copy
+    // is left as tpp-dds-uploader.jar.previous for a manual rollback
+    private static void PatchLocalFile(File existingFile, File patchFile, String sha256) throws IOException {
+        if (!patchFile.exists())
+        {
+            throw new IOException (String.format("Patch file %s does not exist", patchFile.getPath()));
         }
-        else
+
+        File previousFile = new File(existingFile.getPath() + PREVIOUS_SUFFIX);
+        boolean hadExisting = existingFile.exists();
+        if (hadExisting)
+            Files.copy(existingFile.toPath(), previousFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+
+        ReplaceFile(patchFile, existingFile);
+
+        String installedSha256 = Digests(existingFile)[0];
+        if (!installedSha256.equals(sha256))
         {
-            throw new IOException (String.format("Patch file %s does not exist", patchFileName));
+            if (hadExisting)
+            {
+                ReplaceFile(previousFile, existingFile);
+                throw new IOException(String.format("Installed jar sha-256 is %s, expected %s. Previous jar restored", installedSha256, sha256));
+            }
+            throw new IOException(String.format("Installed jar sha-256 is %s, expected %s", installedSha256, sha256));
+        }
+    }
+
+    private static void ReplaceFile(File source, File target) throws IOException
+    {
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
         }
     }
 }
@@ -0,0 +1,46 @@
+package org.endeavourhealth.tppddpatcher;
+
+// a version of the patch file as described by its patch source.  sha256 and md5 are the hex checksums of the file
+// when the source can give them, otherwise null
+class PatchInfo {
+
+    private final String etag;
+    private final long size;
+    private final long lastModified;
+    private final String sha256;
+    private final String md5;
+
+    PatchInfo(String etag, long size, long lastModified, String sha256, String md5)
+    {
+        this.etag = etag;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.sha256 = (sha256 == null) ? null : sha256.trim().toLowerCase();
+        this.md5 = (md5 == null) ? null : md5.trim().toLowerCase();
+    }
+
+    String getEtag()
+    {
+        return etag;
+    }
+
+    long getSize()
+    {
+        return size;
+    }
+
+    long getLastModified()
+    {
+        return lastModified;
+    }
+
+    String getSha256()
+    {
+        return sha256;
+    }
+
+    String getMd5()
+    {
+        return md5;
+    }
+}
@@ -0,0 +1,100 @@
+package org.endeavourhealth.tppddpatcher;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+
+// simulates many client PCs checking a patch source at once, each with its own install folder, and reports how long
+// the checks took.  The first round installs the patch on every client, later rounds are the everyday case of an
+// unchanged patch
+class PatchLoadTest {
+
+    static void run(final PatchSource patchSource, int clients, int rounds) throws IOException
+    {
+        File testDir = Files.createTempDirectory("patch-load-test").toFile();
+        List<String> clientDirs = new ArrayList<String>();
+        for (int i = 0; i < clients; i++) {
+            File clientDir = new File(testDir, "client" + i);
+            clientDir.mkdirs();
+            clientDirs.add(clientDir.getPath() + File.separator);
+        }
+
+        // the patcher's own progress output for hundreds of clients would swamp the results
+        PrintStream console = System.out;
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        try {
+            for (int round = 1; round <= rounds; round++) {
+                List<Future<Long>> checks = new ArrayList<Future<Long>>();
+                System.setOut(new PrintStream(new ByteArrayOutputStream() {
+                    public synchronized void write(byte[] bytes, int offset, int length) {
+                    }
+                }));
+                long roundStart = System.nanoTime();
+                try {
+                    for (final String clientDir : clientDirs) {
+                        checks.add(executor.submit(new Callable<Long>() {
+                            public Long call() throws Exception {
+                                long checkStart = System.nanoTime();
+                                Main.CheckForPatchUpdates(patchSource, Main.PATCH_DIRECTORY, clientDir, Main.PATCH_FILE_NAME);
+                                return (System.nanoTime() - checkStart) / 1000000;
+                            }
+                        }));
+                    }
+
+                    List<Long> millis = new ArrayList<Long>();
+                    int failures = 0;
+                    String firstFailure = null;
+                    for (Future<Long> check : checks) {
+                        try {
+                            millis.add(check.get());
+                        } catch (ExecutionException ex) {
+                            failures++;
+                            if (firstFailure == null)
+                                firstFailure = ex.getCause().toString();
+                        }
+                    }
+                    long roundMillis = (System.nanoTime() - roundStart) / 1000000;
+                    System.setOut(console);
+                    report(round, millis, failures, firstFailure, roundMillis);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } finally {
+                    System.setOut(console);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            deleteAll(testDir);
+        }
+    }
+
+    private static void report(int round, List<Long> millis, int failures, String firstFailure, long roundMillis)
+    {
+        Collections.sort(millis);
+        System.out.println(String.format("Round %d: %d checks in %d ms, p50 %d ms, p95 %d ms, max %d ms, %d failed%s", round,
+                millis.size() + failures, roundMillis, percentile(millis, 50), percentile(millis, 95), percentile(millis, 100), failures,
+                (firstFailure == null) ? "" : " (" + firstFailure + ")"));
+    }
+
+    private static long percentile(List<Long> sortedMillis, int percentile)
+    {
+        if (sortedMillis.isEmpty())
+            return 0;
+        int index = (int) Math.ceil(percentile / 100.0 * sortedMillis.size()) - 1;
+        return sortedMillis.get(Math.max(0, index));
+    }
+
+    private static void deleteAll(File file)
+    {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children)
+                deleteAll(child);
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,105 @@
+package org.endeavourhealth.tppddpatcher;
+
+import java.io.*;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+// what was last installed from the patch source: the ETag and size of the patch, and the sha-256, size and modified
+// time of the uploader jar it was installed as.  While the ETag is unchanged and the jar is still as it was
+// installed, a patch check is a single HEAD request
+class PatchManifest {
+
+    private static final String ETAG = "etag";
+    private static final String OBJECT_SIZE = "objectSize";
+    private static final String SHA256 = "sha256";
+    private static final String JAR_SIZE = "jarSize";
+    private static final String JAR_MODIFIED = "jarModified";
+
+    private final String etag;
+    private final long objectSize;
+    private final String sha256;
+    private final long jarSize;
+    private final long jarModified;
+
+    private PatchManifest(String etag, long objectSize, String sha256, long jarSize, long jarModified)
+    {
+        this.etag = etag;
+        this.objectSize = objectSize;
+        this.sha256 = sha256;
+        this.jarSize = jarSize;
+        this.jarModified = jarModified;
+    }
+
+    // the manifest for the patch object installed as the jar
+    static PatchManifest installed(PatchInfo patch, File jarFile, String sha256)
+    {
+        return new PatchManifest(patch.getEtag(), patch.getSize(), sha256, jarFile.length(), jarFile.lastModified());
+    }
+
+    // the saved manifest, or null if there isn't one or it cannot be read
+    static PatchManifest load(File manifestFile)
+    {
+        if (!manifestFile.exists())
+            return null;
+
+        try {
+            Properties properties = new Properties();
+            InputStream in = new FileInputStream(manifestFile);
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+            return new PatchManifest(properties.getProperty(ETAG), Long.parseLong(properties.getProperty(OBJECT_SIZE)),
+                    properties.getProperty(SHA256), Long.parseLong(properties.getProperty(JAR_SIZE)), Long.parseLong(properties.getProperty(JAR_MODIFIED)));
+        } catch (Exception ex) {
+            System.out.println("Unable to read the patch manifest " + manifestFile.getPath() + ", checking for patches by date => " + ex.getMessage());
+            return null;
+        }
+    }
+
+    // whether the patch is the one installed, and the jar has not been changed since
+    boolean isCurrent(PatchInfo patch, File jarFile)
+    {
+        return etag != null && etag.equals(patch.getEtag()) && objectSize == patch.getSize()
+                && jarFile.length() == jarSize && jarFile.lastModified() == jarModified;
+    }
+
+    // the installed version of the patch, for a conditional patch check
+    PatchInfo getPatchInfo()
+    {
+        return new PatchInfo(etag, objectSize, 0, sha256, null);
+    }
+
+    // written to a temp file and moved into place, so a crash never leaves a half written manifest
+    void save(File manifestFile) throws IOException
+    {
+        Properties properties = new Properties();
+        properties.setProperty(ETAG, etag);
+        properties.setProperty(OBJECT_SIZE, Long.toString(objectSize));
+        properties.setProperty(SHA256, sha256);
+        properties.setProperty(JAR_SIZE, Long.toString(jarSize));
+        properties.setProperty(JAR_MODIFIED, Long.toString(jarModified));
+
+        File tempFile = new File(manifestFile.getPath() + ".tmp");
+        OutputStream out = new FileOutputStream(tempFile);
+        try {
+            properties.store(out, "tpp-dds uploader patch");
+        } finally {
+            out.close();
+        }
+
+        try {
+            Files.move(tempFile.toPath(), manifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(tempFile.toPath(), manifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    String getSha256()
+    {
+        return sha256;
+    }
+}
@@ -0,0 +1,241 @@
+package org.endeavourhealth.tppddpatcher;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+// an in-process stand-in for the patch bucket, serving a directory laid out as the bucket over http for the
+// HttpPatchSource, e.g. to exercise and load test patch checks offline, or as a simple hub mirror.  It answers HEAD
+// and GET, honours If-None-Match, If-Match and single byte ranges, and sends Digest and Content-MD5 headers.  The
+// ETag of a file is its sha-256, worked out once for each size and modified time of the file
+class PatchServer {
+
+    private static final int BUFFER_SIZE = 65536;
+
+    // enough queued connections for hundreds of clients checking at once, rather than the default of 50
+    private static final int CONNECTION_BACKLOG = 1024;
+
+    private final HttpServer server;
+    private final File patchDir;
+    private final Map<String, FileDigests> digests = new HashMap<String, FileDigests>();
+    private final AtomicLong requestCount = new AtomicLong(0);
+    private final AtomicLong bytesServed = new AtomicLong(0);
+
+    private PatchServer(HttpServer server, File patchDir)
+    {
+        this.server = server;
+        this.patchDir = patchDir;
+    }
+
+    static PatchServer start(File patchDir, int port) throws IOException
+    {
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), CONNECTION_BACKLOG);
+        final PatchServer patchServer = new PatchServer(server, patchDir);
+
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                patchServer.handle(exchange);
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "patch-server");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }));
+        server.start();
+        return patchServer;
+    }
+
+    String getBaseUri()
+    {
+        return "http://localhost:" + server.getAddress().getPort() + "/";
+    }
+
+    long getRequestCount()
+    {
+        return requestCount.get();
+    }
+
+    long getBytesServed()
+    {
+        return bytesServed.get();
+    }
+
+    void stop()
+    {
+        server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException
+    {
+        requestCount.incrementAndGet();
+        try {
+            String method = exchange.getRequestMethod();
+            String path = exchange.getRequestURI().getPath();
+            File file = new File(patchDir, path);
+            if (path.contains("..") || !file.isFile()) {
+                respond(exchange, 404, -1);
+                return;
+            }
+            if (!method.equalsIgnoreCase("GET") && !method.equalsIgnoreCase("HEAD")) {
+                exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+                respond(exchange, 405, -1);
+                return;
+            }
+
+            FileDigests fileDigests = digests(file);
+            String etag = "\"" + fileDigests.sha256Hex + "\"";
+            exchange.getResponseHeaders().set("ETag", etag);
+            exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+
+            String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+            if (ifNoneMatch != null && ifNoneMatch.trim().equals(etag)) {
+                respond(exchange, 304, -1);
+                return;
+            }
+            String ifMatch = exchange.getRequestHeaders().getFirst("If-Match");
+            if (ifMatch != null && !ifMatch.trim().equals(etag) && !ifMatch.trim().equals("*")) {
+                respond(exchange, 412, -1);
+                return;
+            }
+
+            long start = 0;
+            long end = fileDigests.size - 1;
+            int statusCode = 200;
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            if (range != null && range.startsWith("bytes=") && !range.contains(",")) {
+                String[] bounds = range.substring(6).split("-", -1);
+                try {
+                    if (bounds[0].isEmpty()) {
+                        start = Math.max(0, fileDigests.size - Long.parseLong(bounds[1]));
+                    } else {
+                        start = Long.parseLong(bounds[0]);
+                        if (!bounds[1].isEmpty())
+                            end = Math.min(end, Long.parseLong(bounds[1]));
+                    }
+                } catch (NumberFormatException ex) {
+                    respond(exchange, 400, -1);
+                    return;
+                }
+                if (start > end) {
+                    exchange.getResponseHeaders().set("Content-Range", "bytes */" + fileDigests.size);
+                    respond(exchange, 416, -1);
+                    return;
+                }
+                exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + fileDigests.size);
+                statusCode = 206;
+            }
+
+            SimpleDateFormat httpDate = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+            httpDate.setTimeZone(TimeZone.getTimeZone("GMT"));
+            exchange.getResponseHeaders().set("Last-Modified", httpDate.format(new Date(fileDigests.modified)));
+            exchange.getResponseHeaders().set("Digest", "sha-256=" + fileDigests.sha256Base64);
+            exchange.getResponseHeaders().set("Content-MD5", fileDigests.md5Base64);
+            exchange.getResponseHeaders().set("Content-Type", "application/java-archive");
+
+            long length = end - start + 1;
+            if (method.equalsIgnoreCase("HEAD")) {
+                exchange.getResponseHeaders().set("Content-Length", Long.toString(length));
+                respond(exchange, statusCode, -1);
+                return;
+            }
+
+            exchange.sendResponseHeaders(statusCode, length);
+            RandomAccessFile in = new RandomAccessFile(file, "r");
+            OutputStream out = exchange.getResponseBody();
+            try {
+                in.seek(start);
+                byte[] buffer = new byte[BUFFER_SIZE];
+                long remaining = length;
+                while (remaining > 0) {
+                    int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (read == -1)
+                        break;
+                    out.write(buffer, 0, read);
+                    remaining -= read;
+                }
+                bytesServed.addAndGet(length - remaining);
+            } finally {
+                in.close();
+                out.close();
+            }
+        } catch (IOException ex) {
+            System.out.println("Patch server request failed => " + ex.getMessage());
+            exchange.close();
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int statusCode, long length) throws IOException
+    {
+        exchange.sendResponseHeaders(statusCode, length);
+        exchange.close();
+    }
+
+    private FileDigests digests(File file) throws IOException
+    {
+        long size = file.length();
+        long modified = file.lastModified();
+        synchronized (digests) {
+            FileDigests fileDigests = digests.get(file.getAbsolutePath());
+            if (fileDigests != null && fileDigests.size == size && fileDigests.modified == modified)
+                return fileDigests;
+        }
+
+        MessageDigest sha256;
+        MessageDigest md5;
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException("Digest algorithm unavailable", ex);
+        }
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                sha256.update(buffer, 0, read);
+                md5.update(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+
+        FileDigests fileDigests = new FileDigests(size, modified, sha256.digest(), md5.digest());
+        synchronized (digests) {
+            digests.put(file.getAbsolutePath(), fileDigests);
+        }
+        return fileDigests;
+    }
+
+    private static class FileDigests {
+        private final long size;
+        private final long modified;
+        private final String sha256Hex;
+        private final String sha256Base64;
+        private final String md5Base64;
+
+        FileDigests(long size, long modified, byte[] sha256, byte[] md5) {
+            this.size = size;
+            this.modified = modified;
+            StringBuilder hex = new StringBuilder();
+            for (byte b : sha256)
+                hex.append(String.format("%02x", b));
+            this.sha256Hex = hex.toString();
+            this.sha256Base64 = Base64.getEncoder().encodeToString(sha256);
+            this.md5Base64 = Base64.getEncoder().encodeToString(md5);
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package org.endeavourhealth.tppddpatcher;
+
+import java.io.File;
+import java.io.IOException;
+
+// where patch files are fetched from: the S3 bucket, a hub mirror or stand-in over http, or a local directory.  Keys
+// are the paths of the S3 bucket, e.g. tppddspatcher/tpp-dds-uploader-patch.jar, whichever the source
+interface PatchSource {
+
+    // the current version of the patch file, or null if there is none.  cached is the version last installed, or
+    // null, which a source may use for a conditional request and return as it is when the patch has not changed
+    PatchInfo describe(String key, PatchInfo cached) throws IOException;
+
+    // downloads the given version of the patch file, failing with a PatchChangedException if it has been replaced
+    void download(String key, PatchInfo patch, File targetFile) throws IOException, InterruptedException;
+}
@@ -0,0 +1,114 @@
+package org.endeavourhealth.tppddpatcher;
+
+import com.amazonaws.AmazonClientException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+// downloads a patch as ranged reads on a few threads, each part written straight to its place in the file.  Each
+// range is read on condition the patch has not changed since it was described, so a patch replaced part way through
+// the download is never stitched together from two versions
+class RangedDownload {
+
+    private static final long PART_SIZE = 8388608;
+    private static final int DOWNLOAD_THREADS = 4;
+    private static final int PART_RETRIES = 3;
+    private static final int BUFFER_SIZE = 65536;
+
+    // reads bytes start to end inclusive of the patch, failing with a PatchChangedException if it has changed
+    interface RangeReader {
+        InputStream openRange(long start, long end) throws IOException;
+    }
+
+    static void download(final RangeReader reader, long size, File targetFile) throws IOException, InterruptedException
+    {
+        RandomAccessFile out = new RandomAccessFile(targetFile, "rw");
+        try {
+            out.setLength(size);
+            final FileChannel channel = out.getChannel();
+
+            int partCount = (int) Math.max(1, (size + PART_SIZE - 1) / PART_SIZE);
+            ExecutorService executor = Executors.newFixedThreadPool(Math.min(DOWNLOAD_THREADS, partCount));
+            try {
+                List<Future<Void>> parts = new ArrayList<Future<Void>>();
+                for (long start = 0; start < size; start += PART_SIZE) {
+                    final long partStart = start;
+                    final long partEnd = Math.min(start + PART_SIZE, size) - 1;
+                    parts.add(executor.submit(new Callable<Void>() {
+                        public Void call() throws Exception {
+                            downloadPart(reader, channel, partStart, partEnd);
+                            return null;
+                        }
+                    }));
+                }
+
+                for (Future<Void> part : parts) {
+                    try {
+                        part.get();
+                    } catch (ExecutionException ex) {
+                        if (ex.getCause() instanceof AmazonClientException)
+                            throw (AmazonClientException) ex.getCause();
+                        if (ex.getCause() instanceof IOException)
+                            throw (IOException) ex.getCause();
+                        throw new IOException("Patch download failed", ex.getCause());
+                    }
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+            channel.force(true);
+        } finally {
+            out.close();
+        }
+    }
+
+    // bytes partStart to partEnd inclusive, retried a few times before the download is given up
+    private static void downloadPart(RangeReader reader, FileChannel channel, long partStart, long partEnd) throws IOException
+    {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                InputStream in = reader.openRange(partStart, partEnd);
+                try {
+                    long position = partStart;
+                    byte[] buffer = new byte[BUFFER_SIZE];
+                    int read;
+                    while (position <= partEnd && (read = in.read(buffer, 0, (int) Math.min(buffer.length, partEnd + 1 - position))) != -1) {
+                        ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, read);
+                        while (bytes.hasRemaining())
+                            position += channel.write(bytes, position);
+                    }
+                    if (position != partEnd + 1)
+                        throw new IOException(String.format("Patch download of bytes %d-%d ended at byte %d", partStart, partEnd, position));
+                } finally {
+                    in.close();
+                }
+                return;
+
+            } catch (AmazonClientException ex) {
+                if (attempt >= PART_RETRIES)
+                    throw ex;
+                System.out.println(String.format("Patch download of bytes %d-%d failed, retrying => %s", partStart, partEnd, ex.getMessage()));
+            } catch (PatchChangedException ex) {
+                throw ex;
+            } catch (IOException ex) {
+                if (attempt >= PART_RETRIES)
+                    throw ex;
+                System.out.println(String.format("Patch download of bytes %d-%d failed, retrying => %s", partStart, partEnd, ex.getMessage()));
+            }
+        }
+    }
+
+    // the patch no longer has the version the download started with, so there is no point retrying
+    static class PatchChangedException extends IOException {
+        PatchChangedException(String message) {
+            super(message);
+        }
+    }
+}
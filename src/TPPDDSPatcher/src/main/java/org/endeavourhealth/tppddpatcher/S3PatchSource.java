@@ -0,0 +1,60 @@
+package org.endeavourhealth.tppddpatcher;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+// patches in the S3 bucket.  The sha256 of a patch is taken from its user metadata if it was uploaded with one, e.g.
+// aws s3 cp --metadata sha256=..., and its md5 from the ETag when that is a plain md5, i.e. a single part upload
+// without KMS encryption
+class S3PatchSource implements PatchSource {
+
+    private static final String SHA256_METADATA = "sha256";
+
+    private final AmazonS3 s3;
+    private final String bucketName;
+
+    S3PatchSource(AmazonS3 s3, String bucketName)
+    {
+        this.s3 = s3;
+        this.bucketName = bucketName;
+    }
+
+    // a HEAD request, which is as cheap as a conditional one so the cached version is not needed
+    public PatchInfo describe(String key, PatchInfo cached)
+    {
+        ObjectMetadata metadata;
+        try {
+            metadata = s3.getObjectMetadata(bucketName, key);
+        } catch (AmazonServiceException ase) {
+            if (ase.getStatusCode() == 404)
+                return null;
+            throw ase;
+        }
+
+        String etag = (metadata.getETag() == null) ? "" : metadata.getETag().replace("\"", "").toLowerCase();
+        String md5 = (etag.matches("[0-9a-f]{32}") && !"aws:kms".equals(metadata.getSSEAlgorithm())) ? etag : null;
+        long lastModified = (metadata.getLastModified() == null) ? 0 : metadata.getLastModified().getTime();
+        return new PatchInfo(metadata.getETag(), metadata.getContentLength(), lastModified, metadata.getUserMetaDataOf(SHA256_METADATA), md5);
+    }
+
+    public void download(final String key, final PatchInfo patch, File targetFile) throws IOException, InterruptedException
+    {
+        RangedDownload.download(new RangedDownload.RangeReader() {
+            public InputStream openRange(long start, long end) throws IOException {
+                S3Object part = s3.getObject(new GetObjectRequest(bucketName, key)
+                        .withRange(start, end)
+                        .withMatchingETagConstraint(patch.getEtag()));
+                if (part == null)
+                    throw new RangedDownload.PatchChangedException("Patch file " + key + " changed during the download");
+                return part.getObjectContent();
+            }
+        }, patch.getSize(), targetFile);
+    }
+}
@@ -0,0 +1,180 @@
+package org.endeavourhealth.tppddsuploader;
+
+import java.io.*;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+
+// sizes the upload of an organisation to its link.  Each successful POST gives the throughput of a single request
+// and its time per megabyte, which set:
+//   - the bytes in a batch, so each request takes around TARGET_REQUEST_MILLIS
+//   - the requests in flight, added to one at a time while requests stay as quick per megabyte as the best seen,
+//     and taken away when they slow to twice that, i.e. the link is saturated and requests are queueing
+//   - the zip part size for the next split, so a part takes around TARGET_PART_MILLIS to send
+// A failed POST halves the batch bytes and requests in flight.  What was learnt is kept in the state folder for the
+// next run.  In fixed mode the original 5 file batches, 10mb parts and tppdds.uploadThreads requests are used
+class AdaptiveUploadController {
+
+    static final int FIXED_BATCH_FILES = 5;
+    static final int MAX_BATCH_FILES = 10;
+
+    private static final long TARGET_REQUEST_MILLIS = 30000;
+    private static final long TARGET_PART_MILLIS = 60000;
+    private static final long MIN_BATCH_BYTES = 262144;
+    private static final long MAX_BATCH_BYTES = 67108864;
+    private static final long MIN_PART_BYTES = 2097152;
+    private static final long MAX_PART_BYTES = 31457280;
+    private static final long MIN_SAMPLE_BYTES = 65536;
+    private static final double SMOOTHING = 0.3;
+    private static final double SATURATED_SLOWDOWN = 2.0;
+    private static final double BEST_DRIFT = 1.02;
+
+    private final boolean adaptive;
+    private final int maxInFlight;
+    private final long fixedPartBytes;
+    private final File stateFile;
+
+    private double requestBytesPerSecond;
+    private double bestMillisPerMb;
+    private long batchBytes = 10485760;
+    private int inFlight;
+    private int samplesSinceInFlightChange;
+
+    private AdaptiveUploadController(boolean adaptive, int maxInFlight, long fixedPartBytes, File stateFile)
+    {
+        this.adaptive = adaptive;
+        this.maxInFlight = maxInFlight;
+        this.fixedPartBytes = fixedPartBytes;
+        this.stateFile = stateFile;
+        this.inFlight = adaptive ? 1 : maxInFlight;
+    }
+
+    static AdaptiveUploadController fixed(int maxInFlight, long partBytes)
+    {
+        return new AdaptiveUploadController(false, maxInFlight, partBytes, null);
+    }
+
+    // the controller for the organisation, starting from what the last run learnt if anything
+    static AdaptiveUploadController load(File stateDir, String orgId, int maxInFlight, long defaultPartBytes)
+    {
+        File stateFile = new File(stateDir, orgId.replaceAll("[^A-Za-z0-9_\\-]", "_") + ".properties");
+        AdaptiveUploadController controller = new AdaptiveUploadController(true, maxInFlight, defaultPartBytes, stateFile);
+        if (!stateFile.exists())
+            return controller;
+
+        try {
+            Properties state = new Properties();
+            InputStream in = new FileInputStream(stateFile);
+            try {
+                state.load(in);
+            } finally {
+                in.close();
+            }
+            controller.requestBytesPerSecond = Double.parseDouble(state.getProperty("requestBytesPerSecond", "0"));
+            controller.bestMillisPerMb = Double.parseDouble(state.getProperty("bestMillisPerMb", "0"));
+            controller.batchBytes = clamp(Long.parseLong(state.getProperty("batchBytes", Long.toString(controller.batchBytes))),
+                    MIN_BATCH_BYTES, MAX_BATCH_BYTES);
+            controller.inFlight = (int) clamp(Integer.parseInt(state.getProperty("inFlight", "1")), 1, maxInFlight);
+        } catch (Exception ex) {
+            System.out.println("Unable to read the upload tuning " + stateFile.getPath() + ", starting again => " + ex.getMessage());
+        }
+        return controller;
+    }
+
+    // the end (exclusive) of the next batch of files starting at from
+    synchronized int nextBatchEnd(List<File> files, int from)
+    {
+        if (!adaptive)
+            return Math.min(from + FIXED_BATCH_FILES, files.size());
+
+        int end = from + 1;
+        long bytes = files.get(from).length();
+        while (end < files.size() && end - from < MAX_BATCH_FILES && bytes + files.get(end).length() <= batchBytes) {
+            bytes += files.get(end).length();
+            end++;
+        }
+        return end;
+    }
+
+    synchronized int inFlightLimit()
+    {
+        return inFlight;
+    }
+
+    // the size of zip parts to split large zips into
+    synchronized long zipPartBytes()
+    {
+        if (!adaptive || requestBytesPerSecond == 0)
+            return fixedPartBytes;
+
+        long partBytes = clamp((long) (requestBytesPerSecond * TARGET_PART_MILLIS / 1000), MIN_PART_BYTES, MAX_PART_BYTES);
+        return partBytes - partBytes % 1048576;
+    }
+
+    synchronized void batchUploaded(long bytes, long millis)
+    {
+        if (!adaptive || bytes < MIN_SAMPLE_BYTES)
+            return;
+
+        double bytesPerSecond = bytes * 1000.0 / Math.max(millis, 1);
+        requestBytesPerSecond = (requestBytesPerSecond == 0) ? bytesPerSecond
+                : SMOOTHING * bytesPerSecond + (1 - SMOOTHING) * requestBytesPerSecond;
+        batchBytes = clamp((long) (requestBytesPerSecond * TARGET_REQUEST_MILLIS / 1000), MIN_BATCH_BYTES, MAX_BATCH_BYTES);
+
+        // the best drifts up a little each time, so a link which has got slower for good is not held to its old best
+        double millisPerMb = millis * 1048576.0 / bytes;
+        bestMillisPerMb = (bestMillisPerMb == 0) ? millisPerMb : Math.min(millisPerMb, bestMillisPerMb * BEST_DRIFT);
+
+        // only change the requests in flight once a full round of them has been measured at the current level
+        samplesSinceInFlightChange++;
+        if (millisPerMb > bestMillisPerMb * SATURATED_SLOWDOWN && inFlight > 1) {
+            setInFlight(inFlight - 1, String.format(Locale.ROOT, "requests slowed to %.0f ms/MB from %.0f", millisPerMb, bestMillisPerMb));
+        } else if (samplesSinceInFlightChange >= inFlight && inFlight < maxInFlight) {
+            setInFlight(inFlight + 1, String.format(Locale.ROOT, "requests still at %.0f ms/MB", millisPerMb));
+        }
+    }
+
+    synchronized void batchFailed()
+    {
+        if (!adaptive)
+            return;
+
+        batchBytes = Math.max(MIN_BATCH_BYTES, batchBytes / 2);
+        if (inFlight > 1)
+            setInFlight(inFlight / 2, "a request failed");
+    }
+
+    // keeps what was learnt for the next run
+    synchronized void save() throws IOException
+    {
+        if (stateFile == null)
+            return;
+
+        if (!stateFile.getParentFile().isDirectory() && !stateFile.getParentFile().mkdirs())
+            throw new IOException("Unable to create folder " + stateFile.getParent());
+
+        Properties state = new Properties();
+        state.setProperty("requestBytesPerSecond", Long.toString((long) requestBytesPerSecond));
+        state.setProperty("bestMillisPerMb", Long.toString((long) bestMillisPerMb));
+        state.setProperty("batchBytes", Long.toString(batchBytes));
+        state.setProperty("inFlight", Integer.toString(inFlight));
+        OutputStream out = new FileOutputStream(stateFile);
+        try {
+            state.store(out, "tpp-dds upload tuning");
+        } finally {
+            out.close();
+        }
+    }
+
+    private void setInFlight(int newInFlight, String reason)
+    {
+        System.out.println(String.format("Upload requests in flight %d -> %d, %s. Batches now up to %d bytes", inFlight, newInFlight, reason, batchBytes));
+        inFlight = newInFlight;
+        samplesSinceInFlightChange = 0;
+    }
+
+    private static long clamp(long value, long min, long max)
+    {
+        return Math.max(min, Math.min(max, value));
+    }
+}
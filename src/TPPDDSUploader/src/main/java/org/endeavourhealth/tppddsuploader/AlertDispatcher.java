@@ -0,0 +1,272 @@
+package org.endeavourhealth.tppddsuploader;
+
+import com.google.common.base.Strings;
+import net.gpedro.integrations.slack.SlackApi;
+import net.gpedro.integrations.slack.SlackAttachment;
+import net.gpedro.integrations.slack.SlackException;
+import net.gpedro.integrations.slack.SlackMessage;
+
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// sends Slack alerts from a single background thread so the upload path never waits on a webhook call.
+// Alerts are coalesced per webhook and organisation into a digest every few seconds, webhook calls are rate
+// limited, and anything still queued is flushed when the process exits (including System.exit paths)
+class AlertDispatcher {
+
+    private static final int MAX_QUEUED_ALERTS = 1000;
+    private static final long MIN_SEND_INTERVAL_MILLIS = 1000;    //Slack webhooks allow around one message a second
+    private static final int MAX_DIGEST_LENGTH = 3500;
+    private static final long SHUTDOWN_FLUSH_TIMEOUT_MILLIS = 30000;
+    private static final Pattern ORGANISATION_ID = Pattern.compile("(?i)organisationId\\s*[:=]\\s*([^\\s:]+)");
+
+    private static AlertDispatcher instance = null;
+
+    private final long digestIntervalMillis;
+    private final BlockingQueue<Alert> queue = new LinkedBlockingQueue<Alert>(MAX_QUEUED_ALERTS);
+    private final AtomicInteger droppedAlerts = new AtomicInteger(0);
+    private final Map<String, Digest> pendingDigests = new LinkedHashMap<String, Digest>();
+    private long lastSendTime = 0;
+    private Thread sender;
+    private Thread shutdownFlush;
+
+    static synchronized AlertDispatcher instance()
+    {
+        if (instance == null) {
+            instance = new AlertDispatcher(UploaderSettings.alertDigestSeconds() * 1000L);
+            instance.start();
+        }
+        return instance;
+    }
+
+    private AlertDispatcher(long digestIntervalMillis)
+    {
+        this.digestIntervalMillis = digestIntervalMillis;
+    }
+
+    private void start()
+    {
+        sender = new Thread(new Runnable() {
+            public void run() {
+                sendAlerts();
+            }
+        }, "slack-alert-sender");
+        sender.setDaemon(true);
+        sender.start();
+
+        // System.exit runs shutdown hooks, so queued alerts are still delivered on the exit(99) paths
+        shutdownFlush = new Thread(new Runnable() {
+            public void run() {
+                flush(SHUTDOWN_FLUSH_TIMEOUT_MILLIS);
+            }
+        }, "slack-alert-flush");
+        Runtime.getRuntime().addShutdownHook(shutdownFlush);
+    }
+
+    // flushes the queue, then stops the sender thread and removes the shutdown hook, so nothing keeps the uploader's
+    // classes reachable once it has finished.  An alert raised afterwards starts a new dispatcher
+    static synchronized void shutdown(long timeoutMillis)
+    {
+        if (instance == null)
+            return;
+
+        instance.flush(timeoutMillis);
+        instance.sender.interrupt();
+        try {
+            instance.sender.join(timeoutMillis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            Runtime.getRuntime().removeShutdownHook(instance.shutdownFlush);
+        } catch (IllegalStateException ex) {
+            // the JVM is already exiting and the hook is running
+        }
+        instance = null;
+    }
+
+    // queues the alert without blocking. If the queue is full the alert is dropped and counted in the next digest
+    void enqueue(String webhookUrl, String message, String exceptionMessage)
+    {
+        if (!queue.offer(new Alert(webhookUrl, message, exceptionMessage, null)))
+            droppedAlerts.incrementAndGet();
+    }
+
+    // sends everything queued so far, waiting up to the timeout for the sender thread to catch up
+    void flush(long timeoutMillis)
+    {
+        CountDownLatch flushed = new CountDownLatch(1);
+        try {
+            queue.offer(new Alert(null, null, null, flushed), timeoutMillis, TimeUnit.MILLISECONDS);
+            flushed.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void sendAlerts()
+    {
+        long nextDigestTime = System.currentTimeMillis() + digestIntervalMillis;
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Alert alert = queue.poll(Math.max(nextDigestTime - System.currentTimeMillis(), 1), TimeUnit.MILLISECONDS);
+                if (alert != null) {
+                    if (alert.flushed != null) {
+                        sendPendingDigests();
+                        alert.flushed.countDown();
+                        continue;
+                    }
+                    addAlert(alert);
+                }
+
+                if (System.currentTimeMillis() >= nextDigestTime) {
+                    sendPendingDigests();
+                    nextDigestTime = System.currentTimeMillis() + digestIntervalMillis;
+                }
+            } catch (InterruptedException ex) {
+                return;
+            } catch (Exception ex) {
+                // never let a bad alert stop the sender thread
+                System.out.println("\nSlack alert sender failure => " + ex.getMessage());
+            }
+        }
+    }
+
+    private void addAlert(Alert alert)
+    {
+        String digestKey = alert.webhookUrl + "|" + organisationId(alert.message);
+
+        // alerts carrying an exception are sent on their own, after anything already pending for the organisation
+        if (!Strings.isNullOrEmpty(alert.exceptionMessage) || digestIntervalMillis == 0) {
+            Digest pending = pendingDigests.remove(digestKey);
+            if (pending != null)
+                send(pending.webhookUrl, pending.toMessage(), null);
+            send(alert.webhookUrl, alert.message, alert.exceptionMessage);
+            return;
+        }
+
+        Digest digest = pendingDigests.get(digestKey);
+        if (digest == null) {
+            digest = new Digest(alert.webhookUrl);
+            pendingDigests.put(digestKey, digest);
+        }
+
+        // keep digests within the Slack message size, sending the current one early if it is full
+        if (digest.length() + alert.message.length() > MAX_DIGEST_LENGTH && !digest.isEmpty()) {
+            send(digest.webhookUrl, digest.toMessage(), null);
+            digest.clear();
+        }
+        digest.add(alert.message);
+    }
+
+    private void sendPendingDigests()
+    {
+        for (Digest digest : pendingDigests.values()) {
+            if (!digest.isEmpty())
+                send(digest.webhookUrl, digest.toMessage(), null);
+        }
+        pendingDigests.clear();
+
+        int dropped = droppedAlerts.getAndSet(0);
+        if (dropped > 0)
+            System.out.println(String.format("\n%d Slack alerts were dropped as the alert queue was full", dropped));
+    }
+
+    private void send(String webhookUrl, String message, String exceptionMessage)
+    {
+        // rate limit the webhook calls. Only the sender thread waits here, never the upload
+        long wait = lastSendTime + MIN_SEND_INTERVAL_MILLIS - System.currentTimeMillis();
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        SlackMessage slackMessage = new SlackMessage(message);
+
+        if (!Strings.isNullOrEmpty(exceptionMessage)) {
+            SlackAttachment slackAttachment = new SlackAttachment();
+            slackAttachment.setFallback("Exception cannot be displayed");
+            slackAttachment.setText("```" + exceptionMessage + "```");
+            slackAttachment.addMarkdownAttribute("text");
+            slackMessage.addAttachments(slackAttachment);
+        }
+
+        try {
+            SlackApi slackApi = new SlackApi(webhookUrl);
+            slackApi.call(slackMessage);
+        }
+        catch (SlackException ex) {
+            System.out.println ("\nSlack integration failure. Unable to create alert => "+ex.getMessage());
+        }
+        finally {
+            lastSendTime = System.currentTimeMillis();
+        }
+    }
+
+    private static String organisationId(String message)
+    {
+        Matcher matcher = ORGANISATION_ID.matcher(message);
+        return matcher.find() ? matcher.group(1) : "";
+    }
+
+    private static class Alert {
+        private final String webhookUrl;
+        private final String message;
+        private final String exceptionMessage;
+        private final CountDownLatch flushed;
+
+        Alert(String webhookUrl, String message, String exceptionMessage, CountDownLatch flushed) {
+            this.webhookUrl = webhookUrl;
+            this.message = message;
+            this.exceptionMessage = exceptionMessage;
+            this.flushed = flushed;
+        }
+    }
+
+    private static class Digest {
+        private final String webhookUrl;
+        private final List<String> messages = new ArrayList<String>();
+        private int length = 0;
+
+        Digest(String webhookUrl) {
+            this.webhookUrl = webhookUrl;
+        }
+
+        void add(String message) {
+            messages.add(message);
+            length += message.length() + 1;
+        }
+
+        int length() {
+            return length;
+        }
+
+        boolean isEmpty() {
+            return messages.isEmpty();
+        }
+
+        void clear() {
+            messages.clear();
+            length = 0;
+        }
+
+        String toMessage() {
+            StringBuilder sb = new StringBuilder();
+            for (String message : messages) {
+                if (sb.length() > 0)
+                    sb.append("\n");
+                sb.append(message);
+            }
+            return sb.toString();
+        }
+    }
+}
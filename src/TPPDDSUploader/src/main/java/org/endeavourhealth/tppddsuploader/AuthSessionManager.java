@@ -0,0 +1,166 @@
+package org.endeavourhealth.tppddsuploader;
+
+import org.apache.http.Header;
+import org.endeavourhealth.common.security.keycloak.client.KeycloakClient;
+import org.keycloak.jose.jws.JWSInput;
+import org.keycloak.jose.jws.JWSInputException;
+import org.keycloak.representations.AccessToken;
+import org.keycloak.representations.idm.UserRepresentation;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// holds a single Keycloak session for the whole run.  The authorisation header is obtained once and only
+// refreshed when it is close to expiry, the user account (and its prod alert webhook) is fetched once, and the
+// session is logged out once when the run is finished rather than after every batch.  In multi-organisation mode
+// each organisation has its own session, with its own Keycloak client, so authenticating one organisation never
+// logs out the token another is still sending
+class AuthSessionManager {
+
+    private static final String REALM = "endeavour-machine";
+    private static final String CLIENT_ID = "dds-api";
+    private static final String PROD_ALERT_WEBHOOK_ATTRIBUTE = "webhook-ddsuploaderalertprod";
+    private static final long REFRESH_BEFORE_EXPIRY_MILLIS = 60000;
+    private static final long DEFAULT_TOKEN_LIFETIME_MILLIS = 300000;   //used if the token expiry cannot be read
+
+    // KeycloakClient.init replaces the process wide instance, so every session takes this lock and keeps the client
+    // it created, rather than using whichever client was created last
+    private static final Object KEYCLOAK_LOCK = new Object();
+
+    private final String keycloakURI;
+    private final String username;
+    private final String password;
+
+    private KeycloakClient keycloakClient = null;
+    private long sessionExpiresAt = 0;
+    private Header authHeader = null;
+    private long authHeaderExpiresAt = 0;
+    private UserRepresentation userAccount = null;
+
+    // the Keycloak sessions this one has replaced, and when their last token expires.  Batches sent with such a token
+    // may still be in flight, so each is only logged out once the token has expired, or when the run is finished
+    private final Map<KeycloakClient, Long> retiredSessions = new LinkedHashMap<KeycloakClient, Long>();
+
+    AuthSessionManager(String keycloakURI, String username, String password)
+    {
+        this.keycloakURI = keycloakURI;
+        this.username = username;
+        this.password = password;
+    }
+
+    // returns the cached authorisation header, re-authenticating only when it is missing or about to expire
+    Header getAuthorizationHeader() throws IOException
+    {
+        synchronized (KEYCLOAK_LOCK) {
+            if (authHeader == null || System.currentTimeMillis() > authHeaderExpiresAt - REFRESH_BEFORE_EXPIRY_MILLIS)
+                authenticate();
+            return authHeader;
+        }
+    }
+
+    UserRepresentation getUserAccount() throws IOException
+    {
+        synchronized (KEYCLOAK_LOCK) {
+            if (userAccount == null) {
+                getAuthorizationHeader();
+                userAccount = keycloakClient.getUserAccount();
+            }
+            return userAccount;
+        }
+    }
+
+    // the aws-production-alerts channel webhook held against the user account, or null if it has not been set
+    String getProdAlertWebhook() throws IOException
+    {
+        UserRepresentation userRep = getUserAccount();
+        if (userRep == null || userRep.getAttributes() == null)
+            return null;
+
+        Map<String, List<String>> attributes = userRep.getAttributes();
+        List<String> webhook = attributes.get(PROD_ALERT_WEBHOOK_ATTRIBUTE);
+        if (webhook == null || webhook.isEmpty())
+            return null;
+
+        return webhook.get(0);
+    }
+
+    // drops the cached token after the upload service refused it, so the next request is sent with the token of a new
+    // Keycloak session
+    void invalidate()
+    {
+        synchronized (KEYCLOAK_LOCK) {
+            authHeader = null;
+            authHeaderExpiresAt = 0;
+        }
+    }
+
+    // logout the Keycloak token sessions when the run is finished
+    void logout()
+    {
+        synchronized (KEYCLOAK_LOCK) {
+            if (keycloakClient != null) {
+                retiredSessions.put(keycloakClient, sessionExpiresAt);
+                keycloakClient = null;
+            }
+            logoutRetiredSessions(Long.MAX_VALUE);
+            authHeader = null;
+            authHeaderExpiresAt = 0;
+        }
+    }
+
+    // opens a new Keycloak session for this organisation and gets its token.  The session it replaces, whose token
+    // is expiring or was refused, is retired rather than logged out.  Called holding KEYCLOAK_LOCK
+    private void authenticate() throws IOException
+    {
+        logoutRetiredSessions(System.currentTimeMillis());
+        if (keycloakClient != null) {
+            retiredSessions.put(keycloakClient, sessionExpiresAt);
+            keycloakClient = null;
+        }
+
+        KeycloakClient.init(keycloakURI, REALM, username, password, CLIENT_ID);
+        keycloakClient = KeycloakClient.instance();
+
+        authHeader = keycloakClient.getAuthorizationHeader();
+        authHeaderExpiresAt = tokenExpiresAt(authHeader);
+        sessionExpiresAt = authHeaderExpiresAt;
+    }
+
+    // logs out the retired sessions whose last token expired before the time.  Called holding KEYCLOAK_LOCK
+    private void logoutRetiredSessions(long before)
+    {
+        Iterator<Map.Entry<KeycloakClient, Long>> sessions = retiredSessions.entrySet().iterator();
+        while (sessions.hasNext()) {
+            Map.Entry<KeycloakClient, Long> session = sessions.next();
+            if (session.getValue() < before) {
+                session.getKey().logoutSession();
+                sessions.remove();
+            }
+        }
+    }
+
+    private static long tokenExpiresAt(Header header)
+    {
+        long defaultExpiry = System.currentTimeMillis() + DEFAULT_TOKEN_LIFETIME_MILLIS;
+        if (header == null || header.getValue() == null)
+            return defaultExpiry;
+
+        // the header value is "Bearer <access token>"
+        String token = header.getValue().trim();
+        int tokenIndex = token.indexOf(' ');
+        if (tokenIndex != -1)
+            token = token.substring(tokenIndex + 1).trim();
+
+        try {
+            AccessToken accessToken = new JWSInput(token).readJsonContent(AccessToken.class);
+            if (accessToken.getExpiration() > 0)
+                return accessToken.getExpiration() * 1000L;
+        } catch (JWSInputException ex) {
+            System.out.println("Unable to read the authorisation token expiry => " + ex.getMessage());
+        }
+        return defaultExpiry;
+    }
+}
@@ -0,0 +1,129 @@
+package org.endeavourhealth.tppddsuploader;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Calendar;
+
+// token bucket shared by every upload in the process, so the uploads, including every organisation of a
+// multi-organisation run, together stay within one bandwidth budget.  The rate follows a time of day schedule, and up to a second's worth of
+// bytes can be sent in a burst
+class BandwidthLimiter {
+
+    private static final int MAX_WRITE_BYTES = 16384;
+    private static final long RATE_CHECK_MILLIS = 10000;
+
+    private final RateSchedule schedule;
+    private long bytesPerSecond;
+    private long rateCheckedAt;
+    private double availableBytes;
+    private long lastRefill;
+
+    BandwidthLimiter(RateSchedule schedule)
+    {
+        this.schedule = schedule;
+        this.lastRefill = System.nanoTime();
+        checkRate();
+        this.availableBytes = bytesPerSecond;
+    }
+
+    // blocks until the bytes can be sent within the budget
+    void acquire(int bytes) throws InterruptedException
+    {
+        long waitNanos;
+        synchronized (this) {
+            checkRate();
+            if (bytesPerSecond == 0)
+                return;
+
+            refill();
+            availableBytes -= bytes;
+            waitNanos = (availableBytes >= 0) ? 0 : (long) (-availableBytes * 1000000000L / bytesPerSecond);
+        }
+        // the bytes are already taken from the bucket, so later callers queue up behind this one
+        if (waitNanos > 0)
+            Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+    }
+
+    // for callers which must not block, e.g. the NIO reactor: takes bytes already sent from the budget, which may leave
+    // it owing, so they are paid for by waiting before the next send
+    synchronized void consume(long bytes)
+    {
+        checkRate();
+        if (bytesPerSecond == 0)
+            return;
+
+        refill();
+        availableBytes -= bytes;
+    }
+
+    // how long to wait before sending any more, 0 if there is budget to send now.  An empty budget waits until there
+    // is a write's worth, rather than sending a trickle of tiny writes
+    synchronized long waitNanos()
+    {
+        checkRate();
+        if (bytesPerSecond == 0)
+            return 0;
+
+        refill();
+        if (availableBytes > 0)
+            return 0;
+        double neededBytes = Math.min(MAX_WRITE_BYTES, bytesPerSecond) - availableBytes;
+        return (long) (neededBytes * 1000000000L / bytesPerSecond);
+    }
+
+    // wraps a request body stream so writes to it are held to the budget
+    OutputStream throttle(final OutputStream out)
+    {
+        return new FilterOutputStream(out) {
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                while (length > 0) {
+                    int writeBytes = Math.min(length, MAX_WRITE_BYTES);
+                    acquireForWrite(writeBytes);
+                    out.write(bytes, offset, writeBytes);
+                    offset += writeBytes;
+                    length -= writeBytes;
+                }
+            }
+            public void write(int b) throws IOException {
+                acquireForWrite(1);
+                out.write(b);
+            }
+        };
+    }
+
+    private void acquireForWrite(int bytes) throws IOException
+    {
+        try {
+            acquire(bytes);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Upload interrupted waiting for bandwidth");
+        }
+    }
+
+    // picks up the rate for the time of day, at most every ten seconds
+    private void checkRate()
+    {
+        long now = System.currentTimeMillis();
+        if (rateCheckedAt != 0 && now - rateCheckedAt < RATE_CHECK_MILLIS)
+            return;
+        rateCheckedAt = now;
+
+        long rate = schedule.bytesPerSecond(Calendar.getInstance());
+        if (rate != bytesPerSecond) {
+            System.out.println(rate == 0 ? "Upload bandwidth is now unlimited" : "Upload bandwidth is now limited to " + rate / 1024 + " KB/s");
+            bytesPerSecond = rate;
+            availableBytes = Math.min(availableBytes, rate);
+            lastRefill = System.nanoTime();
+        }
+    }
+
+    private void refill()
+    {
+        long now = System.nanoTime();
+        availableBytes = Math.min(bytesPerSecond, availableBytes + (now - lastRefill) * bytesPerSecond / 1000000000.0);
+        lastRefill = now;
+    }
+}
@@ -0,0 +1,240 @@
+package org.endeavourhealth.tppddsuploader;
+
+import org.apache.http.Header;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.endeavourhealth.tppddsuploader.HelperUtils.parseUploadFilePath;
+import static org.endeavourhealth.tppddsuploader.HttpUploadTransport.UploadResponse;
+
+// uploads files to the service in fixed size chunks, recording each acknowledged chunk in a per folder
+// UploadJournal.  A failed request, or a new run after a crash, resumes from the last acknowledged chunk rather
+// than sending the whole file again.  The protocol is:
+//   GET  FileUploadStatus?organisationId&uploadId                      -> 200 + X-Upload-Offset, or 404 if unknown
+//   POST PostFileChunk?organisationId&uploadId&fileName&fileSize&offset -> 200 + X-Upload-Offset once stored,
+//                                                                          409 + X-Upload-Offset if the offset is wrong
+//   POST CompleteFileUpload?organisationId&uploadId&fileName&fileSize   -> 200 once the file is assembled
+// A failed chunk is sent again after the wait the retry policy gives it, and a chunk the policy will not retry, e.g.
+// after a refused token, is left to the caller's batch retry
+class ChunkedUploadClient {
+
+    static final String UPLOAD_OFFSET_HEADER = "X-Upload-Offset";
+    static final String CHUNK_SHA256_HEADER = "X-Chunk-SHA256";
+    private static final int CHUNK_RETRIES = 3;
+
+    private final HttpUploadTransport transport;
+    private final RetryPolicy retryPolicy;
+    private final String serviceBaseUri;
+    private final File journalDir;
+    private final int chunkSize;
+    private final Map<String, UploadJournal> journals = new HashMap<String, UploadJournal>();
+
+    ChunkedUploadClient(HttpUploadTransport transport, RetryPolicy retryPolicy, String serviceBaseUri, File journalDir, int chunkSize)
+    {
+        this.transport = transport;
+        this.retryPolicy = retryPolicy;
+        this.serviceBaseUri = serviceBaseUri;
+        this.journalDir = journalDir;
+        this.chunkSize = chunkSize;
+    }
+
+    // uploads each file of the batch in turn. Returns a 200 response once all are complete, otherwise the
+    // response of the request which failed, so the caller's batch retry logic applies as it does for PostFile
+    UploadResponse postFiles(String orgId, Header authHeader, List<File> files, String rootDir) throws IOException
+    {
+        StringBuilder responses = new StringBuilder();
+        for (File file : files) {
+            UploadResponse response = postFile(orgId, authHeader, file, parseUploadFilePath(rootDir, file));
+            if (response.getStatusCode() != 200)
+                return response;
+
+            if (responses.length() > 0)
+                responses.append(", ");
+            responses.append(response.getBody());
+        }
+        return new UploadResponse(200, responses.toString());
+    }
+
+    // removes the journal for a folder once every batch in it has been uploaded
+    void folderCompleted(File folder) throws IOException
+    {
+        journalFor(folder).delete();
+        synchronized (journals) {
+            journals.remove(folder.getAbsolutePath());
+        }
+    }
+
+    private UploadResponse postFile(String orgId, Header authHeader, File file, String uploadPath) throws IOException
+    {
+        UploadJournal journal = journalFor(file.getParentFile());
+        UploadJournal.FileProgress progress = journal.start(file, uploadPath);
+        if (progress.isCompleted()) {
+            System.out.println(file + " already uploaded, skipping");
+            return new UploadResponse(200, uploadPath + " already uploaded");
+        }
+
+        long offset = resumeOffset(orgId, authHeader, progress);
+        if (offset > 0)
+            System.out.println(String.format("Resuming upload of %s from byte %d of %d", file, offset, progress.getFileSize()));
+
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            // resyncs to the server's offset count as failures until the upload gets further than it has been, so a
+            // server whose offset keeps moving back cannot hold the upload in the loop
+            int failures = 0;
+            RetryPolicy.RetryCounter retries = retryPolicy.retryCounter();
+            long furthestOffset = offset;
+            while (offset < progress.getFileSize()) {
+                int length = (int) Math.min(chunkSize, progress.getFileSize() - offset);
+                byte[] chunk = new byte[length];
+                in.seek(offset);
+                in.readFully(chunk);
+                String chunkSha256 = UploadJournal.toHex(UploadJournal.sha256().digest(chunk));
+
+                HttpPost chunkPost = new HttpPost(serviceUri("PostFileChunk", orgId, progress, offset));
+                chunkPost.setHeader(authHeader);
+                chunkPost.setHeader(CHUNK_SHA256_HEADER, chunkSha256);
+                chunkPost.setEntity(new ByteArrayEntity(chunk, ContentType.APPLICATION_OCTET_STREAM));
+
+                UploadResponse response;
+                try {
+                    retryPolicy.requestMade();
+                    response = transport.execute(chunkPost);
+                } catch (IOException ex) {
+                    if (++failures > CHUNK_RETRIES || !awaitRetry(retries, RetryPolicy.TRANSIENT, retryPolicy.failedRequest(ex),
+                            String.format("Chunk at byte %d of %s failed => %s", offset, file, ex.getMessage())))
+                        throw ex;
+                    continue;
+                }
+
+                if (response.getStatusCode() == 200) {
+                    journal.chunkAcknowledged(progress, offset, length, chunkSha256);
+                    offset = validOffset(acknowledgedOffset(response, offset + length), progress, offset + length);
+                } else if (++failures > CHUNK_RETRIES) {
+                    return response;
+                } else if (response.getStatusCode() == 409) {
+                    // the server holds a different amount of the file than we expected, carry on from its offset
+                    offset = validOffset(acknowledgedOffset(response, offset), progress, offset);
+                    System.out.println(String.format("Server holds %d bytes of %s, resuming from there", offset, file));
+                } else {
+                    int failure = retryPolicy.classify(response.getStatusCode());
+                    if (failure != RetryPolicy.TRANSIENT || !awaitRetry(retries, failure, response,
+                            String.format("Chunk at byte %d of %s failed => [%d] %s", offset, file, response.getStatusCode(), response.getBody())))
+                        return response;
+                }
+
+                if (offset > furthestOffset) {
+                    furthestOffset = offset;
+                    failures = 0;
+                    retries = retryPolicy.retryCounter();
+                } else if (response.getStatusCode() == 200 && ++failures > CHUNK_RETRIES) {
+                    return new UploadResponse(409, "Upload offset of " + file + " is not advancing");
+                }
+            }
+        } finally {
+            in.close();
+        }
+
+        HttpPost completePost = new HttpPost(serviceUri("CompleteFileUpload", orgId, progress, -1));
+        completePost.setHeader(authHeader);
+        UploadResponse response = transport.execute(completePost);
+        if (response.getStatusCode() == 200) {
+            journal.fileCompleted(progress);
+            System.out.println(file + " upload complete");
+        }
+        return response;
+    }
+
+    // waits as long as the retry policy says before a failed chunk is sent again.  Returns false if it is not to be
+    // retried, e.g. when the retries of the run are used up
+    private boolean awaitRetry(RetryPolicy.RetryCounter retries, int failure, UploadResponse response, String message) throws IOException
+    {
+        long retryDelayMillis = retries.retryDelayMillis(failure, response);
+        if (retryDelayMillis < 0)
+            return false;
+
+        String retrying = (retryDelayMillis == 0) ? "Retrying chunk..." : "Retrying chunk in " + (retryDelayMillis / 1000) + " seconds...";
+        System.out.println(message + ". " + retrying);
+        try {
+            Thread.sleep(retryDelayMillis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry chunk");
+        }
+        return true;
+    }
+
+    // the server is asked how much of the file it holds, as it may have stored a chunk the journal never recorded.
+    // If it cannot say, the journal's last acknowledged offset is used
+    private long resumeOffset(String orgId, Header authHeader, UploadJournal.FileProgress progress) throws IOException
+    {
+        HttpGet statusGet = new HttpGet(serviceUri("FileUploadStatus", orgId, progress, -1));
+        statusGet.setHeader(authHeader);
+        UploadResponse response = transport.execute(statusGet);
+
+        if (response.getStatusCode() == 404)
+            return 0;
+        if (response.getStatusCode() == 200)
+            return Math.min(acknowledgedOffset(response, 0), progress.getFileSize());
+        return progress.getAcknowledgedOffset();
+    }
+
+    // an offset reported by the server, or the default if it is outside the file
+    private static long validOffset(long offset, UploadJournal.FileProgress progress, long defaultOffset)
+    {
+        return (offset < 0 || offset > progress.getFileSize()) ? defaultOffset : offset;
+    }
+
+    private static long acknowledgedOffset(UploadResponse response, long defaultOffset)
+    {
+        String offset = response.getHeader(UPLOAD_OFFSET_HEADER);
+        if (offset == null)
+            return defaultOffset;
+        try {
+            return Long.parseLong(offset.trim());
+        } catch (NumberFormatException ex) {
+            return defaultOffset;
+        }
+    }
+
+    private URI serviceUri(String operation, String orgId, UploadJournal.FileProgress progress, long offset) throws IOException
+    {
+        try {
+            URIBuilder builder = new URIBuilder(serviceBaseUri + operation)
+                    .addParameter("organisationId", orgId)
+                    .addParameter("uploadId", progress.getUploadId())
+                    .addParameter("fileName", progress.getUploadPath())
+                    .addParameter("fileSize", Long.toString(progress.getFileSize()));
+            if (offset >= 0)
+                builder.addParameter("offset", Long.toString(offset));
+            return builder.build();
+        } catch (URISyntaxException ex) {
+            throw new IOException("Invalid upload service URI " + serviceBaseUri, ex);
+        }
+    }
+
+    private UploadJournal journalFor(File folder) throws IOException
+    {
+        synchronized (journals) {
+            UploadJournal journal = journals.get(folder.getAbsolutePath());
+            if (journal == null) {
+                journal = UploadJournal.open(journalDir, folder);
+                journals.put(folder.getAbsolutePath(), journal);
+            }
+            return journal;
+        }
+    }
+}
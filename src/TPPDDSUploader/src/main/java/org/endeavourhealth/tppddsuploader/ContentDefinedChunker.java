@@ -0,0 +1,52 @@
+package org.endeavourhealth.tppddsuploader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+// cuts a stream into chunks at points chosen by its content rather than by position, so rows inserted or removed
+// in a csv only change the chunks around them and every other chunk is the same as in yesterday's extract.  A gear
+// rolling hash is checked at each byte, and a chunk ends where its top 13 bits, which depend on the last 64 bytes,
+// are all zero, 8kb past the 2kb minimum on average.  No chunk is longer than 64kb
+class ContentDefinedChunker {
+
+    static final int MIN_CHUNK_SIZE = 2048;
+    static final int MAX_CHUNK_SIZE = 65536;
+    private static final long CUT_MASK = -1L << 51;
+    private static final long[] GEAR = new long[256];
+
+    static {
+        // fixed, so that chunk boundaries are the same from one run, and one uploader version, to the next
+        Random random = new Random(0x7470706464734344L);
+        for (int i = 0; i < GEAR.length; i++)
+            GEAR[i] = random.nextLong();
+    }
+
+    interface ChunkHandler {
+        void chunk(byte[] data, int length) throws IOException;
+    }
+
+    // reads the stream to its end, handing each chunk to the handler.  The data array is reused for the next chunk
+    static void chunk(InputStream in, ChunkHandler handler) throws IOException
+    {
+        byte[] chunk = new byte[MAX_CHUNK_SIZE];
+        byte[] buffer = new byte[65536];
+        int length = 0;
+        long hash = 0;
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            for (int i = 0; i < read; i++) {
+                byte b = buffer[i];
+                chunk[length++] = b;
+                hash = (hash << 1) + GEAR[b & 0xFF];
+                if ((length >= MIN_CHUNK_SIZE && (hash & CUT_MASK) == 0) || length == MAX_CHUNK_SIZE) {
+                    handler.chunk(chunk, length);
+                    length = 0;
+                    hash = 0;
+                }
+            }
+        }
+        if (length > 0)
+            handler.chunk(chunk, length);
+    }
+}
@@ -0,0 +1,125 @@
+package org.endeavourhealth.tppddsuploader;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
+
+// the service side of delta sync, as the local stand-in does it.  Chunks are kept in a directory by their sha-256,
+// and a zip is rebuilt from a DeltaRecipe with the same csv entries as the zip the recipe was made from, each checked
+// against the size and crc-32 of the original.  The zip itself is not byte for byte the same, as its entries are
+// deflated again
+class DeltaReassembler {
+
+    private final File chunkDir;
+
+    DeltaReassembler(File chunkDir)
+    {
+        this.chunkDir = chunkDir;
+    }
+
+    // stores the chunks of a PostDeltaChunks body, returning how many there were
+    int storeChunks(InputStream body) throws IOException
+    {
+        if (!chunkDir.isDirectory() && !chunkDir.mkdirs())
+            throw new IOException("Unable to create chunk directory " + chunkDir.getPath());
+
+        DataInputStream records = new DataInputStream(new GZIPInputStream(body));
+        MessageDigest digest = UploadJournal.sha256();
+        int count = 0;
+        int length;
+        while ((length = readLength(records)) != -1) {
+            if (length <= 0 || length > ContentDefinedChunker.MAX_CHUNK_SIZE)
+                throw new ZipException("Invalid chunk length " + length);
+            byte[] chunk = new byte[length];
+            records.readFully(chunk);
+
+            File chunkFile = chunkFile(UploadJournal.toHex(digest.digest(chunk)));
+            if (!chunkFile.exists()) {
+                File tempFile = new File(chunkFile.getPath() + ".tmp");
+                OutputStream out = new FileOutputStream(tempFile);
+                try {
+                    out.write(chunk);
+                } finally {
+                    out.close();
+                }
+                if (!tempFile.renameTo(chunkFile))
+                    throw new IOException("Unable to store chunk " + chunkFile.getPath());
+            }
+            count++;
+        }
+        return count;
+    }
+
+    // the chunks of the recipe not held, which the client is asked to send
+    List<String> missingChunks(DeltaRecipe recipe)
+    {
+        List<String> missing = new ArrayList<String>();
+        for (DeltaRecipe.Chunk chunk : recipe.distinctChunks().values()) {
+            File chunkFile = chunkFile(chunk.getSha256());
+            if (!chunkFile.exists() || chunkFile.length() != chunk.getLength())
+                missing.add(chunk.getSha256());
+        }
+        return missing;
+    }
+
+    // writes the zip the recipe describes.  Every chunk must be held
+    void assemble(DeltaRecipe recipe, File zipFile) throws IOException
+    {
+        File tempFile = new File(zipFile.getPath() + ".tmp");
+        ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+        try {
+            byte[] buffer = new byte[ContentDefinedChunker.MAX_CHUNK_SIZE];
+            for (DeltaRecipe.Entry entry : recipe.getEntries()) {
+                out.putNextEntry(new ZipEntry(entry.getName()));
+                CRC32 crc = new CRC32();
+                long size = 0;
+                for (DeltaRecipe.Chunk chunk : entry.getChunks()) {
+                    DataInputStream in = new DataInputStream(new FileInputStream(chunkFile(chunk.getSha256())));
+                    try {
+                        in.readFully(buffer, 0, chunk.getLength());
+                    } finally {
+                        in.close();
+                    }
+                    out.write(buffer, 0, chunk.getLength());
+                    crc.update(buffer, 0, chunk.getLength());
+                    size += chunk.getLength();
+                }
+                out.closeEntry();
+
+                if (size != entry.getSize())
+                    throw new ZipException(String.format("Entry %s rebuilt as %d bytes, expected %d", entry.getName(), size, entry.getSize()));
+                if (crc.getValue() != entry.getCrc())
+                    throw new ZipException(String.format("Entry %s rebuilt with crc %08x, expected %08x", entry.getName(), crc.getValue(), entry.getCrc()));
+            }
+        } catch (IOException ex) {
+            out.close();
+            tempFile.delete();
+            throw ex;
+        }
+        out.close();
+
+        zipFile.delete();
+        if (!tempFile.renameTo(zipFile))
+            throw new IOException("Unable to store " + zipFile.getPath());
+    }
+
+    private File chunkFile(String sha256)
+    {
+        return new File(chunkDir, sha256.toLowerCase().replaceAll("[^0-9a-f]", "_"));
+    }
+
+    // the length of the next record, or -1 at the end of the body
+    private static int readLength(DataInputStream records) throws IOException
+    {
+        int first = records.read();
+        if (first == -1)
+            return -1;
+        return (first << 24) | (records.readUnsignedByte() << 16) | (records.readUnsignedByte() << 8) | records.readUnsignedByte();
+    }
+}
@@ -0,0 +1,157 @@
+package org.endeavourhealth.tppddsuploader;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipException;
+
+// how to rebuild an extract zip from content defined chunks, sent to the upload service by the delta sync client and
+// read back by the service.  It is text, one tab separated record per line, each entry followed by its chunks in
+// order:
+//   tppdds-delta 1
+//   file   <upload path>
+//   entry  <name>  <size>  <crc-32 hex>
+//   chunk  <sha-256>  <length>
+class DeltaRecipe {
+
+    static final String HEADER = "tppdds-delta 1";
+
+    private final String uploadPath;
+    private final List<Entry> entries = new ArrayList<Entry>();
+
+    static class Entry {
+        private final String name;
+        private final long size;
+        private final long crc;
+        private final List<Chunk> chunks = new ArrayList<Chunk>();
+
+        private Entry(String name, long size, long crc) {
+            this.name = name;
+            this.size = size;
+            this.crc = crc;
+        }
+
+        void addChunk(String sha256, int length) {
+            chunks.add(new Chunk(sha256, length));
+        }
+
+        String getName() {
+            return name;
+        }
+
+        long getSize() {
+            return size;
+        }
+
+        long getCrc() {
+            return crc;
+        }
+
+        List<Chunk> getChunks() {
+            return chunks;
+        }
+    }
+
+    static class Chunk {
+        private final String sha256;
+        private final int length;
+
+        private Chunk(String sha256, int length) {
+            this.sha256 = sha256;
+            this.length = length;
+        }
+
+        String getSha256() {
+            return sha256;
+        }
+
+        int getLength() {
+            return length;
+        }
+    }
+
+    DeltaRecipe(String uploadPath)
+    {
+        this.uploadPath = uploadPath;
+    }
+
+    Entry addEntry(String name, long size, long crc)
+    {
+        Entry entry = new Entry(name, size, crc);
+        entries.add(entry);
+        return entry;
+    }
+
+    String getUploadPath()
+    {
+        return uploadPath;
+    }
+
+    List<Entry> getEntries()
+    {
+        return entries;
+    }
+
+    // each chunk the recipe uses once, in the order they are first used
+    Map<String, Chunk> distinctChunks()
+    {
+        Map<String, Chunk> chunks = new LinkedHashMap<String, Chunk>();
+        for (Entry entry : entries) {
+            for (Chunk chunk : entry.chunks) {
+                if (!chunks.containsKey(chunk.sha256))
+                    chunks.put(chunk.sha256, chunk);
+            }
+        }
+        return chunks;
+    }
+
+    String toText()
+    {
+        StringBuilder text = new StringBuilder(HEADER).append('\n');
+        text.append("file\t").append(uploadPath).append('\n');
+        for (Entry entry : entries) {
+            text.append("entry\t").append(entry.name).append('\t').append(entry.size).append('\t')
+                    .append(String.format("%08x", entry.crc)).append('\n');
+            for (Chunk chunk : entry.chunks)
+                text.append("chunk\t").append(chunk.sha256).append('\t').append(chunk.length).append('\n');
+        }
+        return text.toString();
+    }
+
+    static DeltaRecipe parse(String text) throws IOException
+    {
+        BufferedReader reader = new BufferedReader(new StringReader(text));
+        if (!HEADER.equals(reader.readLine()))
+            throw new ZipException("Not a delta recipe");
+
+        DeltaRecipe recipe = null;
+        Entry entry = null;
+        String line;
+        try {
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty())
+                    continue;
+                String[] fields = line.split("\t");
+                if (fields[0].equals("file") && fields.length == 2 && recipe == null) {
+                    recipe = new DeltaRecipe(fields[1]);
+                } else if (fields[0].equals("entry") && fields.length == 4 && recipe != null) {
+                    entry = recipe.addEntry(fields[1], Long.parseLong(fields[2]), Long.parseLong(fields[3], 16));
+                } else if (fields[0].equals("chunk") && fields.length == 3 && entry != null) {
+                    entry.addChunk(fields[1], Integer.parseInt(fields[2]));
+                } else {
+                    throw new ZipException("Invalid delta recipe line: " + line);
+                }
+            }
+        } catch (NumberFormatException ex) {
+            throw new ZipException("Invalid delta recipe => " + ex.getMessage());
+        }
+
+        if (recipe == null)
+            throw new ZipException("Delta recipe names no file");
+        return recipe;
+    }
+}
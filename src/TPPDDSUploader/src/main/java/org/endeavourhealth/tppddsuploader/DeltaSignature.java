@@ -0,0 +1,78 @@
+package org.endeavourhealth.tppddsuploader;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.HashSet;
+import java.util.Set;
+
+// the chunks of the extract zip of a name last rebuilt by the upload service for an organisation, which the service
+// is taken to still hold, so only chunks missing from it are sent with the next extract.  Lines are tab separated:
+// <sha-256>  <length>.  The file is replaced whole, through a temp file, once the service has rebuilt a zip
+class DeltaSignature {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File signatureFile;
+    private final Set<String> chunks = new HashSet<String>();
+
+    private DeltaSignature(File signatureFile)
+    {
+        this.signatureFile = signatureFile;
+    }
+
+    static DeltaSignature open(File signatureDir, String orgId, String zipName) throws IOException
+    {
+        if (!signatureDir.isDirectory() && !signatureDir.mkdirs())
+            throw new IOException("Unable to create delta signature directory " + signatureDir.getPath());
+
+        String fileName = (orgId + "-" + zipName).replaceAll("[^A-Za-z0-9_.\\-]", "_") + ".signature";
+        DeltaSignature signature = new DeltaSignature(new File(signatureDir, fileName));
+        signature.load();
+        return signature;
+    }
+
+    synchronized boolean contains(String sha256)
+    {
+        return chunks.contains(sha256);
+    }
+
+    // the chunks of the recipe the service has just rebuilt a zip from replace those of the last extract
+    synchronized void replace(DeltaRecipe recipe) throws IOException
+    {
+        StringBuilder lines = new StringBuilder();
+        for (DeltaRecipe.Chunk chunk : recipe.distinctChunks().values())
+            lines.append(chunk.getSha256()).append('\t').append(chunk.getLength()).append('\n');
+
+        File tempFile = new File(signatureFile.getPath() + ".tmp");
+        OutputStream out = new FileOutputStream(tempFile);
+        try {
+            out.write(lines.toString().getBytes(UTF8));
+        } finally {
+            out.close();
+        }
+        signatureFile.delete();
+        if (!tempFile.renameTo(signatureFile))
+            throw new IOException("Unable to replace the delta signature " + signatureFile.getPath());
+
+        chunks.clear();
+        chunks.addAll(recipe.distinctChunks().keySet());
+    }
+
+    private void load() throws IOException
+    {
+        if (!signatureFile.exists())
+            return;
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(signatureFile), UTF8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length == 2)
+                    chunks.add(fields[0]);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+}
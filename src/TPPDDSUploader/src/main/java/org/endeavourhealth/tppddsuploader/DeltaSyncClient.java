@@ -0,0 +1,323 @@
+package org.endeavourhealth.tppddsuploader;
+
+import org.apache.http.Header;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.zip.GZIPOutputStream;
+
+import static org.endeavourhealth.tppddsuploader.HelperUtils.parseUploadFilePath;
+import static org.endeavourhealth.tppddsuploader.HttpUploadTransport.UploadResponse;
+
+// uploads extract zips as deltas against the extract of the same name the service last rebuilt.  The csv entries of
+// the zip are cut into content defined chunks, and only the chunks missing from the DeltaSignature of the last
+// extract are sent, followed by a DeltaRecipe the service rebuilds the zip from.  Day to day most rows of an extract
+// are unchanged, so most chunks are already held.  The protocol is:
+//   POST PostDeltaChunks?organisationId  gzip of <4 byte length><chunk> records -> 200 once stored
+//   POST PostDeltaFile?organisationId    DeltaRecipe text                       -> 200 once the zip is rebuilt,
+//                                                                                 409 listing the sha-256 of chunks
+//                                                                                 the service does not hold
+// Other files, and zips the chunks cannot be read from, are posted whole with PostFile, as is every file if the
+// service does not offer PostDeltaChunks.  Only the zips which will go as deltas are left unsplit by the scan, so a
+// large zip is never posted whole unless it was split
+class DeltaSyncClient {
+
+    static final String POST_DELTA_CHUNKS_OPERATION = "PostDeltaChunks";
+    static final String POST_DELTA_FILE_OPERATION = "PostDeltaFile";
+    private static final int CHUNK_POST_BYTES = 8 * 1024 * 1024;
+    private static final ContentType RECIPE_CONTENT_TYPE = ContentType.create("text/plain", "UTF-8");
+
+    private final HttpUploadTransport transport;
+    private final String serviceBaseUri;
+    private final File signatureDir;
+    private final Map<String, DeltaSignature> signatures = new HashMap<String, DeltaSignature>();
+    private final Set<String> unsplitZips = Collections.synchronizedSet(new HashSet<String>());
+    private volatile Boolean serviceTakesDeltas = null;
+
+    DeltaSyncClient(HttpUploadTransport transport, String serviceBaseUri, File signatureDir)
+    {
+        this.transport = transport;
+        this.serviceBaseUri = serviceBaseUri;
+        this.signatureDir = signatureDir;
+    }
+
+    // whether the zip will be sent as a delta, so it is not split, as only the changed chunks of a whole extract are
+    // sent.  That needs a service which takes deltas and a zip whose csv entries can be read for chunking
+    boolean sendsAsDelta(String orgId, Header authHeader, File zipFile)
+    {
+        if (!zipFile.getName().toLowerCase().endsWith(".zip") || !serviceTakesDeltas(orgId, authHeader))
+            return false;
+
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(zipFile);
+            if (!ZipCentralDirectory.read(in.getChannel()).isInflateSupported())
+                return false;
+        } catch (IOException ex) {
+            System.out.println(String.format("Unable to send %s as a delta, it will be split => %s", zipFile, ex.getMessage()));
+            return false;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ex) {
+                    // only read from
+                }
+            }
+        }
+        unsplitZips.add(zipFile.getAbsolutePath());
+        return true;
+    }
+
+    // uploads the zips of the batch as deltas, then the other files in one PostFile. Returns a 200 response once all
+    // are uploaded, otherwise the response of the request which failed, so the caller's batch retry logic applies
+    UploadResponse postFiles(String orgId, Header authHeader, List<File> files, String rootDir, UploadMetrics metrics) throws IOException
+    {
+        StringBuilder responses = new StringBuilder();
+        List<File> wholeFiles = new ArrayList<File>();
+        for (File file : files) {
+            UploadResponse response = null;
+            if (file.getName().toLowerCase().endsWith(".zip") && serviceTakesDeltas(orgId, authHeader))
+                response = postDelta(orgId, authHeader, file, parseUploadFilePath(rootDir, file), metrics);
+            if (response == null) {
+                // a zip left unsplit to go as a delta is too large to post whole, so the next run splits it
+                if (unsplitZips.contains(file.getAbsolutePath()))
+                    throw new UploadDeferredException(file + " was not split to be sent as a delta, which is no longer possible");
+                wholeFiles.add(file);
+                continue;
+            }
+            if (response.getStatusCode() != 200)
+                return response;
+
+            if (responses.length() > 0)
+                responses.append(", ");
+            responses.append(response.getBody());
+        }
+        if (wholeFiles.isEmpty())
+            return new UploadResponse(200, responses.toString());
+
+        UploadResponse response = transport.postFiles(serviceBaseUri + "PostFile?organisationId=" + orgId, authHeader, wholeFiles, rootDir);
+        if (response.getStatusCode() != 200 || responses.length() == 0)
+            return response;
+        return new UploadResponse(200, responses + ", " + response.getBody()).withDigests(response.getDigests());
+    }
+
+    // asks once whether the service takes deltas, with an empty PostDeltaChunks.  Only a definite answer is kept, so
+    // a failed request is asked again on the next batch
+    private boolean serviceTakesDeltas(String orgId, Header authHeader)
+    {
+        Boolean takesDeltas = serviceTakesDeltas;
+        if (takesDeltas != null)
+            return takesDeltas;
+
+        try {
+            UploadResponse response = postChunks(orgId, authHeader, new ChunkBatch().finish());
+            int statusCode = response.getStatusCode();
+            if (statusCode == 404 || statusCode == 405 || statusCode == 501) {
+                System.out.println("Upload service does not take deltas, extract zips will be sent whole\n");
+                serviceTakesDeltas = false;
+            } else if (statusCode == 200) {
+                serviceTakesDeltas = true;
+            }
+            return statusCode == 200;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    // null if the zip cannot be read as csv entries, so it is sent whole
+    private UploadResponse postDelta(String orgId, Header authHeader, File file, String uploadPath, UploadMetrics metrics) throws IOException
+    {
+        DeltaSignature signature = signatureFor(orgId, file.getName());
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            ZipCentralDirectory centralDirectory = ZipCentralDirectory.read(channel);
+            ChunkSender sender = new ChunkSender(orgId, authHeader);
+
+            DeltaRecipe recipe = new DeltaRecipe(uploadPath);
+            chunkZip(channel, centralDirectory, recipe, signature, null, sender);
+            sender.flush();
+            UploadResponse response = postRecipe(orgId, authHeader, recipe);
+
+            // the service no longer holds some chunks of the last extract, so they are read again and sent
+            if (response.getStatusCode() == 409) {
+                Set<String> missing = new HashSet<String>();
+                for (String sha256 : response.getBody().split("\r?\n")) {
+                    if (!sha256.trim().isEmpty())
+                        missing.add(sha256.trim());
+                }
+                System.out.println(String.format("Upload service is missing %d chunks of %s, sending them", missing.size(), file));
+                chunkZip(channel, centralDirectory, null, signature, missing, sender);
+                sender.flush();
+                response = postRecipe(orgId, authHeader, recipe);
+            }
+            if (response.getStatusCode() != 200)
+                return response;
+
+            signature.replace(recipe);
+            long bytesSent = sender.bytesSent + recipe.toText().length();
+            metrics.increment(UploadMetrics.FILES_DELTA_SYNCED, 1);
+            metrics.increment(UploadMetrics.BYTES_DELTA_SAVED, Math.max(0, file.length() - bytesSent));
+            System.out.println(String.format("%s sent as a delta of %d bytes, %d new chunks", file, bytesSent, sender.chunksSent));
+            return response;
+
+        } catch (ChunkPostFailedException ex) {
+            return ex.response;
+        } catch (ZipCentralDirectory.UnsupportedZipException ex) {
+            System.out.println(String.format("Unable to send %s as a delta, sending it whole => %s", file, ex.getMessage()));
+            return null;
+        } catch (UnsupportedServiceException ex) {
+            return null;
+        } finally {
+            in.close();
+        }
+    }
+
+    // cuts each entry into chunks, adding them to the recipe if one is given.  Chunks in the wanted set, or if there
+    // is none, chunks not in the signature, are sent
+    private static void chunkZip(FileChannel channel, ZipCentralDirectory centralDirectory, DeltaRecipe recipe,
+                                 final DeltaSignature signature, final Set<String> wanted, final ChunkSender sender) throws IOException
+    {
+        final MessageDigest digest = UploadJournal.sha256();
+        for (ZipCentralDirectory.Entry entry : centralDirectory.getEntries()) {
+            final DeltaRecipe.Entry recipeEntry = (recipe == null) ? null : recipe.addEntry(entry.getName(), entry.size, entry.crc);
+            InputStream data = ZipCentralDirectory.openEntry(channel, entry);
+            try {
+                ContentDefinedChunker.chunk(data, new ContentDefinedChunker.ChunkHandler() {
+                    public void chunk(byte[] chunk, int length) throws IOException {
+                        digest.update(chunk, 0, length);
+                        String sha256 = UploadJournal.toHex(digest.digest());
+                        if (recipeEntry != null)
+                            recipeEntry.addChunk(sha256, length);
+                        if (wanted != null ? wanted.contains(sha256) : !signature.contains(sha256))
+                            sender.add(sha256, chunk, length);
+                    }
+                });
+            } finally {
+                data.close();
+            }
+        }
+    }
+
+    private UploadResponse postRecipe(String orgId, Header authHeader, DeltaRecipe recipe) throws IOException
+    {
+        HttpPost recipePost = new HttpPost(serviceBaseUri + POST_DELTA_FILE_OPERATION + "?organisationId=" + orgId);
+        recipePost.setHeader(authHeader);
+        recipePost.setEntity(new StringEntity(recipe.toText(), RECIPE_CONTENT_TYPE));
+        UploadResponse response = transport.execute(recipePost);
+        notUnsupported(response);
+        return response;
+    }
+
+    private UploadResponse postChunks(String orgId, Header authHeader, byte[] body) throws IOException
+    {
+        HttpPost chunkPost = new HttpPost(serviceBaseUri + POST_DELTA_CHUNKS_OPERATION + "?organisationId=" + orgId);
+        chunkPost.setHeader(authHeader);
+        chunkPost.setEntity(new ByteArrayEntity(body, ContentType.APPLICATION_OCTET_STREAM));
+        return transport.execute(chunkPost);
+    }
+
+    // a service which has stopped taking deltas, e.g. after a rollback, gets the file whole
+    private void notUnsupported(UploadResponse response) throws UnsupportedServiceException
+    {
+        int statusCode = response.getStatusCode();
+        if (statusCode == 404 || statusCode == 405 || statusCode == 501) {
+            System.out.println("Upload service no longer takes deltas, extract zips will be sent whole\n");
+            serviceTakesDeltas = false;
+            throw new UnsupportedServiceException();
+        }
+    }
+
+    private DeltaSignature signatureFor(String orgId, String zipName) throws IOException
+    {
+        synchronized (signatures) {
+            String key = orgId + "/" + zipName;
+            DeltaSignature signature = signatures.get(key);
+            if (signature == null) {
+                signature = DeltaSignature.open(signatureDir, orgId, zipName);
+                signatures.put(key, signature);
+            }
+            return signature;
+        }
+    }
+
+    // the chunks of one PostDeltaChunks
+    private static class ChunkBatch {
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        private final DataOutputStream records;
+        private int rawBytes = 0;
+
+        ChunkBatch() throws IOException {
+            records = new DataOutputStream(new GZIPOutputStream(body, 65536));
+        }
+
+        void add(byte[] chunk, int length) throws IOException {
+            records.writeInt(length);
+            records.write(chunk, 0, length);
+            rawBytes += length;
+        }
+
+        byte[] finish() throws IOException {
+            records.close();
+            return body.toByteArray();
+        }
+    }
+
+    // sends chunks in batches of up to CHUNK_POST_BYTES, each chunk once
+    private class ChunkSender {
+        private final String orgId;
+        private final Header authHeader;
+        private final Set<String> sent = new HashSet<String>();
+        private ChunkBatch batch = null;
+        private long bytesSent = 0;
+        private int chunksSent = 0;
+
+        ChunkSender(String orgId, Header authHeader) {
+            this.orgId = orgId;
+            this.authHeader = authHeader;
+        }
+
+        void add(String sha256, byte[] chunk, int length) throws IOException {
+            if (!sent.add(sha256))
+                return;
+            if (batch == null)
+                batch = new ChunkBatch();
+            batch.add(chunk, length);
+            chunksSent++;
+            if (batch.rawBytes >= CHUNK_POST_BYTES)
+                flush();
+        }
+
+        void flush() throws IOException {
+            if (batch == null)
+                return;
+            byte[] body = batch.finish();
+            batch = null;
+
+            UploadResponse response = postChunks(orgId, authHeader, body);
+            notUnsupported(response);
+            if (response.getStatusCode() != 200)
+                throw new ChunkPostFailedException(response);
+            bytesSent += body.length;
+        }
+    }
+
+    private static class ChunkPostFailedException extends IOException {
+        private final UploadResponse response;
+
+        ChunkPostFailedException(UploadResponse response) {
+            super("PostDeltaChunks failed with status " + response.getStatusCode());
+            this.response = response;
+        }
+    }
+
+    private static class UnsupportedServiceException extends IOException {
+    }
+}
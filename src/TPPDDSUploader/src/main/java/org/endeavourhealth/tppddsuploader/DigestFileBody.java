@@ -0,0 +1,67 @@
+package org.endeavourhealth.tppddsuploader;
+
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.mime.content.AbstractContentBody;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+// a multipart file part sent as it is, like addBinaryBody, with its content digested on the way out
+class DigestFileBody extends AbstractContentBody {
+
+    private static final int BUFFER_SIZE = 65536;
+
+    private final File file;
+    private final String filename;
+    private final PartDigest partDigest;
+
+    DigestFileBody(File file, String filename, PartDigest partDigest)
+    {
+        super(ContentType.APPLICATION_OCTET_STREAM);
+        this.file = file;
+        this.filename = filename;
+        this.partDigest = partDigest;
+    }
+
+    File getFile()
+    {
+        return file;
+    }
+
+    PartDigest getPartDigest()
+    {
+        return partDigest;
+    }
+
+    public String getFilename()
+    {
+        return filename;
+    }
+
+    public void writeTo(OutputStream out) throws IOException
+    {
+        InputStream in = partDigest.digesting(new FileInputStream(file));
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1)
+                out.write(buffer, 0, read);
+        } finally {
+            in.close();
+        }
+        partDigest.finished();
+    }
+
+    public String getTransferEncoding()
+    {
+        return "binary";
+    }
+
+    public long getContentLength()
+    {
+        return file.length();
+    }
+}
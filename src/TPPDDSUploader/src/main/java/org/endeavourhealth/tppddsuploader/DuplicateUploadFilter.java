@@ -0,0 +1,115 @@
+package org.endeavourhealth.tppddsuploader;
+
+import org.apache.http.Header;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+import static org.endeavourhealth.tppddsuploader.HelperUtils.parseUploadFilePath;
+
+// keeps files the upload service already holds out of a batch.  Before a batch is posted the service is sent a
+// CheckFileHashes request listing "<sha-256> <size> <upload path>" for the files worth asking about, and replies with
+// the upload paths it already holds that content for, recording it under those paths as if it had been posted.  Only
+// files in the ledger of acknowledged hashes are asked about, plus every file of a batch being retried, so a batch of
+// new files costs no extra request.  If the service does not offer CheckFileHashes, files are always sent
+class DuplicateUploadFilter {
+
+    static final String CHECK_FILE_HASHES_OPERATION = "CheckFileHashes";
+
+    private final HttpUploadTransport transport;
+    private final String serviceBaseUri;
+    private final UploadLedger ledger;
+    private final ScanIndex scanIndex;
+    private volatile boolean serviceChecks = true;
+
+    DuplicateUploadFilter(HttpUploadTransport transport, String serviceBaseUri, UploadLedger ledger, ScanIndex scanIndex)
+    {
+        this.transport = transport;
+        this.serviceBaseUri = serviceBaseUri;
+        this.ledger = ledger;
+        this.scanIndex = scanIndex;
+    }
+
+    // hashes the files while the upload is prepared, so the batches do not wait on it.  The hashes are kept in the
+    // scan index, so an unchanged file is only read once
+    void prepare(List<File> files)
+    {
+        for (File file : files)
+            hash(file);
+    }
+
+    // the files of the batch the service does not already hold
+    List<File> filesToSend(String orgId, Header authHeader, List<File> fileBatch, String rootDir, boolean retry) throws IOException
+    {
+        if (!serviceChecks)
+            return fileBatch;
+
+        StringBuilder hashList = new StringBuilder();
+        Map<String, File> checkedFiles = new HashMap<String, File>();
+        for (File file : fileBatch) {
+            String sha256 = hash(file);
+            if (sha256 == null || !(retry || ledger.contains(sha256, file.length())))
+                continue;
+
+            String uploadPath = parseUploadFilePath(rootDir, file);
+            hashList.append(sha256).append('\t').append(file.length()).append('\t').append(uploadPath).append('\n');
+            checkedFiles.put(uploadPath, file);
+        }
+        if (checkedFiles.isEmpty())
+            return fileBatch;
+
+        HttpPost checkPost = new HttpPost(serviceBaseUri + CHECK_FILE_HASHES_OPERATION + "?organisationId=" + orgId);
+        checkPost.setHeader(authHeader);
+        checkPost.setEntity(new StringEntity(hashList.toString(), ContentType.create("text/plain", "UTF-8")));
+        HttpUploadTransport.UploadResponse response = transport.execute(checkPost);
+
+        int statusCode = response.getStatusCode();
+        if (statusCode == 404 || statusCode == 405 || statusCode == 501) {
+            System.out.println("Upload service does not check file hashes, duplicate files will be sent\n");
+            serviceChecks = false;
+            return fileBatch;
+        }
+        if (statusCode != 200)
+            return fileBatch;
+
+        Set<File> heldFiles = new HashSet<File>();
+        for (String uploadPath : response.getBody().split("\r?\n")) {
+            File heldFile = checkedFiles.get(uploadPath.trim());
+            if (heldFile != null) {
+                heldFiles.add(heldFile);
+                System.out.println(heldFile + " already held by the upload service, not sending it again");
+            }
+        }
+
+        List<File> sendFiles = new ArrayList<File>();
+        for (File file : fileBatch) {
+            if (!heldFiles.contains(file))
+                sendFiles.add(file);
+        }
+        return sendFiles;
+    }
+
+    // records the hashes of the files the service has acknowledged
+    void acknowledged(List<File> files, String rootDir) throws IOException
+    {
+        for (File file : files) {
+            String sha256 = hash(file);
+            if (sha256 != null)
+                ledger.acknowledged(sha256, file.length(), parseUploadFilePath(rootDir, file));
+        }
+    }
+
+    private String hash(File file)
+    {
+        try {
+            return scanIndex.contentHash(file);
+        } catch (IOException ex) {
+            System.out.println("Unable to hash " + file.getPath() + ", it will be sent => " + ex.getMessage());
+            return null;
+        }
+    }
+}
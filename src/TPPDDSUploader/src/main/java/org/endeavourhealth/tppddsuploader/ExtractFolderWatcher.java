@@ -0,0 +1,141 @@
+package org.endeavourhealth.tppddsuploader;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+// watches the root directory, its Archived folder, the extract folders in both and the newly added units folder for
+// the daemon mode, and waits until a changed folder has been quiet for a while and holds a complete extract.  Files
+// written straight into the root or Archived folders (e.g. the run reports) do not count as an extract arriving
+class ExtractFolderWatcher implements Closeable {
+
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> watchedFolders = new HashMap<WatchKey, Path>();
+    private final Set<Path> parentFolders = new HashSet<Path>();
+    private final String orgId;
+
+    ExtractFolderWatcher(File rootDir, String orgId) throws IOException
+    {
+        this.orgId = orgId;
+        this.watchService = FileSystems.getDefault().newWatchService();
+
+        File archivedDir = new File(rootDir.getPath().concat("\\Archived"));
+        for (File parentDir : new File[] {rootDir, archivedDir}) {
+            if (!parentDir.isDirectory())
+                continue;
+
+            parentFolders.add(parentDir.toPath());
+            watch(parentDir.toPath());
+            File[] extractFolders = parentDir.listFiles();
+            if (extractFolders != null) {
+                for (File extractFolder : extractFolders) {
+                    if (extractFolder.isDirectory())
+                        watch(extractFolder.toPath());
+                }
+            }
+        }
+
+        // the Archived folder may only be created later, by the first new units being moved into it
+        parentFolders.add(archivedDir.toPath());
+
+        File newlyAddedUnitsDir = HelperUtils.newlyAddedUnitsFolder(rootDir);
+        if (newlyAddedUnitsDir != null && newlyAddedUnitsDir.isDirectory())
+            watch(newlyAddedUnitsDir.toPath());
+    }
+
+    // blocks until either a changed folder has had no further changes for quietMillis and holds a complete extract,
+    // events were lost, or timeoutMillis has passed.  Returns the reason to start an upload pass
+    String awaitUploadTrigger(long quietMillis, long timeoutMillis) throws InterruptedException
+    {
+        Set<Path> changedFolders = new LinkedHashSet<Path>();
+        boolean eventsLost = false;
+        long lastChange = 0;
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+
+        while (true) {
+            long now = System.currentTimeMillis();
+            if ((eventsLost || !changedFolders.isEmpty()) && now - lastChange >= quietMillis) {
+                if (eventsLost)
+                    return "folder changes were missed";
+
+                for (Path changedFolder : changedFolders) {
+                    if (HelperUtils.extractFolderComplete(orgId, changedFolder.toFile()))
+                        return "complete extract in " + changedFolder;
+                }
+
+                // nothing complete yet, so keep waiting for the rest of the files
+                changedFolders.clear();
+            }
+            if (now >= deadline)
+                return "periodic rescan";
+
+            long waitMillis = deadline - now;
+            if (eventsLost || !changedFolders.isEmpty())
+                waitMillis = Math.min(waitMillis, lastChange + quietMillis - now);
+
+            WatchKey key = watchService.poll(Math.max(waitMillis, 1), TimeUnit.MILLISECONDS);
+            if (key == null)
+                continue;
+
+            Path folder = watchedFolders.get(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == OVERFLOW || folder == null) {
+                    eventsLost = true;
+                    continue;
+                }
+
+                Path changed = folder.resolve((Path) event.context());
+                if (parentFolders.contains(folder)) {
+                    // a new extract folder, or the Archived folder, being created in a parent folder
+                    if (event.kind() == ENTRY_CREATE && Files.isDirectory(changed)) {
+                        registerNewFolder(changed);
+                        if (!parentFolders.contains(changed))
+                            changedFolders.add(changed);
+                    }
+                } else {
+                    changedFolders.add(folder);
+                }
+            }
+            lastChange = System.currentTimeMillis();
+
+            if (!key.reset())
+                watchedFolders.remove(key);
+        }
+    }
+
+    public void close() throws IOException
+    {
+        watchService.close();
+    }
+
+    private void registerNewFolder(Path folder)
+    {
+        try {
+            watch(folder);
+
+            // files may already have been written into the new folder before it was registered
+            if (parentFolders.contains(folder)) {
+                File[] extractFolders = folder.toFile().listFiles();
+                if (extractFolders != null) {
+                    for (File extractFolder : extractFolders) {
+                        if (extractFolder.isDirectory())
+                            watch(extractFolder.toPath());
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            System.out.println("Unable to watch folder " + folder + " => " + ex.getMessage());
+        }
+    }
+
+    private void watch(Path folder) throws IOException
+    {
+        WatchKey key = folder.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+        watchedFolders.put(key, folder);
+    }
+}
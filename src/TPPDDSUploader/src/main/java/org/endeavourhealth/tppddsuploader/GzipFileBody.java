@@ -0,0 +1,113 @@
+package org.endeavourhealth.tppddsuploader;
+
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.mime.content.AbstractContentBody;
+
+import java.io.*;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+// a multipart file part which is gzip compressed as it is written to the request, so no compressed copy of the file
+// is ever written to disk.  The compressed length is not known up front, so a request with one of these is chunked
+class GzipFileBody extends AbstractContentBody {
+
+    static final String CONTENT_CODING = "gzip";
+
+    // zip parts are already compressed, and very small files are not worth it
+    private static final Pattern COMPRESSED_FILE = Pattern.compile("(?i).*\\.(zip|z\\d+|gz)$");
+    private static final long MIN_COMPRESS_BYTES = 1024;
+    private static final int BUFFER_SIZE = 65536;
+
+    private final File file;
+    private final String filename;
+    private final PartDigest partDigest;
+    private long compressedLength = -1;
+
+    // the uncompressed content is digested as it is read if partDigest is given, otherwise null
+    GzipFileBody(File file, String filename, PartDigest partDigest)
+    {
+        super(ContentType.APPLICATION_OCTET_STREAM);
+        this.file = file;
+        this.filename = filename;
+        this.partDigest = partDigest;
+    }
+
+    static boolean isCompressible(File file)
+    {
+        return !COMPRESSED_FILE.matcher(file.getName()).matches() && file.length() >= MIN_COMPRESS_BYTES;
+    }
+
+    File getFile()
+    {
+        return file;
+    }
+
+    PartDigest getPartDigest()
+    {
+        return partDigest;
+    }
+
+    public String getFilename()
+    {
+        return filename;
+    }
+
+    public void writeTo(final OutputStream out) throws IOException
+    {
+        final long[] written = {0};
+
+        // the part is followed by more of the multipart body, so the request stream must stay open
+        OutputStream partOut = new FilterOutputStream(out) {
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                out.write(bytes, offset, length);
+                written[0] += length;
+            }
+            public void write(int b) throws IOException {
+                out.write(b);
+                written[0]++;
+            }
+            public void close() throws IOException {
+                flush();
+            }
+        };
+
+        InputStream in = new FileInputStream(file);
+        if (partDigest != null)
+            in = partDigest.digesting(in);
+        try {
+            GZIPOutputStream gzipOut = new GZIPOutputStream(partOut, BUFFER_SIZE);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1)
+                gzipOut.write(buffer, 0, read);
+            gzipOut.close();
+        } finally {
+            in.close();
+        }
+        if (partDigest != null)
+            partDigest.finished();
+        compressedLength = written[0];
+    }
+
+    public String getTransferEncoding()
+    {
+        return "binary";
+    }
+
+    public long getContentLength()
+    {
+        return -1;
+    }
+
+    // the bytes sent for the part once it has been written, otherwise -1
+    long getCompressedLength()
+    {
+        return compressedLength;
+    }
+
+    // for a part written by NioUploadClient, which compresses the file itself
+    void setCompressedLength(long compressedLength)
+    {
+        this.compressedLength = compressedLength;
+    }
+}
@@ -1,18 +1,11 @@
 package org.endeavourhealth.tppddsuploader;
 
 import com.google.common.base.Strings;
-import net.gpedro.integrations.slack.SlackApi;
-import net.gpedro.integrations.slack.SlackAttachment;
-import net.gpedro.integrations.slack.SlackException;
-import net.gpedro.integrations.slack.SlackMessage;
 import net.lingala.zip4j.core.ZipFile;
 import net.lingala.zip4j.exception.ZipException;
 import net.lingala.zip4j.model.FileHeader;
 import net.lingala.zip4j.model.ZipParameters;
 import net.lingala.zip4j.util.Zip4jConstants;
-import org.apache.http.Header;
-import org.endeavourhealth.common.security.keycloak.client.KeycloakClient;
-import org.keycloak.representations.idm.UserRepresentation;
 
 import java.io.File;
 import java.io.FileFilter;
@@ -28,7 +21,7 @@ import static java.util.Arrays.asList;
 
 class HelperUtils {
 
-    private static final long ZIP_SPLIT_SIZE = 10485760;   //31457280;  increase to 30mb to avoid splitting smaller deltas
+    static final long ZIP_SPLIT_SIZE = 10485760;   //31457280;  increase to 30mb to avoid splitting smaller deltas
     private static final String ALL_PRACTICES_UNITS_FOLDER = "AllPracticesAndUnits";
     private static final String ALL_COMMUNITY_UNITS_FOLDER = "AllCommunityUnits";
     private static final String NEWLY_ADDED_PRACTICES_UNITS_FOLDER = "NewlyAddedPracticesUnits";
@@ -40,7 +33,14 @@ class HelperUtils {
     private static final String TPP_ORGS
             = "TPP-01,YDDH3,YDDH3_09A,YDDH3_08C,YDDH3_08Y,YDDH3_07Y_FHH,YDDH3_07Y_GWR,YDDH3_07W_N,YDDH3_07W_S,YDDH3_08W,YDDH3_07L,YDDH3_08N,YDDH3_08Y_2,YDDH3_RYJ1,W2U3Z_HHEA01";
 
-    private static boolean validZipFile(File zipFile)
+    // whether the zip holds only csv files, read from its central directory.  Zips the central directory reader does
+    // not handle, e.g. zip64 or spanned archives, are checked with zip4j instead
+    static boolean validZipFile(File zipFile)
+    {
+        return ZipValidationService.validZipFile(zipFile);
+    }
+
+    static boolean validZip4jFile(File zipFile)
     {
         try
         {
@@ -71,15 +71,32 @@ class HelperUtils {
         return true;
     }
 
-    static List<File> splitLargeZipFiles(List<File> inputFiles, String hookKey, String orgId) {
+    // the size over which a zip is split into parts, which can differ from zip to zip
+    interface ZipSplitSize {
+        long of(File zipFile);
+    }
+
+    static ZipSplitSize fixedZipSplitSize(final long zipSplitSize)
+    {
+        return new ZipSplitSize() {
+            public long of(File zipFile) {
+                return zipSplitSize;
+            }
+        };
+    }
+
+    static List<File> splitLargeZipFiles(List<File> inputFiles, String hookKey, String orgId, UploadMetrics metrics, ScanIndex scanIndex,
+                                         ZipSplitSize zipSplitSizes) {
         List<File> outputFiles = new LinkedList<File>();
         for (File f : inputFiles) {
             if (!f.isDirectory()) {
-                if (validZipFile(f)) {
+                if (scanIndex.validZipFile(f)) {
                     try {
                         long fileSize = f.length();
-                        if (fileSize > ZIP_SPLIT_SIZE) {
+                        long zipSplitSize = zipSplitSizes.of(f);
+                        if (fileSize > zipSplitSize) {
                             System.out.println("Large zip file found: " + f.getPath() + " (" + fileSize + " bytes). Extracting....");
+                            long splitTimer = metrics.startTimer();
                             File bakFile = new File(f.getPath()+".bak");
                             ZipFile outZipFile = new ZipFile(f.getPath());
                             String fileName = f.getName();
@@ -91,7 +108,37 @@ class HelperUtils {
                             File [] folderFiles = new File(currentFolder).listFiles();
                             postSlackAlert("OrganisationId: "+orgId+" - Large zip file found in directory: "+currentFolder, hookKey, fileListDisplay(folderFiles));
 
+                            // copy the compressed entries straight into split parts, pack them into parts which are
+                            // each a whole zip, or deflate them again on every core, where the zip allows it,
+                            // otherwise fall back to extracting and re-zipping the whole folder with zip4j
+                            String splitMode = UploaderSettings.zipSplitMode();
+                            boolean streamingSplit = splitMode.equals(UploaderSettings.ZIP_SPLIT_STREAM) && StreamingZipSplitter.canSplit(f);
+                            boolean independentSplit = splitMode.equals(UploaderSettings.ZIP_SPLIT_INDEPENDENT) && IndependentZipSplitter.canSplit(f);
+                            boolean parallelSplit = splitMode.equals(UploaderSettings.ZIP_SPLIT_PARALLEL) && ParallelZipSplitter.canSplit(f);
+
                             try {
+                                if (streamingSplit || independentSplit || parallelSplit) {
+
+                                    // rename original large zip and write its entries into the parts
+                                    f.renameTo(bakFile);
+                                    if (independentSplit) {
+                                        System.out.println("Packing zip entries into independent parts....");
+                                        outputFiles.addAll(IndependentZipSplitter.split(bakFile, new File(f.getPath()), zipSplitSize));
+                                    } else if (parallelSplit) {
+                                        System.out.println("Deflating zip entries over multiple split parts in parallel....");
+                                        outputFiles.addAll(ParallelZipSplitter.split(bakFile, new File(f.getPath()), zipSplitSize));
+                                    } else {
+                                        System.out.println("Streaming zip entries over multiple split parts....");
+                                        outputFiles.addAll(StreamingZipSplitter.split(bakFile, new File(f.getPath()), zipSplitSize));
+                                    }
+
+                                    // delete the source large zip file which was renamed as everything has worked
+                                    bakFile.delete();
+                                    metrics.stopTimer(UploadMetrics.PHASE_SPLIT, splitTimer);
+                                    metrics.increment(UploadMetrics.ZIPS_SPLIT, 1);
+                                    continue;
+                                }
+
                                 ZipFile inZipFile = new ZipFile(f.getPath());
                                 inZipFile.extractAll(zipFolder);
 
@@ -104,7 +151,7 @@ class HelperUtils {
                                 parameters.setCompressionMethod(Zip4jConstants.COMP_DEFLATE);
                                 parameters.setCompressionLevel(Zip4jConstants.DEFLATE_LEVEL_NORMAL);
                                 parameters.setIncludeRootFolder(false);
-                                outZipFile.createZipFileFromFolder(zipFolder, parameters, true, ZIP_SPLIT_SIZE);
+                                outZipFile.createZipFileFromFolder(zipFolder, parameters, true, zipSplitSize);
 
                                 // get the array of new zip parts, convert to File and add to output
                                 ArrayList<String> zipFileParts = outZipFile.getSplitZipFiles();
@@ -119,6 +166,8 @@ class HelperUtils {
 
                                 // delete the source large zip file which was renamed as everything has worked
                                 bakFile.delete();
+                                metrics.stopTimer(UploadMetrics.PHASE_SPLIT, splitTimer);
+                                metrics.increment(UploadMetrics.ZIPS_SPLIT, 1);
 
                             } catch (Exception ex) {
 
@@ -127,33 +176,40 @@ class HelperUtils {
                                 ex.printStackTrace();
                                 postSlackAlert("OrganisationId: "+orgId+" - Exception during large zip file processing so terminating process",hookKey, ex.getMessage());
 
-                                // remove any multi-part files which have been created
-                                ArrayList<String> zipPartsToClear = outZipFile.getSplitZipFiles();
-                                if (zipPartsToClear != null) {
-                                    for (String fileStr : zipPartsToClear) {
-                                        new File(fileStr).delete();
+                                // remove any multi-part files which have been created. the other splitters remove their own
+                                if (!streamingSplit && !independentSplit && !parallelSplit) {
+                                    ArrayList<String> zipPartsToClear = outZipFile.getSplitZipFiles();
+                                    if (zipPartsToClear != null) {
+                                        for (String fileStr : zipPartsToClear) {
+                                            new File(fileStr).delete();
+                                        }
                                     }
                                 }
 
                                 // remove any unzipped source files
-                                DeleteDirectory(zipFolder);
+                                if (new File(zipFolder).isDirectory())
+                                    DeleteDirectory(zipFolder);
 
                                 // return the original large zip file
-                                bakFile.renameTo(new File(f.getPath()));
+                                if (bakFile.exists())
+                                    bakFile.renameTo(new File(f.getPath()));
 
                                 // remove all files for output and exit as this was a bulk zip attempt which failed
                                 outputFiles.clear();
 
-                                // terminate the current process for organisation to prevent any subsequent
+                                // stop the upload for organisation to prevent any subsequent
                                 // newer files being uploaded before this large zip
-                                System.exit(99);
-                                break;
+                                throw new UploadAbortedException("Large zip file processing failed for " + f.getPath());
                             }
                         }
                         else{
                             outputFiles.add(f);
                         }
                     }
+                    catch (UploadAbortedException ex)
+                    {
+                        throw ex;
+                    }
                     catch (Exception ex)
                     {
                         ex.printStackTrace();
@@ -236,22 +292,26 @@ class HelperUtils {
         }
     }
 
-    static void processNewlyAddedUnitsFolder (File localDataRootDir, String orgId, String hookKey) {
+    // the newly added units folder for the root directory, or null if the root is not a practice or community units folder
+    static File newlyAddedUnitsFolder (File localDataRootDir) {
 
         //the newly added units path sits alongside the all practice units path so format the root
         //depending on the file path name, i.e. GP practice or community units?
-        String newlyAddedUnitsFilePath = "";
         if (localDataRootDir.getPath().contains(ALL_PRACTICES_UNITS_FOLDER)) {
-            newlyAddedUnitsFilePath
-                    = localDataRootDir.getPath().replace(ALL_PRACTICES_UNITS_FOLDER, NEWLY_ADDED_PRACTICES_UNITS_FOLDER);
+            return new File(localDataRootDir.getPath().replace(ALL_PRACTICES_UNITS_FOLDER, NEWLY_ADDED_PRACTICES_UNITS_FOLDER));
 
         } else if (localDataRootDir.getPath().contains(ALL_COMMUNITY_UNITS_FOLDER)) {
-            newlyAddedUnitsFilePath
-                    = localDataRootDir.getPath().replace(ALL_COMMUNITY_UNITS_FOLDER, NEWLY_ADDED_COMMUNITY_UNITS_FOLDER);
-        } else {
+            return new File(localDataRootDir.getPath().replace(ALL_COMMUNITY_UNITS_FOLDER, NEWLY_ADDED_COMMUNITY_UNITS_FOLDER));
+        }
+        return null;
+    }
+
+    static void processNewlyAddedUnitsFolder (File localDataRootDir, String orgId, String hookKey, ScanIndex scanIndex) {
+
+        File newlyAddedUnitsDir = newlyAddedUnitsFolder(localDataRootDir);
+        if (newlyAddedUnitsDir == null) {
             return;
         }
-        File newlyAddedUnitsDir = new File (newlyAddedUnitsFilePath);
 
         //check for files in the newly added practice units folder
         File[] filesFound = newlyAddedUnitsDir.listFiles(new FileFilter() {
@@ -265,7 +325,7 @@ class HelperUtils {
             postSlackAlert("OrganisationId: "+orgId+" - "+ String.format("Files detected in new units directory: %s", newlyAddedUnitsDir.getPath()), hookKey, fileListDisplay(filesFound));
 
             //check for completeness, i.e. SRManifest file is present etc.
-            boolean validFiles = checkValidUploadFiles (orgId, newlyAddedUnitsDir, hookKey);
+            boolean validFiles = checkValidUploadFiles (orgId, newlyAddedUnitsDir, hookKey, scanIndex);
 
             if (validFiles) {
                 //create new root Archive folder using date and time stamp of SRManifest
@@ -314,22 +374,50 @@ class HelperUtils {
     }
 
     //Get all files and sub-folders in the local Data directory for uploading, including the Archived folder
-    static List<File> getUploadFileList (File localDataDir, List<File> results, String hookKey, String orgId)
+    static List<File> getUploadFileList (File localDataDir, List<File> results, String hookKey, String orgId, UploadMetrics metrics, ScanIndex scanIndex,
+                                        ZipSplitSize zipSplitSize)
     {
         List<File> fileBatch = new LinkedList<File>();
+        List<File> archivedFolders = new ArrayList<File>();
+        List<File> currentFolders = new ArrayList<File>();
+        Map<File, File[]> folderContents = new HashMap<File, File[]>();
+        List<File> allFiles = new ArrayList<File>();
+
+        listExtractFolders(localDataDir, archivedFolders, currentFolders, folderContents);
+        for (File[] folderFiles : folderContents.values())
+            allFiles.addAll(asList(folderFiles));
+
+        // validate the zips of every folder together, the splits and folder checks then find the results in the index
+        ZipValidationService.prevalidate(allFiles, scanIndex);
+
+        for (File f : archivedFolders) {
+            List <File> folderFiles = splitLargeZipFiles(asList(folderContents.get(f)), hookKey, orgId, metrics, scanIndex, zipSplitSize);
+            if (!folderFiles.isEmpty()) {
+                results.addAll(folderFiles);
+                fileBatch.add(f);
+            }
+        }
 
+        for (File f : currentFolders) {
+            results.addAll(splitLargeZipFiles(asList(folderContents.get(f)), hookKey, orgId, metrics, scanIndex, zipSplitSize));
+            fileBatch.add(f);
+        }
+
+        return fileBatch;
+    }
+
+    // lists the archived extract folders, oldest first, and the current extract folders with the files in each
+    static void listExtractFolders(File localDataDir, List<File> archivedFolders, List<File> currentFolders, Map<File, File[]> folderContents)
+    {
         // check for archived file batches first
         File archivedFolder = new File(localDataDir.getPath().concat("\\Archived"));
         File[] archivedFoldersFound = archivedFolder.listFiles();
         if(archivedFoldersFound != null) {
             for (File f : archivedFoldersFound) {
-                if (f.isDirectory() && f.listFiles()!= null) {
-
-                    List <File> folderFiles = splitLargeZipFiles(asList(f.listFiles()), hookKey, orgId);
-                    if (!folderFiles.isEmpty()) {
-                        results.addAll(folderFiles);
-                        fileBatch.add(f);
-                    }
+                File[] archivedFiles = f.listFiles();
+                if (archivedFiles != null) {
+                    archivedFolders.add(f);
+                    folderContents.put(f, archivedFiles);
                 }
             }
         }
@@ -344,17 +432,16 @@ class HelperUtils {
         });
         if(filesFound != null) {
             for (File f: filesFound) {
-                if(f.isDirectory() && f.listFiles()!= null) {
-                    results.addAll(splitLargeZipFiles(asList(f.listFiles()), hookKey, orgId));
-                    fileBatch.add(f);
+                File[] folderFiles = f.listFiles();
+                if (folderFiles != null) {
+                    currentFolders.add(f);
+                    folderContents.put(f, folderFiles);
                 }
             }
         }
-
-        return fileBatch;
     }
 
-    static boolean clientHealthChecks(String hookKey, String orgId, String username, String password, String keycloakURI) throws IOException
+    static boolean clientHealthChecks(String hookKey, String orgId, AuthSessionManager authSession) throws IOException
     {
         if (orgId.isEmpty())
             return true;
@@ -372,7 +459,7 @@ class HelperUtils {
             {
                 System.out.println("Unable to connect to port 40700. Trying port 2135...");
                 postSlackAlert("OrganisationId: "+orgId+" - Unable to connect to port 40700. Trying port 2135...", hookKey, null);
-                postSlackAlertProd("OrganisationId: "+orgId+" - Unable to connect to port 40700. Trying port 2135...", null, username, password, keycloakURI);
+                postSlackAlertProd("OrganisationId: "+orgId+" - Unable to connect to port 40700. Trying port 2135...", null, authSession);
                 try
                 {
                     (new Socket("localhost", 2135)).close();
@@ -382,7 +469,7 @@ class HelperUtils {
                 {
                     System.out.println("Unable to connect to port 2135.  TPP client application not running.");
                     postSlackAlert("OrganisationId: "+orgId+" - Unable to connect to port 2135.  TPP client application not running.", hookKey, null);
-                    postSlackAlertProd("OrganisationId: "+orgId+" - Unable to connect to port 2135.  TPP client application not running.", null, username, password, keycloakURI);
+                    postSlackAlertProd("OrganisationId: "+orgId+" - Unable to connect to port 2135.  TPP client application not running.", null, authSession);
                     return false;
                 }
             }
@@ -427,81 +514,137 @@ class HelperUtils {
         return false;
     }
 
-    static boolean checkValidUploadFiles(String orgId, File fileFolder, String hookKey)
+    static boolean checkValidUploadFiles(String orgId, File fileFolder, String hookKey, ScanIndex scanIndex)
     {
         // TPP client application as source - check number of files and structure of main zip
         if (TPP_ORGS.contains(orgId))
         {
-            int fileCount = countFiles (fileFolder, false);
+            // a folder whose files are unchanged since it was last validated keeps the same result. The alerts for
+            // an invalid folder were raised when it was first found, so are not repeated every run
             File [] folderFiles = fileFolder.listFiles();
+            Boolean knownResult = scanIndex.folderValidation(fileFolder, folderFiles);
+            if (knownResult != null) {
+                if (!knownResult)
+                    System.out.println(String.format("Folder: %s is unchanged since it was found invalid",fileFolder.getPath()));
+                return knownResult;
+            }
 
-            boolean folderContainsTempDir = folderContainsTempDir(folderFiles);
-            if (folderContainsTempDir) {
+            boolean validFolder = checkValidTppUploadFiles(orgId, fileFolder, folderFiles, hookKey, scanIndex);
+            scanIndex.folderValidated(fileFolder, folderFiles, validFolder);
+            return validFolder;
+        }
 
-                File [] tempFolderFiles = new File(fileFolder.getPath().concat("\\temp")).listFiles();
-                System.out.println(String.format("Folder: %s contains a sub temp folder which will be handled as a future invalid batch",fileFolder.getPath()));
-                postSlackAlert("OrganisationId: "+orgId+" - "+ String.format("Folder: %s contains a sub temp folder which will be handled as a future invalid batch",fileFolder.getPath()), hookKey, fileListDisplay(tempFolderFiles));
-            }
+        return true;
+    }
 
-            if (fileCount != 4)
+    private static boolean checkValidTppUploadFiles(String orgId, File fileFolder, File [] folderFiles, String hookKey, ScanIndex scanIndex)
+    {
+        int fileCount = countFiles (folderFiles, false);
+
+        boolean folderContainsTempDir = folderContainsTempDir(folderFiles);
+        if (folderContainsTempDir) {
+
+            File [] tempFolderFiles = new File(fileFolder.getPath().concat("\\temp")).listFiles();
+            System.out.println(String.format("Folder: %s contains a sub temp folder which will be handled as a future invalid batch",fileFolder.getPath()));
+            postSlackAlert("OrganisationId: "+orgId+" - "+ String.format("Folder: %s contains a sub temp folder which will be handled as a future invalid batch",fileFolder.getPath()), hookKey, fileListDisplay(tempFolderFiles));
+        }
+
+        if (fileCount != 4)
+        {
+
+            System.out.println(String.format("Invalid number of files (%d) detected in folder: %s",fileCount,fileFolder.getPath()));
+            postSlackAlert("OrganisationId: "+orgId+" - "+ String.format("Invalid number of files (%d) detected in folder: %s",fileCount,fileFolder.getPath()), hookKey, fileListDisplay(folderFiles));
+            return false;
+        }
+        else {
+
+            List<String> fileCheckArray = new ArrayList<String>(Arrays.asList("SRExtract.zip","SRManifest.csv","SRMapping.csv","SRMappingGroup.csv"));
+            File partIndex = null;
+            boolean independentParts = false;
+            for (File df : folderFiles)
             {
+                //ignore any sub directories, i.e. sub temp folders
+                if (df.isDirectory()) {
+                    continue;
+                }
 
-                System.out.println(String.format("Invalid number of files (%d) detected in folder: %s",fileCount,fileFolder.getPath()));
-                postSlackAlert("OrganisationId: "+orgId+" - "+ String.format("Invalid number of files (%d) detected in folder: %s",fileCount,fileFolder.getPath()), hookKey, fileListDisplay(folderFiles));
-                return false;
-            }
-            else {
+                int fileExtIndex = df.getName().lastIndexOf(".");
+                // check for non file extension
+                if (fileExtIndex == -1) {
 
-                List<String> fileCheckArray = new ArrayList<String>(Arrays.asList("SRExtract.zip","SRManifest.csv","SRMapping.csv","SRMappingGroup.csv"));
-                for (File df : folderFiles)
+                    System.out.println(String.format("Invalid file (%s) detected in folder: %s",df.getName(), fileFolder.getPath()));
+                    postSlackAlert("OrganisationId: "+orgId+" - "+ String.format("Invalid file (%s) detected in folder: %s",df.getName(), fileFolder.getPath()), hookKey, fileListDisplay(folderFiles));
+                    return false;
+                }
+
+                String fileExt = df.getName().substring(fileExtIndex);
+                boolean validFile = (fileCheckArray.contains(df.getName()) || fileCheckArray.contains(df.getName().replace(fileExt,".zip")));
+                if (!validFile)
                 {
-                    //ignore any sub directories, i.e. sub temp folders
-                    if (df.isDirectory()) {
-                        continue;
-                    }
 
-                    int fileExtIndex = df.getName().lastIndexOf(".");
-                    // check for non file extension
-                    if (fileExtIndex == -1) {
+                    System.out.println(String.format("Invalid file (%s) detected in folder: %s",df.getName(), fileFolder.getPath()));
+                    postSlackAlert("OrganisationId: "+orgId+" - "+ String.format("Invalid file (%s) detected in folder: %s",df.getName(), fileFolder.getPath()), hookKey, fileListDisplay(folderFiles));
+                    return false;
+                }
 
-                        System.out.println(String.format("Invalid file (%s) detected in folder: %s",df.getName(), fileFolder.getPath()));
-                        postSlackAlert("OrganisationId: "+orgId+" - "+ String.format("Invalid file (%s) detected in folder: %s",df.getName(), fileFolder.getPath()), hookKey, fileListDisplay(folderFiles));
-                        return false;
-                    }
+                // validate zip file, or each part of one split into independent parts
+                if (df.getName().equalsIgnoreCase("SRExtract" + IndependentZipSplitter.PART_INDEX_EXTENSION)) {
+                    partIndex = df;
+                }
+                if (IndependentZipSplitter.isPart(df)) {
+                    independentParts = true;
+                }
+                if (df.getName().equalsIgnoreCase("SRExtract.zip") || IndependentZipSplitter.isPart(df))
+                {
 
-                    String fileExt = df.getName().substring(fileExtIndex);
-                    boolean validFile = (fileCheckArray.contains(df.getName()) || fileCheckArray.contains(df.getName().replace(fileExt,".zip")));
-                    if (!validFile)
+                    if (!scanIndex.validZipFile(df))
                     {
-
-                        System.out.println(String.format("Invalid file (%s) detected in folder: %s",df.getName(), fileFolder.getPath()));
-                        postSlackAlert("OrganisationId: "+orgId+" - "+ String.format("Invalid file (%s) detected in folder: %s",df.getName(), fileFolder.getPath()), hookKey, fileListDisplay(folderFiles));
+                        System.out.println(String.format("Invalid Zip file (%s) detected in folder: %s ",df.getName(),fileFolder.getPath()));
+                        postSlackAlert("OrganisationId: "+orgId+" - "+ String.format("Invalid Zip file (%s) detected in folder: %s ",df.getName(),fileFolder.getPath()), hookKey, null);
                         return false;
                     }
-
-                    // validate zip file
-                    if (df.getName().equalsIgnoreCase("SRExtract.zip"))
-                    {
-
-                        if (!validZipFile(df))
-                        {
-                            System.out.println(String.format("Invalid Zip file (%s) detected in folder: %s ",df.getName(),fileFolder.getPath()));
-                            postSlackAlert("OrganisationId: "+orgId+" - "+ String.format("Invalid Zip file (%s) detected in folder: %s ",df.getName(),fileFolder.getPath()), hookKey, null);
-                            return false;
-                        }
-                    }
                 }
             }
 
-            return true;
+            // the index of independent parts must list exactly the parts in the folder
+            if ((independentParts || partIndex != null)
+                    && (partIndex == null || !IndependentZipSplitter.partIndexMatches(partIndex, folderFiles))) {
+                System.out.println(String.format("Invalid split zip parts detected in folder: %s ",fileFolder.getPath()));
+                postSlackAlert("OrganisationId: "+orgId+" - "+ String.format("Invalid split zip parts detected in folder: %s ",fileFolder.getPath()), hookKey, fileListDisplay(folderFiles));
+                return false;
+            }
         }
 
         return true;
     }
 
-    static int countFiles(File folder, boolean includeMulti)
+    // whether the folder holds a complete extract ready to upload. For TPP orgs that is the 4 file SR set, with
+    // multi-part zips counted once, otherwise any file
+    static boolean extractFolderComplete(String orgId, File folder)
     {
         File [] folderFiles = folder.listFiles();
+        if (folderFiles == null)
+            return false;
+
+        if (!TPP_ORGS.contains(orgId))
+            return countFiles(folderFiles, false) > 0;
+
+        List<String> requiredFiles = new ArrayList<String>(Arrays.asList("SRExtract","SRManifest","SRMapping","SRMappingGroup"));
+        for (File f : folderFiles) {
+            int fileExtIndex = f.getName().lastIndexOf(".");
+            if (!f.isDirectory() && fileExtIndex != -1)
+                requiredFiles.remove(f.getName().substring(0, fileExtIndex));
+        }
+        return requiredFiles.isEmpty() && countFiles(folderFiles, false) == 4;
+    }
+
+    static int countFiles(File folder, boolean includeMulti)
+    {
+        return countFiles(folder.listFiles(), includeMulti);
+    }
+
+    static int countFiles(File [] folderFiles, boolean includeMulti)
+    {
         List<String> fileList = new ArrayList<String>();
         for (File f: folderFiles)
         {
@@ -523,7 +666,7 @@ class HelperUtils {
         return fileList.size();
     }
 
-    //posts to the dds-uploader-alerts channel
+    //posts to the dds-uploader-alerts channel. The alert is queued and sent in the background
     static void postSlackAlert(String message, String hookKey, String exceptionMessage)
     {
         // do not log slack messages for the TPP test account
@@ -531,83 +674,38 @@ class HelperUtils {
             return;
         }
 
-        SlackMessage slackMessage = new SlackMessage(message);
-
-        if (!Strings.isNullOrEmpty(exceptionMessage)) {
-            SlackAttachment slackAttachment = new SlackAttachment();
-            slackAttachment.setFallback("Exception cannot be displayed");
-            slackAttachment.setText("```" + exceptionMessage + "```");
-            slackAttachment.addMarkdownAttribute("text");
-            slackMessage.addAttachments(slackAttachment);
-        }
-
         String url = "https://hooks.slack.com/services/T3MF59JFJ/B7DFYMUJK/";
         url = url.concat(hookKey);
-        try {
-            SlackApi slackApi = new SlackApi(url);
-            slackApi.call(slackMessage);
-        }
-        catch (SlackException ex) {
-            System.out.println ("\nSlack integration failure. Unable to create alert => "+ex.getMessage());
-        }
+        AlertDispatcher.instance().enqueue(url, message, exceptionMessage);
     }
 
-    //posts to the aws-production-alerts channel
-    static void postSlackAlertProd(String message, String exceptionMessage, String username, String password, String keycloakURI) throws IOException
+    //posts to the aws-production-alerts channel. The alert is queued and sent in the background
+    static void postSlackAlertProd(String message, String exceptionMessage, AuthSessionManager authSession) throws IOException
     {
         // do not log slack messages for the TPP test account
 //        if (message.contains("TPP-01")) {
 //            return;
 //        }
 
-        SlackMessage slackMessage = new SlackMessage(message);
-
-        if (!Strings.isNullOrEmpty(exceptionMessage)) {
-            SlackAttachment slackAttachment = new SlackAttachment();
-            slackAttachment.setFallback("Exception cannot be displayed");
-            slackAttachment.setText("```" + exceptionMessage + "```");
-            slackAttachment.addMarkdownAttribute("text");
-            slackMessage.addAttachments(slackAttachment);
-        }
-
-        //generate a security token to get the webhook-ddsuploaderalertprod attribute
-        UserRepresentation userRep = getKeycloakTokenUserRep(keycloakURI, username, password);
-        if (!userRep.getAttributes().isEmpty()) {
-
-            Map<String, List<String>> attributes = userRep.getAttributes();
-            List<String> webhook = attributes.get("webhook-ddsuploaderalertprod");
-            if (!webhook.isEmpty()) {
-
-                String url = webhook.get(0);
-                try {
-                    SlackApi slackApi = new SlackApi(url);
-                    slackApi.call(slackMessage);
-                }
-                catch (SlackException ex) {
-                    System.out.println ("\nSlack integration failure. Unable to create alert => "+ex.getMessage());
-                }
-            }
+        //the webhook-ddsuploaderalertprod attribute is cached with the user account for the session
+        String url = authSession.getProdAlertWebhook();
+        if (!Strings.isNullOrEmpty(url)) {
+            AlertDispatcher.instance().enqueue(url, message, exceptionMessage);
         }
     }
 
-    static Header getKeycloakToken(String keycloakURI, String username, String password) throws IOException
-    {
-        KeycloakClient.init(keycloakURI, "endeavour-machine", username, password, "dds-api");
-        return KeycloakClient.instance().getAuthorizationHeader();
-    }
-
-    static UserRepresentation getKeycloakTokenUserRep(String keycloakURI, String username, String password) throws IOException
+    // sends any queued alerts, waiting until they have gone or the timeout is reached
+    static void flushSlackAlerts(long timeoutMillis)
     {
-        KeycloakClient.init(keycloakURI, "endeavour-machine", username, password, "dds-api");
-        return KeycloakClient.instance().getUserAccount();
+        AlertDispatcher.instance().flush(timeoutMillis);
     }
 
-    static void runTestMode (String keycloakURI, String hookKey, String username, String password, String orgId) throws IOException {
+    static void runTestMode (AuthSessionManager authSession, String hookKey, String orgId) throws IOException {
         System.out.println("\nEntering test mode......\n");
 
         System.out.println("\n(1) Authentication test....");
         try {
-            String token = getKeycloakToken(keycloakURI, username, password).getValue();
+            String token = authSession.getAuthorizationHeader().getValue();
             System.out.println("\nToken => "+token+"\n");
         } catch (Exception ex) {
             System.out.println("\nAuthentication failed => "+ex.getMessage());
@@ -617,9 +715,9 @@ class HelperUtils {
 //        postSlackAlert("Test alert for OrganisationId = "+orgId, hookKey, null);
 
 //        System.out.println("\n(3) Slack alerts test to aws-production-alerts channel....\n");
-//        postSlackAlertProd("Test alert for OrganisationId = "+orgId, null, username, password, keycloakURI);
+//        postSlackAlertProd("Test alert for OrganisationId = "+orgId, null, authSession);
 
         System.out.println("\n(4) Performing TPP client health checks....\n");
-        clientHealthChecks(hookKey, orgId, username, password, keycloakURI);
+        clientHealthChecks(hookKey, orgId, authSession);
     }
 }
\ No newline at end of file
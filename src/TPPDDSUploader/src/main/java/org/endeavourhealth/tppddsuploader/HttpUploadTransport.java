@@ -0,0 +1,367 @@
+package org.endeavourhealth.tppddsuploader;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpRequestRetryHandler;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpOptions;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.entity.mime.FormBodyPartBuilder;
+import org.apache.http.entity.mime.MultipartEntityBuilder;
+import org.apache.http.entity.mime.content.AbstractContentBody;
+import org.apache.http.entity.mime.content.ContentBody;
+import org.apache.http.entity.mime.content.FileBody;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+
+import javax.net.ssl.SSLException;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.endeavourhealth.tppddsuploader.HelperUtils.parseUploadFilePath;
+
+// long lived http transport used by every file batch upload in a run.  Connections to the upload service are
+// pooled and kept alive between batches, rather than a new client (and TLS handshake) being created for each one.
+// With the nio transport the requests are sent by a NioUploadClient instead
+class HttpUploadTransport implements Closeable {
+
+    private static final long MAX_KEEP_ALIVE_MILLIS = 60000;
+    private static final long IDLE_CONNECTION_EVICT_SECONDS = 60;
+    private static final int VALIDATE_AFTER_INACTIVITY_MILLIS = 2000;
+    private static final int UNSUPPORTED_MEDIA_TYPE = 415;
+
+    // the trailing multipart part listing the digests of the file parts, and the response header the service echoes
+    // for each file it stored, "<sha-256> <upload path>"
+    static final String FILE_DIGESTS_PART = "file-digests";
+    static final String FILE_SHA256_HEADER = "X-File-SHA256";
+
+    // not an http status: the service replied 200, but did not echo the digests of the files that were sent
+    static final int DIGEST_MISMATCH = -1;
+
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient httpClient;
+    private final String uploadCompression;
+    private final String uploadDigests;
+    private final BandwidthLimiter bandwidthLimiter;
+    private final NioUploadClient nioClient;
+
+    // whether file parts are sent gzip compressed, decided on the first post of the run. null until then
+    private volatile Boolean gzipParts = null;
+    private volatile boolean digestsUnechoedReported = false;
+
+    HttpUploadTransport(int maxConnections, int timeoutMillis, String uploadCompression, String uploadDigests,
+                        String httpTransport, BandwidthLimiter bandwidthLimiter)
+    {
+        this.uploadCompression = uploadCompression;
+        this.uploadDigests = uploadDigests;
+        this.bandwidthLimiter = bandwidthLimiter;
+
+        connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnections);
+        connectionManager.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY_MILLIS);
+
+        // set service timeout limits
+        RequestConfig requestConfig = RequestConfig
+                .custom()
+                .setConnectTimeout(timeoutMillis)
+                .setSocketTimeout(timeoutMillis)
+                .setConnectionRequestTimeout(timeoutMillis)
+                .build();
+
+        // a request is resent once at once, e.g. when a pooled connection turns out to have been closed by the
+        // server.  Any further retries are left to the batch retry policy, which backs off between them
+        HttpRequestRetryHandler retryHandler = new HttpRequestRetryHandler() {
+            public boolean retryRequest(IOException exception, int executionCount, HttpContext context) {
+                if (executionCount > 1)
+                    return false;
+                if (exception instanceof InterruptedIOException || exception instanceof UnknownHostException)
+                    return false;
+                if (exception instanceof ConnectException || exception instanceof SSLException)
+                    return false;
+                return !(exception instanceof SocketException);
+            }
+        };
+
+        httpClient = HttpClientBuilder
+                .create()
+                .setConnectionManager(connectionManager)
+                .setKeepAliveStrategy(keepAliveStrategy())
+                .evictExpiredConnections()
+                .evictIdleConnections(IDLE_CONNECTION_EVICT_SECONDS, TimeUnit.SECONDS)
+                .setRetryHandler(retryHandler)
+                .setDefaultRequestConfig(requestConfig).build();
+
+        NioUploadClient nioClient = null;
+        if (httpTransport.equals(UploaderSettings.HTTP_TRANSPORT_NIO)) {
+            try {
+                nioClient = new NioUploadClient(maxConnections, timeoutMillis, keepAliveStrategy(), bandwidthLimiter);
+            } catch (IOException ex) {
+                System.out.println("Unable to start the nio http transport, using the blocking one => " + ex.getMessage());
+            }
+        }
+        this.nioClient = nioClient;
+    }
+
+    // honour the server keep-alive header, but never hold on to a connection longer than a minute
+    private static DefaultConnectionKeepAliveStrategy keepAliveStrategy()
+    {
+        return new DefaultConnectionKeepAliveStrategy() {
+            public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                long keepAlive = super.getKeepAliveDuration(response, context);
+                return (keepAlive > 0 && keepAlive < MAX_KEEP_ALIVE_MILLIS) ? keepAlive : MAX_KEEP_ALIVE_MILLIS;
+            }
+        };
+    }
+
+    // posts the batch of files as a single multipart request and returns the status and response body.  The response
+    // is always fully consumed so the connection is returned to the pool for the next batch
+    UploadResponse postFiles(String uri, Header authHeader, List<File> files, String rootDir) throws IOException
+    {
+        boolean gzip = gzipPartsAccepted(uri, authHeader);
+        boolean digests = !uploadDigests.equals(UploaderSettings.UPLOAD_DIGESTS_NONE);
+        List<GzipFileBody> gzipBodies = new ArrayList<GzipFileBody>();
+        List<PartDigest> partDigests = new ArrayList<PartDigest>();
+
+        HttpPost httppost = new HttpPost(uri);
+        httppost.setHeader(authHeader);
+
+        // add each batched file into the upload.  Files which are not already compressed are gzipped as they are
+        // sent when the service accepts it, and the part is marked with a Content-Encoding field
+        MultipartEntityBuilder entityBuilder = MultipartEntityBuilder.create();
+        for (File inputFile : files) {
+            String uploadPathName = parseUploadFilePath(rootDir, inputFile);
+            PartDigest partDigest = digests ? new PartDigest(uploadPathName) : null;
+            if (partDigest != null)
+                partDigests.add(partDigest);
+
+            if (gzip && GzipFileBody.isCompressible(inputFile)) {
+                GzipFileBody gzipBody = new GzipFileBody(inputFile, uploadPathName, partDigest);
+                gzipBodies.add(gzipBody);
+                entityBuilder.addPart(FormBodyPartBuilder.create("file", part(gzipBody))
+                        .addField("Content-Encoding", GzipFileBody.CONTENT_CODING).build());
+                System.out.println(inputFile + " added to transfer (gzip)");
+            } else if (partDigest != null) {
+                entityBuilder.addPart("file", part(new DigestFileBody(inputFile, uploadPathName, partDigest)));
+                System.out.println(inputFile + " added to transfer");
+            } else {
+                entityBuilder.addPart("file", part(new FileBody(inputFile, ContentType.APPLICATION_OCTET_STREAM, uploadPathName)));
+                System.out.println(inputFile + " added to transfer");
+            }
+        }
+        if (!partDigests.isEmpty())
+            entityBuilder.addPart(FILE_DIGESTS_PART, part(new PartDigest.ListBody(partDigests)));
+        httppost.setEntity(entityBuilder.build());
+
+        UploadResponse response = execute(httppost);
+
+        // the service has stopped accepting compressed parts, so send the batch again as it is
+        if (!gzipBodies.isEmpty() && response.getStatusCode() == UNSUPPORTED_MEDIA_TYPE) {
+            System.out.println("Compressed parts rejected by the upload service, resending uncompressed");
+            gzipParts = false;
+            return postFiles(uri, authHeader, files, rootDir);
+        }
+
+        for (GzipFileBody gzipBody : gzipBodies) {
+            System.out.println(String.format("%s sent as %d gzip bytes", gzipBody.getFilename(), gzipBody.getCompressedLength()));
+        }
+
+        if (response.getStatusCode() == 200 && !partDigests.isEmpty())
+            return verifyDigests(response, partDigests);
+        return response;
+    }
+
+    // the nio transport sends the body of a part itself, in its place in the multipart framing
+    private ContentBody part(AbstractContentBody body)
+    {
+        return (nioClient != null) ? NioUploadClient.spliced(body) : body;
+    }
+
+    // checks the digests the service echoed against those sent.  A file echoed with a different digest always fails
+    // the batch.  A file not echoed at all only fails it in verify mode, otherwise uploads to a service which does
+    // not echo digests are accepted as before
+    private UploadResponse verifyDigests(UploadResponse response, List<PartDigest> partDigests)
+    {
+        Map<String, String> echoedDigests = new HashMap<String, String>();
+        for (String echoed : response.getHeaders(FILE_SHA256_HEADER)) {
+            int separator = echoed.indexOf(' ');
+            if (separator > 0)
+                echoedDigests.put(echoed.substring(separator + 1).trim(), echoed.substring(0, separator).trim().toLowerCase());
+        }
+
+        boolean required = uploadDigests.equals(UploaderSettings.UPLOAD_DIGESTS_VERIFY);
+        if (echoedDigests.isEmpty() && !required) {
+            if (!digestsUnechoedReported) {
+                System.out.println("Upload service does not echo file digests, uploads will not be verified\n");
+                digestsUnechoedReported = true;
+            }
+            return response.withDigests(partDigests);
+        }
+
+        for (PartDigest partDigest : partDigests) {
+            String echoed = echoedDigests.get(partDigest.getUploadPath());
+            if (echoed == null && required)
+                return new UploadResponse(DIGEST_MISMATCH, "No digest echoed by the upload service for " + partDigest.getUploadPath());
+            if (echoed != null && !echoed.equals(partDigest.getSha256()))
+                return new UploadResponse(DIGEST_MISMATCH, String.format("Digest mismatch for %s, sent %s but the upload service stored %s",
+                        partDigest.getUploadPath(), partDigest.getSha256(), echoed));
+            if (echoed != null)
+                partDigest.setVerified();
+        }
+        return response.withDigests(partDigests);
+    }
+
+    // none = never compress, gzip = always compress, auto = ask the service once with an OPTIONS request and
+    // compress if it lists gzip in its Accept-Encoding response header (RFC 7694)
+    private boolean gzipPartsAccepted(String uri, Header authHeader)
+    {
+        if (gzipParts == null) {
+            if (uploadCompression.equals(UploaderSettings.UPLOAD_COMPRESSION_GZIP)) {
+                gzipParts = true;
+            } else if (uploadCompression.equals(UploaderSettings.UPLOAD_COMPRESSION_AUTO)) {
+                gzipParts = probeGzipAccepted(uri, authHeader);
+                System.out.println("Upload service " + (gzipParts ? "accepts" : "does not accept") + " gzip compressed files\n");
+            } else {
+                gzipParts = false;
+            }
+        }
+        return gzipParts;
+    }
+
+    private boolean probeGzipAccepted(String uri, Header authHeader)
+    {
+        try {
+            HttpOptions options = new HttpOptions(uri);
+            options.setHeader(authHeader);
+            UploadResponse response = execute(options);
+            String acceptEncoding = response.getHeader("Accept-Encoding");
+            if (response.getStatusCode() >= 300 || acceptEncoding == null)
+                return false;
+
+            for (String coding : acceptEncoding.split(",")) {
+                if (coding.trim().toLowerCase().startsWith(GzipFileBody.CONTENT_CODING))
+                    return true;
+            }
+            return false;
+        } catch (IOException ex) {
+            System.out.println("Unable to check the upload service for compression support => " + ex.getMessage());
+            return false;
+        }
+    }
+
+    // executes any request against the upload service on the pooled client
+    UploadResponse execute(HttpUriRequest request) throws IOException
+    {
+        if (nioClient != null)
+            return nioClient.execute(request);
+
+        // request bodies are held to the shared bandwidth budget, if there is one
+        if (bandwidthLimiter != null && request instanceof HttpEntityEnclosingRequest) {
+            HttpEntityEnclosingRequest entityRequest = (HttpEntityEnclosingRequest) request;
+            if (entityRequest.getEntity() != null) {
+                entityRequest.setEntity(new HttpEntityWrapper(entityRequest.getEntity()) {
+                    public void writeTo(OutputStream out) throws IOException {
+                        super.writeTo(bandwidthLimiter.throttle(out));
+                    }
+                });
+            }
+        }
+
+        CloseableHttpResponse response = httpClient.execute(request);
+        try {
+            int statusCode = response.getStatusLine().getStatusCode();
+            HttpEntity responseEntity = response.getEntity();
+            String responseString = (responseEntity != null) ? EntityUtils.toString(responseEntity, "UTF-8") : "";
+            return new UploadResponse(statusCode, responseString, response.getAllHeaders());
+        } finally {
+            response.close();
+        }
+    }
+
+    public void close() throws IOException
+    {
+        if (nioClient != null)
+            nioClient.close();
+        httpClient.close();
+        connectionManager.shutdown();
+    }
+
+    static class UploadResponse {
+        private final int statusCode;
+        private final String body;
+        private final Header[] headers;
+        private final List<PartDigest> digests;
+
+        UploadResponse(int statusCode, String body) {
+            this(statusCode, body, new Header[0]);
+        }
+
+        UploadResponse(int statusCode, String body, Header[] headers) {
+            this(statusCode, body, headers, Collections.<PartDigest>emptyList());
+        }
+
+        private UploadResponse(int statusCode, String body, Header[] headers, List<PartDigest> digests) {
+            this.statusCode = statusCode;
+            this.body = body;
+            this.headers = headers;
+            this.digests = digests;
+        }
+
+        UploadResponse withDigests(List<PartDigest> digests) {
+            return new UploadResponse(statusCode, body, headers, digests);
+        }
+
+        int getStatusCode() {
+            return statusCode;
+        }
+
+        String getBody() {
+            return body;
+        }
+
+        // the value of the first response header with the given name, or null if there isn't one
+        String getHeader(String name) {
+            for (Header header : headers) {
+                if (header.getName().equalsIgnoreCase(name))
+                    return header.getValue();
+            }
+            return null;
+        }
+
+        List<String> getHeaders(String name) {
+            List<String> values = new ArrayList<String>();
+            for (Header header : headers) {
+                if (header.getName().equalsIgnoreCase(name))
+                    values.add(header.getValue());
+            }
+            return values;
+        }
+
+        // the digests of the files sent, when digests are sent, otherwise empty
+        List<PartDigest> getDigests() {
+            return digests;
+        }
+    }
+}
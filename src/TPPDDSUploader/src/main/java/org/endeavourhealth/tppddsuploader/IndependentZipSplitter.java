@@ -0,0 +1,504 @@
+package org.endeavourhealth.tppddsuploader;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipException;
+
+import static org.endeavourhealth.tppddsuploader.ZipCentralDirectory.*;
+
+// splits a large zip into parts which are each a whole zip of their own, name.p01, name.p02 ..., so the parts can be
+// uploaded in any order or at once, retried one at a time, and read by the service as each arrives.  Entries are
+// packed into the parts whole, copying their compressed data as is.  A csv too large for a part is cut on row
+// boundaries into pieces, each with the csv's header row, and deflated again.  The parts are listed in an index,
+// name.parts, a csv with a row for each entry of each part:
+//   "Part","Parts","Entry","Piece","Pieces","FirstRow","Rows","EntrySize","EntryCrc"
+// where FirstRow and Rows count the data rows of the source csv held by a piece, and are empty for a whole entry, and
+// EntrySize and EntryCrc are those of the whole source csv, to check the pieces against once they are joined
+class IndependentZipSplitter {
+
+    static final String PART_INDEX_EXTENSION = ".parts";
+    private static final Pattern PART_NAME = Pattern.compile("(?i).*\\.p(\\d{2})");
+    private static final Pattern INDEX_ROW = Pattern.compile("^\"(\\d+)\",\"(\\d+)\",");
+    private static final int DEFLATE_SLACK = 262144;
+    private static final int VERSION_DEFLATE = 20;
+
+    // true if the zip's entries can be copied or inflated
+    static boolean canSplit(File sourceZip)
+    {
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(sourceZip);
+            return ZipCentralDirectory.read(in.getChannel()).isInflateSupported();
+        } catch (IOException ex) {
+            System.out.println(String.format("Zip file %s cannot be split into independent parts => %s", sourceZip.getPath(), ex.getMessage()));
+            return false;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    // true if the file is one of the parts, name.p01, name.p02 ...
+    static boolean isPart(File file)
+    {
+        return PART_NAME.matcher(file.getName()).matches();
+    }
+
+    // true if the index lists exactly the parts of its zip found among the folder's files, numbered 1 to the count
+    // every row of the index gives
+    static boolean partIndexMatches(File indexFile, File[] folderFiles)
+    {
+        String indexName = indexFile.getName();
+        String baseName = indexName.substring(0, indexName.length() - PART_INDEX_EXTENSION.length());
+        Set<Integer> partsFound = new TreeSet<Integer>();
+        for (File file : folderFiles) {
+            Matcher partName = PART_NAME.matcher(file.getName());
+            if (partName.matches() && file.getName().regionMatches(true, 0, baseName + ".p", 0, baseName.length() + 2))
+                partsFound.add(Integer.valueOf(partName.group(1)));
+        }
+
+        Set<Integer> partsListed = new TreeSet<Integer>();
+        int partCount = -1;
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), "UTF-8"));
+            try {
+                String line = in.readLine();
+                while ((line = in.readLine()) != null) {
+                    if (line.isEmpty())
+                        continue;
+                    Matcher row = INDEX_ROW.matcher(line);
+                    if (!row.find() || (partCount != -1 && partCount != Integer.parseInt(row.group(2)))) {
+                        System.out.println(String.format("Invalid row in split zip index %s => %s", indexFile.getPath(), line));
+                        return false;
+                    }
+                    partCount = Integer.parseInt(row.group(2));
+                    partsListed.add(Integer.valueOf(row.group(1)));
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException ex) {
+            System.out.println(String.format("Unable to read split zip index %s => %s", indexFile.getPath(), ex.getMessage()));
+            return false;
+        }
+
+        Set<Integer> partsExpected = new TreeSet<Integer>();
+        for (int part = 1; part <= partCount; part++)
+            partsExpected.add(part);
+        if (partsExpected.isEmpty() || !partsListed.equals(partsExpected) || !partsFound.equals(partsExpected)) {
+            System.out.println(String.format("Split zip index %s lists parts %s of %d, but the folder holds parts %s",
+                    indexFile.getPath(), partsListed, partCount, partsFound));
+            return false;
+        }
+        return true;
+    }
+
+    // writes the entries of sourceZip into parts named after targetZip, then the index.  Returns the parts in order
+    // followed by the index.  If anything fails the files written so far are removed and the source is left untouched
+    static List<File> split(File sourceZip, File targetZip, long splitSize) throws IOException
+    {
+        if (splitSize < 65536)
+            throw new IllegalArgumentException("Split size must be at least 64kb");
+
+        String zipPath = targetZip.getPath();
+        String basePath = zipPath.substring(0, zipPath.length() - ".zip".length());
+        List<File> parts = new ArrayList<File>();
+        List<String[]> index = new ArrayList<String[]>();
+        FileInputStream in = new FileInputStream(sourceZip);
+        PartWriter part = null;
+        boolean finished = false;
+        try {
+            FileChannel source = in.getChannel();
+            for (Entry entry : ZipCentralDirectory.read(source).getEntries()) {
+                long entryBytes = LOCAL_HEADER_SIZE + CENTRAL_HEADER_SIZE + 2L * entry.nameBytes.length + entry.extra.length
+                        + entry.comment.length + entry.compressedSize;
+
+                // an entry which fits in a part is copied whole, into the current part if there is room
+                if (entryBytes + END_OF_CENTRAL_DIRECTORY_SIZE <= splitSize || !entry.getName().toLowerCase().endsWith(".csv")) {
+                    if (part == null || part.size() + entryBytes > splitSize)
+                        part = nextPart(part, basePath, parts);
+                    part.copyRawEntry(entry, source);
+                    index.add(new String[] {Integer.toString(parts.size()), null, entry.getName(), "1", "1", "", "",
+                                            Long.toString(entry.size), String.format("%08x", entry.crc)});
+                    continue;
+                }
+
+                part = splitRows(entry, source, splitSize, part, basePath, parts, index);
+            }
+            if (part != null)
+                part.finish();
+
+            File indexFile = new File(basePath + PART_INDEX_EXTENSION);
+            writeIndex(indexFile, index, parts.size());
+            parts.add(indexFile);
+            finished = true;
+            return parts;
+
+        } finally {
+            if (!finished) {
+                if (part != null)
+                    part.abort();
+                for (File written : parts)
+                    written.delete();
+                new File(basePath + PART_INDEX_EXTENSION).delete();
+            }
+            closeQuietly(in);
+        }
+    }
+
+    // cuts a csv into pieces of whole rows, each filling what is left of a part, or a new part if little is left.
+    // Returns the part the last piece went into
+    private static PartWriter splitRows(Entry entry, FileChannel source, long splitSize, PartWriter part, String basePath,
+                                        List<File> parts, List<String[]> index) throws IOException
+    {
+        CsvRowReader rows = new CsvRowReader(ZipCentralDirectory.openEntry(source, entry));
+        try {
+            byte[] header = rows.next() ? rows.copyRow() : new byte[0];
+            long rowNumber = 0;
+            int firstIndexRow = index.size();
+            boolean moreRows = rows.next();
+            do {
+                long pieceOverhead = LOCAL_HEADER_SIZE + CENTRAL_HEADER_SIZE + 2L * entry.nameBytes.length;
+                if (part == null || splitSize - part.size() - pieceOverhead < splitSize / 4)
+                    part = nextPart(part, basePath, parts);
+
+                // the deflater holds back some output until the piece is finished, so the piece stops short of the
+                // space left to leave room for it
+                long space = splitSize - part.size() - pieceOverhead;
+                long pieceLimit = space - Math.min(DEFLATE_SLACK, space / 4);
+
+                long firstRow = rowNumber + 1;
+                PieceWriter piece = part.beginPiece(entry);
+                piece.write(header, header.length);
+                while (moreRows && (piece.compressedBytes() < pieceLimit || rowNumber < firstRow)) {
+                    piece.write(rows.row(), rows.rowLength());
+                    rowNumber++;
+                    moreRows = rows.next();
+                }
+                part.endPiece(piece);
+
+                index.add(new String[] {Integer.toString(parts.size()), null, entry.getName(), null, null,
+                                        Long.toString(firstRow), Long.toString(rowNumber - firstRow + 1),
+                                        Long.toString(entry.size), String.format("%08x", entry.crc)});
+            } while (moreRows);
+
+            // the piece numbers are known once the csv is done
+            int pieces = index.size() - firstIndexRow;
+            for (int i = 0; i < pieces; i++) {
+                index.get(firstIndexRow + i)[3] = Integer.toString(i + 1);
+                index.get(firstIndexRow + i)[4] = Integer.toString(pieces);
+            }
+            return part;
+        } finally {
+            rows.close();
+        }
+    }
+
+    private static PartWriter nextPart(PartWriter part, String basePath, List<File> parts) throws IOException
+    {
+        if (part != null)
+            part.finish();
+        File partFile = new File(String.format("%s.p%02d", basePath, parts.size() + 1));
+        parts.add(partFile);
+        return new PartWriter(partFile);
+    }
+
+    private static void writeIndex(File indexFile, List<String[]> index, int partCount) throws IOException
+    {
+        Writer out = new OutputStreamWriter(new FileOutputStream(indexFile), "UTF-8");
+        try {
+            out.write("\"Part\",\"Parts\",\"Entry\",\"Piece\",\"Pieces\",\"FirstRow\",\"Rows\",\"EntrySize\",\"EntryCrc\"\r\n");
+            for (String[] row : index) {
+                row[1] = Integer.toString(partCount);
+                StringBuilder line = new StringBuilder();
+                for (String field : row) {
+                    if (line.length() > 0)
+                        line.append(',');
+                    line.append('"').append(field.replace("\"", "\"\"")).append('"');
+                }
+                out.write(line.append("\r\n").toString());
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void closeQuietly(Closeable in)
+    {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException ex) {
+                System.out.println("Unable to close zip file => " + ex.getMessage());
+            }
+        }
+    }
+
+    // one part, a plain zip written front to back.  A piece's local header is written ahead of its data and filled in
+    // once the data is written, so no data descriptor is needed
+    private static class PartWriter {
+        private final File file;
+        private final RandomAccessFile out;
+        private final FileChannel channel;
+        private final ByteArrayOutputStream centralDirectory = new ByteArrayOutputStream();
+        private int entryCount = 0;
+        private boolean finished = false;
+
+        PartWriter(File file) throws IOException {
+            this.file = file;
+            file.delete();
+            this.out = new RandomAccessFile(file, "rw");
+            this.channel = out.getChannel();
+        }
+
+        // the size the part would be if it were finished now
+        long size() throws IOException {
+            return channel.position() + centralDirectory.size() + END_OF_CENTRAL_DIRECTORY_SIZE;
+        }
+
+        void copyRawEntry(Entry entry, FileChannel source) throws IOException {
+            long dataOffset = ZipCentralDirectory.dataOffset(source, entry);
+            int flags = entry.flags & ~FLAG_DATA_DESCRIPTOR;
+            long headerOffset = channel.position();
+            write(localHeader(entry, entry.versionNeeded, flags, entry.method, entry.crc, entry.compressedSize, entry.size));
+
+            long copied = 0;
+            while (copied < entry.compressedSize) {
+                long transferred = source.transferTo(dataOffset + copied, entry.compressedSize - copied, channel);
+                if (transferred <= 0)
+                    throw new ZipException("Unexpected end of data for entry " + entry.name);
+                copied += transferred;
+            }
+
+            addCentralDirectoryRecord(entry, entry.versionNeeded, flags, entry.method, entry.crc, entry.compressedSize, entry.size, headerOffset);
+        }
+
+        PieceWriter beginPiece(Entry entry) throws IOException {
+            long headerOffset = channel.position();
+            write(localHeader(entry, VERSION_DEFLATE, entry.flags & FLAG_UTF8, 8, 0, 0, 0));
+            return new PieceWriter(entry, headerOffset, channel);
+        }
+
+        void endPiece(PieceWriter piece) throws IOException {
+            piece.finish();
+            int flags = piece.entry.flags & FLAG_UTF8;
+            long dataEnd = channel.position();
+            channel.position(piece.headerOffset);
+            write(localHeader(piece.entry, VERSION_DEFLATE, flags, 8, piece.crc.getValue(), piece.compressedSize, piece.size));
+            channel.position(dataEnd);
+            addCentralDirectoryRecord(piece.entry, VERSION_DEFLATE, flags, 8, piece.crc.getValue(), piece.compressedSize, piece.size, piece.headerOffset);
+        }
+
+        void finish() throws IOException {
+            if (finished)
+                return;
+            if (entryCount > 0xFFFF || channel.position() > 0xFFFFFFFFL)
+                throw new ZipException("Part " + file.getPath() + " is too large for a non zip64 archive");
+
+            byte[] cd = centralDirectory.toByteArray();
+            long cdOffset = channel.position();
+            write(ByteBuffer.wrap(cd));
+
+            ByteBuffer eocd = buffer(END_OF_CENTRAL_DIRECTORY_SIZE);
+            eocd.putInt(END_OF_CENTRAL_DIRECTORY_SIGNATURE);
+            eocd.putShort((short) 0);
+            eocd.putShort((short) 0);
+            eocd.putShort((short) entryCount);
+            eocd.putShort((short) entryCount);
+            eocd.putInt(cd.length);
+            eocd.putInt((int) cdOffset);
+            eocd.putShort((short) 0);
+            eocd.flip();
+            write(eocd);
+
+            channel.force(true);
+            out.close();
+            finished = true;
+        }
+
+        void abort() {
+            try {
+                out.close();
+            } catch (IOException ex) {
+                System.out.println("Unable to close zip part => " + ex.getMessage());
+            }
+            file.delete();
+            finished = true;
+        }
+
+        private ByteBuffer localHeader(Entry entry, int versionNeeded, int flags, int method, long crc, long compressedSize, long size) {
+            ByteBuffer header = buffer(LOCAL_HEADER_SIZE + entry.nameBytes.length);
+            header.putInt(LOCAL_HEADER_SIGNATURE);
+            header.putShort((short) versionNeeded);
+            header.putShort((short) flags);
+            header.putShort((short) method);
+            header.putShort((short) entry.dosTime);
+            header.putShort((short) entry.dosDate);
+            header.putInt((int) crc);
+            header.putInt((int) compressedSize);
+            header.putInt((int) size);
+            header.putShort((short) entry.nameBytes.length);
+            header.putShort((short) 0);
+            header.put(entry.nameBytes);
+            header.flip();
+            return header;
+        }
+
+        private void addCentralDirectoryRecord(Entry entry, int versionNeeded, int flags, int method, long crc, long compressedSize,
+                                               long size, long headerOffset) throws ZipException {
+            if (compressedSize > 0xFFFFFFFFL || size > 0xFFFFFFFFL || headerOffset > 0xFFFFFFFFL)
+                throw new ZipException("Entry " + entry.name + " is too large for a non zip64 archive");
+
+            ByteBuffer record = buffer(CENTRAL_HEADER_SIZE + entry.nameBytes.length + entry.extra.length + entry.comment.length);
+            record.putInt(CENTRAL_HEADER_SIGNATURE);
+            record.putShort((short) entry.versionMadeBy);
+            record.putShort((short) versionNeeded);
+            record.putShort((short) flags);
+            record.putShort((short) method);
+            record.putShort((short) entry.dosTime);
+            record.putShort((short) entry.dosDate);
+            record.putInt((int) crc);
+            record.putInt((int) compressedSize);
+            record.putInt((int) size);
+            record.putShort((short) entry.nameBytes.length);
+            record.putShort((short) entry.extra.length);
+            record.putShort((short) entry.comment.length);
+            record.putShort((short) 0);
+            record.putShort((short) entry.internalAttributes);
+            record.putInt((int) entry.externalAttributes);
+            record.putInt((int) headerOffset);
+            record.put(entry.nameBytes);
+            record.put(entry.extra);
+            record.put(entry.comment);
+
+            centralDirectory.write(record.array(), 0, record.position());
+            entryCount++;
+        }
+
+        private void write(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+        }
+
+        private static ByteBuffer buffer(int size) {
+            return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    // deflates the rows of one piece straight into the part
+    private static class PieceWriter {
+        private final Entry entry;
+        private final long headerOffset;
+        private final FileChannel channel;
+        private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        private final CRC32 crc = new CRC32();
+        private final byte[] output = new byte[65536];
+        private long compressedSize = 0;
+        private long size = 0;
+
+        PieceWriter(Entry entry, long headerOffset, FileChannel channel) {
+            this.entry = entry;
+            this.headerOffset = headerOffset;
+            this.channel = channel;
+        }
+
+        void write(byte[] data, int length) throws IOException {
+            crc.update(data, 0, length);
+            size += length;
+            deflater.setInput(data, 0, length);
+            while (!deflater.needsInput())
+                drain();
+        }
+
+        long compressedBytes() {
+            return compressedSize;
+        }
+
+        void finish() throws IOException {
+            try {
+                deflater.finish();
+                while (!deflater.finished())
+                    drain();
+            } finally {
+                deflater.end();
+            }
+        }
+
+        private void drain() throws IOException {
+            int deflated = deflater.deflate(output);
+            ByteBuffer data = ByteBuffer.wrap(output, 0, deflated);
+            while (data.hasRemaining())
+                channel.write(data);
+            compressedSize += deflated;
+        }
+    }
+
+    // reads a csv a row at a time.  A row ends at a line break outside double quotes, so a quoted value holding a
+    // line break stays in its row
+    private static class CsvRowReader implements Closeable {
+        private final InputStream in;
+        private final byte[] buffer = new byte[65536];
+        private int position = 0;
+        private int limit = 0;
+        private byte[] row = new byte[4096];
+        private int rowLength = 0;
+
+        CsvRowReader(InputStream in) {
+            this.in = in;
+        }
+
+        // reads the next row with its line break, returning false at the end of the csv
+        boolean next() throws IOException {
+            rowLength = 0;
+            boolean quoted = false;
+            while (true) {
+                if (position == limit) {
+                    limit = in.read(buffer);
+                    position = 0;
+                    if (limit == -1) {
+                        limit = 0;
+                        return rowLength > 0;
+                    }
+                }
+                byte b = buffer[position++];
+                if (rowLength == row.length) {
+                    byte[] larger = new byte[row.length * 2];
+                    System.arraycopy(row, 0, larger, 0, rowLength);
+                    row = larger;
+                }
+                row[rowLength++] = b;
+                if (b == '"')
+                    quoted = !quoted;
+                else if (b == '\n' && !quoted)
+                    return true;
+            }
+        }
+
+        byte[] row() {
+            return row;
+        }
+
+        int rowLength() {
+            return rowLength;
+        }
+
+        byte[] copyRow() {
+            byte[] copy = new byte[rowLength];
+            System.arraycopy(row, 0, copy, 0, rowLength);
+            return copy;
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,411 @@
+package org.endeavourhealth.tppddsuploader;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+// a local stand-in for the machine-api upload service, so uploads can be exercised and tested offline.  Files
+// are written under the store directory by organisation.  The authorisation header is not checked.  The content
+// hashes for CheckFileHashes are only known for files stored since the stand-in was started
+class LocalUploadServer {
+
+    private static final String CONTEXT = "/machine-api/";
+
+    private final HttpServer server;
+    private final File storeDir;
+    private final AtomicLong postCount = new AtomicLong(0);
+    private final Map<String, File> heldContent = new HashMap<String, File>();
+
+    private LocalUploadServer(HttpServer server, File storeDir)
+    {
+        this.server = server;
+        this.storeDir = storeDir;
+    }
+
+    static LocalUploadServer start(File storeDir, int port) throws IOException
+    {
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        final LocalUploadServer uploadServer = new LocalUploadServer(server, storeDir);
+
+        server.createContext(CONTEXT, new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                uploadServer.handle(exchange);
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "local-upload-server");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }));
+        server.start();
+        return uploadServer;
+    }
+
+    // the base URI to use for tppdds.uploadServiceUri
+    String getServiceBaseUri()
+    {
+        return "http://localhost:" + server.getAddress().getPort() + CONTEXT;
+    }
+
+    void stop()
+    {
+        server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException
+    {
+        try {
+            String operation = exchange.getRequestURI().getPath().substring(CONTEXT.length());
+            Map<String, String> params = queryParameters(exchange.getRequestURI().getRawQuery());
+            File orgDir = new File(storeDir, safeName(params.get("organisationId")));
+
+            if (exchange.getRequestMethod().equalsIgnoreCase("OPTIONS")) {
+                exchange.getResponseHeaders().set("Allow", "GET, POST, OPTIONS");
+                exchange.getResponseHeaders().set("Accept-Encoding", GzipFileBody.CONTENT_CODING);
+                respond(exchange, 200, "OK");
+            } else if (operation.equals("PostFile")) {
+                postFile(exchange, orgDir);
+            } else if (operation.equals("FileUploadStatus")) {
+                fileUploadStatus(exchange, orgDir, params);
+            } else if (operation.equals("PostFileChunk")) {
+                postFileChunk(exchange, orgDir, params);
+            } else if (operation.equals("CompleteFileUpload")) {
+                completeFileUpload(exchange, orgDir, params);
+            } else if (operation.equals(DuplicateUploadFilter.CHECK_FILE_HASHES_OPERATION)) {
+                checkFileHashes(exchange, orgDir);
+            } else if (operation.equals(DeltaSyncClient.POST_DELTA_CHUNKS_OPERATION)) {
+                postDeltaChunks(exchange, orgDir);
+            } else if (operation.equals(DeltaSyncClient.POST_DELTA_FILE_OPERATION)) {
+                postDeltaFile(exchange, orgDir);
+            } else {
+                respond(exchange, 404, "Unknown operation " + operation);
+            }
+        } catch (Exception ex) {
+            // a 500 can only be sent before the response headers.  After them the client sees the response cut short
+            if (exchange.getResponseCode() == -1)
+                respond(exchange, 500, ex.getMessage());
+            else
+                exchange.close();
+        }
+    }
+
+    // each file part of the multipart body is stored in a folder for the post, decompressing any gzip encoded parts,
+    // and its digest echoed in the response.  The body is read into memory, which is fine for the 5 file batches of up to 10mb a stand-in receives
+    private void postFile(HttpExchange exchange, File orgDir) throws IOException
+    {
+        File postDir = new File(new File(orgDir, "posts"), System.currentTimeMillis() + "-" + postCount.incrementAndGet());
+        postDir.mkdirs();
+
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        int boundaryIndex = (contentType == null) ? -1 : contentType.indexOf("boundary=");
+        if (boundaryIndex == -1) {
+            respond(exchange, 400, "Not a multipart request");
+            return;
+        }
+        byte[] boundary = ("\r\n--" + contentType.substring(boundaryIndex + 9).replace("\"", "").split(";")[0].trim()).getBytes("ISO-8859-1");
+
+        ByteArrayOutputStream bodyOut = new ByteArrayOutputStream();
+        copy(exchange.getRequestBody(), bodyOut);
+
+        // prefix a line break so the first boundary is found like the rest
+        byte[] body = bodyOut.toByteArray();
+        byte[] multipart = new byte[body.length + 2];
+        multipart[0] = '\r';
+        multipart[1] = '\n';
+        System.arraycopy(body, 0, multipart, 2, body.length);
+
+        int partCount = 0;
+        int position = indexOf(multipart, boundary, 0);
+        while (position != -1) {
+            int headersStart = position + boundary.length + 2;
+            if (headersStart > multipart.length || multipart[position + boundary.length] == '-')
+                break;
+
+            int headersEnd = indexOf(multipart, "\r\n\r\n".getBytes("ISO-8859-1"), headersStart);
+            int nextBoundary = indexOf(multipart, boundary, headersEnd);
+            if (headersEnd == -1 || nextBoundary == -1)
+                break;
+
+            String headers = new String(multipart, headersStart, headersEnd - headersStart, "UTF-8");
+            if (headers.contains("name=\"" + HttpUploadTransport.FILE_DIGESTS_PART + "\"")) {
+                position = nextBoundary;
+                continue;
+            }
+
+            InputStream partIn = new ByteArrayInputStream(multipart, headersEnd + 4, nextBoundary - headersEnd - 4);
+            if (headers.toLowerCase().contains("content-encoding: " + GzipFileBody.CONTENT_CODING))
+                partIn = new GZIPInputStream(partIn);
+
+            String partFilename = partFilename(headers, ++partCount);
+            File partFile = new File(postDir, partFilename.replaceAll("[^A-Za-z0-9_.\\-]", "_"));
+            MessageDigest digest = UploadJournal.sha256();
+            OutputStream out = new DigestOutputStream(new FileOutputStream(partFile), digest);
+            try {
+                copy(partIn, out);
+            } finally {
+                out.close();
+            }
+            String sha256 = UploadJournal.toHex(digest.digest());
+            contentHeld(orgDir, sha256, partFile);
+
+            // echo the digest of the content as stored, so the client can check it before deleting its copy
+            exchange.getResponseHeaders().add(HttpUploadTransport.FILE_SHA256_HEADER, sha256 + " " + partFilename);
+            position = nextBoundary;
+        }
+        respond(exchange, 200, "OK");
+    }
+
+    private static String partFilename(String headers, int partNumber)
+    {
+        int filenameIndex = headers.indexOf("filename=\"");
+        if (filenameIndex == -1)
+            return "part" + partNumber;
+        return headers.substring(filenameIndex + 10, headers.indexOf('"', filenameIndex + 10));
+    }
+
+    private static int indexOf(byte[] data, byte[] pattern, int from)
+    {
+        for (int i = Math.max(from, 0); i <= data.length - pattern.length; i++) {
+            int j = 0;
+            while (j < pattern.length && data[i + j] == pattern[j])
+                j++;
+            if (j == pattern.length)
+                return i;
+        }
+        return -1;
+    }
+
+    private void fileUploadStatus(HttpExchange exchange, File orgDir, Map<String, String> params) throws IOException
+    {
+        File partFile = partFile(orgDir, params);
+        File completedFile = completedFile(orgDir, params);
+        if (partFile.exists()) {
+            exchange.getResponseHeaders().set(ChunkedUploadClient.UPLOAD_OFFSET_HEADER, Long.toString(partFile.length()));
+            respond(exchange, 200, "In progress");
+        } else if (completedFile.exists() && completedFile.length() == Long.parseLong(params.get("fileSize"))) {
+            exchange.getResponseHeaders().set(ChunkedUploadClient.UPLOAD_OFFSET_HEADER, Long.toString(completedFile.length()));
+            respond(exchange, 200, "Complete");
+        } else {
+            respond(exchange, 404, "Unknown upload");
+        }
+    }
+
+    private synchronized void postFileChunk(HttpExchange exchange, File orgDir, Map<String, String> params) throws IOException
+    {
+        File partFile = partFile(orgDir, params);
+        partFile.getParentFile().mkdirs();
+
+        long offset = Long.parseLong(params.get("offset"));
+        if (offset != partFile.length()) {
+            exchange.getResponseHeaders().set(ChunkedUploadClient.UPLOAD_OFFSET_HEADER, Long.toString(partFile.length()));
+            respond(exchange, 409, "Expected offset " + partFile.length());
+            return;
+        }
+
+        ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+        copy(exchange.getRequestBody(), chunk);
+        byte[] bytes = chunk.toByteArray();
+
+        String expectedSha256 = exchange.getRequestHeaders().getFirst(ChunkedUploadClient.CHUNK_SHA256_HEADER);
+        MessageDigest digest = UploadJournal.sha256();
+        if (expectedSha256 != null && !expectedSha256.equalsIgnoreCase(UploadJournal.toHex(digest.digest(bytes)))) {
+            respond(exchange, 400, "Chunk checksum mismatch");
+            return;
+        }
+
+        OutputStream out = new FileOutputStream(partFile, true);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+        exchange.getResponseHeaders().set(ChunkedUploadClient.UPLOAD_OFFSET_HEADER, Long.toString(partFile.length()));
+        respond(exchange, 200, "Chunk stored");
+    }
+
+    private synchronized void completeFileUpload(HttpExchange exchange, File orgDir, Map<String, String> params) throws IOException
+    {
+        File partFile = partFile(orgDir, params);
+        long fileSize = Long.parseLong(params.get("fileSize"));
+        if (!partFile.exists() || partFile.length() != fileSize) {
+            respond(exchange, 409, "Upload is incomplete");
+            return;
+        }
+
+        File completedFile = completedFile(orgDir, params);
+        completedFile.getParentFile().mkdirs();
+        completedFile.delete();
+        if (!partFile.renameTo(completedFile)) {
+            respond(exchange, 500, "Unable to store " + completedFile.getPath());
+            return;
+        }
+        contentHeld(orgDir, sha256(completedFile), completedFile);
+        respond(exchange, 200, params.get("fileName") + " received");
+    }
+
+    // replies with the upload paths of the listed "<sha-256> <size> <upload path>" lines whose content is already
+    // held, storing a copy of it under each of those paths as if it had been posted
+    private void checkFileHashes(HttpExchange exchange, File orgDir) throws IOException
+    {
+        ByteArrayOutputStream bodyOut = new ByteArrayOutputStream();
+        copy(exchange.getRequestBody(), bodyOut);
+
+        StringBuilder heldPaths = new StringBuilder();
+        File postDir = new File(new File(orgDir, "posts"), System.currentTimeMillis() + "-" + postCount.incrementAndGet());
+        for (String line : bodyOut.toString("UTF-8").split("\r?\n")) {
+            String[] fields = line.split("\t");
+            if (fields.length != 3)
+                continue;
+
+            File heldFile;
+            synchronized (heldContent) {
+                heldFile = heldContent.get(orgDir.getPath() + "|" + fields[0].toLowerCase());
+            }
+            if (heldFile == null || !heldFile.exists() || heldFile.length() != Long.parseLong(fields[1]))
+                continue;
+
+            postDir.mkdirs();
+            InputStream in = new FileInputStream(heldFile);
+            OutputStream out = new FileOutputStream(new File(postDir, fields[2].replaceAll("[^A-Za-z0-9_.\\-]", "_")));
+            try {
+                copy(in, out);
+            } finally {
+                out.close();
+                in.close();
+            }
+            heldPaths.append(fields[2]).append('\n');
+        }
+        respond(exchange, 200, heldPaths.toString());
+    }
+
+    private synchronized void postDeltaChunks(HttpExchange exchange, File orgDir) throws IOException
+    {
+        int count = deltaReassembler(orgDir).storeChunks(exchange.getRequestBody());
+        respond(exchange, 200, count + " chunks stored");
+    }
+
+    // rebuilds the zip of the recipe into a folder for the post, as PostFile would have stored it, or replies 409
+    // with the chunks it needs first
+    private synchronized void postDeltaFile(HttpExchange exchange, File orgDir) throws IOException
+    {
+        ByteArrayOutputStream bodyOut = new ByteArrayOutputStream();
+        copy(exchange.getRequestBody(), bodyOut);
+        DeltaRecipe recipe = DeltaRecipe.parse(bodyOut.toString("UTF-8"));
+
+        DeltaReassembler reassembler = deltaReassembler(orgDir);
+        List<String> missing = reassembler.missingChunks(recipe);
+        if (!missing.isEmpty()) {
+            StringBuilder missingLines = new StringBuilder();
+            for (String sha256 : missing)
+                missingLines.append(sha256).append('\n');
+            respond(exchange, 409, missingLines.toString());
+            return;
+        }
+
+        File postDir = new File(new File(orgDir, "posts"), System.currentTimeMillis() + "-" + postCount.incrementAndGet());
+        postDir.mkdirs();
+        File zipFile = new File(postDir, recipe.getUploadPath().replaceAll("[^A-Za-z0-9_.\\-]", "_"));
+        reassembler.assemble(recipe, zipFile);
+        contentHeld(orgDir, sha256(zipFile), zipFile);
+        respond(exchange, 200, recipe.getUploadPath() + " rebuilt");
+    }
+
+    private static DeltaReassembler deltaReassembler(File orgDir)
+    {
+        return new DeltaReassembler(new File(orgDir, "delta-chunks"));
+    }
+
+    private void contentHeld(File orgDir, String sha256, File file)
+    {
+        synchronized (heldContent) {
+            heldContent.put(orgDir.getPath() + "|" + sha256, file);
+        }
+    }
+
+    private static String sha256(File file) throws IOException
+    {
+        MessageDigest digest = UploadJournal.sha256();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[65536];
+            int read;
+            while ((read = in.read(buffer)) != -1)
+                digest.update(buffer, 0, read);
+        } finally {
+            in.close();
+        }
+        return UploadJournal.toHex(digest.digest());
+    }
+
+    private static File partFile(File orgDir, Map<String, String> params)
+    {
+        return new File(new File(orgDir, "uploads"), safeName(params.get("uploadId")) + ".part");
+    }
+
+    private static File completedFile(File orgDir, Map<String, String> params)
+    {
+        // the upload path uses windows separators, e.g. 20180326_1008\SRExtract.zip
+        File file = new File(orgDir, "files");
+        for (String pathPart : params.get("fileName").split("[\\\\/]")) {
+            if (!pathPart.isEmpty() && !pathPart.equals("..") && !pathPart.equals("."))
+                file = new File(file, pathPart);
+        }
+        return file;
+    }
+
+    private static String safeName(String value)
+    {
+        if (value == null || value.isEmpty())
+            return "unknown";
+        return value.replaceAll("[^A-Za-z0-9_\\-]", "_");
+    }
+
+    private static Map<String, String> queryParameters(String rawQuery) throws UnsupportedEncodingException
+    {
+        Map<String, String> params = new HashMap<String, String>();
+        if (rawQuery == null)
+            return params;
+
+        for (String param : rawQuery.split("&")) {
+            int equalsIndex = param.indexOf('=');
+            if (equalsIndex > 0)
+                params.put(URLDecoder.decode(param.substring(0, equalsIndex), "UTF-8"), URLDecoder.decode(param.substring(equalsIndex + 1), "UTF-8"));
+        }
+        return params;
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException
+    {
+        byte[] buffer = new byte[65536];
+        int read;
+        while ((read = in.read(buffer)) != -1)
+            out.write(buffer, 0, read);
+    }
+
+    private static void respond(HttpExchange exchange, int statusCode, String body) throws IOException
+    {
+        byte[] bytes = (body == null ? "" : body).getBytes("UTF-8");
+        exchange.sendResponseHeaders(statusCode, bytes.length == 0 ? -1 : bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -1,29 +1,15 @@
 package org.endeavourhealth.tppddsuploader;
 
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpRequestRetryHandler;
-import org.apache.http.client.config.RequestConfig;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.ContentType;
-import org.apache.http.entity.mime.MultipartEntityBuilder;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
-import org.apache.http.protocol.HttpContext;
-import org.apache.http.util.EntityUtils;
-import org.endeavourhealth.common.security.keycloak.client.KeycloakClient;
+import org.apache.http.Header;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.net.ssl.SSLException;
 import javax.swing.*;
 import java.io.File;
 import java.io.IOException;
 import java.io.InterruptedIOException;
-import java.net.ConnectException;
-import java.net.SocketException;
-import java.net.UnknownHostException;
 import java.util.*;
+import java.util.concurrent.*;
 
 import static java.util.Arrays.asList;
 import static org.endeavourhealth.tppddsuploader.HelperUtils.*;
@@ -33,13 +19,22 @@ public class Main {
     private static final Logger LOG = LoggerFactory.getLogger(Main.class);
     private static final String APPLICATION_NAME = "Discovery Data File Uploader";
     private static final String KEYCLOAK_SERVICE_URI = "https://auth.discoverydataservice.net/auth";
-    private static final String UPLOAD_SERVICE_URI = "https://n3messageapi.discoverydataservice.net/machine-api/PostFile?organisationId=";
+    private static final String UPLOAD_SERVICE_URI = "https://n3messageapi.discoverydataservice.net/machine-api/";
+    private static final String POST_FILE_OPERATION = "PostFile?organisationId=";
     private static final int HTTP_REQUEST_TIMEOUT_MILLIS = 7200000;   //2 hours
     private static final char DEFAULT_MODE = '0';
     private static final char UI_MODE = '1';
     private static final char TEST_MODE = '2';
     private static final char DEBUG_FILE_MODE = '3';
-    private static final int MAX_FILE_BATCH = 5;
+    private static final char LOCAL_SERVER_MODE = '4';
+    private static final char DAEMON_MODE = '5';
+    private static final char MULTI_ORG_MODE = '6';
+    private static final long ALERT_FLUSH_TIMEOUT_MILLIS = 60000;
+    private static final long DAEMON_RETRY_DELAY_MILLIS = 300000;
+    private static final Object DAEMON_STOP_LOCK = new Object();
+
+    private static boolean daemonStopRequested = false;
+    private static Thread daemonWaitingThread = null;
 
     public static void main(String[] args) throws IOException {
 
@@ -51,31 +46,196 @@ public class Main {
         if (args.length > 3) username = args[3];
         if (args.length > 4) password = args[4];
         if (args.length > 5) orgId = args[5];
+
+        if (mode == LOCAL_SERVER_MODE) {
+            runLocalUploadServer(rootDir);
+            return;
+        }
+        // the second argument is the config file listing the organisations, rather than a root directory
+        if (mode == MULTI_ORG_MODE) {
+            runMultiOrgUpload(rootDir);
+            return;
+        }
         DataFileUpload(mode, rootDir, hookKey, username, password, orgId);
     }
 
+    // runs the stand-in upload service, storing anything uploaded under rootDir, until the process is stopped
+    private static void runLocalUploadServer(String rootDir)
+    {
+        try {
+            LocalUploadServer server = LocalUploadServer.start(new File(rootDir), UploaderSettings.localServerPort());
+            System.out.println("Local upload service running at " + server.getServiceBaseUri() + ", storing files in " + rootDir);
+            Thread.currentThread().join();
+        } catch (IOException ex) {
+            System.out.println("Unable to start the local upload service => " + ex.getMessage());
+            System.exit(-1);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     private static void DataFileUpload(char mode, String rootDir, String hookKey, String username, String password, String orgId)
+    {
+        // one pooled http transport is shared by every batch upload in the run
+        // uploads are optionally held to a bandwidth limit by time of day
+        RateSchedule uploadRate = UploaderSettings.uploadRateProfile();
+        HttpUploadTransport transport = new HttpUploadTransport(Math.max(UploaderSettings.uploadThreads(), 2), HTTP_REQUEST_TIMEOUT_MILLIS,
+                UploaderSettings.uploadCompression(), UploaderSettings.uploadDigests(), UploaderSettings.httpTransport(),
+                uploadRate.isUnlimited() ? null : new BandwidthLimiter(uploadRate));
+
+        // counters and phase timings for the run are optionally served for scraping
+        MetricsEndpoint metricsEndpoint = startMetricsEndpoint();
+
+        boolean uploadAborted;
+        try {
+            uploadAborted = uploadOrganisation(mode, rootDir, hookKey, username, password, orgId, transport, createRetryPolicy(),
+                    metricsEndpoint);
+        } finally {
+            closeTransport(transport);
+            if (metricsEndpoint != null) {
+                metricsEndpoint.stop();
+            }
+            flushSlackAlerts(ALERT_FLUSH_TIMEOUT_MILLIS);
+        }
+
+        // terminate the process for the organisation to prevent any newer files being uploaded out of sequence
+        if (uploadAborted) {
+            System.exit(99);
+        }
+    }
+
+    // uploads every organisation in the config file from this one process, up to maxConcurrentOrgs at a time.  The
+    // organisations share the http connection pool and bandwidth budget, but nothing else: an organisation whose
+    // upload fails is stopped without affecting the others, and the process exits with 99 once they have all finished
+    private static void runMultiOrgUpload(String configPath)
+    {
+        final MultiOrgConfig config;
+        try {
+            config = MultiOrgConfig.load(new File(configPath));
+        } catch (IOException ex) {
+            System.out.println("Unable to read the multi-organisation config => " + ex.getMessage());
+            System.exit(-1);
+            return;
+        }
+
+        BandwidthLimiter bandwidthLimiter = config.getUploadRate().isUnlimited() ? null : new BandwidthLimiter(config.getUploadRate());
+        final HttpUploadTransport transport = new HttpUploadTransport(config.getMaxConnections(), HTTP_REQUEST_TIMEOUT_MILLIS,
+                UploaderSettings.uploadCompression(), UploaderSettings.uploadDigests(), UploaderSettings.httpTransport(), bandwidthLimiter);
+        final MetricsEndpoint metricsEndpoint = startMetricsEndpoint();
+        // retries are budgeted, and failing endpoints held off, across all the organisations
+        final RetryPolicy retryPolicy = createRetryPolicy();
+
+        System.out.println(String.format("Uploading %d organisations, %d at a time, over %d connections\n", config.getOrganisations().size(),
+                config.getMaxConcurrentOrgs(), config.getMaxConnections()));
+
+        ExecutorService orgExecutor = Executors.newFixedThreadPool(config.getMaxConcurrentOrgs());
+        List<String> abortedOrgs = new ArrayList<String>();
+        try {
+            Map<String, Future<Boolean>> orgUploads = new LinkedHashMap<String, Future<Boolean>>();
+            for (final MultiOrgConfig.OrgConfig org : config.getOrganisations()) {
+                orgUploads.put(org.getOrgId(), orgExecutor.submit(new Callable<Boolean>() {
+                    public Boolean call() {
+                        Thread.currentThread().setName("upload-" + org.getOrgId());
+                        return uploadOrganisation(DEFAULT_MODE, org.getRootDir(), org.getHookKey(), org.getUsername(), org.getPassword(),
+                                org.getOrgId(), transport, retryPolicy, metricsEndpoint);
+                    }
+                }));
+            }
+
+            for (Map.Entry<String, Future<Boolean>> orgUpload : orgUploads.entrySet()) {
+                try {
+                    if (orgUpload.getValue().get())
+                        abortedOrgs.add(orgUpload.getKey());
+                } catch (ExecutionException ex) {
+                    System.out.println("Upload failed for organisation " + orgUpload.getKey() + " => " + ex.getCause());
+                    abortedOrgs.add(orgUpload.getKey());
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            orgExecutor.shutdownNow();
+            closeTransport(transport);
+            if (metricsEndpoint != null) {
+                metricsEndpoint.stop();
+            }
+            flushSlackAlerts(ALERT_FLUSH_TIMEOUT_MILLIS);
+        }
+
+        if (!abortedOrgs.isEmpty()) {
+            System.out.println("\nUpload stopped for organisations: " + abortedOrgs);
+            System.exit(99);
+        }
+    }
+
+    // runs the mode for one organisation on the given transport.  Returns true if the upload was stopped part way,
+    // so no newer files should be uploaded for the organisation until it has been looked at.  An upload deferred
+    // because the service is failing is picked up again by the next run
+    private static boolean uploadOrganisation(char mode, String rootDir, String hookKey, String username, String password, String orgId,
+                                              HttpUploadTransport transport, RetryPolicy retryPolicy, MetricsEndpoint metricsEndpoint)
     {
         System.out.println("===========================================");
         System.out.println("   "+APPLICATION_NAME+" (".concat(orgId)+")");
         System.out.println("===========================================\n");
 
+        // optional pool for uploading the file batches of a folder concurrently
+        int uploadThreads = UploaderSettings.uploadThreads();
+        ExecutorService uploadExecutor = (uploadThreads > 1) ? Executors.newFixedThreadPool(uploadThreads) : null;
+
+        // one Keycloak session is authenticated for the run and logged out once at the end
+        AuthSessionManager authSession = new AuthSessionManager(KEYCLOAK_SERVICE_URI, username, password);
+
+        // files are either posted a batch at a time, sent in resumable chunks recorded in an upload journal, or
+        // extract zips are sent as deltas against the last extract
+        String serviceBaseUri = UploaderSettings.uploadServiceUri(UPLOAD_SERVICE_URI);
+        ChunkedUploadClient chunkedClient = null;
+        DeltaSyncClient deltaClient = null;
+        if (UploaderSettings.uploadProtocol().equals(UploaderSettings.UPLOAD_PROTOCOL_CHUNKED)) {
+            chunkedClient = new ChunkedUploadClient(transport, retryPolicy, serviceBaseUri,
+                    new File(UploaderSettings.stateDir(), "journal"), UploaderSettings.chunkSizeBytes());
+        } else if (UploaderSettings.uploadProtocol().equals(UploaderSettings.UPLOAD_PROTOCOL_DELTA)) {
+            deltaClient = new DeltaSyncClient(transport, serviceBaseUri, new File(UploaderSettings.stateDir(), "delta"));
+        }
+
+        // counters and phase timings for the run, reported at the end and optionally served for scraping
+        UploadMetrics metrics = new UploadMetrics(orgId);
+        if (metricsEndpoint != null) {
+            metricsEndpoint.addRun(metrics);
+        }
+
+        // what is already known about the files under rootDir from earlier runs, so unchanged ones are not re-checked
+        ScanIndex scanIndex = ScanIndex.load(new File(UploaderSettings.stateDir(), "scan-index"), new File(rootDir));
+
+        // batch, zip part and in-flight sizes, either fixed or tuned to the throughput of earlier uploads
+        AdaptiveUploadController uploadController = UploaderSettings.batchSizing().equals(UploaderSettings.BATCH_SIZING_ADAPTIVE)
+                ? AdaptiveUploadController.load(new File(UploaderSettings.stateDir(), "upload-tuning"), orgId, uploadThreads, ZIP_SPLIT_SIZE)
+                : AdaptiveUploadController.fixed(uploadThreads, ZIP_SPLIT_SIZE);
+
+        // optionally leave out files the upload service already holds, checked against a ledger of acknowledged hashes
+        DuplicateUploadFilter duplicateFilter = null;
+        if (UploaderSettings.dedupUploads()) {
+            try {
+                duplicateFilter = new DuplicateUploadFilter(transport, serviceBaseUri,
+                        UploadLedger.open(new File(UploaderSettings.stateDir(), "ledger"), orgId), scanIndex);
+            } catch (IOException ex) {
+                System.out.println("Unable to open the upload ledger, duplicate files will be sent => " + ex.getMessage());
+            }
+        }
+
+        UploadContext context = new UploadContext(mode, rootDir, hookKey, orgId, serviceBaseUri, transport, authSession, retryPolicy,
+                chunkedClient, deltaClient, metrics, scanIndex, uploadController, duplicateFilter);
+
+        boolean uploadAborted = false;
         try {
             List<File> inputFiles = new LinkedList<File>();
             List<File> inputFolders = new LinkedList<File>();
             switch (mode) {
                 case DEFAULT_MODE:
-                    // run health checks specific to org
-                    clientHealthChecks(hookKey, orgId, username, password, KEYCLOAK_SERVICE_URI);
-                    // check root director for presence of files and report name and size
-                    monitorRootDirectoryFiles (new File(rootDir), orgId, hookKey);
-                    // check and process the newly added practice units folder
-                    processNewlyAddedUnitsFolder(new File(rootDir), orgId, hookKey);
-
-                    System.out.println("\nChecking for data upload files......\n");
-                    postSlackAlert("OrganisationId: "+orgId+" - Checking for data upload files ("+rootDir+")......", hookKey, null);
-                    inputFolders = getUploadFileList(new File(rootDir),inputFiles, hookKey, orgId);
-                    break;
+                    runDefaultPass(context, uploadExecutor);
+                    return false;
+                case DAEMON_MODE:
+                    runDaemon(context, uploadExecutor, metricsEndpoint);
+                    return false;
                 case UI_MODE:
                     JFileChooser fileChooser = new JFileChooser();
                     fileChooser.setDialogTitle(APPLICATION_NAME + " - Choose the data files to upload...");
@@ -92,7 +252,7 @@ public class Main {
                         System.exit(0);
                     break;
                 case TEST_MODE:
-                    runTestMode (KEYCLOAK_SERVICE_URI, hookKey, username, password, orgId);
+                    runTestMode (authSession, hookKey, orgId);
                     System.exit(0);
                     break;
                 case DEBUG_FILE_MODE:
@@ -102,162 +262,587 @@ public class Main {
                     break;
                 default:
                     System.out.println("\nChecking for data upload files......\n");
-                    inputFolders = getUploadFileList(new File(rootDir),inputFiles, hookKey, orgId);
+                    inputFolders = scanUploadFiles(context, inputFiles);
                     break;
             }
 
-            // housekeeping of invalid data folders
-            ArrayList<File> invalidFolders = new ArrayList<File>();
+            uploadFolders(context, uploadExecutor, inputFiles, inputFolders);
+
+        } catch (UploadAbortedException e) {
+            System.out.println("Upload stopped for organisation => " + e.getMessage());
+            uploadAborted = true;
+        } catch (UploadDeferredException e) {
+            System.out.println("Upload deferred to the next run => " + e.getMessage());
+            postSlackAlert("Upload deferred to the next run for OrganisationId: "+orgId, hookKey, e.getMessage());
+            metrics.increment(UploadMetrics.UPLOADS_DEFERRED, 1);
+        } catch (Exception e) {
+            e.printStackTrace();
+            postSlackAlert("Exception occured during upload for OrganisationId: "+orgId, hookKey, e.getMessage());
+        } finally {
+            if (uploadExecutor != null) {
+                uploadExecutor.shutdownNow();
+            }
+            authSession.logout();
+            saveScanIndex(scanIndex);
+            saveUploadTuning(uploadController);
+            if (mode != DAEMON_MODE) {
+                writeRunReport(context);
+            }
+        }
+        return uploadAborted;
+    }
+
+    // one pass of the default mode: health checks, new units, then scan, validate and upload everything in rootDir
+    private static void runDefaultPass(UploadContext context, ExecutorService uploadExecutor) throws Exception
+    {
+        String orgId = context.getOrgId();
+        String hookKey = context.getHookKey();
+        String rootDir = context.getRootDir();
+
+        // run health checks specific to org
+        clientHealthChecks(hookKey, orgId, context.getAuthSession());
+        // check root director for presence of files and report name and size
+        monitorRootDirectoryFiles (new File(rootDir), orgId, hookKey);
+        // check and process the newly added practice units folder
+        processNewlyAddedUnitsFolder(new File(rootDir), orgId, hookKey, context.getScanIndex());
+
+        System.out.println("\nChecking for data upload files......\n");
+        postSlackAlert("OrganisationId: "+orgId+" - Checking for data upload files ("+rootDir+")......", hookKey, null);
+        if (UploaderSettings.pipelineDepth() > 0) {
+            uploadPipelinedFolders(context, uploadExecutor);
+            return;
+        }
+        List<File> inputFiles = new LinkedList<File>();
+        List<File> inputFolders = scanUploadFiles(context, inputFiles);
+
+        uploadFolders(context, uploadExecutor, inputFiles, inputFolders);
+    }
+
+    // stays resident, running a default mode pass at start up, then whenever a complete extract arrives in rootDir or
+    // the newly added units folder, and at least every rescan interval in case a change was missed.  The JVM, http
+    // connections and scan index are kept between passes; the Keycloak session is logged out after each one
+    private static void runDaemon(UploadContext firstPass, ExecutorService uploadExecutor, MetricsEndpoint metricsEndpoint) throws Exception
+    {
+        String orgId = firstPass.getOrgId();
+        String hookKey = firstPass.getHookKey();
+        long quietMillis = UploaderSettings.watchQuietSeconds() * 1000L;
+        long rescanMillis = UploaderSettings.daemonRescanMinutes() * 60000L;
+
+        System.out.println("Running as a daemon, watching " + firstPass.getRootDir() + " for new extracts\n");
+        ExtractFolderWatcher watcher = new ExtractFolderWatcher(new File(firstPass.getRootDir()), orgId);
+        try {
+            // each pass runs, validates and deletes uploaded files exactly as the default mode does
+            UploadContext context = defaultModePass(firstPass, firstPass.getMetrics());
+            while (true) {
+                boolean passFailed = false;
+                try {
+                    runDefaultPass(context, uploadExecutor);
+                } catch (UploadAbortedException e) {
+                    System.out.println("Upload stopped for organisation, retrying later => " + e.getMessage());
+                    passFailed = true;
+                } catch (UploadDeferredException e) {
+                    System.out.println("Upload deferred to the next pass => " + e.getMessage());
+                    postSlackAlert("Upload deferred to the next pass for OrganisationId: "+orgId, hookKey, e.getMessage());
+                    context.getMetrics().increment(UploadMetrics.UPLOADS_DEFERRED, 1);
+                    passFailed = true;
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    postSlackAlert("Exception occured during upload for OrganisationId: "+orgId, hookKey, e.getMessage());
+                    passFailed = true;
+                } finally {
+                    context.getAuthSession().logout();
+                    saveScanIndex(context.getScanIndex());
+                    saveUploadTuning(context.getUploadController());
+                    writeRunReport(context);
+                }
+
+                // give a failed upload time to recover rather than retrying it on the next file event
+                String trigger = awaitDaemonTrigger(watcher, quietMillis, rescanMillis, passFailed ? DAEMON_RETRY_DELAY_MILLIS : 0);
+                if (trigger == null) {
+                    System.out.println("Daemon stopped at " + new Date().toString());
+                    return;
+                }
+                System.out.println("\nStarting upload pass at " + new Date().toString() + " (" + trigger + ")\n");
+
+                UploadMetrics passMetrics = new UploadMetrics(orgId);
+                if (metricsEndpoint != null) {
+                    metricsEndpoint.removeRun(context.getMetrics());
+                    metricsEndpoint.addRun(passMetrics);
+                }
+                context = defaultModePass(context, passMetrics);
+            }
+        } finally {
+            watcher.close();
+        }
+    }
+
+    // asks a daemon mode uploader to stop, e.g. so the launcher can reload it from a patched jar.  A daemon waiting
+    // for the next extract stops at once; one part way through a pass stops when the pass has finished
+    public static void stopDaemon()
+    {
+        synchronized (DAEMON_STOP_LOCK) {
+            daemonStopRequested = true;
+            if (daemonWaitingThread != null)
+                daemonWaitingThread.interrupt();
+        }
+    }
+
+    // releases the threads, pools and shutdown hook the uploader keeps in static state, once it has finished and any
+    // daemon has stopped.  A launcher which reloads the uploader in process calls this before closing its class
+    // loader, which nothing then keeps reachable
+    public static void shutdown()
+    {
+        AlertDispatcher.shutdown(ALERT_FLUSH_TIMEOUT_MILLIS);
+        ZipValidationService.shutdown();
+    }
 
-            // at least one file found or selected for uploading
-            if (inputFiles.size() > 0) {
+    // the next upload trigger, after the delay, or null once the daemon has been asked to stop.  Only the wait is
+    // interruptible, so a stop never breaks off an upload
+    private static String awaitDaemonTrigger(ExtractFolderWatcher watcher, long quietMillis, long rescanMillis, long delayMillis)
+    {
+        synchronized (DAEMON_STOP_LOCK) {
+            if (daemonStopRequested)
+                return null;
+            daemonWaitingThread = Thread.currentThread();
+        }
+        try {
+            if (delayMillis > 0)
+                Thread.sleep(delayMillis);
+            return watcher.awaitUploadTrigger(quietMillis, rescanMillis);
+        } catch (InterruptedException ex) {
+            return null;
+        } finally {
+            synchronized (DAEMON_STOP_LOCK) {
+                daemonWaitingThread = null;
+                Thread.interrupted();
+            }
+        }
+    }
+
+    private static UploadContext defaultModePass(UploadContext context, UploadMetrics metrics)
+    {
+        return new UploadContext(DEFAULT_MODE, context.getRootDir(), context.getHookKey(), context.getOrgId(), context.getServiceBaseUri(),
+                context.getTransport(), context.getAuthSession(), context.getRetryPolicy(), context.getChunkedClient(), context.getDeltaClient(),
+                metrics, context.getScanIndex(), context.getUploadController(), context.getDuplicateFilter());
+    }
+
+    // uploads the valid folders found or selected, one folder after another.  Throws UploadAbortedException if a
+    // folder fails, so nothing newer is uploaded before it
+    private static void uploadFolders(UploadContext context, ExecutorService uploadExecutor, List<File> inputFiles, List<File> inputFolders) throws Exception
+    {
+        String orgId = context.getOrgId();
+        String hookKey = context.getHookKey();
+        UploadMetrics metrics = context.getMetrics();
 
-                int validFileBatches = 0;
+        // housekeeping of invalid data folders
+        ArrayList<File> invalidFolders = new ArrayList<File>();
 
-                // loop through each valid folder (batch)
-                for (File inputFolder : inputFolders)
-                {
-                    // check validity of upload files based on orgId and batch - default mode only
-                    if (mode == DEFAULT_MODE && !checkValidUploadFiles(orgId, inputFolder, hookKey)) {
+        // at least one file found or selected for uploading
+        if (inputFiles.size() > 0) {
 
+            int validFileBatches = 0;
+
+            // loop through each valid folder (batch)
+            for (File inputFolder : inputFolders)
+            {
+                // check validity of upload files based on orgId and batch - default mode only
+                if (context.getMode() == DEFAULT_MODE) {
+                    long validateTimer = metrics.startTimer();
+                    boolean validFolder = checkValidUploadFiles(orgId, inputFolder, hookKey, context.getScanIndex());
+                    metrics.stopTimer(UploadMetrics.PHASE_VALIDATE, validateTimer);
+
+                    if (!validFolder) {
+                        metrics.increment(UploadMetrics.FOLDERS_INVALID, 1);
                         invalidFolders.add(inputFolder);
                         continue;
                     }
+                }
+
+                validFileBatches++;
+
+                ArrayList<Integer> intArray = new ArrayList<Integer>();
+                extractFileBatchLocations(inputFiles, inputFolder.getPath(), intArray);
+                uploadFolder(context, uploadExecutor, inputFolder, inputFiles.subList(intArray.get(0), intArray.get(1)));
+            }
+
+            //if none of the input file batches are valid, set alert
+            if (validFileBatches == 0) {
+                postSlackAlert("OrganisationId: "+orgId+" - 0 valid data upload files found.", hookKey, null);
+            }
+
+            // perform clean up housekeeping of old, invalid archive folders
+            removeOldInvalidArchiveFolders(hookKey, orgId, invalidFolders);
+        }
+        else {
+            System.out.println("0 data upload files found in " + context.getRootDir() + "\n");
+            postSlackAlert("OrganisationId: "+orgId+" - 0 data upload files found.", hookKey, null);
+        }
+    }
 
-                    validFileBatches++;
-
-                    ArrayList<Integer> intArray = new ArrayList<Integer>();
-                    String folderName = inputFolder.getPath();
-                    System.out.println("Checking file batch locations in folder:" + folderName + "\n");
-                    postSlackAlert("OrganisationId: "+orgId+" - Checking file batch locations in folder: " + folderName, hookKey, null);
-                    extractFileBatchLocations(inputFiles, folderName, intArray);
-
-                    int start = intArray.get(0); int end = intArray.get(1);
-                    int from = start; int to = end; int fileCount = to - from;
-                    System.out.println("\n" + fileCount + " valid data upload files found in " + folderName + "\n");
-                    postSlackAlert("OrganisationId: "+orgId+" - "+fileCount + " valid data upload files found in " + folderName, hookKey, null);
-
-                    //set the retry limit to 5 https requests. if this drops to 0 for a file batch the process
-                    //will terminate for that organisation to prevent any further files being upload attempted
-                    int httpsRetriesAllowed = 5;
-
-                    //Loop through files in folder, uploading 5 files per time, per batch folder
-                    do
-                    {
-                        to = from + MAX_FILE_BATCH;
-                        if (to > end) to = end;
-
-                        // set service timeout limits
-                        RequestConfig requestConfig = RequestConfig
-                                .custom()
-                                .setConnectTimeout(HTTP_REQUEST_TIMEOUT_MILLIS)
-                                .setSocketTimeout(HTTP_REQUEST_TIMEOUT_MILLIS)
-                                .setConnectionRequestTimeout(HTTP_REQUEST_TIMEOUT_MILLIS)
-                                .build();
-
-                        HttpRequestRetryHandler retryHandler = new HttpRequestRetryHandler() {
-                            public boolean retryRequest(IOException exception, int executionCount, HttpContext context) {
-                                if (exception instanceof InterruptedIOException || exception instanceof UnknownHostException)
-                                    return false;
-                                if (exception instanceof ConnectException || exception instanceof SSLException)
-                                    return false;
-                                return !(exception instanceof SocketException);
-                            }
-                        };
-
-                        CloseableHttpClient httpclient = HttpClientBuilder
-                                .create()
-                                .setRetryHandler(retryHandler)
-                                .setDefaultRequestConfig(requestConfig).build();
-
-                        // create the upload http service URL with Keycloak authorisation header
-                        System.out.println("Authenticating.......\n");
-                        String uri = UPLOAD_SERVICE_URI.concat(orgId);
-                        HttpPost httppost = new HttpPost(uri);
-                        httppost.setHeader(getKeycloakToken(KEYCLOAK_SERVICE_URI, username, password));
-
-                        postSlackAlert("OrganisationId: "+orgId+" - Authenticated OK", hookKey, null);
-
-                        // add each batched file into the upload
-                        MultipartEntityBuilder entityBuilder = MultipartEntityBuilder.create();
-                        for (File inputFile : inputFiles.subList(from, to)) {
-                            String uploadPathName = parseUploadFilePath(rootDir, inputFile);
-                            entityBuilder.addBinaryBody("file", inputFile, ContentType.APPLICATION_OCTET_STREAM, uploadPathName);
-                            System.out.println(inputFile + " added to transfer");
-                        }
-
-                        postSlackAlert("OrganisationId: "+orgId+" - Adding files to transfer", hookKey, null);
-
-                        httppost.setEntity(entityBuilder.build());
-
-                        // execute the upload request
-                        System.out.println("\nTransfer started at " + new Date().toString() + "\n");
-                        postSlackAlert("OrganisationId: "+orgId+" - Transfer started at " + new Date().toString(), hookKey, null);
-
-                        HttpResponse response = httpclient.execute(httppost);
-
-                        int statusCode = response.getStatusLine().getStatusCode();
-                        HttpEntity responseEntity = response.getEntity();
-                        String responseString = EntityUtils.toString(responseEntity, "UTF-8");
-
-                        // logout the Keycloak token session when finished
-                        KeycloakClient.instance().logoutSession();
-
-                        //System.out.println("[" + statusCode + "] " + responseString);
-
-                        // depending on the https status, delete source files after successful upload of this batch
-                        // a status of 200 means success. anything else, either retry or exit the process
-                        String fileDetails = " - " + inputFiles.subList(from, to).toString();
-                        if (statusCode == 200) {
-
-                            //only delete source files in default mode
-                            if (mode == DEFAULT_MODE) {
-                                deleteSourceFiles(orgId, inputFiles.subList(from, to));
-                            }
-                            System.out.println("\nTransfer completed successfully at " + new Date().toString() + "\n");
-                            postSlackAlert("Transfer successful for organisationId="+orgId+" : ["+statusCode+"] "+responseString + fileDetails, hookKey, null);
-                        } else {
-
-                            //retry from the same point (from) here if the https transfer failed and retry limit not reached
-                            if (httpsRetriesAllowed > 0) {
-
-                                //use up a retry attempt and continue / retry with current batch
-                                httpsRetriesAllowed--;
-                                System.out.println("\nTransfer failed at " + new Date().toString() + ". Retrying batch... \n");
-                                postSlackAlert("Transfer failed for organisationId="+orgId+" : ["+statusCode+"] "+responseString + fileDetails + ". Retrying batch...", hookKey, null);
-                                continue;
-                            } else {
-
-                                System.out.println("\nTransfer failed at " + new Date().toString() + ". Retry limit reached. Exiting process for organisation \n");
-                                postSlackAlert("Transfer failed for organisationId="+orgId+" : ["+statusCode+"] "+responseString + fileDetails + ". Retry limit reached. Exiting process for organisation", hookKey, null);
-                                System.exit(99);
-                                break;
-                            }
-                        }
-
-                        //successful batch upload so reset the retry limit back to 5 for the next batch of files
-                        httpsRetriesAllowed = 5;
-
-                        //then move the from pointer to the next set of files in the overall batch list
-                        from = to;
-                    }while (from < end);
+    // uploads the folders of rootDir as they come out of the upload pipeline, so later folders are split and
+    // validated while earlier ones upload.  Folders are uploaded one after another in the same order as a staged
+    // scan, and the pipeline is stopped if one fails
+    private static void uploadPipelinedFolders(UploadContext context, ExecutorService uploadExecutor) throws Exception
+    {
+        String orgId = context.getOrgId();
+        String hookKey = context.getHookKey();
+        UploadMetrics metrics = context.getMetrics();
+
+        UploadPipeline pipeline = UploadPipeline.start(context, UploaderSettings.pipelineDepth());
+        if (!pipeline.hasUploadFiles()) {
+            pipeline.close();
+            System.out.println("0 data upload files found in " + context.getRootDir() + "\n");
+            postSlackAlert("OrganisationId: "+orgId+" - 0 data upload files found.", hookKey, null);
+            return;
+        }
+
+        // housekeeping of invalid data folders
+        ArrayList<File> invalidFolders = new ArrayList<File>();
+        int validFileBatches = 0;
+        try {
+            UploadPipeline.PreparedFolder preparedFolder;
+            while ((preparedFolder = pipeline.next()) != null) {
+                if (!preparedFolder.isValid()) {
+                    metrics.increment(UploadMetrics.FOLDERS_INVALID, 1);
+                    invalidFolders.add(preparedFolder.getFolder());
+                    continue;
                 }
 
-                //if none of the input file batches are valid, set alert
-                if (validFileBatches == 0) {
-                    postSlackAlert("OrganisationId: "+orgId+" - 0 valid data upload files found.", hookKey, null);
+                validFileBatches++;
+                uploadFolder(context, uploadExecutor, preparedFolder.getFolder(), preparedFolder.getFiles());
+            }
+        } finally {
+            pipeline.close();
+        }
+
+        //if none of the input file batches are valid, set alert
+        if (validFileBatches == 0) {
+            postSlackAlert("OrganisationId: "+orgId+" - 0 valid data upload files found.", hookKey, null);
+        }
+
+        // perform clean up housekeeping of old, invalid archive folders
+        removeOldInvalidArchiveFolders(hookKey, orgId, invalidFolders);
+    }
+
+    // uploads the files of one valid folder.  Throws UploadAbortedException if any batch fails, or
+    // UploadDeferredException if the service is failing
+    private static void uploadFolder(UploadContext context, ExecutorService uploadExecutor, File inputFolder, List<File> folderFiles) throws Exception
+    {
+        String orgId = context.getOrgId();
+        String hookKey = context.getHookKey();
+
+        String folderName = inputFolder.getPath();
+        System.out.println("Checking file batch locations in folder:" + folderName + "\n");
+        postSlackAlert("OrganisationId: "+orgId+" - Checking file batch locations in folder: " + folderName, hookKey, null);
+
+        int fileCount = folderFiles.size();
+        System.out.println("\n" + fileCount + " valid data upload files found in " + folderName + "\n");
+        postSlackAlert("OrganisationId: "+orgId+" - "+fileCount + " valid data upload files found in " + folderName, hookKey, null);
+
+        //upload the folder's files in batches, either one after another or concurrently. every batch
+        //in the folder must succeed before the next folder is started, otherwise the upload stops
+        //for that organisation to prevent any newer files being uploaded out of sequence
+        boolean folderUploaded = uploadFileBatches(uploadExecutor, context, folderFiles);
+
+        if (!folderUploaded) {
+            throw new UploadAbortedException("Upload of folder " + folderName + " failed");
+        }
+        context.getMetrics().increment(UploadMetrics.FOLDERS_UPLOADED, 1);
+
+        // the chunk journal for the folder is no longer needed once all of it is uploaded
+        if (context.getChunkedClient() != null) {
+            context.getChunkedClient().folderCompleted(inputFolder);
+        }
+    }
+
+    // uploads the folder's files in order, in batches sized by the upload controller.  With an upload pool, batches
+    // are started while fewer than the controller's in-flight limit are running; without, one after another
+    private static boolean uploadFileBatches(ExecutorService uploadExecutor, final UploadContext context, List<File> folderFiles) throws Exception
+    {
+        AdaptiveUploadController uploadController = context.getUploadController();
+        if (uploadExecutor == null) {
+            int from = 0;
+            while (from < folderFiles.size()) {
+                int to = uploadController.nextBatchEnd(folderFiles, from);
+                if (!uploadFileBatch(context, folderFiles.subList(from, to)))
+                    return false;
+                from = to;
+            }
+            return true;
+        }
+
+        CompletionService<Boolean> batchUploads = new ExecutorCompletionService<Boolean>(uploadExecutor);
+        int running = 0;
+        int from = 0;
+        boolean folderUploaded = true;
+        Exception batchException = null;
+        while (true) {
+            // once any batch in this folder has failed, do not start any more of them
+            if (folderUploaded && batchException == null && from < folderFiles.size() && running < uploadController.inFlightLimit()) {
+                final List<File> fileBatch = folderFiles.subList(from, uploadController.nextBatchEnd(folderFiles, from));
+                from += fileBatch.size();
+                batchUploads.submit(new Callable<Boolean>() {
+                    public Boolean call() throws Exception {
+                        return uploadFileBatch(context, fileBatch);
+                    }
+                });
+                running++;
+                continue;
+            }
+
+            // wait for every in-flight batch of the folder to finish, so nothing from a later folder can overtake it
+            if (running == 0)
+                break;
+            try {
+                if (!batchUploads.take().get())
+                    folderUploaded = false;
+            } catch (ExecutionException ex) {
+                if (batchException == null)
+                    batchException = (ex.getCause() instanceof Exception) ? (Exception) ex.getCause() : ex;
+            }
+            running--;
+        }
+
+        if (batchException != null)
+            throw batchException;
+
+        return folderUploaded;
+    }
+
+    // uploads a single batch of files in one multipart request, retried as the retry policy allows.  Returns false
+    // if it could not be sent, and throws UploadDeferredException if the upload service or Keycloak keeps failing
+    private static boolean uploadFileBatch(UploadContext context, List<File> fileBatch) throws IOException
+    {
+        String orgId = context.getOrgId();
+        String hookKey = context.getHookKey();
+        UploadMetrics metrics = context.getMetrics();
+        RetryPolicy retryPolicy = context.getRetryPolicy();
+        RetryPolicy.CircuitBreaker uploadCircuit = retryPolicy.circuit(context.getServiceBaseUri());
+        RetryPolicy.CircuitBreaker authCircuit = retryPolicy.circuit(KEYCLOAK_SERVICE_URI);
+
+        long batchBytes = 0;
+        for (File file : fileBatch)
+            batchBytes += file.length();
+
+        //count the retries of the batch. once the retry policy allows no more, the process will
+        //terminate for that organisation to prevent any further files being upload attempted
+        RetryPolicy.RetryCounter retries = retryPolicy.retryCounter();
+
+        while (true)
+        {
+            // while either service is being held off after failing, the rest of the upload waits for the next run
+            if (!authCircuit.allowCall() || !uploadCircuit.allowCall())
+                throw new UploadDeferredException("Calls to " + (authCircuit.isOpen() ? authCircuit : uploadCircuit).getEndpoint()
+                        + " are failing, batch not sent - " + fileBatch.toString());
+
+            // create the upload http service URL with the Keycloak authorisation header of the run session
+            System.out.println("Authenticating.......\n");
+            String uri = context.getServiceBaseUri().concat(POST_FILE_OPERATION).concat(orgId);
+            long authTimer = metrics.startTimer();
+            Header authHeader = null;
+            boolean authenticated = false;
+            HttpUploadTransport.UploadResponse response = null;
+            try {
+                authHeader = context.getAuthSession().getAuthorizationHeader();
+                authenticated = true;
+                authCircuit.succeeded();
+            } catch (IOException ex) {
+                if (!retryPolicy.retriesExceptions())
+                    throw ex;
+                response = retryPolicy.failedRequest(ex);
+                authCircuit.failed(RetryPolicy.TRANSIENT);
+            }
+            metrics.stopTimer(UploadMetrics.PHASE_AUTH, authTimer);
+
+            List<File> sendFiles = fileBatch;
+            long uploadMillis = 0;
+            if (authenticated) {
+                postSlackAlert("OrganisationId: "+orgId+" - Authenticated OK", hookKey, null);
+                postSlackAlert("OrganisationId: "+orgId+" - Adding files to transfer", hookKey, null);
+
+                // execute the upload request
+                System.out.println("\nTransfer started at " + new Date().toString() + "\n");
+                postSlackAlert("OrganisationId: "+orgId+" - Transfer started at " + new Date().toString(), hookKey, null);
+
+                long uploadTimer = metrics.startTimer();
+
+                // files the service already holds are left out, and if that is all of them nothing is posted
+                try {
+                    if (context.getDuplicateFilter() != null)
+                        sendFiles = context.getDuplicateFilter().filesToSend(orgId, authHeader, fileBatch, context.getRootDir(), retries.retrying());
+
+                    retryPolicy.requestMade();
+                    if (sendFiles.isEmpty())
+                        response = new HttpUploadTransport.UploadResponse(200, "All files already held by the upload service");
+                    else if (context.getChunkedClient() != null)
+                        response = context.getChunkedClient().postFiles(orgId, authHeader, sendFiles, context.getRootDir());
+                    else if (context.getDeltaClient() != null)
+                        response = context.getDeltaClient().postFiles(orgId, authHeader, sendFiles, context.getRootDir(), metrics);
+                    else
+                        response = context.getTransport().postFiles(uri, authHeader, sendFiles, context.getRootDir());
+                } catch (IOException ex) {
+                    if (!retryPolicy.retriesExceptions())
+                        throw ex;
+                    response = retryPolicy.failedRequest(ex);
+                }
+                uploadMillis = (System.nanoTime() - uploadTimer) / 1000000;
+                metrics.stopTimer(UploadMetrics.PHASE_UPLOAD, uploadTimer);
+            }
+
+            int statusCode = response.getStatusCode();
+            String responseString = response.getBody();
+
+            //System.out.println("[" + statusCode + "] " + responseString);
+
+            // depending on the https status, delete source files after successful upload of this batch
+            // a status of 200 means success. anything else, either retry or exit the process
+            String fileDetails = " - " + fileBatch.toString();
+            if (statusCode == 200) {
+                uploadCircuit.succeeded();
+                long sentBytes = 0;
+                for (File file : sendFiles)
+                    sentBytes += file.length();
+                if (!sendFiles.isEmpty())
+                    metrics.batchUploaded(sendFiles.size(), sentBytes, uploadMillis);
+                metrics.increment(UploadMetrics.FILES_DEDUPLICATED, fileBatch.size() - sendFiles.size());
+                metrics.increment(UploadMetrics.BYTES_DEDUPLICATED, batchBytes - sentBytes);
+                metrics.filesDigested(response.getDigests());
+                context.getUploadController().batchUploaded(sentBytes, uploadMillis);
+                if (context.getDuplicateFilter() != null)
+                    context.getDuplicateFilter().acknowledged(sendFiles, context.getRootDir());
+
+                //only delete source files in default mode
+                if (context.getMode() == DEFAULT_MODE) {
+                    long deleteTimer = metrics.startTimer();
+                    deleteSourceFiles(orgId, fileBatch);
+                    metrics.stopTimer(UploadMetrics.PHASE_DELETE, deleteTimer);
                 }
+                System.out.println("\nTransfer completed successfully at " + new Date().toString() + "\n");
+                postSlackAlert("Transfer successful for organisationId="+orgId+" : ["+statusCode+"] "+responseString + fileDetails, hookKey, null);
+                return true;
+            }
 
-                // perform clean up housekeeping of old, invalid archive folders
-                removeOldInvalidArchiveFolders(hookKey, orgId, invalidFolders);
+            int failure = retryPolicy.classify(statusCode);
+            if (authenticated)
+                uploadCircuit.failed(failure);
+            // a refused token is dropped, so the retry authenticates again
+            if (failure == RetryPolicy.AUTH)
+                context.getAuthSession().invalidate();
+            context.getUploadController().batchFailed();
+
+            //retry the same batch here if the https transfer failed and the retry policy allows it, unless
+            //the failures have opened a circuit, in which case the rest of the upload is deferred below
+            boolean circuitOpen = authCircuit.isOpen() || uploadCircuit.isOpen();
+            long retryDelayMillis = circuitOpen ? -1 : retries.retryDelayMillis(failure, response);
+            if (retryDelayMillis >= 0) {
+
+                //use up a retry attempt and continue / retry with current batch
+                metrics.increment(UploadMetrics.BATCH_RETRIES, 1);
+                String retrying = (retryDelayMillis == 0) ? "Retrying batch..." : "Retrying batch in " + (retryDelayMillis / 1000) + " seconds...";
+                System.out.println("\nTransfer failed at " + new Date().toString() + ". " + retrying + " \n");
+                postSlackAlert("Transfer failed for organisationId="+orgId+" : ["+statusCode+"] "+responseString + fileDetails + ". " + retrying, hookKey, null);
+                try {
+                    Thread.sleep(retryDelayMillis);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting to retry batch");
+                }
+                continue;
             }
-            else {
-                System.out.println("0 data upload files found in " + rootDir + "\n");
-                postSlackAlert("OrganisationId: "+orgId+" - 0 data upload files found.", hookKey, null);
+
+            metrics.increment(UploadMetrics.BATCHES_FAILED, 1);
+
+            // nothing is wrong with the batch if the service is failing for every batch, so it is sent again next run
+            if (circuitOpen) {
+                throw new UploadDeferredException("Calls to " + (authCircuit.isOpen() ? authCircuit : uploadCircuit).getEndpoint()
+                        + " are failing, batch not sent: ["+statusCode+"] "+responseString + fileDetails);
             }
-        } catch (Exception e) {
-            e.printStackTrace();
-            postSlackAlert("Exception occured during upload for OrganisationId: "+orgId, hookKey, e.getMessage());
+
+            System.out.println("\nTransfer failed at " + new Date().toString() + ". Retry limit reached. Exiting process for organisation \n");
+            postSlackAlert("Transfer failed for organisationId="+orgId+" : ["+statusCode+"] "+responseString + fileDetails + ". Retry limit reached. Exiting process for organisation", hookKey, null);
+            return false;
+        }
+    }
+
+    // lists the folders and files to upload, splitting any large zips on the way and hashing the files when duplicates
+    // are filtered out. Split and hash time is also counted in the scan
+    private static List<File> scanUploadFiles(UploadContext context, List<File> inputFiles)
+    {
+        UploadMetrics metrics = context.getMetrics();
+        long scanTimer = metrics.startTimer();
+        List<File> inputFolders = getUploadFileList(new File(context.getRootDir()), inputFiles, context.getHookKey(), context.getOrgId(),
+                metrics, context.getScanIndex(), context.zipSplitSize());
+        if (context.getDuplicateFilter() != null)
+            context.getDuplicateFilter().prepare(inputFiles);
+        metrics.stopTimer(UploadMetrics.PHASE_SCAN, scanTimer);
+        return inputFolders;
+    }
+
+    // one policy for the run, shared by every organisation. tppdds.retryPolicy=backoff waits between retries, from
+    // tppdds.retryBaseSeconds up to tppdds.retryMaxSeconds, and immediate (the default) retries at once as before
+    private static RetryPolicy createRetryPolicy()
+    {
+        if (UploaderSettings.retryPolicy().equals(UploaderSettings.RETRY_POLICY_BACKOFF))
+            return RetryPolicy.backoff(UploaderSettings.retryBaseSeconds() * 1000L, UploaderSettings.retryMaxSeconds() * 1000L);
+        return RetryPolicy.immediate();
+    }
+
+    // the metrics endpoint is optional, so the run carries on without it if the port cannot be bound
+    private static MetricsEndpoint startMetricsEndpoint()
+    {
+        int metricsPort = UploaderSettings.metricsPort();
+        if (metricsPort == 0)
+            return null;
+
+        try {
+            MetricsEndpoint endpoint = MetricsEndpoint.start(metricsPort);
+            System.out.println("Metrics available at http://localhost:" + metricsPort + "/metrics\n");
+            return endpoint;
+        } catch (IOException ex) {
+            System.out.println("Unable to start the metrics endpoint => " + ex.getMessage());
+            return null;
+        }
+    }
+
+    // writes the run report into the Archived folder, beside the archived extract folders, as files only so it is
+    // never picked up for upload
+    private static void writeRunReport(UploadContext context)
+    {
+        UploadMetrics metrics = context.getMetrics();
+        metrics.runFinished();
+        try {
+            metrics.writeReport(new File(context.getRootDir(), "Archived"));
+            System.out.println(String.format("Run report: %d files, %d bytes uploaded at %.2f MB/s",
+                    metrics.getCounter(UploadMetrics.FILES_UPLOADED), metrics.getCounter(UploadMetrics.BYTES_UPLOADED), metrics.throughputMBps()));
+        } catch (IOException ex) {
+            System.out.println("Unable to write the run report => " + ex.getMessage());
+        }
+    }
+
+    private static void saveScanIndex(ScanIndex scanIndex)
+    {
+        try {
+            scanIndex.save();
+        } catch (IOException ex) {
+            System.out.println("Unable to save the scan index => " + ex.getMessage());
+        }
+    }
+
+    private static void saveUploadTuning(AdaptiveUploadController uploadController)
+    {
+        try {
+            uploadController.save();
+        } catch (IOException ex) {
+            System.out.println("Unable to save the upload tuning => " + ex.getMessage());
+        }
+    }
+
+    private static void closeTransport(HttpUploadTransport transport)
+    {
+        try {
+            transport.close();
+        } catch (IOException ex) {
+            System.out.println("Unable to close the upload transport => " + ex.getMessage());
         }
     }
 }
@@ -0,0 +1,89 @@
+package org.endeavourhealth.tppddsuploader;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// optional local http endpoint exposing the metrics of the runs in this process at /metrics, in the prometheus
+// text format, so a local agent can scrape them. Only bound to localhost
+class MetricsEndpoint {
+
+    private final HttpServer server;
+    private final List<UploadMetrics> runs = new CopyOnWriteArrayList<UploadMetrics>();
+
+    private MetricsEndpoint(HttpServer server)
+    {
+        this.server = server;
+    }
+
+    static MetricsEndpoint start(int port) throws IOException
+    {
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        final MetricsEndpoint endpoint = new MetricsEndpoint(server);
+        server.createContext("/metrics", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                endpoint.handle(exchange);
+            }
+        });
+        server.start();
+        return endpoint;
+    }
+
+    void addRun(UploadMetrics metrics)
+    {
+        runs.add(metrics);
+    }
+
+    void removeRun(UploadMetrics metrics)
+    {
+        runs.remove(metrics);
+    }
+
+    void stop()
+    {
+        server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException
+    {
+        // each run writes every metric family with its own organisation label. The samples of a family must be
+        // together under a single TYPE line, so the runs are merged family by family
+        Map<String, StringBuilder> families = new LinkedHashMap<String, StringBuilder>();
+        for (UploadMetrics metrics : runs) {
+            StringBuilder family = null;
+            for (String line : metrics.toPrometheus().split("\n")) {
+                if (line.startsWith("# TYPE ")) {
+                    String name = line.split(" ")[2];
+                    family = families.get(name);
+                    if (family == null) {
+                        family = new StringBuilder(line).append('\n');
+                        families.put(name, family);
+                    }
+                } else if (family != null && !line.isEmpty()) {
+                    family.append(line).append('\n');
+                }
+            }
+        }
+        StringBuilder text = new StringBuilder();
+        for (StringBuilder family : families.values())
+            text.append(family);
+
+        byte[] bytes = text.toString().getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, bytes.length == 0 ? -1 : bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package org.endeavourhealth.tppddsuploader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+
+// the organisations uploaded by one multi-organisation run, read from a properties file, e.g.
+//
+//   organisations=YDDH3_09A,YDDH3_08C
+//   hookKey=...
+//   username=...
+//   password=...
+//   maxConcurrentOrgs=2
+//   maxConnections=8
+//   maxUploadKbps=08:00-18:30=1024,*=0
+//   YDDH3_09A.rootDir=D:\\TPP\\YDDH3_09A\\
+//   YDDH3_08C.rootDir=D:\\TPP\\YDDH3_08C\\
+//
+// hookKey, username and password can be given per organisation, e.g. YDDH3_08C.username=..., to override the shared values.
+// maxUploadKbps is a single limit or a time of day profile as for tppdds.uploadRateProfile, which it defaults to
+class MultiOrgConfig {
+
+    private static final String ORGANISATIONS = "organisations";
+    private static final String ROOT_DIR = "rootDir";
+    private static final String HOOK_KEY = "hookKey";
+    private static final String USERNAME = "username";
+    private static final String PASSWORD = "password";
+    private static final String MAX_CONCURRENT_ORGS = "maxConcurrentOrgs";
+    private static final String MAX_CONNECTIONS = "maxConnections";
+    private static final String MAX_UPLOAD_KBPS = "maxUploadKbps";
+
+    private final List<OrgConfig> organisations;
+    private final int maxConcurrentOrgs;
+    private final int maxConnections;
+    private final RateSchedule uploadRate;
+
+    private MultiOrgConfig(List<OrgConfig> organisations, int maxConcurrentOrgs, int maxConnections, RateSchedule uploadRate)
+    {
+        this.organisations = organisations;
+        this.maxConcurrentOrgs = maxConcurrentOrgs;
+        this.maxConnections = maxConnections;
+        this.uploadRate = uploadRate;
+    }
+
+    static MultiOrgConfig load(File configFile) throws IOException
+    {
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(configFile);
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+
+        List<OrgConfig> organisations = new ArrayList<OrgConfig>();
+        Set<String> rootDirs = new HashSet<String>();
+        for (String orgId : properties.getProperty(ORGANISATIONS, "").split(",")) {
+            orgId = orgId.trim();
+            if (orgId.isEmpty())
+                continue;
+
+            String rootDir = orgProperty(properties, orgId, ROOT_DIR);
+            if (rootDir == null)
+                throw new IOException("No " + orgId + "." + ROOT_DIR + " in " + configFile.getPath());
+
+            // two organisations uploading the same folders would upload and delete each other's files
+            if (!rootDirs.add(new File(rootDir).getAbsolutePath().toLowerCase()))
+                throw new IOException("Root directory " + rootDir + " is given for more than one organisation in " + configFile.getPath());
+
+            organisations.add(new OrgConfig(orgId, rootDir, orgProperty(properties, orgId, HOOK_KEY),
+                    orgProperty(properties, orgId, USERNAME), orgProperty(properties, orgId, PASSWORD)));
+        }
+        if (organisations.isEmpty())
+            throw new IOException("No " + ORGANISATIONS + " listed in " + configFile.getPath());
+
+        int maxConcurrentOrgs = Math.max(1, intProperty(properties, MAX_CONCURRENT_ORGS, 2));
+        int maxConnections = Math.max(2, intProperty(properties, MAX_CONNECTIONS, maxConcurrentOrgs * Math.max(UploaderSettings.uploadThreads(), 2)));
+        RateSchedule uploadRate;
+        String maxUploadKbps = properties.getProperty(MAX_UPLOAD_KBPS);
+        if (maxUploadKbps == null || maxUploadKbps.trim().isEmpty()) {
+            uploadRate = UploaderSettings.uploadRateProfile();
+        } else {
+            try {
+                uploadRate = RateSchedule.parse(maxUploadKbps);
+            } catch (IllegalArgumentException ex) {
+                throw new IOException("Invalid " + MAX_UPLOAD_KBPS + " in " + configFile.getPath() + " => " + ex.getMessage());
+            }
+        }
+        return new MultiOrgConfig(organisations, maxConcurrentOrgs, maxConnections, uploadRate);
+    }
+
+    List<OrgConfig> getOrganisations()
+    {
+        return organisations;
+    }
+
+    // how many organisations are uploaded at the same time
+    int getMaxConcurrentOrgs()
+    {
+        return maxConcurrentOrgs;
+    }
+
+    // the size of the connection pool shared by every organisation, i.e. the most requests in flight at once
+    int getMaxConnections()
+    {
+        return maxConnections;
+    }
+
+    // the upload bandwidth shared by every organisation, by time of day
+    RateSchedule getUploadRate()
+    {
+        return uploadRate;
+    }
+
+    private static String orgProperty(Properties properties, String orgId, String name)
+    {
+        String value = properties.getProperty(orgId + "." + name);
+        if (value == null)
+            value = properties.getProperty(name);
+        return (value == null) ? null : value.trim();
+    }
+
+    private static int intProperty(Properties properties, String name, int defaultValue)
+    {
+        String value = properties.getProperty(name);
+        if (value == null || value.trim().isEmpty())
+            return defaultValue;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException ex) {
+            System.out.println(String.format("Invalid multi-organisation setting %s=%s, using default of %d", name, value, defaultValue));
+            return defaultValue;
+        }
+    }
+
+    static class OrgConfig {
+        private final String orgId;
+        private final String rootDir;
+        private final String hookKey;
+        private final String username;
+        private final String password;
+
+        OrgConfig(String orgId, String rootDir, String hookKey, String username, String password) {
+            this.orgId = orgId;
+            this.rootDir = rootDir;
+            this.hookKey = (hookKey == null) ? "" : hookKey;
+            this.username = (username == null) ? "" : username;
+            this.password = (password == null) ? "" : password;
+        }
+
+        String getOrgId() {
+            return orgId;
+        }
+
+        String getRootDir() {
+            return rootDir;
+        }
+
+        String getHookKey() {
+            return hookKey;
+        }
+
+        String getUsername() {
+            return username;
+        }
+
+        String getPassword() {
+            return password;
+        }
+    }
+}
@@ -0,0 +1,573 @@
+package org.endeavourhealth.tppddsuploader;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.entity.mime.content.AbstractContentBody;
+import org.apache.http.entity.mime.content.FileBody;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.FileContentEncoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.entity.HttpAsyncContentProducer;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.nio.protocol.BasicAsyncRequestProducer;
+import org.apache.http.nio.protocol.HttpAsyncRequestProducer;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import static org.endeavourhealth.tppddsuploader.HttpUploadTransport.UploadResponse;
+
+// the requests of an HttpUploadTransport sent over non-blocking connections, all driven by one I/O reactor thread,
+// so the upload threads only wait on their responses rather than each writing its own request.  The file parts of a
+// multipart post are not copied through the heap: httpmime writes the multipart framing as usual with the files left
+// out, and each file is sent from its FileChannel in turn, with FileChannel.transferTo when the post has a known
+// length.  Response bodies are read into a buffer of at most MAX_RESPONSE_BYTES.  The reactor is never held up by
+// the bandwidth limit: a request which has used up the budget has its output suspended, and a timer asks for it again
+// once there is budget to send more
+class NioUploadClient implements Closeable {
+
+    private static final int IO_THREADS = 1;
+    private static final int BUFFER_SIZE = 65536;
+    private static final int MAX_RESPONSE_BYTES = 8 * 1024 * 1024;
+    private static final long IDLE_CONNECTION_EVICT_SECONDS = 60;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final PoolingNHttpClientConnectionManager connectionManager;
+    private final CloseableHttpAsyncClient httpClient;
+    private final BandwidthLimiter bandwidthLimiter;
+    private final ScheduledExecutorService bandwidthTimer;
+
+    NioUploadClient(int maxConnections, int timeoutMillis, ConnectionKeepAliveStrategy keepAliveStrategy,
+                    BandwidthLimiter bandwidthLimiter) throws IOException
+    {
+        this.bandwidthLimiter = bandwidthLimiter;
+        this.bandwidthTimer = (bandwidthLimiter == null) ? null : Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "upload-bandwidth-timer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        IOReactorConfig reactorConfig = IOReactorConfig
+                .custom()
+                .setIoThreadCount(IO_THREADS)
+                .setConnectTimeout(timeoutMillis)
+                .setSoTimeout(timeoutMillis)
+                .build();
+        connectionManager = new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(reactorConfig));
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnections);
+
+        RequestConfig requestConfig = RequestConfig
+                .custom()
+                .setConnectTimeout(timeoutMillis)
+                .setSocketTimeout(timeoutMillis)
+                .setConnectionRequestTimeout(timeoutMillis)
+                .build();
+
+        httpClient = HttpAsyncClients
+                .custom()
+                .setConnectionManager(connectionManager)
+                .setKeepAliveStrategy(keepAliveStrategy)
+                .setDefaultRequestConfig(requestConfig)
+                .build();
+        httpClient.start();
+    }
+
+    // a multipart body which is left out of the framing written by httpmime, and sent by the reactor in its place
+    static AbstractContentBody spliced(AbstractContentBody body)
+    {
+        return new SplicedBody(body);
+    }
+
+    // sends the request and waits for the response.  A body which is not multipart is read from its entity's content
+    // stream as the connection takes it
+    UploadResponse execute(HttpUriRequest request) throws IOException
+    {
+        connectionManager.closeExpiredConnections();
+        connectionManager.closeIdleConnections(IDLE_CONNECTION_EVICT_SECONDS, TimeUnit.SECONDS);
+
+        HttpHost target = URIUtils.extractHost(request.getURI());
+        HttpAsyncRequestProducer producer;
+        HttpEntity entity = (request instanceof HttpEntityEnclosingRequest) ? ((HttpEntityEnclosingRequest) request).getEntity() : null;
+        if (entity != null) {
+            HttpEntityEnclosingRequest entityRequest = (HttpEntityEnclosingRequest) request;
+            final RequestContent content = new RequestContent(entity);
+
+            // the headers are worked out from the entity, so it gives the length of the body actually sent
+            entityRequest.setEntity(new HttpEntityWrapper(entity) {
+                public long getContentLength() {
+                    return content.length;
+                }
+                public boolean isChunked() {
+                    return content.length < 0;
+                }
+            });
+            producer = new BasicAsyncRequestProducer(target, entityRequest, content) {};
+        } else {
+            producer = new BasicAsyncRequestProducer(target, request);
+        }
+
+        Future<UploadResponse> response = httpClient.execute(producer, new ResponseConsumer(), null);
+        try {
+            return response.get();
+        } catch (InterruptedException ex) {
+            response.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the upload service");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException)
+                throw (IOException) ex.getCause();
+            throw new IOException(String.valueOf(ex.getCause()), ex.getCause());
+        }
+    }
+
+    public void close() throws IOException
+    {
+        httpClient.close();
+        connectionManager.shutdown();
+        if (bandwidthTimer != null)
+            bandwidthTimer.shutdownNow();
+    }
+
+    // whether the shared bandwidth budget is used up, so nothing more is written until it is paid back
+    private boolean overBudget()
+    {
+        return bandwidthLimiter != null && bandwidthLimiter.waitNanos() > 0;
+    }
+
+    // takes the bytes written from the bandwidth budget, without waiting on the reactor thread
+    private void written(long bytes)
+    {
+        if (bandwidthLimiter != null && bytes > 0)
+            bandwidthLimiter.consume(bytes);
+    }
+
+    // writes what the connection takes, or nothing while over the bandwidth budget
+    private int write(ContentEncoder encoder, ByteBuffer data) throws IOException
+    {
+        if (overBudget())
+            return 0;
+        int count = encoder.write(data);
+        written(count);
+        return count;
+    }
+
+    // suspends the request's output while over the bandwidth budget, rather than have the reactor call back for more
+    // straight away, and asks for output again once there is budget to send
+    private void holdForBandwidth(final IOControl ioControl)
+    {
+        long waitNanos = (bandwidthLimiter == null) ? 0 : bandwidthLimiter.waitNanos();
+        if (waitNanos <= 0)
+            return;
+
+        ioControl.suspendOutput();
+        bandwidthTimer.schedule(new Runnable() {
+            public void run() {
+                ioControl.requestOutput();
+            }
+        }, waitNanos, TimeUnit.NANOSECONDS);
+    }
+
+    // the body of a request, as the segments it is written in.  It can be produced again from the start if the
+    // request is retried
+    private class RequestContent implements HttpAsyncContentProducer {
+        private final List<Segment> segments;
+        private final long length;
+        private int current = 0;
+
+        RequestContent(HttpEntity entity) throws IOException {
+            if (entity.getContentType() != null && entity.getContentType().getValue().startsWith("multipart/")) {
+                FramingOutputStream framing = new FramingOutputStream();
+                entity.writeTo(framing);
+                segments = framing.finish();
+            } else {
+                segments = Collections.<Segment>singletonList(new StreamSegment(entity));
+            }
+
+            long total = 0;
+            for (Segment segment : segments) {
+                long segmentLength = segment.length();
+                if (segmentLength < 0) {
+                    total = -1;
+                    break;
+                }
+                total += segmentLength;
+            }
+            length = total;
+        }
+
+        public void produceContent(ContentEncoder encoder, IOControl ioControl) throws IOException {
+            while (current < segments.size()) {
+                if (!segments.get(current).produce(encoder)) {
+                    holdForBandwidth(ioControl);
+                    return;
+                }
+                current++;
+            }
+            encoder.complete();
+        }
+
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        public void close() throws IOException {
+            for (Segment segment : segments)
+                segment.reset();
+            current = 0;
+        }
+    }
+
+    private interface Segment {
+        // -1 if not known before it is written
+        long length();
+
+        // writes as much as the connection takes, returning true once the whole segment is written
+        boolean produce(ContentEncoder encoder) throws IOException;
+
+        // releases anything held open, ready to be written again from the start
+        void reset() throws IOException;
+    }
+
+    // bytes held in memory, e.g. the multipart framing
+    private class BytesSegment implements Segment {
+        private final ByteBuffer data;
+
+        BytesSegment(byte[] bytes) {
+            data = ByteBuffer.wrap(bytes);
+        }
+
+        public long length() {
+            return data.capacity();
+        }
+
+        public boolean produce(ContentEncoder encoder) throws IOException {
+            write(encoder, data);
+            return !data.hasRemaining();
+        }
+
+        public void reset() {
+            data.rewind();
+        }
+    }
+
+    // a small multipart body which is only written when its turn comes, e.g. the digests of the file parts before it
+    private class BodySegment implements Segment {
+        private final AbstractContentBody body;
+        private ByteBuffer data = null;
+
+        BodySegment(AbstractContentBody body) {
+            this.body = body;
+        }
+
+        public long length() {
+            return body.getContentLength();
+        }
+
+        public boolean produce(ContentEncoder encoder) throws IOException {
+            if (data == null) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                body.writeTo(out);
+                data = ByteBuffer.wrap(out.toByteArray());
+            }
+            write(encoder, data);
+            return !data.hasRemaining();
+        }
+
+        public void reset() {
+            data = null;
+        }
+    }
+
+    // a file sent as it is, or gzipped, and digested if the part has a digest.  A file sent as it is without a digest
+    // is transferred straight from its channel when the encoder can take it
+    private class FileSegment implements Segment {
+        private final File file;
+        private final PartDigest partDigest;
+        private final GzipFileBody gzipBody;
+        private FileInputStream in = null;
+        private FileChannel channel;
+        private long position;
+        private ByteBuffer buffer;
+        private ByteBuffer pending;
+        private PendingOutput gzipped;
+        private GZIPOutputStream gzipOut;
+        private long compressedLength;
+        private boolean endOfFile;
+
+        FileSegment(File file, PartDigest partDigest, GzipFileBody gzipBody) {
+            this.file = file;
+            this.partDigest = partDigest;
+            this.gzipBody = gzipBody;
+        }
+
+        public long length() {
+            return (gzipBody != null) ? -1 : file.length();
+        }
+
+        public boolean produce(ContentEncoder encoder) throws IOException {
+            if (in == null)
+                open();
+
+            if (partDigest == null && gzipBody == null && encoder instanceof FileContentEncoder) {
+                if (overBudget())
+                    return false;
+                long count = channel.size() - position;
+                if (bandwidthLimiter != null)
+                    count = Math.min(count, BUFFER_SIZE);
+                long transferred = ((FileContentEncoder) encoder).transfer(channel, position, count);
+                position += transferred;
+                written(transferred);
+                return position >= channel.size() && finish();
+            }
+
+            while (true) {
+                if (pending != null && pending.hasRemaining()) {
+                    compressedLength += write(encoder, pending);
+                    if (pending.hasRemaining())
+                        return false;
+                }
+                if (endOfFile)
+                    return finish();
+
+                buffer.clear();
+                int read = channel.read(buffer);
+                if (read == -1) {
+                    endOfFile = true;
+                    if (gzipOut == null) {
+                        pending = null;
+                    } else {
+                        gzipped.reset();
+                        gzipOut.finish();
+                        pending = gzipped.pending();
+                    }
+                    continue;
+                }
+
+                if (partDigest != null)
+                    partDigest.update(buffer.array(), 0, read);
+                if (gzipOut == null) {
+                    buffer.flip();
+                    pending = buffer;
+                } else {
+                    gzipped.reset();
+                    gzipOut.write(buffer.array(), 0, read);
+                    pending = gzipped.pending();
+                }
+            }
+        }
+
+        public void reset() throws IOException {
+            if (gzipOut != null)
+                gzipOut.close();
+            gzipOut = null;
+            if (in != null)
+                in.close();
+            in = null;
+        }
+
+        private void open() throws IOException {
+            in = new FileInputStream(file);
+            channel = in.getChannel();
+            position = 0;
+            pending = null;
+            compressedLength = 0;
+            endOfFile = false;
+            if (buffer == null)
+                buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            if (partDigest != null)
+                partDigest.reset();
+            if (gzipBody != null) {
+                gzipped = new PendingOutput();
+                gzipOut = new GZIPOutputStream(gzipped, BUFFER_SIZE);
+                pending = gzipped.pending();
+            }
+        }
+
+        private boolean finish() throws IOException {
+            if (partDigest != null)
+                partDigest.finished();
+            if (gzipBody != null)
+                gzipBody.setCompressedLength(compressedLength);
+            reset();
+            return true;
+        }
+    }
+
+    // a request body which is not multipart, read from its entity
+    private class StreamSegment implements Segment {
+        private final HttpEntity entity;
+        private InputStream in = null;
+        private ByteBuffer pending;
+
+        StreamSegment(HttpEntity entity) {
+            this.entity = entity;
+        }
+
+        public long length() {
+            return entity.getContentLength();
+        }
+
+        public boolean produce(ContentEncoder encoder) throws IOException {
+            if (in == null) {
+                in = entity.getContent();
+                pending = ByteBuffer.allocate(BUFFER_SIZE);
+                pending.flip();
+            }
+            while (true) {
+                if (pending.hasRemaining()) {
+                    write(encoder, pending);
+                    if (pending.hasRemaining())
+                        return false;
+                }
+                int read = in.read(pending.array());
+                if (read == -1) {
+                    reset();
+                    return true;
+                }
+                pending.position(0).limit(read);
+            }
+        }
+
+        public void reset() throws IOException {
+            if (in != null)
+                in.close();
+            in = null;
+        }
+    }
+
+    // the output the gzip stream of a FileSegment writes into, sent before any more of the file is compressed
+    private static class PendingOutput extends ByteArrayOutputStream {
+        PendingOutput() {
+            super(BUFFER_SIZE);
+        }
+
+        ByteBuffer pending() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
+    // collects what httpmime writes for a multipart entity, cut into segments around each spliced body
+    private class FramingOutputStream extends ByteArrayOutputStream {
+        private final List<Segment> segments = new ArrayList<Segment>();
+
+        void splice(AbstractContentBody body) {
+            segments.add(new BytesSegment(toByteArray()));
+            reset();
+
+            if (body instanceof DigestFileBody) {
+                DigestFileBody digestBody = (DigestFileBody) body;
+                segments.add(new FileSegment(digestBody.getFile(), digestBody.getPartDigest(), null));
+            } else if (body instanceof GzipFileBody) {
+                GzipFileBody gzipBody = (GzipFileBody) body;
+                segments.add(new FileSegment(gzipBody.getFile(), gzipBody.getPartDigest(), gzipBody));
+            } else if (body instanceof FileBody) {
+                segments.add(new FileSegment(((FileBody) body).getFile(), null, null));
+            } else {
+                segments.add(new BodySegment(body));
+            }
+        }
+
+        List<Segment> finish() {
+            segments.add(new BytesSegment(toByteArray()));
+            return segments;
+        }
+    }
+
+    private static class SplicedBody extends AbstractContentBody {
+        private final AbstractContentBody body;
+
+        SplicedBody(AbstractContentBody body) {
+            super(body.getContentType());
+            this.body = body;
+        }
+
+        public void writeTo(OutputStream out) throws IOException {
+            if (out instanceof FramingOutputStream)
+                ((FramingOutputStream) out).splice(body);
+            else
+                body.writeTo(out);
+        }
+
+        public String getFilename() {
+            return body.getFilename();
+        }
+
+        public String getTransferEncoding() {
+            return body.getTransferEncoding();
+        }
+
+        public long getContentLength() {
+            return body.getContentLength();
+        }
+    }
+
+    // reads the response body as it arrives, up to MAX_RESPONSE_BYTES
+    private static class ResponseConsumer extends AbstractAsyncResponseConsumer<UploadResponse> {
+        private final ByteBuffer buffer = ByteBuffer.allocate(8192);
+        private HttpResponse response;
+        private ByteArrayOutputStream body;
+        private Charset charset = UTF8;
+
+        protected void onResponseReceived(HttpResponse response) {
+            this.response = response;
+            this.body = new ByteArrayOutputStream();
+        }
+
+        protected void onEntityEnclosed(HttpEntity entity, ContentType contentType) throws IOException {
+            if (entity.getContentLength() > MAX_RESPONSE_BYTES)
+                throw new IOException(String.format("Upload service response of %d bytes is too large", entity.getContentLength()));
+            if (contentType != null && contentType.getCharset() != null)
+                charset = contentType.getCharset();
+        }
+
+        protected void onContentReceived(ContentDecoder decoder, IOControl ioControl) throws IOException {
+            int read;
+            while ((read = decoder.read(buffer)) > 0) {
+                if (body.size() + read > MAX_RESPONSE_BYTES)
+                    throw new IOException("Upload service response is too large");
+                body.write(buffer.array(), 0, read);
+                buffer.clear();
+            }
+        }
+
+        protected UploadResponse buildResult(HttpContext context) {
+            return new UploadResponse(response.getStatusLine().getStatusCode(), new String(body.toByteArray(), charset),
+                    response.getAllHeaders());
+        }
+
+        protected void releaseResources() {
+            response = null;
+            body = null;
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package org.endeavourhealth.tppddsuploader;
+
+import java.io.*;
+import java.util.LinkedList;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+// deflates a stream on several threads, as pigz does.  The stream is cut into blocks which are deflated at once on
+// the pool, each primed with the last 32kb of the block before as a preset dictionary, so matches across the block
+// boundary are still found and the ratio is close to deflating on one thread.  Every block but the last ends with a
+// sync flush, which leaves it on a byte boundary without marking the end of the stream, so the deflated blocks
+// joined in order are one raw deflate stream, as a zip entry holds
+class ParallelDeflater implements Closeable {
+
+    static final int BLOCK_SIZE = 131072;
+    private static final int DICTIONARY_SIZE = 32768;
+
+    private final ExecutorService pool;
+    private final int blocksInFlight;
+    private final BlockingQueue<Deflater> deflaters = new LinkedBlockingQueue<Deflater>();
+
+    interface DataHandler {
+        void data(byte[] data, int length) throws IOException;
+    }
+
+    // the crc and sizes of a deflated stream
+    static class Result {
+        private final long crc;
+        private final long size;
+        private final long compressedSize;
+
+        private Result(long crc, long size, long compressedSize) {
+            this.crc = crc;
+            this.size = size;
+            this.compressedSize = compressedSize;
+        }
+
+        long getCrc() {
+            return crc;
+        }
+
+        long getSize() {
+            return size;
+        }
+
+        long getCompressedSize() {
+            return compressedSize;
+        }
+    }
+
+    ParallelDeflater(int threads, int level)
+    {
+        this.pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "parallel-deflate");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.blocksInFlight = threads * 2;
+        for (int i = 0; i < threads; i++)
+            deflaters.add(new Deflater(level, true));
+    }
+
+    // reads the stream to its end, handing the deflated data to the handler in order
+    Result deflate(InputStream in, DataHandler handler) throws IOException
+    {
+        LinkedList<Future<ByteArrayOutputStream>> pending = new LinkedList<Future<ByteArrayOutputStream>>();
+        CRC32 crc = new CRC32();
+        long size = 0;
+        long compressedSize = 0;
+        byte[] dictionary = null;
+
+        byte[] block = new byte[BLOCK_SIZE];
+        int length = readBlock(in, block);
+        boolean last;
+        do {
+            // the next block is read first to know whether this one is the last
+            byte[] next = new byte[BLOCK_SIZE];
+            int nextLength = readBlock(in, next);
+            last = nextLength == 0;
+
+            crc.update(block, 0, length);
+            size += length;
+            pending.add(pool.submit(new BlockDeflate(block, length, dictionary, last)));
+            if (length >= DICTIONARY_SIZE) {
+                dictionary = new byte[DICTIONARY_SIZE];
+                System.arraycopy(block, length - DICTIONARY_SIZE, dictionary, 0, DICTIONARY_SIZE);
+            }
+
+            while (pending.size() >= blocksInFlight || (last && !pending.isEmpty())) {
+                ByteArrayOutputStream deflated = deflated(pending.removeFirst());
+                handler.data(deflated.toByteArray(), deflated.size());
+                compressedSize += deflated.size();
+            }
+            block = next;
+            length = nextLength;
+        } while (!last);
+
+        return new Result(crc.getValue(), size, compressedSize);
+    }
+
+    public void close()
+    {
+        pool.shutdownNow();
+        try {
+            pool.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        Deflater deflater;
+        while ((deflater = deflaters.poll()) != null)
+            deflater.end();
+    }
+
+    private static ByteArrayOutputStream deflated(Future<ByteArrayOutputStream> block) throws IOException
+    {
+        try {
+            return block.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while deflating");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException)
+                throw (IOException) ex.getCause();
+            throw new IOException("Unable to deflate block => " + ex.getCause(), ex.getCause());
+        }
+    }
+
+    // fills the block from the stream, returning how much was read, which is only short at the end of the stream
+    private static int readBlock(InputStream in, byte[] block) throws IOException
+    {
+        int length = 0;
+        int read;
+        while (length < block.length && (read = in.read(block, length, block.length - length)) != -1)
+            length += read;
+        return length;
+    }
+
+    private class BlockDeflate implements Callable<ByteArrayOutputStream> {
+        private final byte[] block;
+        private final int length;
+        private final byte[] dictionary;
+        private final boolean last;
+
+        BlockDeflate(byte[] block, int length, byte[] dictionary, boolean last) {
+            this.block = block;
+            this.length = length;
+            this.dictionary = dictionary;
+            this.last = last;
+        }
+
+        public ByteArrayOutputStream call() throws InterruptedException {
+            Deflater deflater = deflaters.take();
+            try {
+                deflater.reset();
+                if (dictionary != null)
+                    deflater.setDictionary(dictionary);
+                deflater.setInput(block, 0, length);
+
+                ByteArrayOutputStream deflated = new ByteArrayOutputStream(length / 2 + 64);
+                byte[] output = new byte[65536];
+                if (last) {
+                    deflater.finish();
+                    while (!deflater.finished()) {
+                        int count = deflater.deflate(output);
+                        deflated.write(output, 0, count);
+                    }
+                } else {
+                    // the flush is complete once the deflater no longer fills the whole output buffer
+                    int count;
+                    do {
+                        count = deflater.deflate(output, 0, output.length, Deflater.SYNC_FLUSH);
+                        deflated.write(output, 0, count);
+                    } while (count == output.length);
+                }
+                return deflated;
+            } finally {
+                deflaters.add(deflater);
+            }
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package org.endeavourhealth.tppddsuploader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+import static org.endeavourhealth.tppddsuploader.ZipCentralDirectory.*;
+
+// re-splits a large zip into spanned parts, deflating every entry again as the zip4j split does, but reading the
+// entries straight from the source archive rather than extracting them to disk, and deflating each on every core
+// with a ParallelDeflater.  The crc and sizes of an entry are only known once it is deflated, so they follow its
+// data in a data descriptor
+class ParallelZipSplitter {
+
+    private static final int DEFLATE_LEVEL_NORMAL = 5;
+    private static final int VERSION_DEFLATE = 20;
+
+    // true if the zip's entries can be inflated
+    static boolean canSplit(File sourceZip)
+    {
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(sourceZip);
+            return ZipCentralDirectory.read(in.getChannel()).isInflateSupported();
+        } catch (IOException ex) {
+            System.out.println(String.format("Zip file %s cannot be deflated into split parts => %s", sourceZip.getPath(), ex.getMessage()));
+            return false;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    // writes the entries of sourceZip, deflated again, into split parts of targetZip (.z01, .z02 ... .zip). If
+    // anything fails the parts written so far are removed and the source is left untouched
+    static List<File> split(File sourceZip, File targetZip, long splitSize) throws IOException
+    {
+        FileInputStream in = new FileInputStream(sourceZip);
+        ParallelDeflater deflater = new ParallelDeflater(Math.max(1, Runtime.getRuntime().availableProcessors()), DEFLATE_LEVEL_NORMAL);
+        SplitZipWriter writer = null;
+        try {
+            FileChannel source = in.getChannel();
+            ZipCentralDirectory centralDirectory = ZipCentralDirectory.read(source);
+
+            writer = new SplitZipWriter(targetZip, splitSize);
+            for (Entry entry : centralDirectory.getEntries()) {
+                Entry deflatedEntry = deflatedEntry(entry);
+                long[] headerLocation = writer.writeLocalHeader(deflatedEntry, deflatedEntry.flags, 0, 0, 0);
+
+                final SplitZipWriter parts = writer;
+                InputStream data = ZipCentralDirectory.openEntry(source, entry);
+                ParallelDeflater.Result result;
+                try {
+                    result = deflater.deflate(data, new ParallelDeflater.DataHandler() {
+                        public void data(byte[] deflated, int length) throws IOException {
+                            parts.writeData(ByteBuffer.wrap(deflated, 0, length));
+                        }
+                    });
+                } finally {
+                    data.close();
+                }
+
+                writer.writeDataDescriptor(result.getCrc(), result.getCompressedSize(), result.getSize());
+                writer.addCentralDirectoryRecord(deflatedEntry, deflatedEntry.flags, result.getCrc(), result.getCompressedSize(),
+                        result.getSize(), headerLocation);
+            }
+            return writer.finish();
+        } finally {
+            if (writer != null)
+                writer.close();
+            deflater.close();
+            closeQuietly(in);
+        }
+    }
+
+    // the entry as it is written to the parts, deflated and followed by a data descriptor
+    private static Entry deflatedEntry(Entry entry)
+    {
+        Entry deflated = new Entry();
+        deflated.name = entry.name;
+        deflated.nameBytes = entry.nameBytes;
+        deflated.extra = entry.extra;
+        deflated.comment = entry.comment;
+        deflated.versionMadeBy = entry.versionMadeBy;
+        deflated.versionNeeded = Math.max(entry.versionNeeded, VERSION_DEFLATE);
+        deflated.flags = (entry.flags & FLAG_UTF8) | FLAG_DATA_DESCRIPTOR;
+        deflated.method = 8;
+        deflated.dosTime = entry.dosTime;
+        deflated.dosDate = entry.dosDate;
+        deflated.internalAttributes = entry.internalAttributes;
+        deflated.externalAttributes = entry.externalAttributes;
+        return deflated;
+    }
+
+    private static void closeQuietly(FileInputStream in)
+    {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException ex) {
+                System.out.println("Unable to close zip file => " + ex.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package org.endeavourhealth.tppddsuploader;
+
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.mime.content.AbstractContentBody;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.List;
+
+// the sha-256 and size of a file's content, worked out as the file is written into its multipart part so the file
+// is only read once.  The digests of a post are sent in a trailing part after the file parts, and the service echoes
+// the digest of each file as it stored it, so a truncated or altered transfer is caught before the files are deleted
+class PartDigest {
+
+    private final String uploadPath;
+    private final MessageDigest digest = UploadJournal.sha256();
+    private long size;
+    private String sha256;
+    private boolean verified;
+
+    PartDigest(String uploadPath)
+    {
+        this.uploadPath = uploadPath;
+    }
+
+    // the file content to write into the part, digested as it is read.  A part may be written again if the request
+    // is retried, so each write starts a new digest
+    InputStream digesting(InputStream in)
+    {
+        reset();
+        return new FilterInputStream(in) {
+            public int read() throws IOException {
+                int b = super.read();
+                if (b != -1) {
+                    digest.update((byte) b);
+                    size++;
+                }
+                return b;
+            }
+            public int read(byte[] bytes, int offset, int length) throws IOException {
+                int read = super.read(bytes, offset, length);
+                if (read > 0)
+                    update(bytes, offset, read);
+                return read;
+            }
+        };
+    }
+
+    // starts a new digest, for a part written without digesting(), e.g. from a FileChannel
+    void reset()
+    {
+        digest.reset();
+        size = 0;
+        sha256 = null;
+    }
+
+    void update(byte[] bytes, int offset, int length)
+    {
+        digest.update(bytes, offset, length);
+        size += length;
+    }
+
+    // called once the whole file has been read into the part
+    void finished()
+    {
+        sha256 = UploadJournal.toHex(digest.digest());
+    }
+
+    String getUploadPath()
+    {
+        return uploadPath;
+    }
+
+    long getSize()
+    {
+        return size;
+    }
+
+    // null until the part has been written
+    String getSha256()
+    {
+        return sha256;
+    }
+
+    // whether the service echoed the same digest for the file
+    boolean isVerified()
+    {
+        return verified;
+    }
+
+    void setVerified()
+    {
+        verified = true;
+    }
+
+    // the trailing part of a post, a line of "<sha-256>  <size>  <upload path>" (tab separated) for each file part
+    // before it.  It is only written after the file parts have been, so their digests are known by then
+    static class ListBody extends AbstractContentBody {
+        private static final Charset UTF8 = Charset.forName("UTF-8");
+
+        private final List<PartDigest> digests;
+
+        ListBody(List<PartDigest> digests) {
+            super(ContentType.create("text/plain", UTF8));
+            this.digests = digests;
+        }
+
+        public void writeTo(OutputStream out) throws IOException {
+            StringBuilder list = new StringBuilder();
+            for (PartDigest digest : digests)
+                list.append(digest.getSha256()).append('\t').append(digest.getSize()).append('\t').append(digest.getUploadPath()).append('\n');
+            out.write(list.toString().getBytes(UTF8));
+        }
+
+        public String getFilename() {
+            return null;
+        }
+
+        public String getTransferEncoding() {
+            return "8bit";
+        }
+
+        public long getContentLength() {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package org.endeavourhealth.tppddsuploader;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+// upload bandwidth limits by time of day, e.g. "08:00-18:30=256,*=2048" holds uploads to 256 KB/s during clinic hours
+// and 2 MB/s otherwise.  The first window containing the time wins, * is any other time, and 0 is unlimited.  A
+// window can run past midnight, e.g. 22:00-06:00.  A bare number is the limit for the whole day
+class RateSchedule {
+
+    private final List<Window> windows;
+    private final long defaultBytesPerSecond;
+
+    private RateSchedule(List<Window> windows, long defaultBytesPerSecond)
+    {
+        this.windows = windows;
+        this.defaultBytesPerSecond = defaultBytesPerSecond;
+    }
+
+    static RateSchedule unlimited()
+    {
+        return new RateSchedule(new ArrayList<Window>(), 0);
+    }
+
+    static RateSchedule parse(String profile)
+    {
+        List<Window> windows = new ArrayList<Window>();
+        long defaultBytesPerSecond = 0;
+        if (profile == null || profile.trim().isEmpty())
+            return new RateSchedule(windows, 0);
+
+        for (String entry : profile.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty())
+                continue;
+
+            int equalsIndex = entry.indexOf('=');
+            if (equalsIndex == -1) {
+                defaultBytesPerSecond = kbToBytes(entry, profile);
+                continue;
+            }
+
+            String times = entry.substring(0, equalsIndex).trim();
+            long bytesPerSecond = kbToBytes(entry.substring(equalsIndex + 1), profile);
+            if (times.equals("*")) {
+                defaultBytesPerSecond = bytesPerSecond;
+                continue;
+            }
+
+            String[] startEnd = times.split("-");
+            if (startEnd.length != 2)
+                throw new IllegalArgumentException("Invalid time window " + times + " in upload rate profile " + profile);
+            windows.add(new Window(minuteOfDay(startEnd[0], profile), minuteOfDay(startEnd[1], profile), bytesPerSecond));
+        }
+        return new RateSchedule(windows, defaultBytesPerSecond);
+    }
+
+    boolean isUnlimited()
+    {
+        if (defaultBytesPerSecond > 0)
+            return false;
+        for (Window window : windows) {
+            if (window.bytesPerSecond > 0)
+                return false;
+        }
+        return true;
+    }
+
+    // the limit at the given time, 0 = unlimited
+    long bytesPerSecond(Calendar time)
+    {
+        int minute = time.get(Calendar.HOUR_OF_DAY) * 60 + time.get(Calendar.MINUTE);
+        for (Window window : windows) {
+            if (window.contains(minute))
+                return window.bytesPerSecond;
+        }
+        return defaultBytesPerSecond;
+    }
+
+    private static long kbToBytes(String kb, String profile)
+    {
+        try {
+            return Math.max(0, Long.parseLong(kb.trim())) * 1024;
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid rate " + kb + " in upload rate profile " + profile);
+        }
+    }
+
+    private static int minuteOfDay(String time, String profile)
+    {
+        String[] hoursMinutes = time.trim().split(":");
+        try {
+            int hours = Integer.parseInt(hoursMinutes[0]);
+            int minutes = (hoursMinutes.length > 1) ? Integer.parseInt(hoursMinutes[1]) : 0;
+            if (hours < 0 || hours > 24 || minutes < 0 || minutes > 59)
+                throw new NumberFormatException();
+            return hours * 60 + minutes;
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid time " + time + " in upload rate profile " + profile);
+        }
+    }
+
+    private static class Window {
+        private final int startMinute;
+        private final int endMinute;
+        private final long bytesPerSecond;
+
+        Window(int startMinute, int endMinute, long bytesPerSecond) {
+            this.startMinute = startMinute;
+            this.endMinute = endMinute;
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        boolean contains(int minute) {
+            if (startMinute <= endMinute)
+                return minute >= startMinute && minute < endMinute;
+            return minute >= startMinute || minute < endMinute;
+        }
+    }
+}
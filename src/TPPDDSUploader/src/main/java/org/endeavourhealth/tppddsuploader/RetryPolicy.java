@@ -0,0 +1,225 @@
+package org.endeavourhealth.tppddsuploader;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.endeavourhealth.tppddsuploader.HttpUploadTransport.UploadResponse;
+
+// decides whether, and after how long, a failed batch upload is tried again.  It is shared by every organisation in
+// the process, so the retries of all of them are held back together when a service is struggling:
+//   - failures are classified: transient (5xx, 408, 429, digest mismatches, failed connections) are retried, auth
+//     (401, 403) are retried once straight away with a new token, whatever failures came before, and any other
+//     status is not retried
+//   - retries wait an exponential backoff with full jitter, from the base delay doubling up to the max delay, or
+//     longer if the service asks with Retry-After, so clients which failed together do not all come back together
+//   - retries are drawn from a budget of RETRY_BUDGET_MIN plus RETRY_BUDGET_RATIO of the requests made, so a failing
+//     service sees a fraction more requests rather than every batch sent MAX_RETRIES more times
+//   - each endpoint has a circuit breaker which opens after CIRCUIT_FAILURE_THRESHOLD transient failures in a row.
+//     While it is open uploads are deferred to the next run rather than sent, apart from one trial call each time
+//     the max delay passes
+// The immediate policy is the original behaviour: every failure is retried at once, up to MAX_RETRIES times, and a
+// request which throws stops the upload
+class RetryPolicy {
+
+    static final int TRANSIENT = 1;
+    static final int AUTH = 2;
+    static final int PERMANENT = 3;
+
+    // not an http status: the request could not be made, e.g. the connection was refused or reset
+    static final int REQUEST_FAILED = -2;
+
+    static final int MAX_RETRIES = 5;
+    private static final int RETRY_BUDGET_MIN = 10;
+    private static final double RETRY_BUDGET_RATIO = 0.2;
+    private static final int CIRCUIT_FAILURE_THRESHOLD = 5;
+    private static final int TOO_MANY_REQUESTS = 429;
+
+    private final boolean backoff;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final Random random = new Random();
+    private final Map<String, CircuitBreaker> circuits = new HashMap<String, CircuitBreaker>();
+    private long requests = 0;
+    private long retries = 0;
+
+    private RetryPolicy(boolean backoff, long baseDelayMillis, long maxDelayMillis)
+    {
+        this.backoff = backoff;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    static RetryPolicy immediate()
+    {
+        return new RetryPolicy(false, 0, 0);
+    }
+
+    static RetryPolicy backoff(long baseDelayMillis, long maxDelayMillis)
+    {
+        return new RetryPolicy(true, baseDelayMillis, Math.max(baseDelayMillis, maxDelayMillis));
+    }
+
+    // whether a request which throws is retried like a failed response
+    boolean retriesExceptions()
+    {
+        return backoff;
+    }
+
+    // the failure as a response, so it is retried and reported like one.  A file of the batch which cannot be read,
+    // or an interrupted upload, is not a failure of the service and is thrown on
+    UploadResponse failedRequest(IOException ex) throws IOException
+    {
+        if (ex instanceof FileNotFoundException || (ex instanceof InterruptedIOException && Thread.currentThread().isInterrupted()))
+            throw ex;
+        return new UploadResponse(REQUEST_FAILED, ex.toString());
+    }
+
+    int classify(int statusCode)
+    {
+        if (statusCode == 401 || statusCode == 403)
+            return AUTH;
+        if (!backoff)
+            return TRANSIENT;
+        if (statusCode >= 500 || statusCode == 408 || statusCode == TOO_MANY_REQUESTS
+                || statusCode == HttpUploadTransport.DIGEST_MISMATCH || statusCode == REQUEST_FAILED)
+            return TRANSIENT;
+        return PERMANENT;
+    }
+
+    // the circuit breaker for calls to the endpoint, e.g. the upload service base uri
+    CircuitBreaker circuit(String endpoint)
+    {
+        synchronized (circuits) {
+            CircuitBreaker circuit = circuits.get(endpoint);
+            if (circuit == null) {
+                circuit = new CircuitBreaker(endpoint);
+                circuits.put(endpoint, circuit);
+            }
+            return circuit;
+        }
+    }
+
+    synchronized void requestMade()
+    {
+        requests++;
+    }
+
+    // counts the retries of one request, e.g. a batch upload
+    RetryCounter retryCounter()
+    {
+        return new RetryCounter();
+    }
+
+    // how long to wait before retry number retry (from 1) of a failed request, of which authRetry were after a
+    // refused token, or -1 if it is not to be retried
+    private long retryDelayMillis(int failure, int retry, int authRetry, UploadResponse response)
+    {
+        if (failure == PERMANENT || retry > MAX_RETRIES)
+            return -1;
+        if (!backoff)
+            return 0;
+        if (failure == AUTH)
+            return (authRetry == 1) ? 0 : -1;
+
+        synchronized (this) {
+            if (retries >= RETRY_BUDGET_MIN + (long) (requests * RETRY_BUDGET_RATIO)) {
+                System.out.println(String.format("Retry budget used up (%d retries of %d requests), not retrying", retries, requests));
+                return -1;
+            }
+            retries++;
+        }
+
+        long ceiling = Math.min(maxDelayMillis, baseDelayMillis << Math.min(retry - 1, 20));
+        long delay = (long) (random.nextDouble() * ceiling);
+        return Math.min(maxDelayMillis, Math.max(delay, retryAfterMillis(response)));
+    }
+
+    // a Retry-After of delay seconds, as sent with a 429 or 503.  An http date is ignored
+    private static long retryAfterMillis(UploadResponse response)
+    {
+        String retryAfter = response.getHeader("Retry-After");
+        if (retryAfter == null)
+            return 0;
+        try {
+            return Math.max(0, Long.parseLong(retryAfter.trim())) * 1000L;
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
+
+    // every retry of the request counts towards MAX_RETRIES, and the refused tokens are counted apart, so a 401 after
+    // transient failures still gets its retry with a new token
+    class RetryCounter {
+        private int retries = 0;
+        private int authRetries = 0;
+
+        private RetryCounter() {
+        }
+
+        // how long to wait before retrying after the failure, or -1 if it is not to be retried
+        long retryDelayMillis(int failure, UploadResponse response) {
+            retries++;
+            if (failure == AUTH)
+                authRetries++;
+            return RetryPolicy.this.retryDelayMillis(failure, retries, authRetries, response);
+        }
+
+        // whether the request has failed before
+        boolean retrying() {
+            return retries > 0;
+        }
+    }
+
+    // closed: calls are made.  open: calls are refused, apart from one trial call each time the max delay passes,
+    // which closes the circuit if it succeeds
+    class CircuitBreaker {
+        private final String endpoint;
+        private int consecutiveFailures = 0;
+        private long openedAt = 0;
+
+        private CircuitBreaker(String endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        // whether a call may be made now
+        synchronized boolean allowCall() {
+            if (openedAt == 0)
+                return true;
+            if (System.currentTimeMillis() - openedAt < maxDelayMillis)
+                return false;
+            openedAt = System.currentTimeMillis();
+            System.out.println("Trying " + endpoint + " again after failures");
+            return true;
+        }
+
+        synchronized void succeeded() {
+            if (openedAt != 0)
+                System.out.println("Calls to " + endpoint + " are succeeding again");
+            consecutiveFailures = 0;
+            openedAt = 0;
+        }
+
+        synchronized void failed(int failure) {
+            if (failure != TRANSIENT)
+                return;
+            consecutiveFailures++;
+            if (backoff && openedAt == 0 && consecutiveFailures >= CIRCUIT_FAILURE_THRESHOLD) {
+                System.out.println(String.format("%d failures in a row calling %s, holding off for %d seconds",
+                        consecutiveFailures, endpoint, maxDelayMillis / 1000));
+                openedAt = System.currentTimeMillis();
+            }
+        }
+
+        synchronized boolean isOpen() {
+            return openedAt != 0;
+        }
+
+        String getEndpoint() {
+            return endpoint;
+        }
+    }
+}
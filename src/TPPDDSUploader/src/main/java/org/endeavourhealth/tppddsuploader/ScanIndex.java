@@ -0,0 +1,233 @@
+package org.endeavourhealth.tppddsuploader;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.*;
+
+// remembers what has already been found out about the files and folders under a root directory between runs, so the
+// pre-upload scan only does work for what has changed.  Files are keyed on path, size and modified time and record
+// whether they are a valid zip and, once asked for, their content hash.  Folders record their validation result
+// against a signature of their file listing, so an unchanged invalid archive folder is not re-checked every run.
+// Validation results record the tppdds.zipValidation mode they were found with, and a valid result is checked again
+// when a stronger mode is set
+class ScanIndex {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String HEADER = "# tpp-dds scan index v2";
+    private static final String FILE_ENTRY = "F";
+    private static final String FOLDER_ENTRY = "D";
+    private static final String UNKNOWN = "-";
+
+    private final File indexFile;
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    private boolean changed = false;
+
+    private ScanIndex(File indexFile)
+    {
+        this.indexFile = indexFile;
+    }
+
+    // the index for the root directory, kept in indexDir.  An unreadable index is started again rather than failing
+    // the run, as it only ever saves work
+    static ScanIndex load(File indexDir, File rootDir)
+    {
+        ScanIndex index = new ScanIndex(new File(indexDir, UploadJournal.sha256Hex(rootDir.getAbsolutePath()) + ".index"));
+        if (!index.indexFile.exists())
+            return index;
+
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(index.indexFile), UTF8));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split("\t");
+                    if (line.startsWith("#") || (fields.length != 6 && fields.length != 7))
+                        continue;
+
+                    // v1 entries were validated before there was a deep mode
+                    Entry entry = new Entry(fields[0], Long.parseLong(fields[2]), Long.parseLong(fields[3]));
+                    entry.valid = fields[4].equals(UNKNOWN) ? null : Boolean.valueOf(fields[4]);
+                    entry.hash = fields[5].equals(UNKNOWN) ? null : fields[5];
+                    entry.validation = (fields.length == 6) ? UploaderSettings.ZIP_VALIDATION_DIRECTORY
+                            : fields[6].equals(UNKNOWN) ? null : fields[6];
+                    index.entries.put(fields[1], entry);
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (Exception ex) {
+            System.out.println("Unable to read the scan index " + index.indexFile.getPath() + ", rescanning everything => " + ex.getMessage());
+            index.entries.clear();
+        }
+        return index;
+    }
+
+    // an index which is not saved, for one-off scans
+    static ScanIndex inMemory()
+    {
+        return new ScanIndex(null);
+    }
+
+    // the zip is checked outside the lock, so many zips can be validated at once
+    boolean validZipFile(File file)
+    {
+        String validation = UploaderSettings.zipValidation();
+        Entry entry = fileEntry(file);
+        synchronized (this) {
+            if (knownValidation(entry, validation))
+                return entry.valid;
+        }
+
+        boolean valid = HelperUtils.validZipFile(file);
+        synchronized (this) {
+            entry.valid = valid;
+            entry.validation = validation;
+            changed = true;
+        }
+        return valid;
+    }
+
+    // the sha-256 of the file's content, only read from disk the first time it is asked for
+    String contentHash(File file) throws IOException
+    {
+        Entry entry = fileEntry(file);
+        synchronized (this) {
+            if (entry.hash != null)
+                return entry.hash;
+        }
+
+        MessageDigest digest = UploadJournal.sha256();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[65536];
+            int read;
+            while ((read = in.read(buffer)) != -1)
+                digest.update(buffer, 0, read);
+        } finally {
+            in.close();
+        }
+        String hash = UploadJournal.toHex(digest.digest());
+        synchronized (this) {
+            entry.hash = hash;
+            changed = true;
+        }
+        return hash;
+    }
+
+    // the earlier validation result for the folder, or null if it has not been validated with these files
+    synchronized Boolean folderValidation(File folder, File[] folderFiles)
+    {
+        Entry entry = entries.get(folder.getAbsolutePath());
+        if (entry == null || !entry.kind.equals(FOLDER_ENTRY) || !folderSignature(folderFiles).equals(entry.hash)
+                || !knownValidation(entry, UploaderSettings.zipValidation()))
+            return null;
+        return entry.valid;
+    }
+
+    synchronized void folderValidated(File folder, File[] folderFiles, boolean valid)
+    {
+        Entry entry = new Entry(FOLDER_ENTRY, -1, folder.lastModified());
+        entry.valid = valid;
+        entry.validation = UploaderSettings.zipValidation();
+        entry.hash = folderSignature(folderFiles);
+        entries.put(folder.getAbsolutePath(), entry);
+        changed = true;
+    }
+
+    // writes the index if anything changed, dropping entries for files and folders which no longer exist
+    synchronized void save() throws IOException
+    {
+        if (indexFile == null)
+            return;
+
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            if (!new File(iterator.next().getKey()).exists()) {
+                iterator.remove();
+                changed = true;
+            }
+        }
+        if (!changed)
+            return;
+
+        if (!indexFile.getParentFile().isDirectory() && !indexFile.getParentFile().mkdirs())
+            throw new IOException("Unable to create folder " + indexFile.getParent());
+
+        File tempFile = new File(indexFile.getPath() + ".tmp");
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), UTF8));
+        try {
+            writer.write(HEADER + "\n");
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                Entry value = entry.getValue();
+                writer.write(value.kind + "\t" + entry.getKey() + "\t" + value.size + "\t" + value.modified + "\t"
+                        + (value.valid == null ? UNKNOWN : value.valid.toString()) + "\t"
+                        + (value.hash == null ? UNKNOWN : value.hash) + "\t"
+                        + (value.validation == null ? UNKNOWN : value.validation) + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+
+        indexFile.delete();
+        if (!tempFile.renameTo(indexFile))
+            throw new IOException("Unable to replace the scan index " + indexFile.getPath());
+        changed = false;
+    }
+
+    // whether the entry's validation result holds in the given mode.  Anything found invalid stays invalid, but a
+    // valid result from the directory check does not say the entries would pass the deep check
+    private static boolean knownValidation(Entry entry, String validation)
+    {
+        if (entry.valid == null)
+            return false;
+        return !entry.valid || validation.equals(entry.validation) || UploaderSettings.ZIP_VALIDATION_DEEP.equals(entry.validation);
+    }
+
+    // the entry for the file as it is now, replacing any entry for an earlier version of it
+    private synchronized Entry fileEntry(File file)
+    {
+        String path = file.getAbsolutePath();
+        long size = file.length();
+        long modified = file.lastModified();
+
+        Entry entry = entries.get(path);
+        if (entry == null || !entry.kind.equals(FILE_ENTRY) || entry.size != size || entry.modified != modified) {
+            entry = new Entry(FILE_ENTRY, size, modified);
+            entries.put(path, entry);
+            changed = true;
+        }
+        return entry;
+    }
+
+    // names, sizes and modified times of the files in a folder, in name order
+    private static String folderSignature(File[] folderFiles)
+    {
+        if (folderFiles == null)
+            return UNKNOWN;
+
+        File[] sortedFiles = folderFiles.clone();
+        Arrays.sort(sortedFiles);
+        StringBuilder signature = new StringBuilder();
+        for (File file : sortedFiles) {
+            signature.append(file.getName()).append('|').append(file.isDirectory() ? -1 : file.length())
+                    .append('|').append(file.lastModified()).append('\n');
+        }
+        return UploadJournal.sha256Hex(signature.toString());
+    }
+
+    private static class Entry {
+        private final String kind;
+        private final long size;
+        private final long modified;
+        private Boolean valid;
+        private String validation;
+        private String hash;
+
+        Entry(String kind, long size, long modified) {
+            this.kind = kind;
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+}
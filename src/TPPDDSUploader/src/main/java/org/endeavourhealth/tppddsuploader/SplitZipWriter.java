@@ -0,0 +1,257 @@
+package org.endeavourhealth.tppddsuploader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipException;
+
+import static org.endeavourhealth.tppddsuploader.ZipCentralDirectory.*;
+
+// writes a spanned (split) zip archive in the same layout zip4j produces, i.e. name.z01, name.z02 ... name.zip.
+// Headers are never split across parts, entry data may be. The central directory is written to the last part
+class SplitZipWriter implements Closeable {
+
+    private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+    private static final int DATA_DESCRIPTOR_SIZE = 16;
+    private static final int MAX_ENTRIES = 0xFFFF;
+
+    private final File zipFile;
+    private final long splitSize;
+    private final List<File> volumes = new ArrayList<File>();
+    private final ByteArrayOutputStream centralDirectory = new ByteArrayOutputStream();
+    private RandomAccessFile volumeFile = null;
+    private FileChannel volume = null;
+    private long volumePosition = 0;
+    private int entryCount = 0;
+    private boolean finished = false;
+
+    SplitZipWriter(File zipFile, long splitSize) throws IOException
+    {
+        if (splitSize < 65536)
+            throw new IllegalArgumentException("Split size must be at least 64kb");
+
+        this.zipFile = zipFile;
+        this.splitSize = splitSize;
+        openVolume();
+        ByteBuffer signature = buffer(4).putInt(SPLIT_SIGNATURE);
+        signature.flip();
+        write(signature);
+    }
+
+    // copies an entry's already compressed data from the source archive without inflating it. The sizes and crc
+    // are known from the source central directory so the local header is complete and no data descriptor is needed
+    void copyRawEntry(Entry entry, FileChannel source) throws IOException
+    {
+        long dataOffset = ZipCentralDirectory.dataOffset(source, entry);
+        int flags = entry.flags & ~FLAG_DATA_DESCRIPTOR;
+
+        long[] headerLocation = writeLocalHeader(entry, flags, entry.crc, entry.compressedSize, entry.size);
+
+        long copied = 0;
+        while (copied < entry.compressedSize) {
+            long space = ensureSpace(1);
+            long count = Math.min(space, entry.compressedSize - copied);
+            long transferred = source.transferTo(dataOffset + copied, count, volume);
+            if (transferred <= 0)
+                throw new ZipException("Unexpected end of data for entry " + entry.name);
+            copied += transferred;
+            volumePosition += transferred;
+        }
+
+        addCentralDirectoryRecord(entry, flags, entry.crc, entry.compressedSize, entry.size, headerLocation);
+    }
+
+    // writes the central directory and end record to the last part, and renames it to the zip file name.
+    // Returns the parts in order, ending with the .zip
+    List<File> finish() throws IOException
+    {
+        if (entryCount > MAX_ENTRIES)
+            throw new ZipException("Too many entries for a non zip64 archive");
+
+        byte[] cd = centralDirectory.toByteArray();
+        ensureSpace(cd.length + END_OF_CENTRAL_DIRECTORY_SIZE);
+        long cdOffset = volumePosition;
+        write(ByteBuffer.wrap(cd));
+
+        int lastDisk = volumes.size() - 1;
+        ByteBuffer eocd = buffer(END_OF_CENTRAL_DIRECTORY_SIZE);
+        eocd.putInt(END_OF_CENTRAL_DIRECTORY_SIGNATURE);
+        eocd.putShort((short) lastDisk);
+        eocd.putShort((short) lastDisk);
+        eocd.putShort((short) entryCount);
+        eocd.putShort((short) entryCount);
+        eocd.putInt(cd.length);
+        eocd.putInt((int) cdOffset);
+        eocd.putShort((short) 0);
+        eocd.flip();
+        write(eocd);
+
+        // an archive which fitted in a single part is marked as such, as it is not really split
+        if (volumes.size() == 1) {
+            ByteBuffer marker = buffer(4).putInt(SINGLE_SEGMENT_SIGNATURE);
+            marker.flip();
+            volume.write(marker, 0);
+        }
+        closeVolume();
+
+        File lastVolume = volumes.get(lastDisk);
+        if (!lastVolume.renameTo(zipFile))
+            throw new IOException("Unable to rename " + lastVolume.getPath() + " to " + zipFile.getPath());
+        volumes.set(lastDisk, zipFile);
+
+        finished = true;
+        return new ArrayList<File>(volumes);
+    }
+
+    // closes the writer and removes any parts written, used when the split fails part way through
+    void abort()
+    {
+        try {
+            closeVolume();
+        } catch (IOException ex) {
+            System.out.println("Unable to close split zip part => " + ex.getMessage());
+        }
+        for (File part : volumes) {
+            part.delete();
+        }
+        volumes.clear();
+        finished = true;
+    }
+
+    public void close() throws IOException
+    {
+        if (!finished)
+            abort();
+    }
+
+    long[] writeLocalHeader(Entry entry, int flags, long crc, long compressedSize, long size) throws IOException
+    {
+        ensureSpace(LOCAL_HEADER_SIZE + entry.nameBytes.length);
+        long[] headerLocation = new long[] {volumes.size() - 1, volumePosition};
+
+        ByteBuffer header = buffer(LOCAL_HEADER_SIZE + entry.nameBytes.length);
+        header.putInt(LOCAL_HEADER_SIGNATURE);
+        header.putShort((short) entry.versionNeeded);
+        header.putShort((short) flags);
+        header.putShort((short) entry.method);
+        header.putShort((short) entry.dosTime);
+        header.putShort((short) entry.dosDate);
+        header.putInt((int) crc);
+        header.putInt((int) compressedSize);
+        header.putInt((int) size);
+        header.putShort((short) entry.nameBytes.length);
+        header.putShort((short) 0);
+        header.put(entry.nameBytes);
+        header.flip();
+        write(header);
+
+        return headerLocation;
+    }
+
+    void addCentralDirectoryRecord(Entry entry, int flags, long crc, long compressedSize, long size, long[] headerLocation)
+    {
+        ByteBuffer record = buffer(CENTRAL_HEADER_SIZE + entry.nameBytes.length + entry.extra.length + entry.comment.length);
+        record.putInt(CENTRAL_HEADER_SIGNATURE);
+        record.putShort((short) entry.versionMadeBy);
+        record.putShort((short) entry.versionNeeded);
+        record.putShort((short) flags);
+        record.putShort((short) entry.method);
+        record.putShort((short) entry.dosTime);
+        record.putShort((short) entry.dosDate);
+        record.putInt((int) crc);
+        record.putInt((int) compressedSize);
+        record.putInt((int) size);
+        record.putShort((short) entry.nameBytes.length);
+        record.putShort((short) entry.extra.length);
+        record.putShort((short) entry.comment.length);
+        record.putShort((short) headerLocation[0]);
+        record.putShort((short) entry.internalAttributes);
+        record.putInt((int) entry.externalAttributes);
+        record.putInt((int) headerLocation[1]);
+        record.put(entry.nameBytes);
+        record.put(entry.extra);
+        record.put(entry.comment);
+
+        centralDirectory.write(record.array(), 0, record.position());
+        entryCount++;
+    }
+
+    // writes the crc and sizes after the data of an entry whose local header was written with the data descriptor
+    // flag, as they were not known until its data was. Like a header it is never split across parts
+    void writeDataDescriptor(long crc, long compressedSize, long size) throws IOException
+    {
+        ensureSpace(DATA_DESCRIPTOR_SIZE);
+        ByteBuffer descriptor = buffer(DATA_DESCRIPTOR_SIZE);
+        descriptor.putInt(DATA_DESCRIPTOR_SIGNATURE);
+        descriptor.putInt((int) crc);
+        descriptor.putInt((int) compressedSize);
+        descriptor.putInt((int) size);
+        descriptor.flip();
+        write(descriptor);
+    }
+
+    // writes entry data, carrying on into the next part whenever the current one is full
+    void writeData(ByteBuffer data) throws IOException
+    {
+        while (data.hasRemaining()) {
+            long space = ensureSpace(1);
+            int count = (int) Math.min(space, data.remaining());
+            ByteBuffer slice = data.duplicate();
+            slice.limit(slice.position() + count);
+            while (slice.hasRemaining())
+                volumePosition += volume.write(slice);
+            data.position(data.position() + count);
+        }
+    }
+
+    // starts a new part if the current one does not have room for the given number of bytes. Returns the space left
+    private long ensureSpace(long required) throws IOException
+    {
+        if (volumePosition + required > splitSize && volumePosition > 0)
+            openVolume();
+        return splitSize - volumePosition;
+    }
+
+    private void write(ByteBuffer buffer) throws IOException
+    {
+        while (buffer.hasRemaining())
+            volumePosition += volume.write(buffer);
+    }
+
+    private void openVolume() throws IOException
+    {
+        closeVolume();
+
+        String zipPath = zipFile.getPath();
+        String basePath = zipPath.substring(0, zipPath.length() - ".zip".length());
+        File part = new File(String.format("%s.z%02d", basePath, volumes.size() + 1));
+        part.delete();
+
+        volumes.add(part);
+        volumeFile = new RandomAccessFile(part, "rw");
+        volume = volumeFile.getChannel();
+        volumePosition = 0;
+    }
+
+    private void closeVolume() throws IOException
+    {
+        if (volumeFile != null) {
+            volume.force(true);
+            volumeFile.close();
+            volumeFile = null;
+            volume = null;
+        }
+    }
+
+    private static ByteBuffer buffer(int size)
+    {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
@@ -0,0 +1,60 @@
+package org.endeavourhealth.tppddsuploader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+// re-splits a large zip into spanned parts by copying each entry's compressed data straight from the source
+// archive, so nothing is extracted to disk and nothing is inflated or deflated again
+class StreamingZipSplitter {
+
+    // true if the zip can be split by copying its entries as is, i.e. it is not zip64, already split or encrypted
+    static boolean canSplit(File sourceZip)
+    {
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(sourceZip);
+            return ZipCentralDirectory.read(in.getChannel()).isRawCopySupported();
+        } catch (IOException ex) {
+            System.out.println(String.format("Zip file %s cannot be streamed into split parts => %s", sourceZip.getPath(), ex.getMessage()));
+            return false;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    // writes the entries of sourceZip into split parts of targetZip (.z01, .z02 ... .zip). If anything fails the
+    // parts written so far are removed and the source is left untouched
+    static List<File> split(File sourceZip, File targetZip, long splitSize) throws IOException
+    {
+        FileInputStream in = new FileInputStream(sourceZip);
+        SplitZipWriter writer = null;
+        try {
+            FileChannel source = in.getChannel();
+            ZipCentralDirectory centralDirectory = ZipCentralDirectory.read(source);
+
+            writer = new SplitZipWriter(targetZip, splitSize);
+            for (ZipCentralDirectory.Entry entry : centralDirectory.getEntries()) {
+                writer.copyRawEntry(entry, source);
+            }
+            return writer.finish();
+        } finally {
+            if (writer != null)
+                writer.close();
+            closeQuietly(in);
+        }
+    }
+
+    private static void closeQuietly(FileInputStream in)
+    {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException ex) {
+                System.out.println("Unable to close zip file => " + ex.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package org.endeavourhealth.tppddsuploader;
+
+// thrown when the upload for an organisation has to stop so that no newer files are uploaded out of sequence, e.g. a
+// folder failed to upload or a large zip could not be split.  A one-shot run exits with 99, the daemon tries again later
+class UploadAbortedException extends RuntimeException {
+
+    UploadAbortedException(String message)
+    {
+        super(message);
+    }
+}
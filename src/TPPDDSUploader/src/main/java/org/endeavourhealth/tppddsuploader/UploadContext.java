@@ -0,0 +1,125 @@
+package org.endeavourhealth.tppddsuploader;
+
+import java.io.File;
+import java.io.IOException;
+
+// the settings and shared components of one organisation's upload run, passed to each file batch upload
+class UploadContext {
+
+    private final char mode;
+    private final String rootDir;
+    private final String hookKey;
+    private final String orgId;
+    private final String serviceBaseUri;
+    private final HttpUploadTransport transport;
+    private final AuthSessionManager authSession;
+    private final RetryPolicy retryPolicy;
+    private final ChunkedUploadClient chunkedClient;
+    private final DeltaSyncClient deltaClient;
+    private final UploadMetrics metrics;
+    private final ScanIndex scanIndex;
+    private final AdaptiveUploadController uploadController;
+    private final DuplicateUploadFilter duplicateFilter;
+
+    UploadContext(char mode, String rootDir, String hookKey, String orgId, String serviceBaseUri,
+                  HttpUploadTransport transport, AuthSessionManager authSession, RetryPolicy retryPolicy,
+                  ChunkedUploadClient chunkedClient, DeltaSyncClient deltaClient, UploadMetrics metrics, ScanIndex scanIndex,
+                  AdaptiveUploadController uploadController, DuplicateUploadFilter duplicateFilter)
+    {
+        this.mode = mode;
+        this.rootDir = rootDir;
+        this.hookKey = hookKey;
+        this.orgId = orgId;
+        this.serviceBaseUri = serviceBaseUri;
+        this.transport = transport;
+        this.authSession = authSession;
+        this.retryPolicy = retryPolicy;
+        this.chunkedClient = chunkedClient;
+        this.deltaClient = deltaClient;
+        this.metrics = metrics;
+        this.scanIndex = scanIndex;
+        this.uploadController = uploadController;
+        this.duplicateFilter = duplicateFilter;
+    }
+
+    char getMode() {
+        return mode;
+    }
+
+    String getRootDir() {
+        return rootDir;
+    }
+
+    String getHookKey() {
+        return hookKey;
+    }
+
+    String getOrgId() {
+        return orgId;
+    }
+
+    String getServiceBaseUri() {
+        return serviceBaseUri;
+    }
+
+    HttpUploadTransport getTransport() {
+        return transport;
+    }
+
+    AuthSessionManager getAuthSession() {
+        return authSession;
+    }
+
+    RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    // null unless the chunked upload protocol is in use
+    ChunkedUploadClient getChunkedClient() {
+        return chunkedClient;
+    }
+
+    // null unless the delta upload protocol is in use
+    DeltaSyncClient getDeltaClient() {
+        return deltaClient;
+    }
+
+    UploadMetrics getMetrics() {
+        return metrics;
+    }
+
+    ScanIndex getScanIndex() {
+        return scanIndex;
+    }
+
+    AdaptiveUploadController getUploadController() {
+        return uploadController;
+    }
+
+    // null unless duplicate uploads are being filtered out
+    DuplicateUploadFilter getDuplicateFilter() {
+        return duplicateFilter;
+    }
+
+    // the size over which each zip is split into parts before upload.  Only a zip which will be sent as a delta is
+    // left whole; one the delta protocol cannot read, or any zip if the service does not take deltas or cannot be
+    // asked, is split as usual
+    HelperUtils.ZipSplitSize zipSplitSize()
+    {
+        final long zipPartBytes = uploadController.zipPartBytes();
+        if (deltaClient == null)
+            return HelperUtils.fixedZipSplitSize(zipPartBytes);
+
+        return new HelperUtils.ZipSplitSize() {
+            public long of(File zipFile) {
+                if (zipFile.length() <= zipPartBytes)
+                    return zipPartBytes;
+                try {
+                    return deltaClient.sendsAsDelta(orgId, authSession.getAuthorizationHeader(), zipFile) ? Long.MAX_VALUE : zipPartBytes;
+                } catch (IOException ex) {
+                    return zipPartBytes;
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,13 @@
+package org.endeavourhealth.tppddsuploader;
+
+// thrown when the folders not yet uploaded are better left for the next run than retried now, e.g. the upload service
+// or Keycloak keeps failing, or a zip left whole to go as a delta can no longer be sent as one and has to be split.
+// Nothing is out of sequence, so unlike UploadAbortedException a one-shot run does not exit with 99, and the daemon
+// tries again on its next pass
+class UploadDeferredException extends RuntimeException {
+
+    UploadDeferredException(String message)
+    {
+        super(message);
+    }
+}
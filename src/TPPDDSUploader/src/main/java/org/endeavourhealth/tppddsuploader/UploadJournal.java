@@ -0,0 +1,192 @@
+package org.endeavourhealth.tppddsuploader;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+// append only on-disk record of the chunks acknowledged by the upload service for the files of one folder.
+// Each line is written and synced as soon as the server acknowledges a chunk, so after a failed request or a crash
+// an upload can resume from the last acknowledged chunk.  Lines are tab separated:
+//   CHUNK  <upload path>  <upload id>  <file size>  <file modified>  <offset>  <length>  <chunk sha-256>
+//   DONE   <upload path>  <upload id>  <file size>  <file modified>
+class UploadJournal {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String CHUNK = "CHUNK";
+    private static final String DONE = "DONE";
+
+    private final File journalFile;
+    private final Map<String, FileProgress> progress = new HashMap<String, FileProgress>();
+
+    private UploadJournal(File journalFile)
+    {
+        this.journalFile = journalFile;
+    }
+
+    // opens (or creates) the journal for the folder in the journal directory, replaying any earlier progress
+    static UploadJournal open(File journalDir, File folder) throws IOException
+    {
+        if (!journalDir.isDirectory() && !journalDir.mkdirs())
+            throw new IOException("Unable to create upload journal directory " + journalDir.getPath());
+
+        UploadJournal journal = new UploadJournal(new File(journalDir, sha256Hex(folder.getAbsolutePath()) + ".journal"));
+        journal.replay();
+        return journal;
+    }
+
+    // the progress of the file so far. If the file has changed since it was journalled, it starts again from zero
+    synchronized FileProgress start(File file, String uploadPath)
+    {
+        FileProgress fileProgress = progress.get(uploadPath);
+        if (fileProgress == null || fileProgress.fileSize != file.length() || fileProgress.fileModified != file.lastModified()) {
+            fileProgress = new FileProgress(uploadPath, uploadId(file, uploadPath), file.length(), file.lastModified());
+            progress.put(uploadPath, fileProgress);
+        }
+        return fileProgress;
+    }
+
+    synchronized void chunkAcknowledged(FileProgress fileProgress, long offset, long length, String chunkSha256) throws IOException
+    {
+        append(CHUNK + "\t" + fileProgress.describe() + "\t" + offset + "\t" + length + "\t" + chunkSha256);
+        if (offset <= fileProgress.acknowledgedOffset)
+            fileProgress.acknowledgedOffset = Math.max(fileProgress.acknowledgedOffset, offset + length);
+    }
+
+    synchronized void fileCompleted(FileProgress fileProgress) throws IOException
+    {
+        append(DONE + "\t" + fileProgress.describe());
+        fileProgress.acknowledgedOffset = fileProgress.fileSize;
+        fileProgress.completed = true;
+    }
+
+    // removes the journal once every file in the folder has been uploaded
+    synchronized void delete()
+    {
+        progress.clear();
+        journalFile.delete();
+    }
+
+    private void replay() throws IOException
+    {
+        if (!journalFile.exists())
+            return;
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), UTF8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length < 5)
+                    continue;   // a line torn by a crash part way through writing it
+
+                try {
+                    String uploadPath = fields[1];
+                    long fileSize = Long.parseLong(fields[3]);
+                    long fileModified = Long.parseLong(fields[4]);
+
+                    FileProgress fileProgress = progress.get(uploadPath);
+                    if (fileProgress == null || !fileProgress.uploadId.equals(fields[2])) {
+                        fileProgress = new FileProgress(uploadPath, fields[2], fileSize, fileModified);
+                        progress.put(uploadPath, fileProgress);
+                    }
+
+                    if (fields[0].equals(DONE)) {
+                        fileProgress.acknowledgedOffset = fileSize;
+                        fileProgress.completed = true;
+                    } else if (fields[0].equals(CHUNK) && fields.length >= 8) {
+                        long offset = Long.parseLong(fields[5]);
+                        long length = Long.parseLong(fields[6]);
+                        if (offset <= fileProgress.acknowledgedOffset)
+                            fileProgress.acknowledgedOffset = Math.max(fileProgress.acknowledgedOffset, offset + length);
+                    }
+                } catch (NumberFormatException ex) {
+                    // ignore a corrupt line, the server is asked for its offset anyway
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void append(String line) throws IOException
+    {
+        FileOutputStream out = new FileOutputStream(journalFile, true);
+        try {
+            out.write((line + "\n").getBytes(UTF8));
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+
+    // a stable id for the upload of this version of the file, so the server can match up resumed chunks
+    private static String uploadId(File file, String uploadPath)
+    {
+        return sha256Hex(uploadPath + "|" + file.length() + "|" + file.lastModified()).substring(0, 32);
+    }
+
+    static String sha256Hex(String value)
+    {
+        return toHex(sha256().digest(value.getBytes(UTF8)));
+    }
+
+    static MessageDigest sha256()
+    {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is not available", ex);
+        }
+    }
+
+    static String toHex(byte[] bytes)
+    {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+            sb.append(String.format("%02x", b & 0xFF));
+        return sb.toString();
+    }
+
+    static class FileProgress {
+        private final String uploadPath;
+        private final String uploadId;
+        private final long fileSize;
+        private final long fileModified;
+        private long acknowledgedOffset = 0;
+        private boolean completed = false;
+
+        FileProgress(String uploadPath, String uploadId, long fileSize, long fileModified) {
+            this.uploadPath = uploadPath;
+            this.uploadId = uploadId;
+            this.fileSize = fileSize;
+            this.fileModified = fileModified;
+        }
+
+        String getUploadPath() {
+            return uploadPath;
+        }
+
+        String getUploadId() {
+            return uploadId;
+        }
+
+        long getFileSize() {
+            return fileSize;
+        }
+
+        long getAcknowledgedOffset() {
+            return acknowledgedOffset;
+        }
+
+        boolean isCompleted() {
+            return completed;
+        }
+
+        private String describe() {
+            return uploadPath + "\t" + uploadId + "\t" + fileSize + "\t" + fileModified;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package org.endeavourhealth.tppddsuploader;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+// append only record of the file contents the upload service has acknowledged for an organisation, by sha-256.  A
+// file whose hash is in the ledger has very likely been sent before, e.g. an unchanged mapping csv or a part re-sent
+// by a retry, so it is worth asking the service whether it still holds it before sending it again.  Lines are tab
+// separated: <sha-256>  <file size>  <acknowledged time>  <upload path>.  Entries older than RETENTION_DAYS are
+// dropped when the ledger is opened
+class UploadLedger {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final long RETENTION_MILLIS = 90L * 24 * 60 * 60 * 1000;
+
+    private final File ledgerFile;
+    private final Map<String, Long> acknowledged = new HashMap<String, Long>();
+
+    private UploadLedger(File ledgerFile)
+    {
+        this.ledgerFile = ledgerFile;
+    }
+
+    static UploadLedger open(File ledgerDir, String orgId) throws IOException
+    {
+        if (!ledgerDir.isDirectory() && !ledgerDir.mkdirs())
+            throw new IOException("Unable to create upload ledger directory " + ledgerDir.getPath());
+
+        UploadLedger ledger = new UploadLedger(new File(ledgerDir, orgId.replaceAll("[^A-Za-z0-9_\\-]", "_") + ".ledger"));
+        ledger.load();
+        return ledger;
+    }
+
+    // whether content with this hash and size has been acknowledged by the service before
+    synchronized boolean contains(String sha256, long size)
+    {
+        Long acknowledgedSize = acknowledged.get(sha256);
+        return acknowledgedSize != null && acknowledgedSize == size;
+    }
+
+    synchronized void acknowledged(String sha256, long size, String uploadPath) throws IOException
+    {
+        if (contains(sha256, size))
+            return;
+
+        acknowledged.put(sha256, size);
+        FileOutputStream out = new FileOutputStream(ledgerFile, true);
+        try {
+            out.write((sha256 + "\t" + size + "\t" + System.currentTimeMillis() + "\t" + uploadPath + "\n").getBytes(UTF8));
+        } finally {
+            out.close();
+        }
+    }
+
+    private void load() throws IOException
+    {
+        if (!ledgerFile.exists())
+            return;
+
+        long oldest = System.currentTimeMillis() - RETENTION_MILLIS;
+        StringBuilder kept = new StringBuilder();
+        boolean expired = false;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(ledgerFile), UTF8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                try {
+                    if (fields.length < 4 || Long.parseLong(fields[2]) < oldest) {
+                        expired = true;
+                        continue;
+                    }
+                    acknowledged.put(fields[0], Long.parseLong(fields[1]));
+                    kept.append(line).append('\n');
+                } catch (NumberFormatException ex) {
+                    expired = true;   // a line torn by a crash part way through writing it
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        if (expired) {
+            File tempFile = new File(ledgerFile.getPath() + ".tmp");
+            OutputStream out = new FileOutputStream(tempFile);
+            try {
+                out.write(kept.toString().getBytes(UTF8));
+            } finally {
+                out.close();
+            }
+            ledgerFile.delete();
+            if (!tempFile.renameTo(ledgerFile))
+                throw new IOException("Unable to replace the upload ledger " + ledgerFile.getPath());
+        }
+    }
+}
@@ -0,0 +1,326 @@
+package org.endeavourhealth.tppddsuploader;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.*;
+
+// counters, phase timers and histograms for one organisation's upload run. At the end of the run a JSON report is
+// written into the Archived folder, and a line appended to a CSV file there so throughput can be trended
+class UploadMetrics {
+
+    static final String PHASE_SCAN = "scan";
+    static final String PHASE_VALIDATE = "validate";
+    static final String PHASE_SPLIT = "split";
+    static final String PHASE_AUTH = "auth";
+    static final String PHASE_UPLOAD = "upload";
+    static final String PHASE_DELETE = "delete";
+    static final String[] PHASES = {PHASE_SCAN, PHASE_VALIDATE, PHASE_SPLIT, PHASE_AUTH, PHASE_UPLOAD, PHASE_DELETE};
+
+    static final String FILES_UPLOADED = "filesUploaded";
+    static final String BYTES_UPLOADED = "bytesUploaded";
+    static final String BATCHES_UPLOADED = "batchesUploaded";
+    static final String BATCH_RETRIES = "batchRetries";
+    static final String BATCHES_FAILED = "batchesFailed";
+    static final String FOLDERS_UPLOADED = "foldersUploaded";
+    static final String FOLDERS_INVALID = "foldersInvalid";
+    static final String ZIPS_SPLIT = "zipsSplit";
+    static final String FILES_DEDUPLICATED = "filesDeduplicated";
+    static final String BYTES_DEDUPLICATED = "bytesDeduplicated";
+    static final String FILES_VERIFIED = "filesVerified";
+    static final String FILES_DELTA_SYNCED = "filesDeltaSynced";
+    static final String BYTES_DELTA_SAVED = "bytesDeltaSaved";
+    static final String UPLOADS_DEFERRED = "uploadsDeferred";
+    static final String[] COUNTERS = {FILES_UPLOADED, BYTES_UPLOADED, BATCHES_UPLOADED, BATCH_RETRIES, BATCHES_FAILED,
+                                      FOLDERS_UPLOADED, FOLDERS_INVALID, ZIPS_SPLIT, FILES_DEDUPLICATED, BYTES_DEDUPLICATED,
+                                      FILES_VERIFIED, FILES_DELTA_SYNCED, BYTES_DELTA_SAVED, UPLOADS_DEFERRED};
+
+    private static final String REPORT_PREFIX = "upload-report-";
+    private static final String TREND_FILE = "upload-report.csv";
+    private static final int REPORTS_KEPT = 30;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final long[] LATENCY_BUCKETS_MILLIS = {250, 1000, 5000, 15000, 30000, 60000, 300000, 900000, 3600000};
+    private static final long[] SIZE_BUCKETS_BYTES = {65536, 1048576, 5242880, 10485760, 52428800, 104857600, 524288000};
+
+    private final String orgId;
+    private final long runStarted = System.currentTimeMillis();
+    private long runFinished = 0;
+    private final Map<String, Long> counters = new LinkedHashMap<String, Long>();
+    private final Map<String, Histogram> phaseTimes = new LinkedHashMap<String, Histogram>();
+    private final Histogram batchLatency = new Histogram(LATENCY_BUCKETS_MILLIS);
+    private final Histogram batchSize = new Histogram(SIZE_BUCKETS_BYTES);
+    private long uploadMillis = 0;
+    private final List<PartDigest> fileDigests = new ArrayList<PartDigest>();
+
+    UploadMetrics(String orgId)
+    {
+        this.orgId = orgId;
+        for (String counter : COUNTERS)
+            counters.put(counter, 0L);
+        for (String phase : PHASES)
+            phaseTimes.put(phase, new Histogram(LATENCY_BUCKETS_MILLIS));
+    }
+
+    synchronized void increment(String counter, long delta)
+    {
+        Long value = counters.get(counter);
+        counters.put(counter, (value == null ? 0 : value) + delta);
+    }
+
+    synchronized long getCounter(String counter)
+    {
+        return counters.get(counter);
+    }
+
+    long startTimer()
+    {
+        return System.nanoTime();
+    }
+
+    // records the time since startTimer against the phase
+    synchronized void stopTimer(String phase, long timerStart)
+    {
+        phaseTimes.get(phase).record((System.nanoTime() - timerStart) / 1000000);
+    }
+
+    // records a successful batch POST, its size and how long it took
+    synchronized void batchUploaded(int fileCount, long bytes, long millis)
+    {
+        increment(BATCHES_UPLOADED, 1);
+        increment(FILES_UPLOADED, fileCount);
+        increment(BYTES_UPLOADED, bytes);
+        batchLatency.record(millis);
+        batchSize.record(bytes);
+        uploadMillis += millis;
+    }
+
+    // records the digests of the files of an uploaded batch, for the report
+    synchronized void filesDigested(List<PartDigest> digests)
+    {
+        for (PartDigest digest : digests) {
+            fileDigests.add(digest);
+            if (digest.isVerified())
+                increment(FILES_VERIFIED, 1);
+        }
+    }
+
+    synchronized void runFinished()
+    {
+        runFinished = System.currentTimeMillis();
+    }
+
+    // bytes uploaded per second of upload time, in MB/s
+    synchronized double throughputMBps()
+    {
+        if (uploadMillis == 0)
+            return 0;
+        return (counters.get(BYTES_UPLOADED) / 1048576.0) / (uploadMillis / 1000.0);
+    }
+
+    // writes the JSON report for this run and appends the trend line, keeping the most recent reports only
+    synchronized void writeReport(File reportDir) throws IOException
+    {
+        if (!reportDir.isDirectory() && !reportDir.mkdirs())
+            throw new IOException("Unable to create report directory " + reportDir.getPath());
+
+        String runTime = new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date(runStarted));
+        File reportFile = new File(reportDir, REPORT_PREFIX + runTime + ".json");
+        writeFile(reportFile, toJson(), false);
+
+        // a trend file with different columns, from an earlier version, is kept aside rather than appended to
+        File trendFile = new File(reportDir, TREND_FILE);
+        if (trendFile.exists() && !csvHeader().equals(readFirstLine(trendFile) + "\n"))
+            trendFile.renameTo(new File(reportDir, TREND_FILE + "." + runTime));
+        if (!trendFile.exists())
+            writeFile(trendFile, csvHeader(), false);
+        writeFile(trendFile, csvLine(), true);
+
+        File[] reports = reportDir.listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().startsWith(REPORT_PREFIX) && file.getName().endsWith(".json");
+            }
+        });
+        if (reports != null && reports.length > REPORTS_KEPT) {
+            Arrays.sort(reports);
+            for (int i = 0; i < reports.length - REPORTS_KEPT; i++)
+                reports[i].delete();
+        }
+    }
+
+    synchronized String toJson()
+    {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"organisationId\": \"").append(escape(orgId)).append("\",\n");
+        json.append("  \"runStarted\": \"").append(isoDate(runStarted)).append("\",\n");
+        json.append("  \"runFinished\": \"").append(isoDate(finishedTime())).append("\",\n");
+        json.append("  \"durationMillis\": ").append(finishedTime() - runStarted).append(",\n");
+        json.append("  \"throughputMBps\": ").append(String.format(Locale.ROOT, "%.3f", throughputMBps())).append(",\n");
+        json.append("  \"counters\": {");
+        String separator = "\n";
+        for (Map.Entry<String, Long> counter : counters.entrySet()) {
+            json.append(separator).append("    \"").append(counter.getKey()).append("\": ").append(counter.getValue());
+            separator = ",\n";
+        }
+        json.append("\n  },\n");
+        json.append("  \"phasesMillis\": {");
+        separator = "\n";
+        for (Map.Entry<String, Histogram> phase : phaseTimes.entrySet()) {
+            json.append(separator).append("    \"").append(phase.getKey()).append("\": ").append(phase.getValue().toJson());
+            separator = ",\n";
+        }
+        json.append("\n  },\n");
+        json.append("  \"batchLatencyMillis\": ").append(batchLatency.toJson()).append(",\n");
+        json.append("  \"batchSizeBytes\": ").append(batchSize.toJson()).append(",\n");
+        json.append("  \"fileDigests\": [");
+        separator = "\n";
+        for (PartDigest digest : fileDigests) {
+            json.append(separator).append("    {\"path\": \"").append(escape(digest.getUploadPath()))
+                .append("\", \"sha256\": \"").append(digest.getSha256())
+                .append("\", \"bytes\": ").append(digest.getSize())
+                .append(", \"verified\": ").append(digest.isVerified()).append("}");
+            separator = ",\n";
+        }
+        json.append(fileDigests.isEmpty() ? "]\n" : "\n  ]\n");
+        json.append("}\n");
+        return json.toString();
+    }
+
+    // the metrics in the prometheus text format, for the optional scrape endpoint
+    synchronized String toPrometheus()
+    {
+        String labels = "{organisation=\"" + escape(orgId) + "\"}";
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, Long> counter : counters.entrySet()) {
+            String name = "tppdds_" + snakeCase(counter.getKey()) + "_total";
+            text.append("# TYPE ").append(name).append(" counter\n");
+            text.append(name).append(labels).append(' ').append(counter.getValue()).append('\n');
+        }
+        text.append("# TYPE tppdds_throughput_mbps gauge\n");
+        text.append("tppdds_throughput_mbps").append(labels).append(' ').append(String.format(Locale.ROOT, "%.3f", throughputMBps())).append('\n');
+        for (Map.Entry<String, Histogram> phase : phaseTimes.entrySet())
+            phase.getValue().appendPrometheus(text, "tppdds_phase_" + phase.getKey() + "_millis", orgId);
+        batchLatency.appendPrometheus(text, "tppdds_batch_latency_millis", orgId);
+        batchSize.appendPrometheus(text, "tppdds_batch_size_bytes", orgId);
+        return text.toString();
+    }
+
+    private String csvHeader()
+    {
+        StringBuilder header = new StringBuilder("organisationId,runStarted,durationMillis,throughputMBps");
+        for (String counter : COUNTERS)
+            header.append(',').append(counter);
+        for (String phase : PHASES)
+            header.append(',').append(phase).append("Millis");
+        return header.append('\n').toString();
+    }
+
+    private String csvLine()
+    {
+        StringBuilder line = new StringBuilder();
+        line.append(orgId).append(',').append(isoDate(runStarted)).append(',').append(finishedTime() - runStarted)
+                .append(',').append(String.format(Locale.ROOT, "%.3f", throughputMBps()));
+        for (String counter : COUNTERS)
+            line.append(',').append(counters.get(counter));
+        for (String phase : PHASES)
+            line.append(',').append(phaseTimes.get(phase).sum);
+        return line.append('\n').toString();
+    }
+
+    private long finishedTime()
+    {
+        return runFinished > 0 ? runFinished : System.currentTimeMillis();
+    }
+
+    private static void writeFile(File file, String content, boolean append) throws IOException
+    {
+        OutputStream out = new FileOutputStream(file, append);
+        try {
+            out.write(content.getBytes(UTF8));
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String readFirstLine(File file) throws IOException
+    {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+        try {
+            String line = reader.readLine();
+            return (line == null) ? "" : line;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static String isoDate(long time)
+    {
+        SimpleDateFormat iso = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+        return iso.format(new Date(time));
+    }
+
+    private static String escape(String value)
+    {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    private static String snakeCase(String name)
+    {
+        return name.replaceAll("([a-z])([A-Z])", "$1_$2").toLowerCase();
+    }
+
+    // a fixed bucket histogram with count, sum, min and max
+    static class Histogram {
+        private final long[] bounds;
+        private final long[] bucketCounts;
+        private long count = 0;
+        private long sum = 0;
+        private long min = Long.MAX_VALUE;
+        private long max = 0;
+
+        Histogram(long[] bounds) {
+            this.bounds = bounds;
+            this.bucketCounts = new long[bounds.length + 1];
+        }
+
+        void record(long value) {
+            int bucket = 0;
+            while (bucket < bounds.length && value > bounds[bucket])
+                bucket++;
+            bucketCounts[bucket]++;
+            count++;
+            sum += value;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+
+        String toJson() {
+            StringBuilder json = new StringBuilder();
+            json.append("{\"count\": ").append(count)
+                    .append(", \"sum\": ").append(sum)
+                    .append(", \"min\": ").append(count == 0 ? 0 : min)
+                    .append(", \"max\": ").append(max)
+                    .append(", \"mean\": ").append(count == 0 ? 0 : sum / count)
+                    .append(", \"buckets\": {");
+            for (int i = 0; i < bucketCounts.length; i++) {
+                if (i > 0)
+                    json.append(", ");
+                json.append("\"").append(i < bounds.length ? "le_" + bounds[i] : "inf").append("\": ").append(bucketCounts[i]);
+            }
+            return json.append("}}").toString();
+        }
+
+        void appendPrometheus(StringBuilder text, String name, String orgId) {
+            String organisation = "organisation=\"" + escape(orgId) + "\"";
+            text.append("# TYPE ").append(name).append(" histogram\n");
+            long cumulative = 0;
+            for (int i = 0; i < bucketCounts.length; i++) {
+                cumulative += bucketCounts[i];
+                String le = i < bounds.length ? Long.toString(bounds[i]) : "+Inf";
+                text.append(name).append("_bucket{").append(organisation).append(",le=\"").append(le).append("\"} ").append(cumulative).append('\n');
+            }
+            text.append(name).append("_sum{").append(organisation).append("} ").append(sum).append('\n');
+            text.append(name).append("_count{").append(organisation).append("} ").append(count).append('\n');
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package org.endeavourhealth.tppddsuploader;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Arrays.asList;
+
+// prepares the folders of an upload pass while earlier folders are uploading.  The folders are listed up front, then
+// each one passes in order through three stages on their own threads: its zips are checked, its large zips split
+// and its files hashed, and then the folder is validated.  The stages are joined by bounded queues, so none gets more
+// than pipelineDepth folders ahead of the next, and the upload takes the folders from the last queue in the order
+// they were listed.  If a stage fails, e.g. a large zip cannot be split, the failure is handed on in the queues after
+// the folders before it, so they are still uploaded, and is thrown to the upload once they have been taken
+class UploadPipeline {
+
+    private static final long QUEUE_POLL_MILLIS = 100;
+    private static final PreparedFolder END = new PreparedFolder(null, false, null);
+
+    private final UploadContext context;
+    private final int depth;
+    private final boolean anyUploadFiles;
+    private final BlockingQueue<PreparedFolder> listedFolders = new LinkedBlockingQueue<PreparedFolder>();
+    private final List<Stage> stages = new ArrayList<Stage>();
+    private BlockingQueue<PreparedFolder> preparedFolders = listedFolders;
+    private volatile boolean closed = false;
+
+    // the first stage to fail, or -1.  The stages before it stop preparing folders, as they would only be dropped
+    private volatile int failedStage = -1;
+
+    // a folder and the files in it, as it passes through the stages
+    static class PreparedFolder {
+        private final File folder;
+        private final boolean archived;
+        private List<File> files;
+        private boolean valid = true;
+        private Exception failure = null;
+
+        private PreparedFolder(File folder, boolean archived, List<File> files) {
+            this.folder = folder;
+            this.archived = archived;
+            this.files = files;
+        }
+
+        File getFolder() {
+            return folder;
+        }
+
+        List<File> getFiles() {
+            return files;
+        }
+
+        boolean isValid() {
+            return valid;
+        }
+    }
+
+    private UploadPipeline(UploadContext context, int depth, boolean anyUploadFiles)
+    {
+        this.context = context;
+        this.depth = depth;
+        this.anyUploadFiles = anyUploadFiles;
+    }
+
+    // lists the extract folders in rootDir and starts preparing them, archived folders first
+    static UploadPipeline start(final UploadContext context, int depth)
+    {
+        List<File> archivedFolders = new ArrayList<File>();
+        List<File> currentFolders = new ArrayList<File>();
+        Map<File, File[]> folderContents = new HashMap<File, File[]>();
+        HelperUtils.listExtractFolders(new File(context.getRootDir()), archivedFolders, currentFolders, folderContents);
+        final UploadMetrics metrics = context.getMetrics();
+
+        // splitting never removes files, so whether there is anything to upload is known from the listing
+        boolean anyUploadFiles = false;
+        for (File[] folderFiles : folderContents.values()) {
+            for (File f : folderFiles)
+                anyUploadFiles |= !f.isDirectory();
+        }
+
+        UploadPipeline pipeline = new UploadPipeline(context, depth, anyUploadFiles);
+        if (anyUploadFiles) {
+            for (File f : archivedFolders)
+                pipeline.listedFolders.add(new PreparedFolder(f, true, asList(folderContents.get(f))));
+            for (File f : currentFolders)
+                pipeline.listedFolders.add(new PreparedFolder(f, false, asList(folderContents.get(f))));
+        }
+        pipeline.listedFolders.add(END);
+
+        pipeline.addStage(pipeline.new Stage("zip-check") {
+            boolean process(PreparedFolder folder) {
+                long scanTimer = metrics.startTimer();
+                ZipValidationService.prevalidate(folder.files, context.getScanIndex());
+                metrics.stopTimer(UploadMetrics.PHASE_SCAN, scanTimer);
+                return true;
+            }
+        });
+        pipeline.addStage(pipeline.new Stage("zip-split") {
+            boolean process(PreparedFolder folder) {
+                long scanTimer = metrics.startTimer();
+                folder.files = HelperUtils.splitLargeZipFiles(folder.files, context.getHookKey(), context.getOrgId(), metrics,
+                        context.getScanIndex(), context.zipSplitSize());
+                if (context.getDuplicateFilter() != null)
+                    context.getDuplicateFilter().prepare(folder.files);
+                metrics.stopTimer(UploadMetrics.PHASE_SCAN, scanTimer);
+
+                // an archived folder with nothing left to upload is passed over, as in a staged scan
+                return !(folder.archived && folder.files.isEmpty());
+            }
+        });
+        pipeline.addStage(pipeline.new Stage("folder-validation") {
+            boolean process(PreparedFolder folder) {
+                long validateTimer = metrics.startTimer();
+                folder.valid = HelperUtils.checkValidUploadFiles(context.getOrgId(), folder.folder, context.getHookKey(), context.getScanIndex());
+                metrics.stopTimer(UploadMetrics.PHASE_VALIDATE, validateTimer);
+                return true;
+            }
+        });
+
+        for (Stage stage : pipeline.stages)
+            stage.start();
+        return pipeline;
+    }
+
+    // whether any folder held a file to upload when the folders were listed
+    boolean hasUploadFiles()
+    {
+        return anyUploadFiles;
+    }
+
+    // the next prepared folder in the order they were listed, or null when there are none left.  Throws the
+    // failure of a stage once the folders before it have been taken
+    PreparedFolder next() throws Exception
+    {
+        PreparedFolder folder = take(preparedFolders);
+        if (folder == END)
+            return null;
+        if (folder.failure != null)
+            throw folder.failure;
+        return folder;
+    }
+
+    // stops the stages once they have finished the folder they are on, so a zip is never left part split, and waits
+    // for them
+    void close() throws InterruptedException
+    {
+        closed = true;
+        for (Stage stage : stages)
+            stage.join();
+    }
+
+    private void addStage(Stage stage)
+    {
+        stages.add(stage);
+        preparedFolders = stage.out;
+    }
+
+    // the queues are polled so that a closed pipeline is noticed by a stage waiting on either side of it
+    private PreparedFolder take(BlockingQueue<PreparedFolder> queue) throws InterruptedException
+    {
+        PreparedFolder folder;
+        while ((folder = queue.poll(QUEUE_POLL_MILLIS, TimeUnit.MILLISECONDS)) == null) {
+            if (closed)
+                return END;
+        }
+        return folder;
+    }
+
+    private boolean put(BlockingQueue<PreparedFolder> queue, PreparedFolder folder) throws InterruptedException
+    {
+        while (!queue.offer(folder, QUEUE_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+            if (closed)
+                return false;
+        }
+        return true;
+    }
+
+    // takes folders from the queue of the stage before, and hands on the ones process() keeps.  A failure, in this
+    // stage or handed on from an earlier one, is handed on in turn, and the folders after it are dropped
+    private abstract class Stage extends Thread {
+        private final int index;
+        private final BlockingQueue<PreparedFolder> in;
+        private final BlockingQueue<PreparedFolder> out;
+
+        Stage(String name) {
+            super(name + "-" + context.getOrgId());
+            setDaemon(true);
+            this.index = stages.size();
+            this.in = preparedFolders;
+            this.out = new ArrayBlockingQueue<PreparedFolder>(Math.max(1, depth));
+        }
+
+        abstract boolean process(PreparedFolder folder) throws Exception;
+
+        public void run() {
+            try {
+                PreparedFolder folder;
+                boolean failed = false;
+                while ((folder = take(in)) != END) {
+                    if (failed || closed || (failedStage != -1 && index < failedStage))
+                        continue;
+                    if (folder.failure == null) {
+                        try {
+                            if (!process(folder))
+                                continue;
+                        } catch (Throwable ex) {
+                            folder = failure(ex);
+                        }
+                    }
+                    failed = folder.failure != null;
+                    if (!put(out, folder))
+                        return;
+                }
+                put(out, END);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private PreparedFolder failure(Throwable ex) {
+            synchronized (UploadPipeline.this) {
+                if (failedStage == -1)
+                    failedStage = index;
+            }
+            PreparedFolder failure = new PreparedFolder(null, false, null);
+            failure.failure = (ex instanceof Exception) ? (Exception) ex : new ExecutionException(ex);
+            return failure;
+        }
+    }
+}
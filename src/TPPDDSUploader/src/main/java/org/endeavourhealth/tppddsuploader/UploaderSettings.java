@@ -0,0 +1,265 @@
+package org.endeavourhealth.tppddsuploader;
+
+import java.io.File;
+
+// optional tuning settings for the uploader.  These are passed as system properties on the java command line,
+// e.g. java -Dtppdds.uploadThreads=4 -jar bin\tpp-dds-uploader.jar ..., so the positional arguments stay unchanged
+class UploaderSettings {
+
+    static final String ZIP_SPLIT_STREAM = "stream";
+    static final String ZIP_SPLIT_ZIP4J = "zip4j";
+    static final String ZIP_SPLIT_INDEPENDENT = "independent";
+    static final String ZIP_SPLIT_PARALLEL = "parallel";
+    static final String UPLOAD_PROTOCOL_MULTIPART = "multipart";
+    static final String UPLOAD_PROTOCOL_CHUNKED = "chunked";
+    static final String UPLOAD_PROTOCOL_DELTA = "delta";
+    static final String UPLOAD_COMPRESSION_NONE = "none";
+    static final String UPLOAD_COMPRESSION_AUTO = "auto";
+    static final String UPLOAD_COMPRESSION_GZIP = "gzip";
+    static final String BATCH_SIZING_FIXED = "fixed";
+    static final String BATCH_SIZING_ADAPTIVE = "adaptive";
+    static final String UPLOAD_DIGESTS_NONE = "none";
+    static final String UPLOAD_DIGESTS_SEND = "send";
+    static final String UPLOAD_DIGESTS_VERIFY = "verify";
+    static final String ZIP_VALIDATION_DIRECTORY = "directory";
+    static final String ZIP_VALIDATION_DEEP = "deep";
+    static final String HTTP_TRANSPORT_BLOCKING = "blocking";
+    static final String HTTP_TRANSPORT_NIO = "nio";
+    static final String RETRY_POLICY_IMMEDIATE = "immediate";
+    static final String RETRY_POLICY_BACKOFF = "backoff";
+
+    private static final String UPLOAD_THREADS = "tppdds.uploadThreads";
+    private static final String ALERT_DIGEST_SECONDS = "tppdds.alertDigestSeconds";
+    private static final String ZIP_SPLIT_MODE = "tppdds.zipSplitMode";
+    private static final String UPLOAD_SERVICE_URI = "tppdds.uploadServiceUri";
+    private static final String UPLOAD_PROTOCOL = "tppdds.uploadProtocol";
+    private static final String CHUNK_SIZE_KB = "tppdds.chunkSizeKb";
+    private static final String STATE_DIR = "tppdds.stateDir";
+    private static final String LOCAL_SERVER_PORT = "tppdds.localServerPort";
+    private static final String METRICS_PORT = "tppdds.metricsPort";
+    private static final String UPLOAD_COMPRESSION = "tppdds.uploadCompression";
+    private static final String WATCH_QUIET_SECONDS = "tppdds.watchQuietSeconds";
+    private static final String DAEMON_RESCAN_MINUTES = "tppdds.daemonRescanMinutes";
+    private static final String BATCH_SIZING = "tppdds.batchSizing";
+    private static final String UPLOAD_RATE_PROFILE = "tppdds.uploadRateProfile";
+    private static final String DEDUP_UPLOADS = "tppdds.dedupUploads";
+    private static final String ZIP_VALIDATION = "tppdds.zipValidation";
+    private static final String UPLOAD_DIGESTS = "tppdds.uploadDigests";
+    private static final String PIPELINE_DEPTH = "tppdds.pipelineDepth";
+    private static final String HTTP_TRANSPORT = "tppdds.httpTransport";
+    private static final String RETRY_POLICY = "tppdds.retryPolicy";
+    private static final String RETRY_BASE_SECONDS = "tppdds.retryBaseSeconds";
+    private static final String RETRY_MAX_SECONDS = "tppdds.retryMaxSeconds";
+
+    // number of file batches of a folder which are uploaded at the same time. 1 = one batch after another
+    static int uploadThreads()
+    {
+        return Math.max(1, intSetting(UPLOAD_THREADS, 1));
+    }
+
+    // how often queued Slack alerts are sent as a digest per organisation. 0 = send each alert as it is raised
+    static int alertDigestSeconds()
+    {
+        return Math.max(0, intSetting(ALERT_DIGEST_SECONDS, 10));
+    }
+
+    // how large zips are split into parts: stream = copy the compressed entries straight into the parts,
+    // zip4j = extract to a temp folder and re-zip it, independent = parts which are each a whole zip, parallel = deflate
+    // the entries again on every core
+    static String zipSplitMode()
+    {
+        String mode = stringSetting(ZIP_SPLIT_MODE, ZIP_SPLIT_STREAM).toLowerCase();
+        if (!mode.equals(ZIP_SPLIT_STREAM) && !mode.equals(ZIP_SPLIT_ZIP4J) && !mode.equals(ZIP_SPLIT_INDEPENDENT)
+                && !mode.equals(ZIP_SPLIT_PARALLEL)) {
+            System.out.println(String.format("Invalid setting %s=%s, using default of %s", ZIP_SPLIT_MODE, mode, ZIP_SPLIT_STREAM));
+            return ZIP_SPLIT_STREAM;
+        }
+        return mode;
+    }
+
+    // base URI of the machine-api upload service, e.g. to point the uploader at a LocalUploadServer
+    static String uploadServiceUri(String defaultUri)
+    {
+        String uri = stringSetting(UPLOAD_SERVICE_URI, defaultUri);
+        return uri.endsWith("/") ? uri : uri + "/";
+    }
+
+    // multipart = each batch is posted in one PostFile request, chunked = files are sent in resumable chunks, delta =
+    // extract zips are sent as the chunks changed since the last extract
+    static String uploadProtocol()
+    {
+        String protocol = stringSetting(UPLOAD_PROTOCOL, UPLOAD_PROTOCOL_MULTIPART).toLowerCase();
+        if (!protocol.equals(UPLOAD_PROTOCOL_MULTIPART) && !protocol.equals(UPLOAD_PROTOCOL_CHUNKED)
+                && !protocol.equals(UPLOAD_PROTOCOL_DELTA)) {
+            System.out.println(String.format("Invalid setting %s=%s, using default of %s", UPLOAD_PROTOCOL, protocol, UPLOAD_PROTOCOL_MULTIPART));
+            return UPLOAD_PROTOCOL_MULTIPART;
+        }
+        return protocol;
+    }
+
+    // whether csv and other uncompressed files are gzipped as they are posted: none, auto = if the service accepts it,
+    // gzip = always
+    static String uploadCompression()
+    {
+        String compression = stringSetting(UPLOAD_COMPRESSION, UPLOAD_COMPRESSION_NONE).toLowerCase();
+        if (!compression.equals(UPLOAD_COMPRESSION_NONE) && !compression.equals(UPLOAD_COMPRESSION_AUTO)
+                && !compression.equals(UPLOAD_COMPRESSION_GZIP)) {
+            System.out.println(String.format("Invalid setting %s=%s, using default of %s", UPLOAD_COMPRESSION, compression, UPLOAD_COMPRESSION_NONE));
+            return UPLOAD_COMPRESSION_NONE;
+        }
+        return compression;
+    }
+
+    // fixed = batches of 5 files and 10mb zip parts, adaptive = sized to the throughput and response times measured
+    static String batchSizing()
+    {
+        String sizing = stringSetting(BATCH_SIZING, BATCH_SIZING_FIXED).toLowerCase();
+        if (!sizing.equals(BATCH_SIZING_FIXED) && !sizing.equals(BATCH_SIZING_ADAPTIVE)) {
+            System.out.println(String.format("Invalid setting %s=%s, using default of %s", BATCH_SIZING, sizing, BATCH_SIZING_FIXED));
+            return BATCH_SIZING_FIXED;
+        }
+        return sizing;
+    }
+
+    // upload bandwidth limits by time of day in KB/s, e.g. 08:00-18:30=256,*=0. Unlimited by default
+    static RateSchedule uploadRateProfile()
+    {
+        String profile = stringSetting(UPLOAD_RATE_PROFILE, "");
+        try {
+            return RateSchedule.parse(profile);
+        } catch (IllegalArgumentException ex) {
+            System.out.println(String.format("Invalid setting %s=%s, uploads will not be limited => %s", UPLOAD_RATE_PROFILE, profile, ex.getMessage()));
+            return RateSchedule.unlimited();
+        }
+    }
+
+    // whether files the upload service already holds, by sha-256, are left out of the batches
+    static boolean dedupUploads()
+    {
+        return Boolean.parseBoolean(stringSetting(DEDUP_UPLOADS, "false"));
+    }
+
+    // how extract zips are checked: directory = read the central directory only (default), deep = also inflate and crc every entry
+    static String zipValidation()
+    {
+        String validation = stringSetting(ZIP_VALIDATION, ZIP_VALIDATION_DIRECTORY).toLowerCase();
+        if (!validation.equals(ZIP_VALIDATION_DIRECTORY) && !validation.equals(ZIP_VALIDATION_DEEP)) {
+            System.out.println(String.format("Invalid setting %s=%s, using default of %s", ZIP_VALIDATION, validation, ZIP_VALIDATION_DIRECTORY));
+            return ZIP_VALIDATION_DIRECTORY;
+        }
+        return validation;
+    }
+
+    // none = no digests (default), send = send file digests and fail a batch the service echoes different ones for,
+    // verify = also fail a batch unless the service echoes every digest
+    static String uploadDigests()
+    {
+        String digests = stringSetting(UPLOAD_DIGESTS, UPLOAD_DIGESTS_NONE).toLowerCase();
+        if (!digests.equals(UPLOAD_DIGESTS_NONE) && !digests.equals(UPLOAD_DIGESTS_SEND) && !digests.equals(UPLOAD_DIGESTS_VERIFY)) {
+            System.out.println(String.format("Invalid setting %s=%s, using default of %s", UPLOAD_DIGESTS, digests, UPLOAD_DIGESTS_NONE));
+            return UPLOAD_DIGESTS_NONE;
+        }
+        return digests;
+    }
+
+    // blocking = a thread writes each request (default), nio = one non-blocking reactor thread writes every request,
+    // sending files from their channels
+    static String httpTransport()
+    {
+        String transport = stringSetting(HTTP_TRANSPORT, HTTP_TRANSPORT_BLOCKING).toLowerCase();
+        if (!transport.equals(HTTP_TRANSPORT_BLOCKING) && !transport.equals(HTTP_TRANSPORT_NIO)) {
+            System.out.println(String.format("Invalid setting %s=%s, using default of %s", HTTP_TRANSPORT, transport, HTTP_TRANSPORT_BLOCKING));
+            return HTTP_TRANSPORT_BLOCKING;
+        }
+        return transport;
+    }
+
+    // how failed batch uploads are retried: immediate = at once, up to 5 times, backoff = after a jittered exponential
+    // backoff, within a retry budget, deferring the rest of the upload to the next run while the service is failing
+    static String retryPolicy()
+    {
+        String policy = stringSetting(RETRY_POLICY, RETRY_POLICY_IMMEDIATE).toLowerCase();
+        if (!policy.equals(RETRY_POLICY_IMMEDIATE) && !policy.equals(RETRY_POLICY_BACKOFF)) {
+            System.out.println(String.format("Invalid setting %s=%s, using default of %s", RETRY_POLICY, policy, RETRY_POLICY_IMMEDIATE));
+            return RETRY_POLICY_IMMEDIATE;
+        }
+        return policy;
+    }
+
+    // backoff retry policy: the longest wait before the first retry of a batch
+    static int retryBaseSeconds()
+    {
+        return Math.max(1, intSetting(RETRY_BASE_SECONDS, 10));
+    }
+
+    // backoff retry policy: the longest wait before any retry, and how long a failing service is left before it is tried again
+    static int retryMaxSeconds()
+    {
+        return Math.max(retryBaseSeconds(), intSetting(RETRY_MAX_SECONDS, 900));
+    }
+
+    static int chunkSizeBytes()
+    {
+        return Math.max(64, intSetting(CHUNK_SIZE_KB, 4096)) * 1024;
+    }
+
+    // where the uploader keeps its own state between runs, e.g. upload journals. Never under the data root folder,
+    // as anything there would be picked up as a file to upload
+    static File stateDir()
+    {
+        return new File(stringSetting(STATE_DIR, new File(System.getProperty("user.dir"), "state").getPath()));
+    }
+
+    static int localServerPort()
+    {
+        return intSetting(LOCAL_SERVER_PORT, 8090);
+    }
+
+    // localhost port for the /metrics scrape endpoint while the uploader runs. 0 = no endpoint
+    static int metricsPort()
+    {
+        return Math.max(0, intSetting(METRICS_PORT, 0));
+    }
+
+    // how many folders each preparation stage may get ahead of the upload: the zip check, zip split and folder
+    // validation then run on their own threads while earlier folders upload. 0 = prepare every folder first
+    static int pipelineDepth()
+    {
+        return Math.max(0, intSetting(PIPELINE_DEPTH, 0));
+    }
+
+    // daemon mode: how long a changed folder must go without further changes before it is checked for a complete extract
+    static int watchQuietSeconds()
+    {
+        return Math.max(1, intSetting(WATCH_QUIET_SECONDS, 30));
+    }
+
+    // daemon mode: the longest time between upload passes, in case a folder change was missed
+    static int daemonRescanMinutes()
+    {
+        return Math.max(1, intSetting(DAEMON_RESCAN_MINUTES, 60));
+    }
+
+    private static String stringSetting(String name, String defaultValue)
+    {
+        String value = System.getProperty(name);
+        if (value == null || value.trim().isEmpty())
+            return defaultValue;
+
+        return value.trim();
+    }
+
+    private static int intSetting(String name, int defaultValue)
+    {
+        String value = System.getProperty(name);
+        if (value == null || value.trim().isEmpty())
+            return defaultValue;
+
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException ex) {
+            System.out.println(String.format("Invalid setting %s=%s, using default of %d", name, value, defaultValue));
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package org.endeavourhealth.tppddsuploader;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+// reads the central directory of a zip file with positional reads, without touching any of the entry data.
+// Only plain (non zip64, non spanned) archives are supported, which covers the SRExtract.zip files TPP produce
+class ZipCentralDirectory {
+
+    static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+    static final int ZIP64_END_LOCATOR_SIGNATURE = 0x07064b50;
+    // the markers a spanned zip starts with, PK00 when it fitted in a single part
+    static final int SPLIT_SIGNATURE = 0x08074b50;
+    static final int SINGLE_SEGMENT_SIGNATURE = 0x30304b50;
+    static final int LOCAL_HEADER_SIZE = 30;
+    static final int CENTRAL_HEADER_SIZE = 46;
+    static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+
+    static final int FLAG_ENCRYPTED = 0x0001;
+    static final int FLAG_DATA_DESCRIPTOR = 0x0008;
+    static final int FLAG_UTF8 = 0x0800;
+
+    private static final int MAX_COMMENT_SIZE = 0xFFFF;
+    private static final long ZIP64_MARKER = 0xFFFFFFFFL;
+    private static final Charset CP437 = Charset.forName("Cp437");
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final List<Entry> entries;
+    private final long centralDirectoryOffset;
+
+    private ZipCentralDirectory(List<Entry> entries, long centralDirectoryOffset)
+    {
+        this.entries = entries;
+        this.centralDirectoryOffset = centralDirectoryOffset;
+    }
+
+    List<Entry> getEntries()
+    {
+        return entries;
+    }
+
+    long getCentralDirectoryOffset()
+    {
+        return centralDirectoryOffset;
+    }
+
+    // true if every entry can be copied as is, i.e. none are encrypted
+    boolean isRawCopySupported()
+    {
+        for (Entry entry : entries) {
+            if ((entry.flags & FLAG_ENCRYPTED) != 0)
+                return false;
+        }
+        return true;
+    }
+
+    // whether every entry can be read by openEntry, i.e. none is encrypted or compressed other than by deflate
+    boolean isInflateSupported()
+    {
+        for (Entry entry : entries) {
+            if ((entry.flags & FLAG_ENCRYPTED) != 0 || (entry.method != 0 && entry.method != 8))
+                return false;
+        }
+        return true;
+    }
+
+    static ZipCentralDirectory read(FileChannel channel) throws IOException
+    {
+        long fileSize = channel.size();
+        if (fileSize < END_OF_CENTRAL_DIRECTORY_SIZE)
+            throw new ZipException("File is too small to be a zip file");
+
+        // the end of central directory record is at the end of the file, followed by an optional comment
+        int tailSize = (int) Math.min(fileSize, END_OF_CENTRAL_DIRECTORY_SIZE + MAX_COMMENT_SIZE);
+        ByteBuffer tail = readFully(channel, fileSize - tailSize, tailSize);
+        int eocdIndex = -1;
+        for (int i = tailSize - END_OF_CENTRAL_DIRECTORY_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+                eocdIndex = i;
+                break;
+            }
+        }
+        if (eocdIndex == -1)
+            throw new ZipException("End of central directory record not found");
+
+        long eocdPosition = fileSize - tailSize + eocdIndex;
+        if (eocdPosition >= 20 && readFully(channel, eocdPosition - 20, 4).getInt(0) == ZIP64_END_LOCATOR_SIGNATURE)
+            throw new UnsupportedZipException("Zip64 archives are not supported");
+
+        int diskNumber = u16(tail, eocdIndex + 4);
+        int centralDirectoryDisk = u16(tail, eocdIndex + 6);
+        int entryCount = u16(tail, eocdIndex + 10);
+        long centralDirectorySize = u32(tail, eocdIndex + 12);
+        long centralDirectoryOffset = u32(tail, eocdIndex + 16);
+
+        if (diskNumber != 0 || centralDirectoryDisk != 0)
+            throw new UnsupportedZipException("Split zip archives are not supported");
+        if (centralDirectoryOffset == ZIP64_MARKER || centralDirectorySize == ZIP64_MARKER || entryCount == 0xFFFF)
+            throw new UnsupportedZipException("Zip64 archives are not supported");
+        if (centralDirectoryOffset + centralDirectorySize > eocdPosition)
+            throw new ZipException("Central directory is outside of the zip file");
+
+        ByteBuffer cd = readFully(channel, centralDirectoryOffset, (int) centralDirectorySize);
+        List<Entry> entries = new ArrayList<Entry>(entryCount);
+        int position = 0;
+        for (int i = 0; i < entryCount; i++) {
+            if (position + CENTRAL_HEADER_SIZE > cd.limit() || cd.getInt(position) != CENTRAL_HEADER_SIGNATURE)
+                throw new ZipException("Invalid central directory header for entry " + i);
+
+            Entry entry = new Entry();
+            entry.versionMadeBy = u16(cd, position + 4);
+            entry.versionNeeded = u16(cd, position + 6);
+            entry.flags = u16(cd, position + 8);
+            entry.method = u16(cd, position + 10);
+            entry.dosTime = u16(cd, position + 12);
+            entry.dosDate = u16(cd, position + 14);
+            entry.crc = u32(cd, position + 16);
+            entry.compressedSize = u32(cd, position + 20);
+            entry.size = u32(cd, position + 24);
+            int nameLength = u16(cd, position + 28);
+            int extraLength = u16(cd, position + 30);
+            int commentLength = u16(cd, position + 32);
+            entry.internalAttributes = u16(cd, position + 36);
+            entry.externalAttributes = u32(cd, position + 38);
+            entry.localHeaderOffset = u32(cd, position + 42);
+
+            int variableStart = position + CENTRAL_HEADER_SIZE;
+            if (variableStart + nameLength + extraLength + commentLength > cd.limit())
+                throw new ZipException("Truncated central directory header for entry " + i);
+
+            entry.nameBytes = bytes(cd, variableStart, nameLength);
+            entry.extra = bytes(cd, variableStart + nameLength, extraLength);
+            entry.comment = bytes(cd, variableStart + nameLength + extraLength, commentLength);
+            entry.name = new String(entry.nameBytes, (entry.flags & FLAG_UTF8) != 0 ? UTF8 : CP437);
+
+            if (entry.compressedSize == ZIP64_MARKER || entry.size == ZIP64_MARKER || entry.localHeaderOffset == ZIP64_MARKER)
+                throw new UnsupportedZipException("Zip64 entries are not supported: " + entry.name);
+
+            entries.add(entry);
+            position = variableStart + nameLength + extraLength + commentLength;
+        }
+
+        return new ZipCentralDirectory(Collections.unmodifiableList(entries), centralDirectoryOffset);
+    }
+
+    // the position of the entry's compressed data, found from the variable length fields of its local header
+    static long dataOffset(FileChannel channel, Entry entry) throws IOException
+    {
+        ByteBuffer localHeader = readFully(channel, entry.localHeaderOffset, LOCAL_HEADER_SIZE);
+        if (localHeader.getInt(0) != LOCAL_HEADER_SIGNATURE)
+            throw new ZipException("Invalid local header for entry " + entry.name);
+
+        return entry.localHeaderOffset + LOCAL_HEADER_SIZE + u16(localHeader, 26) + u16(localHeader, 28);
+    }
+
+    // the uncompressed data of a stored or deflated entry, read with positional reads so that entries of the same
+    // channel can be read on many threads
+    static InputStream openEntry(FileChannel channel, Entry entry) throws IOException
+    {
+        if ((entry.flags & FLAG_ENCRYPTED) != 0)
+            throw new UnsupportedZipException("Entry " + entry.name + " is encrypted");
+
+        InputStream data = new ChannelRangeStream(channel, dataOffset(channel, entry), entry.compressedSize);
+        if (entry.method == 0)
+            return data;
+        if (entry.method == 8)
+            return new EntryInflaterStream(data);
+        throw new UnsupportedZipException("Entry " + entry.name + " uses unsupported compression method " + entry.method);
+    }
+
+    static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new ZipException("Unexpected end of zip file");
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static int u16(ByteBuffer buffer, int index)
+    {
+        return buffer.getShort(index) & 0xFFFF;
+    }
+
+    private static long u32(ByteBuffer buffer, int index)
+    {
+        return buffer.getInt(index) & 0xFFFFFFFFL;
+    }
+
+    private static byte[] bytes(ByteBuffer buffer, int index, int length)
+    {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++)
+            bytes[i] = buffer.get(index + i);
+        return bytes;
+    }
+
+    // reads a range of the channel with positional reads, leaving the channel position alone
+    static class ChannelRangeStream extends InputStream {
+        private final FileChannel channel;
+        private long position;
+        private final long end;
+
+        ChannelRangeStream(FileChannel channel, long position, long length) {
+            this.channel = channel;
+            this.position = position;
+            this.end = position + length;
+        }
+
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return (read(single, 0, 1) == -1) ? -1 : single[0] & 0xFF;
+        }
+
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (position >= end)
+                return -1;
+
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, (int) Math.min(length, end - position));
+            int read = channel.read(buffer, position);
+            if (read == -1)
+                throw new ZipException("Unexpected end of zip file");
+            position += read;
+            return read;
+        }
+    }
+
+    // inflates raw deflate data.  Like ZipFile, it gives the inflater one dummy byte past the end of the data, which
+    // a nowrap inflater may need to finish
+    private static class EntryInflaterStream extends InflaterInputStream {
+        private boolean dataEnded = false;
+
+        EntryInflaterStream(InputStream data) {
+            super(data, new Inflater(true), 65536);
+        }
+
+        protected void fill() throws IOException {
+            if (dataEnded)
+                throw new EOFException("Unexpected end of zip entry");
+            len = in.read(buf, 0, buf.length);
+            if (len == -1) {
+                buf[0] = 0;
+                len = 1;
+                dataEnded = true;
+            }
+            inf.setInput(buf, 0, len);
+        }
+
+        public void close() throws IOException {
+            super.close();
+            inf.end();
+        }
+    }
+
+    // a zip which may well be valid, but uses features this reader does not handle
+    static class UnsupportedZipException extends ZipException {
+        UnsupportedZipException(String message) {
+            super(message);
+        }
+    }
+
+    static class Entry {
+        String name;
+        byte[] nameBytes;
+        byte[] extra;
+        byte[] comment;
+        int versionMadeBy;
+        int versionNeeded;
+        int flags;
+        int method;
+        int dosTime;
+        int dosDate;
+        long crc;
+        long compressedSize;
+        long size;
+        int internalAttributes;
+        long externalAttributes;
+        long localHeaderOffset;
+
+        String getName() {
+            return name;
+        }
+
+        boolean isDirectory() {
+            return name.endsWith("/");
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package org.endeavourhealth.tppddsuploader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+// checks the extract zips before they are split or uploaded.  Normally only the central directory at the end of the
+// zip is read, with positional reads, to check it is well formed and lists only csv files.  In deep mode every entry
+// is also inflated, in parallel, and checked against the crc and size in the central directory.  The zips of many
+// folders can be validated at once on a fork-join pool, with the results kept in the scan index
+class ZipValidationService {
+
+    private static final int BUFFER_SIZE = 65536;
+    private static final ForkJoinPool POOL = new ForkJoinPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
+
+    // whether the zip holds only csv files, and in deep mode whether every entry inflates to its crc and size
+    static boolean validZipFile(File zipFile)
+    {
+        FileInputStream in;
+        try {
+            in = new FileInputStream(zipFile);
+        } catch (IOException ex) {
+            return false;
+        }
+
+        try {
+            FileChannel channel = in.getChannel();
+
+            // a zip starts with a local header, the end of central directory record if it is empty, or the marker of
+            // a spanned zip, e.g. one split into a single part.  Anything else, e.g. a csv file, is turned away without
+            // searching for a central directory.  The last part of a split zip carries on from the part before, so its
+            // central directory is read whatever it starts with
+            if (channel.size() < 4)
+                return false;
+            if (!zipSignature(ZipCentralDirectory.readFully(channel, 0, 4).getInt(0)) && !splitZipPartsExist(zipFile))
+                return false;
+
+            ZipCentralDirectory centralDirectory = ZipCentralDirectory.read(channel);
+            for (ZipCentralDirectory.Entry entry : centralDirectory.getEntries()) {
+                // is the file a .csv?
+                if (!entry.getName().contains(".csv")) {
+                    System.out.println(String.format("Invalid file (%s) detected in Zip file: %s", entry.getName(), zipFile.getPath()));
+                    return false;
+                }
+            }
+
+            if (UploaderSettings.zipValidation().equals(UploaderSettings.ZIP_VALIDATION_DEEP))
+                return entriesIntact(zipFile, channel, centralDirectory);
+            return true;
+
+        } catch (ZipCentralDirectory.UnsupportedZipException ex) {
+            return HelperUtils.validZip4jFile(zipFile);
+        } catch (IOException ex) {
+            System.out.println(String.format("Invalid Zip file %s => %s", zipFile.getPath(), ex.getMessage()));
+            return false;
+        } finally {
+            try {
+                in.close();
+            } catch (IOException ex) {
+                // nothing was written, so nothing is lost
+            }
+        }
+    }
+
+    private static boolean zipSignature(int signature)
+    {
+        return signature == ZipCentralDirectory.LOCAL_HEADER_SIGNATURE || signature == ZipCentralDirectory.END_OF_CENTRAL_DIRECTORY_SIGNATURE
+                || signature == ZipCentralDirectory.SPLIT_SIGNATURE || signature == ZipCentralDirectory.SINGLE_SEGMENT_SIGNATURE;
+    }
+
+    // whether the zip is the last part of a split zip, i.e. SRExtract.zip alongside SRExtract.z01
+    private static boolean splitZipPartsExist(File zipFile)
+    {
+        String name = zipFile.getName();
+        return name.toLowerCase().endsWith(".zip")
+                && new File(zipFile.getParentFile(), name.substring(0, name.length() - 4) + ".z01").exists();
+    }
+
+    // stops the validation threads once the uploader has finished
+    static void shutdown()
+    {
+        POOL.shutdownNow();
+    }
+
+    // validates the zips among the files concurrently, so the scan and folder checks which follow find the results
+    // in the scan index instead of opening each zip in turn
+    static void prevalidate(List<File> files, final ScanIndex scanIndex)
+    {
+        List<RecursiveAction> validations = new ArrayList<RecursiveAction>();
+        for (final File file : files) {
+            if (!file.getName().toLowerCase().endsWith(".zip") && !IndependentZipSplitter.isPart(file))
+                continue;
+
+            validations.add(new RecursiveAction() {
+                protected void compute() {
+                    scanIndex.validZipFile(file);
+                }
+            });
+        }
+        if (validations.isEmpty())
+            return;
+
+        final List<RecursiveAction> allValidations = validations;
+        POOL.invoke(new RecursiveAction() {
+            protected void compute() {
+                invokeAll(allValidations);
+            }
+        });
+    }
+
+    // inflates every entry on the pool and checks its crc and size.  Positional reads on the one channel are safe
+    // from many threads
+    private static boolean entriesIntact(File zipFile, final FileChannel channel, ZipCentralDirectory centralDirectory)
+    {
+        List<RecursiveTask<String>> checks = new ArrayList<RecursiveTask<String>>();
+        for (final ZipCentralDirectory.Entry entry : centralDirectory.getEntries()) {
+            checks.add(new RecursiveTask<String>() {
+                protected String compute() {
+                    try {
+                        verifyEntry(channel, entry);
+                        return null;
+                    } catch (IOException ex) {
+                        return ex.getMessage();
+                    }
+                }
+            });
+        }
+
+        final List<RecursiveTask<String>> allChecks = checks;
+        POOL.invoke(new RecursiveAction() {
+            protected void compute() {
+                invokeAll(allChecks);
+            }
+        });
+
+        for (ForkJoinTask<String> check : checks) {
+            String failure = check.join();
+            if (failure != null) {
+                System.out.println(String.format("Corrupt Zip file %s => %s", zipFile.getPath(), failure));
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void verifyEntry(FileChannel channel, ZipCentralDirectory.Entry entry) throws IOException
+    {
+        if ((entry.flags & ZipCentralDirectory.FLAG_ENCRYPTED) != 0)
+            throw new ZipException("Entry " + entry.getName() + " is encrypted and cannot be verified");
+        if (entry.method != 0 && entry.method != 8)
+            throw new ZipException("Entry " + entry.getName() + " uses unsupported compression method " + entry.method);
+
+        InputStream data = new ZipCentralDirectory.ChannelRangeStream(channel, ZipCentralDirectory.dataOffset(channel, entry), entry.compressedSize);
+        CRC32 crc = new CRC32();
+        long size = 0;
+        byte[] buffer = new byte[BUFFER_SIZE];
+        byte[] output = new byte[BUFFER_SIZE];
+
+        if (entry.method == 0) {
+            int read;
+            while ((read = data.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+                size += read;
+            }
+        } else {
+            Inflater inflater = new Inflater(true);
+            try {
+                while (!inflater.finished()) {
+                    if (inflater.needsInput()) {
+                        int read = data.read(buffer);
+                        if (read == -1)
+                            throw new ZipException("Entry " + entry.getName() + " ends before its compressed data does");
+                        inflater.setInput(buffer, 0, read);
+                    }
+                    int inflated = inflater.inflate(output);
+                    crc.update(output, 0, inflated);
+                    size += inflated;
+                    if (inflated == 0 && inflater.needsDictionary())
+                        throw new ZipException("Entry " + entry.getName() + " needs a preset dictionary");
+                }
+            } catch (DataFormatException ex) {
+                throw new ZipException("Entry " + entry.getName() + " is corrupt: " + ex.getMessage());
+            } finally {
+                inflater.end();
+            }
+        }
+
+        if (size != entry.size)
+            throw new ZipException(String.format("Entry %s is %d bytes, expected %d", entry.getName(), size, entry.size));
+        if (crc.getValue() != entry.crc)
+            throw new ZipException(String.format("Entry %s has crc %08x, expected %08x", entry.getName(), crc.getValue(), entry.crc));
+    }
+}
@@ -0,0 +1,113 @@
+package org.endeavourhealth.tppddsuploader;
+
+import org.apache.http.Header;
+import org.apache.http.message.BasicHeader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+
+import static org.endeavourhealth.tppddsuploader.HttpUploadTransport.UploadResponse;
+import static org.junit.Assert.*;
+
+// uploads an extract, then the next day's extract as a delta of it, to a LocalUploadServer, and checks the zip the
+// stand-in rebuilds from the recipe and chunks holds the csvs of the new extract
+public class DeltaSyncClientTest {
+
+    private static final String ORG_ID = "TPP-01";
+    private static final int ROWS_PER_CSV = 40000;
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private final Header authHeader = new BasicHeader("Authorization", "Bearer test");
+    private File storeDir;
+    private LocalUploadServer server;
+    private HttpUploadTransport transport;
+    private DeltaSyncClient deltaClient;
+    private File rootDir;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        storeDir = temp.newFolder("store");
+        server = LocalUploadServer.start(storeDir, 0);
+        transport = new HttpUploadTransport(2, 60000, UploaderSettings.UPLOAD_COMPRESSION_NONE, UploaderSettings.UPLOAD_DIGESTS_NONE,
+                UploaderSettings.HTTP_TRANSPORT_BLOCKING, null);
+        deltaClient = new DeltaSyncClient(transport, server.getServiceBaseUri(), temp.newFolder("delta"));
+        rootDir = temp.newFolder("root");
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        transport.close();
+        server.stop();
+    }
+
+    @Test
+    public void nextExtractIsRebuiltFromItsDelta() throws IOException
+    {
+        File firstZip = extractZip("20260101_0800", 0);
+        UploadMetrics firstMetrics = new UploadMetrics(ORG_ID);
+        assertEquals(200, postZip(firstZip, firstMetrics).getStatusCode());
+        assertEquals(TestExtracts.entryCrcs(firstZip), TestExtracts.contentCrcs(storedZip("20260101_0800")));
+
+        // the inserted rows change a few chunks of each csv, and only those are sent
+        File nextZip = extractZip("20260102_0800", 10000);
+        UploadMetrics nextMetrics = new UploadMetrics(ORG_ID);
+        assertEquals(200, postZip(nextZip, nextMetrics).getStatusCode());
+        assertEquals(1, nextMetrics.getCounter(UploadMetrics.FILES_DELTA_SYNCED));
+        assertTrue("most of the next extract is not sent again",
+                nextMetrics.getCounter(UploadMetrics.BYTES_DELTA_SAVED) > nextZip.length() / 2);
+
+        assertEquals(TestExtracts.entryCrcs(nextZip), TestExtracts.contentCrcs(storedZip("20260102_0800")));
+    }
+
+    @Test
+    public void missingChunksAreSentAgain() throws IOException
+    {
+        File firstZip = extractZip("20260101_0800", 0);
+        assertEquals(200, postZip(firstZip, new UploadMetrics(ORG_ID)).getStatusCode());
+
+        // the service has lost the chunks of the last extract, so it asks for the ones the recipe needs
+        TestExtracts.deleteTree(new File(new File(storeDir, ORG_ID), "delta-chunks"));
+
+        File nextZip = extractZip("20260102_0800", 10000);
+        assertEquals(200, postZip(nextZip, new UploadMetrics(ORG_ID)).getStatusCode());
+        assertEquals(TestExtracts.entryCrcs(nextZip), TestExtracts.contentCrcs(storedZip("20260102_0800")));
+    }
+
+    private File extractZip(String folderName, int changeEvery) throws IOException
+    {
+        File folder = new File(rootDir, folderName);
+        assertTrue(folder.mkdirs());
+        File zipFile = new File(folder, "SRExtract.zip");
+        TestExtracts.writeExtractZip(zipFile, 1, ROWS_PER_CSV, changeEvery);
+        return zipFile;
+    }
+
+    private UploadResponse postZip(File zipFile, UploadMetrics metrics) throws IOException
+    {
+        return deltaClient.postFiles(ORG_ID, authHeader, Collections.singletonList(zipFile), rootDir.getPath(), metrics);
+    }
+
+    // the zip as the stand-in stored it, under the name of its upload path
+    private File storedZip(String folderName)
+    {
+        File[] posts = new File(new File(storeDir, ORG_ID), "posts").listFiles();
+        assertNotNull(posts);
+        for (File post : posts) {
+            File zipFile = new File(post, "_" + folderName + "_SRExtract.zip");
+            if (zipFile.isFile())
+                return zipFile;
+        }
+        fail("No zip stored for " + folderName);
+        return null;
+    }
+}
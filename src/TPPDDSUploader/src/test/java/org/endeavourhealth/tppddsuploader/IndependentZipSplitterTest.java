@@ -0,0 +1,61 @@
+package org.endeavourhealth.tppddsuploader;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+// splits an extract into independent parts, then joins the pieces of each csv back together and checks them against
+// the crcs of the source zip, and that the part index is only accepted with exactly its parts alongside it
+public class IndependentZipSplitterTest {
+
+    private static final long SPLIT_SIZE = 262144;
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void piecesJoinBackIntoTheSourceCsvs() throws IOException
+    {
+        File sourceZip = temp.newFile("source.zip");
+        TestExtracts.writeExtractZip(sourceZip, 1, 40000, 0);
+        List<File> parts = IndependentZipSplitter.split(sourceZip, new File(temp.getRoot(), "SRExtract.zip"), SPLIT_SIZE);
+
+        // the parts come in order, followed by the index
+        File indexFile = parts.remove(parts.size() - 1);
+        assertEquals("SRExtract.parts", indexFile.getName());
+        assertTrue(parts.size() > TestExtracts.TABLES.length);
+
+        for (int i = 0; i < parts.size(); i++) {
+            File part = parts.get(i);
+            assertEquals(String.format("SRExtract.p%02d", i + 1), part.getName());
+            assertTrue(part.getName() + " is within the split size", part.length() <= SPLIT_SIZE);
+        }
+        assertEquals(TestExtracts.entryCrcs(sourceZip), TestExtracts.joinedCrcs(parts));
+    }
+
+    @Test
+    public void partIndexMatchesOnlyItsOwnParts() throws IOException
+    {
+        File sourceZip = temp.newFile("source.zip");
+        TestExtracts.writeExtractZip(sourceZip, 1, 20000, 0);
+        File folder = temp.newFolder("20260101_0800");
+        List<File> parts = IndependentZipSplitter.split(sourceZip, new File(folder, "SRExtract.zip"), SPLIT_SIZE);
+        File indexFile = new File(folder, "SRExtract.parts");
+        assertTrue(IndependentZipSplitter.partIndexMatches(indexFile, folder.listFiles()));
+
+        File extraPart = new File(folder, String.format("SRExtract.p%02d", parts.size()));
+        Files.copy(parts.get(0).toPath(), extraPart.toPath());
+        assertFalse(IndependentZipSplitter.partIndexMatches(indexFile, folder.listFiles()));
+
+        assertTrue(extraPart.delete());
+        assertTrue(parts.get(1).delete());
+        assertFalse(IndependentZipSplitter.partIndexMatches(indexFile, folder.listFiles()));
+    }
+}
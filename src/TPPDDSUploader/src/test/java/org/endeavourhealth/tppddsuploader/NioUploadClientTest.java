@@ -0,0 +1,163 @@
+package org.endeavourhealth.tppddsuploader;
+
+import org.apache.http.Header;
+import org.apache.http.message.BasicHeader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.endeavourhealth.tppddsuploader.HttpUploadTransport.UploadResponse;
+import static org.junit.Assert.*;
+
+// posts a batch over the nio transport to a LocalUploadServer, with the csvs gzipped and the digests of every file
+// checked, and sent as they are, which copies them from their FileChannels with transferTo, and checks the stand-in
+// stored each file as it is on disk, with and without a bandwidth limit
+public class NioUploadClientTest {
+
+    private static final String ORG_ID = "TPP-01";
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private final Header authHeader = new BasicHeader("Authorization", "Bearer test");
+    private File storeDir;
+    private LocalUploadServer server;
+    private File rootDir;
+    private List<File> files;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        storeDir = temp.newFolder("store");
+        server = LocalUploadServer.start(storeDir, 0);
+        rootDir = temp.newFolder("root");
+        File folder = new File(rootDir, "20260101_0800");
+        assertTrue(folder.mkdirs());
+
+        File zipFile = new File(folder, "SRExtract.zip");
+        TestExtracts.writeExtractZip(zipFile, 1, 30000, 0);
+        files = Arrays.asList(zipFile, writeCsv(new File(folder, "SRMapping.csv"), 20000), writeCsv(new File(folder, "SRManifest.csv"), 10));
+    }
+
+    @After
+    public void tearDown()
+    {
+        server.stop();
+    }
+
+    @Test
+    public void gzippedBatchIsStoredWithItsDigestsVerified() throws IOException
+    {
+        HttpUploadTransport transport = nioTransport(UploaderSettings.UPLOAD_COMPRESSION_GZIP, UploaderSettings.UPLOAD_DIGESTS_VERIFY, null);
+        try {
+            UploadResponse response = post(transport);
+            assertEquals(response.getBody(), 200, response.getStatusCode());
+            assertEquals(files.size(), response.getDigests().size());
+            for (PartDigest digest : response.getDigests())
+                assertTrue(digest.getUploadPath() + " digest echoed", digest.isVerified());
+        } finally {
+            transport.close();
+        }
+        assertStored();
+    }
+
+    @Test
+    public void bandwidthLimitedBatchIsStoredWhole() throws IOException
+    {
+        // the zip is sent as it is, so the batch is at least its length on the wire
+        assertHeldToTheRate(UploaderSettings.UPLOAD_COMPRESSION_GZIP, UploaderSettings.UPLOAD_DIGESTS_VERIFY, files.get(0).length());
+        assertStored();
+    }
+
+    @Test
+    public void uncompressedBatchIsStoredWhole() throws IOException
+    {
+        HttpUploadTransport transport = nioTransport(UploaderSettings.UPLOAD_COMPRESSION_NONE, UploaderSettings.UPLOAD_DIGESTS_NONE, null);
+        try {
+            UploadResponse response = post(transport);
+            assertEquals(response.getBody(), 200, response.getStatusCode());
+            assertTrue(response.getDigests().isEmpty());
+        } finally {
+            transport.close();
+        }
+        assertStored();
+    }
+
+    @Test
+    public void bandwidthLimitedUncompressedBatchIsStoredWhole() throws IOException
+    {
+        long batchBytes = 0;
+        for (File file : files)
+            batchBytes += file.length();
+        assertHeldToTheRate(UploaderSettings.UPLOAD_COMPRESSION_NONE, UploaderSettings.UPLOAD_DIGESTS_NONE, batchBytes);
+        assertStored();
+    }
+
+    // posts the batch at 512 KB/s and checks it took as long as the bytes sent need.  A second's worth can go in a
+    // burst, the rest is held to the rate
+    private void assertHeldToTheRate(String compression, String digests, long sentBytes) throws IOException
+    {
+        long bytesPerSecond = 512 * 1024;
+        assertTrue(sentBytes > 2 * bytesPerSecond);
+        HttpUploadTransport transport = nioTransport(compression, digests, new BandwidthLimiter(RateSchedule.parse("*=512")));
+        long started = System.currentTimeMillis();
+        try {
+            UploadResponse response = post(transport);
+            assertEquals(response.getBody(), 200, response.getStatusCode());
+        } finally {
+            transport.close();
+        }
+        long elapsedMillis = System.currentTimeMillis() - started;
+        assertTrue("batch took " + elapsedMillis + " ms", elapsedMillis >= (sentBytes - bytesPerSecond) * 1000 / bytesPerSecond);
+    }
+
+    private HttpUploadTransport nioTransport(String compression, String digests, BandwidthLimiter bandwidthLimiter)
+    {
+        return new HttpUploadTransport(2, 60000, compression, digests, UploaderSettings.HTTP_TRANSPORT_NIO, bandwidthLimiter);
+    }
+
+    private UploadResponse post(HttpUploadTransport transport) throws IOException
+    {
+        return transport.postFiles(server.getServiceBaseUri() + "PostFile?organisationId=" + ORG_ID, authHeader, files, rootDir.getPath());
+    }
+
+    // each file as the stand-in stored it, under the name of its upload path, once gzipped parts are decompressed
+    private void assertStored() throws IOException
+    {
+        File[] posts = new File(new File(storeDir, ORG_ID), "posts").listFiles();
+        assertNotNull(posts);
+        assertEquals(1, posts.length);
+        for (File file : files) {
+            File stored = new File(posts[0], "_20260101_0800_" + file.getName());
+            assertTrue(stored.getName() + " stored", stored.isFile());
+            assertArrayEquals(file.getName(), Files.readAllBytes(file.toPath()), Files.readAllBytes(stored.toPath()));
+        }
+    }
+
+    private static File writeCsv(File csvFile, int rows) throws IOException
+    {
+        Random random = new Random(rows);
+        StringBuilder csv = new StringBuilder("\"RowIdentifier\",\"IdMappingGroup\",\"Mapping\"\r\n");
+        for (int row = 1; row <= rows; row++)
+            csv.append(row).append(',').append(random.nextInt(100)).append(",\"").append(Long.toHexString(random.nextLong())).append("\"\r\n");
+
+        OutputStream out = new FileOutputStream(csvFile);
+        try {
+            out.write(csv.toString().getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        return csvFile;
+    }
+}
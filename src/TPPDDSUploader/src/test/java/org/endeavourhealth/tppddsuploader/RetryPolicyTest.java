@@ -0,0 +1,70 @@
+package org.endeavourhealth.tppddsuploader;
+
+import org.junit.Test;
+
+import static org.endeavourhealth.tppddsuploader.HttpUploadTransport.UploadResponse;
+import static org.junit.Assert.*;
+
+// checks the retries a batch is given for each kind of failure, in particular that a refused token still gets its
+// retry with a new token after transient failures of the same batch
+public class RetryPolicyTest {
+
+    private static final UploadResponse UNAVAILABLE = new UploadResponse(503, "Service Unavailable");
+    private static final UploadResponse UNAUTHORISED = new UploadResponse(401, "Unauthorized");
+    private static final UploadResponse BAD_REQUEST = new UploadResponse(400, "Bad Request");
+
+    @Test
+    public void refusedTokenAfterATransientFailureIsRetried()
+    {
+        RetryPolicy retryPolicy = RetryPolicy.backoff(1, 1);
+        RetryPolicy.RetryCounter retries = retryPolicy.retryCounter();
+        assertFalse(retries.retrying());
+
+        assertTrue(retryDelayMillis(retryPolicy, retries, UNAVAILABLE) >= 0);
+        assertTrue(retries.retrying());
+        assertEquals(0, retryDelayMillis(retryPolicy, retries, UNAUTHORISED));
+    }
+
+    @Test
+    public void refusedTokenIsRetriedOnce()
+    {
+        RetryPolicy retryPolicy = RetryPolicy.backoff(1, 1);
+        RetryPolicy.RetryCounter retries = retryPolicy.retryCounter();
+        assertEquals(0, retryDelayMillis(retryPolicy, retries, UNAUTHORISED));
+        assertTrue(retryDelayMillis(retryPolicy, retries, UNAVAILABLE) >= 0);
+        assertEquals(-1, retryDelayMillis(retryPolicy, retries, UNAUTHORISED));
+    }
+
+    @Test
+    public void transientFailuresAreRetriedUpToTheLimit()
+    {
+        RetryPolicy retryPolicy = RetryPolicy.backoff(1, 1);
+        RetryPolicy.RetryCounter retries = retryPolicy.retryCounter();
+        for (int retry = 1; retry <= RetryPolicy.MAX_RETRIES; retry++)
+            assertTrue("retry " + retry, retryDelayMillis(retryPolicy, retries, UNAVAILABLE) >= 0);
+        assertEquals(-1, retryDelayMillis(retryPolicy, retries, UNAVAILABLE));
+    }
+
+    @Test
+    public void otherStatusesAreNotRetried()
+    {
+        RetryPolicy retryPolicy = RetryPolicy.backoff(1, 1);
+        assertEquals(-1, retryDelayMillis(retryPolicy, retryPolicy.retryCounter(), BAD_REQUEST));
+    }
+
+    @Test
+    public void immediatePolicyRetriesEveryFailureUpToTheLimit()
+    {
+        RetryPolicy retryPolicy = RetryPolicy.immediate();
+        RetryPolicy.RetryCounter retries = retryPolicy.retryCounter();
+        UploadResponse[] responses = {UNAVAILABLE, UNAUTHORISED, BAD_REQUEST, UNAUTHORISED, UNAVAILABLE};
+        for (UploadResponse response : responses)
+            assertEquals(0, retryDelayMillis(retryPolicy, retries, response));
+        assertEquals(-1, retryDelayMillis(retryPolicy, retries, UNAUTHORISED));
+    }
+
+    private static long retryDelayMillis(RetryPolicy retryPolicy, RetryPolicy.RetryCounter retries, UploadResponse response)
+    {
+        return retries.retryDelayMillis(retryPolicy.classify(response.getStatusCode()), response);
+    }
+}
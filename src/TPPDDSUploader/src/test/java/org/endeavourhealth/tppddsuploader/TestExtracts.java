@@ -0,0 +1,195 @@
+package org.endeavourhealth.tppddsuploader;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+// small SR extract zips for the tests, with seeded random rows so the same settings always give the same csvs.  Some
+// rows hold a quoted line break, as free text in a real extract can
+class TestExtracts {
+
+    static final String[] TABLES = {"SRPatient", "SREvent", "SRCode"};
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String[] CODES = {"XaIvd", "XaJ0c", "X77Wg", "XE0Uc", "Y1f1c", "XaBVJ", "22K..", "246.."};
+
+    // writes rowsPerCsv rows into each table's csv.  When changeEvery is more than 0 a row is inserted before every
+    // changeEvery'th row, so the zip is the same extract with scattered edits, as from one day to the next
+    static void writeExtractZip(File zipFile, long seed, int rowsPerCsv, int changeEvery) throws IOException
+    {
+        Random random = new Random(seed);
+        ZipOutputStream zipOut = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(zipFile), 65536));
+        try {
+            for (String table : TABLES) {
+                zipOut.putNextEntry(new ZipEntry(table + ".csv"));
+                Writer writer = new OutputStreamWriter(zipOut, UTF8);
+                writer.write("\"RowIdentifier\",\"IDPatient\",\"CTV3Code\",\"NumericValue\",\"FreeText\"\r\n");
+                for (int row = 1; row <= rowsPerCsv; row++) {
+                    if (changeEvery > 0 && row % changeEvery == 0)
+                        writer.write("\"inserted\"," + row + ",\"X77Wg\",,\"\"\r\n");
+                    writer.write(row + "," + (random.nextInt(500000) + 1) + ",\"" + CODES[random.nextInt(CODES.length)] + "\","
+                            + random.nextInt(1000) + ",\"" + freeText(random) + "\"\r\n");
+                }
+                writer.flush();
+                zipOut.closeEntry();
+            }
+        } finally {
+            zipOut.close();
+        }
+    }
+
+    // copies the zip with its entries stored rather than deflated, as an extract which compresses well when split
+    static void writeStoredCopy(File zipFile, File storedZipFile) throws IOException
+    {
+        ZipFile zip = new ZipFile(zipFile);
+        ZipOutputStream zipOut = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(storedZipFile), 65536));
+        try {
+            zipOut.setMethod(ZipOutputStream.STORED);
+            zipOut.setLevel(Deflater.NO_COMPRESSION);
+            for (Enumeration<? extends ZipEntry> entries = zip.entries(); entries.hasMoreElements(); ) {
+                ZipEntry entry = entries.nextElement();
+                ZipEntry storedEntry = new ZipEntry(entry.getName());
+                storedEntry.setSize(entry.getSize());
+                storedEntry.setCompressedSize(entry.getSize());
+                storedEntry.setCrc(entry.getCrc());
+                zipOut.putNextEntry(storedEntry);
+                zipOut.write(readAll(zip.getInputStream(entry)));
+                zipOut.closeEntry();
+            }
+        } finally {
+            zipOut.close();
+            zip.close();
+        }
+    }
+
+    // the crc-32 of each entry of a zip, by name, as its central directory gives it
+    static Map<String, Long> entryCrcs(File zipFile) throws IOException
+    {
+        Map<String, Long> crcs = new TreeMap<String, Long>();
+        ZipFile zip = new ZipFile(zipFile);
+        try {
+            for (Enumeration<? extends ZipEntry> entries = zip.entries(); entries.hasMoreElements(); ) {
+                ZipEntry entry = entries.nextElement();
+                crcs.put(entry.getName(), entry.getCrc());
+            }
+        } finally {
+            zip.close();
+        }
+        return crcs;
+    }
+
+    // the crc-32 of each entry of a zip, by name, worked out from its inflated content
+    static Map<String, Long> contentCrcs(File zipFile) throws IOException
+    {
+        Map<String, Long> crcs = new TreeMap<String, Long>();
+        ZipFile zip = new ZipFile(zipFile);
+        try {
+            for (Enumeration<? extends ZipEntry> entries = zip.entries(); entries.hasMoreElements(); ) {
+                ZipEntry entry = entries.nextElement();
+                crcs.put(entry.getName(), crc(zip.getInputStream(entry)));
+            }
+        } finally {
+            zip.close();
+        }
+        return crcs;
+    }
+
+    // the crc-32 of each csv held by independent parts, given in order, once its pieces are joined back together
+    static Map<String, Long> joinedCrcs(List<File> parts) throws IOException
+    {
+        Map<String, ByteArrayOutputStream> joined = new LinkedHashMap<String, ByteArrayOutputStream>();
+        for (File part : parts) {
+            ZipFile partZip = new ZipFile(part);
+            try {
+                for (Enumeration<? extends ZipEntry> entries = partZip.entries(); entries.hasMoreElements(); ) {
+                    ZipEntry entry = entries.nextElement();
+                    byte[] piece = readAll(partZip.getInputStream(entry));
+                    ByteArrayOutputStream csv = joined.get(entry.getName());
+                    if (csv == null) {
+                        csv = new ByteArrayOutputStream();
+                        joined.put(entry.getName(), csv);
+                        csv.write(piece);
+                    } else {
+                        // each later piece starts with the csv's header row again
+                        int headerLength = headerLength(csv.toByteArray());
+                        csv.write(piece, headerLength, piece.length - headerLength);
+                    }
+                }
+            } finally {
+                partZip.close();
+            }
+        }
+
+        Map<String, Long> crcs = new TreeMap<String, Long>();
+        for (Map.Entry<String, ByteArrayOutputStream> csv : joined.entrySet())
+            crcs.put(csv.getKey(), crc(new ByteArrayInputStream(csv.getValue().toByteArray())));
+        return crcs;
+    }
+
+    static long crc(InputStream in) throws IOException
+    {
+        CRC32 crc = new CRC32();
+        try {
+            byte[] buffer = new byte[65536];
+            int read;
+            while ((read = in.read(buffer)) != -1)
+                crc.update(buffer, 0, read);
+        } finally {
+            in.close();
+        }
+        return crc.getValue();
+    }
+
+    static byte[] readAll(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[65536];
+            int read;
+            while ((read = in.read(buffer)) != -1)
+                out.write(buffer, 0, read);
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+
+    static void deleteTree(File file)
+    {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children)
+                deleteTree(child);
+        }
+        file.delete();
+    }
+
+    // the length of the first row, with its line break.  The header rows of the test csvs have no quoted line breaks
+    private static int headerLength(byte[] csv)
+    {
+        for (int i = 0; i < csv.length; i++) {
+            if (csv[i] == '\n')
+                return i + 1;
+        }
+        return csv.length;
+    }
+
+    private static String freeText(Random random)
+    {
+        StringBuilder text = new StringBuilder();
+        int words = random.nextInt(8);
+        for (int i = 0; i < words; i++)
+            text.append(CODES[random.nextInt(CODES.length)]).append(random.nextInt(20) == 0 ? "\r\n" : " ");
+        return text.toString();
+    }
+}
@@ -0,0 +1,167 @@
+package org.endeavourhealth.tppddsuploader;
+
+import net.lingala.zip4j.core.ZipFile;
+import net.lingala.zip4j.exception.ZipException;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+// splits an extract with each tppdds.zipSplitMode, checks the zip validator accepts what was written, then reads the
+// parts back and checks every csv against the crcs of the source zip.  Each mode is also split into a single part,
+// which the spanned modes mark as a single segment rather than starting with a local header
+public class ZipSplitModesTest {
+
+    private static final String ORG_ID = "TPP-01";
+    private static final long SPLIT_SIZE = 262144;
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @After
+    public void tearDown()
+    {
+        System.clearProperty("tppdds.zipSplitMode");
+    }
+
+    @Test
+    public void streamedPartsReadBack() throws Exception
+    {
+        splitSpannedAndReadBack(UploaderSettings.ZIP_SPLIT_STREAM);
+    }
+
+    @Test
+    public void parallelDeflatedPartsReadBack() throws Exception
+    {
+        splitSpannedAndReadBack(UploaderSettings.ZIP_SPLIT_PARALLEL);
+    }
+
+    @Test
+    public void zip4jPartsReadBack() throws Exception
+    {
+        splitSpannedAndReadBack(UploaderSettings.ZIP_SPLIT_ZIP4J);
+    }
+
+    @Test
+    public void independentPartsReadBack() throws IOException
+    {
+        File zipFile = extractZip();
+        Map<String, Long> sourceCrcs = TestExtracts.entryCrcs(zipFile);
+
+        List<File> parts = split(UploaderSettings.ZIP_SPLIT_INDEPENDENT, zipFile, SPLIT_SIZE);
+        File indexFile = parts.remove(parts.size() - 1);
+        assertTrue(parts.size() > 1);
+        assertIndependentPartsValid(parts, indexFile);
+        assertEquals(sourceCrcs, TestExtracts.joinedCrcs(parts));
+    }
+
+    @Test
+    public void singlePartStreamedSplitReadsBack() throws IOException
+    {
+        File zipFile = extractZip();
+        Map<String, Long> sourceCrcs = TestExtracts.entryCrcs(zipFile);
+
+        // a streamed split is as large as the source, so only a split size over it leaves one part
+        File sourceZip = new File(temp.getRoot(), "source.zip");
+        assertTrue(zipFile.renameTo(sourceZip));
+        List<File> parts = StreamingZipSplitter.split(sourceZip, zipFile, 2 * sourceZip.length());
+        assertSinglePartValid(parts, zipFile);
+        assertEquals(sourceCrcs, TestExtracts.contentCrcs(zipFile));
+    }
+
+    @Test
+    public void singlePartParallelSplitReadsBack() throws IOException
+    {
+        // a stored extract over the split size deflates into a single part
+        File zipFile = extractZip();
+        Map<String, Long> sourceCrcs = TestExtracts.entryCrcs(zipFile);
+        File storedZip = new File(temp.getRoot(), "stored.zip");
+        TestExtracts.writeStoredCopy(zipFile, storedZip);
+        assertTrue(zipFile.delete());
+        assertTrue(storedZip.renameTo(zipFile));
+
+        long splitSize = zipFile.length() / 2;
+        List<File> parts = split(UploaderSettings.ZIP_SPLIT_PARALLEL, zipFile, splitSize);
+        assertTrue(zipFile.length() <= splitSize);
+        assertSinglePartValid(parts, zipFile);
+        assertEquals(sourceCrcs, TestExtracts.contentCrcs(zipFile));
+    }
+
+    @Test
+    public void singlePartIndependentSplitReadsBack() throws IOException
+    {
+        File zipFile = extractZip();
+        Map<String, Long> sourceCrcs = TestExtracts.entryCrcs(zipFile);
+
+        File sourceZip = new File(temp.getRoot(), "source.zip");
+        assertTrue(zipFile.renameTo(sourceZip));
+        List<File> parts = IndependentZipSplitter.split(sourceZip, zipFile, 2 * sourceZip.length());
+        File indexFile = parts.remove(parts.size() - 1);
+        assertEquals(1, parts.size());
+        assertIndependentPartsValid(parts, indexFile);
+        assertEquals(sourceCrcs, TestExtracts.joinedCrcs(parts));
+    }
+
+    private void splitSpannedAndReadBack(String splitMode) throws IOException, ZipException
+    {
+        File zipFile = extractZip();
+        Map<String, Long> sourceCrcs = TestExtracts.entryCrcs(zipFile);
+
+        List<File> parts = split(splitMode, zipFile, SPLIT_SIZE);
+        assertTrue(splitMode + " split the zip", parts.size() > 1);
+        assertTrue(zipFile.isFile());
+        assertTrue(splitMode + " split is valid", ZipValidationService.validZipFile(zipFile));
+
+        File extractedDir = temp.newFolder("extracted");
+        new ZipFile(zipFile).extractAll(extractedDir.getPath());
+        for (Map.Entry<String, Long> entry : sourceCrcs.entrySet()) {
+            File csv = new File(extractedDir, entry.getKey());
+            assertTrue(splitMode + " wrote " + entry.getKey(), csv.isFile());
+            assertEquals(splitMode + " " + entry.getKey(), entry.getValue().longValue(), TestExtracts.crc(new FileInputStream(csv)));
+        }
+        String[] extracted = extractedDir.list();
+        assertNotNull(extracted);
+        assertEquals(sourceCrcs.size(), extracted.length);
+    }
+
+    private File extractZip() throws IOException
+    {
+        File zipFile = new File(temp.newFolder("20260101_0800"), "SRExtract.zip");
+        TestExtracts.writeExtractZip(zipFile, 1, 40000, 0);
+        return zipFile;
+    }
+
+    // splits the zip as a scan does, returning the parts written
+    private static List<File> split(String splitMode, File zipFile, long splitSize)
+    {
+        System.setProperty("tppdds.zipSplitMode", splitMode);
+        List<File> parts = HelperUtils.splitLargeZipFiles(Collections.singletonList(zipFile), "", ORG_ID,
+                new UploadMetrics(ORG_ID), ScanIndex.inMemory(), HelperUtils.fixedZipSplitSize(splitSize));
+        for (File part : parts)
+            assertTrue(part.getName() + " is within the split size", part.length() <= splitSize);
+        assertFalse(new File(zipFile.getPath() + ".bak").exists());
+        return parts;
+    }
+
+    private static void assertSinglePartValid(List<File> parts, File zipFile)
+    {
+        assertEquals(Collections.singletonList(zipFile), parts);
+        assertTrue(ZipValidationService.validZipFile(zipFile));
+    }
+
+    private static void assertIndependentPartsValid(List<File> parts, File indexFile)
+    {
+        assertTrue(IndependentZipSplitter.partIndexMatches(indexFile, indexFile.getParentFile().listFiles()));
+        for (File part : parts)
+            assertTrue(part.getName() + " is valid", ZipValidationService.validZipFile(part));
+    }
+}
@@ -0,0 +1,86 @@
+package org.endeavourhealth.tppddsuploader;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+// checks the zip validator accepts what the splitters write, including a split which fitted in a single part and so
+// starts with the PK00 marker rather than a local header, and still turns away files which are not zips
+public class ZipValidationServiceTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @After
+    public void tearDown()
+    {
+        System.clearProperty("tppdds.zipValidation");
+    }
+
+    @Test
+    public void singlePartStreamedSplitIsValid() throws IOException
+    {
+        File sourceZip = sourceZip();
+        List<File> parts = StreamingZipSplitter.split(sourceZip, new File(temp.newFolder("stream"), "SRExtract.zip"), 2 * sourceZip.length());
+        assertSinglePartValid(parts);
+    }
+
+    @Test
+    public void singlePartParallelSplitIsValid() throws IOException
+    {
+        File sourceZip = sourceZip();
+        List<File> parts = ParallelZipSplitter.split(sourceZip, new File(temp.newFolder("parallel"), "SRExtract.zip"), 2 * sourceZip.length());
+        assertSinglePartValid(parts);
+    }
+
+    @Test
+    public void fileWhichIsNotAZipIsInvalid() throws IOException
+    {
+        File csvFile = temp.newFile("SRExtract.zip");
+        OutputStream out = new FileOutputStream(csvFile);
+        try {
+            out.write("\"RowIdentifier\",\"IDPatient\"\r\n1,2\r\n".getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        assertFalse(ZipValidationService.validZipFile(csvFile));
+    }
+
+    private File sourceZip() throws IOException
+    {
+        File sourceZip = temp.newFile("source.zip");
+        TestExtracts.writeExtractZip(sourceZip, 1, 5000, 0);
+        return sourceZip;
+    }
+
+    private static void assertSinglePartValid(List<File> parts) throws IOException
+    {
+        assertEquals(1, parts.size());
+        File zipFile = parts.get(0);
+        assertEquals(ZipCentralDirectory.SINGLE_SEGMENT_SIGNATURE, firstSignature(zipFile));
+
+        assertTrue(ZipValidationService.validZipFile(zipFile));
+        System.setProperty("tppdds.zipValidation", UploaderSettings.ZIP_VALIDATION_DEEP);
+        assertTrue(ZipValidationService.validZipFile(zipFile));
+    }
+
+    private static int firstSignature(File zipFile) throws IOException
+    {
+        RandomAccessFile in = new RandomAccessFile(zipFile, "r");
+        try {
+            return Integer.reverseBytes(in.readInt());
+        } finally {
+            in.close();
+        }
+    }
+}